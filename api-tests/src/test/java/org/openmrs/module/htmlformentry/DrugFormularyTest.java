@@ -0,0 +1,85 @@
+package org.openmrs.module.htmlformentry;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.ConceptName;
+import org.openmrs.Drug;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.widget.Option;
+
+public class DrugFormularyTest extends BaseHtmlFormEntryTest {
+	
+	private DrugFormulary formulary;
+	
+	@Before
+	public void setupFormulary() {
+		formulary = Context.getRegisteredComponent("drugFormulary", DrugFormulary.class);
+	}
+	
+	@Test
+	public void getSnapshot_shouldLeaveOutDrugsOnceTheyAreRetired() {
+		DrugFormulary.Snapshot before = formulary.getSnapshot();
+		Integer drugId = before.getDrugIds().iterator().next();
+		Integer conceptId = before.getConceptId(drugId);
+		Assert.assertTrue(before.getDrugIdsForConcept(conceptId).contains(drugId));
+		
+		Drug drug = Context.getConceptService().getDrug(drugId);
+		Context.getConceptService().retireDrug(drug, "testing");
+		Context.flushSession();
+		DrugFormulary.Snapshot after = formulary.getSnapshot();
+		
+		Assert.assertTrue(after.getVersion() > before.getVersion());
+		Assert.assertFalse(after.getDrugIds().contains(drugId));
+		Assert.assertFalse(after.getDrugIdsForConcept(conceptId).contains(drugId));
+		// snapshots that are already in use do not change
+		Assert.assertTrue(before.getDrugIds().contains(drugId));
+	}
+	
+	@Test
+	public void getDrug_shouldReturnTheDetailsOfTheDrugWithoutLoadingIt() {
+		DrugFormulary.Snapshot snapshot = formulary.getSnapshot();
+		Integer drugId = snapshot.getDrugIds().iterator().next();
+		Drug drug = Context.getConceptService().getDrug(drugId);
+		
+		DrugFormulary.DrugDetails details = snapshot.getDrug(drugId);
+		Assert.assertEquals(drugId, details.getDrugId());
+		Assert.assertEquals(drug.getConcept().getConceptId(), details.getConceptId());
+		Assert.assertEquals(drug.getStrength(), details.getStrength());
+		Assert.assertEquals(drug.getIngredients().size(), details.getIngredients().size());
+		Assert.assertEquals(drug.getDisplayName(), snapshot.getDrugLabel(drugId));
+		Assert.assertNull(snapshot.getDrug(-1));
+	}
+	
+	@Test
+	public void getDrugOptions_shouldReturnAnOptionForEachDrugSortedByLabel() {
+		DrugFormulary.Snapshot snapshot = formulary.getSnapshot();
+		List<Option> options = snapshot.getDrugOptions();
+		
+		Assert.assertEquals(snapshot.getDrugIds().size(), options.size());
+		for (int i = 1; i < options.size(); i++) {
+			String previous = options.get(i - 1).getLabel().toLowerCase();
+			Assert.assertTrue(previous.compareTo(options.get(i).getLabel().toLowerCase()) <= 0);
+		}
+	}
+	
+	@Test
+	public void getConceptLabel_shouldBeComputedAgainOnceTheNameOfTheConceptChanges() {
+		DrugFormulary.Snapshot before = formulary.getSnapshot();
+		Integer conceptId = before.getConceptId(before.getDrugIds().iterator().next());
+		Assert.assertNotNull(before.getConceptLabel(conceptId));
+		
+		Concept concept = Context.getConceptService().getConcept(conceptId);
+		ConceptName name = concept.getName(Context.getLocale());
+		name.setName("A renamed drug concept");
+		Context.getConceptService().saveConcept(concept);
+		Context.flushSession();
+		DrugFormulary.Snapshot after = formulary.getSnapshot();
+		
+		Assert.assertTrue(after.getVersion() > before.getVersion());
+		Assert.assertEquals(concept.getDisplayString(), after.getConceptLabel(conceptId));
+	}
+}
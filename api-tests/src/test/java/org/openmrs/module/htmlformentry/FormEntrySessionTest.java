@@ -13,6 +13,9 @@
  */
 package org.openmrs.module.htmlformentry;
 
+import java.io.StringWriter;
+import java.util.HashSet;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -104,4 +107,71 @@ public class FormEntrySessionTest extends BaseHtmlFormEntryTest {
 		
 		Assert.assertEquals("MyForm.1.0/my_condition_tag-0", formPath);
 	}
+	
+	@Test
+	public void evaluateVelocityExpression_shouldOnlyComputeLazyVariablesThatAreUsed() throws Exception {
+		FormEntrySession session = new FormEntrySession(patient, "<htmlform></htmlform>", null);
+		Assert.assertTrue(session.getMaterializedVelocityKeys().isEmpty());
+		
+		String identifier = patient.getPatientIdentifier().getIdentifier();
+		String type = patient.getPatientIdentifier().getIdentifierType().getName();
+		Assert.assertEquals("true", session.evaluateVelocityExpression(
+		    "$patientIdentifiers.get(\"" + type + "\").contains(\"" + identifier + "\")"));
+		Assert.assertEquals(1, session.getMaterializedVelocityKeys().size());
+		Assert.assertTrue(session.getMaterializedVelocityKeys().contains("patientIdentifiers"));
+		
+		session.addLazyToVelocityContext("custom", () -> "computed");
+		Assert.assertEquals("computed", session.evaluateVelocityExpression("$custom"));
+		Assert.assertTrue(session.getMaterializedVelocityKeys().contains("custom"));
+		Assert.assertFalse(session.getMaterializedVelocityKeys().contains("relationshipMap"));
+	}
+	
+	@Test
+	public void writeHtmlToDisplay_shouldWriteTheSameHtmlAsGetHtmlToDisplay() throws Exception {
+		String htmlform = "<htmlform><p>Patient <lookup expression=\"patient.patientId\"/></p></htmlform>";
+		StringWriter writer = new StringWriter();
+		FormEntrySession session = new FormEntrySession(patient, htmlform, null);
+		session.writeHtmlToDisplay(writer);
+		
+		Assert.assertEquals(new FormEntrySession(patient, htmlform, null).getHtmlToDisplay(), writer.toString());
+		Assert.assertEquals("<div class=\"htmlform\"><p>Patient 2</p></div>", writer.toString());
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void getHtmlToDisplay_shouldFailIfTheHtmlHasAlreadyBeenWrittenOut() throws Exception {
+		FormEntrySession session = new FormEntrySession(patient, "<htmlform></htmlform>", null);
+		session.writeHtmlToDisplay(new StringWriter());
+		session.getHtmlToDisplay();
+	}
+	
+	@Test
+	public void createFormWithoutHtml_shouldSetUpTheSameWidgetsAndActionsAsGetHtmlToDisplay() throws Exception {
+		String htmlform = "<htmlform><encounterDate/><encounterLocation/><encounterProvider/>"
+		        + "<obs conceptId=\"5089\"/><submit/></htmlform>";
+		FormEntrySession displayed = new FormEntrySession(patient, htmlform, null);
+		displayed.getHtmlToDisplay();
+		FormEntrySession submitted = new FormEntrySession(patient, htmlform, null);
+		submitted.createFormWithoutHtml();
+		
+		Assert.assertEquals(displayed.getSubmissionController().getActions().size(),
+		    submitted.getSubmissionController().getActions().size());
+		Assert.assertEquals(new HashSet<String>(displayed.getContext().getFieldNames().values()),
+		    new HashSet<String>(submitted.getContext().getFieldNames().values()));
+	}
+	
+	@Test
+	public void getHtmlToDisplay_shouldGenerateTheHtmlOfASessionCreatedWithoutIt() throws Exception {
+		String htmlform = "<htmlform><encounterDate/><encounterLocation/><encounterProvider/>"
+		        + "<obs id=\"weight\" conceptId=\"5089\"/><submit/></htmlform>";
+		FormEntrySession displayed = new FormEntrySession(patient, htmlform, null);
+		displayed.getHtmlToDisplay();
+		FormEntrySession submitted = new FormEntrySession(patient, htmlform, null);
+		submitted.createFormWithoutHtml();
+		Assert.assertTrue(submitted.getContext().getJavascriptFieldAccessorInfo().isEmpty());
+		
+		Assert.assertEquals(displayed.getHtmlToDisplay(), submitted.getHtmlToDisplay());
+		Assert.assertEquals(displayed.getFieldAccessorJavascript(), submitted.getFieldAccessorJavascript());
+		Assert.assertEquals(displayed.getSubmissionController().getActions().size(),
+		    submitted.getSubmissionController().getActions().size());
+	}
 }
@@ -0,0 +1,100 @@
+package org.openmrs.module.htmlformentry;
+
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.matching.ObsGroupDescriptor;
+import org.openmrs.module.htmlformentry.util.CacheStatistics;
+import org.w3c.dom.Document;
+
+public class HtmlFormCompilerTest extends BaseHtmlFormEntryTest {
+	
+	private static final String XML = "<htmlform><translations defaultLocale=\"en\"><code name=\"greeting\">"
+	        + "<variant locale=\"en\" value=\"Hello\"/></code></translations>"
+	        + "<macros>label=Label</macros><p>$label <lookup expression=\"patient.patientId\"/></p></htmlform>";
+	
+	private static final String OBS_GROUP_XML = "<htmlform><obsgroup groupingConceptId=\"23\"><obs conceptId=\"18\"/>"
+	        + "</obsgroup></htmlform>";
+	
+	private HtmlFormCompiler compiler;
+	
+	private Patient patient;
+	
+	private HtmlForm htmlForm;
+	
+	@Before
+	public void setupDatabase() throws Exception {
+		executeVersionedDataSet("org/openmrs/module/htmlformentry/data/RegressionTest-data-openmrs-2.8.xml");
+		compiler = Context.getRegisteredComponent("htmlFormCompiler", HtmlFormCompiler.class);
+		compiler.clearCache();
+		patient = Context.getPatientService().getPatient(2);
+		htmlForm = HtmlFormEntryUtil.getService().getHtmlForm(1);
+		htmlForm.setXmlData(XML);
+	}
+	
+	@Test
+	public void compile_shouldReuseCompiledFormForSameVersionOfHtmlForm() throws Exception {
+		String first = new FormEntrySession(patient, htmlForm, null).getHtmlToDisplay();
+		CacheStatistics before = compiler.getStatistics();
+		FormEntrySession session = new FormEntrySession(patient, htmlForm, null);
+		String second = session.getHtmlToDisplay();
+		CacheStatistics after = compiler.getStatistics();
+		
+		Assert.assertEquals(first, second);
+		Assert.assertEquals(before.getHits() + 1, after.getHits());
+		Assert.assertTrue(second.contains("Label 2"));
+		Assert.assertEquals("Hello", session.getContext().getTranslator().translate("en", "greeting"));
+	}
+	
+	@Test
+	public void compile_shouldRecompileWhenHtmlFormIsChanged() throws Exception {
+		new FormEntrySession(patient, htmlForm, null).getHtmlToDisplay();
+		
+		htmlForm.setXmlData(XML.replace("label=Label", "label=Changed"));
+		htmlForm.setDateChanged(new Date(System.currentTimeMillis() + 1000));
+		CacheStatistics before = compiler.getStatistics();
+		String html = new FormEntrySession(patient, htmlForm, null).getHtmlToDisplay();
+		CacheStatistics after = compiler.getStatistics();
+		
+		Assert.assertEquals(before.getHits(), after.getHits());
+		Assert.assertEquals(before.getMisses() + 1, after.getMisses());
+		Assert.assertTrue(html.contains("Changed 2"));
+	}
+	
+	@Test
+	public void compile_shouldNotCacheFormsThatAreNotSaved() throws Exception {
+		CacheStatistics before = compiler.getStatistics();
+		new FormEntrySession(patient, XML, null).getHtmlToDisplay();
+		CacheStatistics after = compiler.getStatistics();
+		
+		Assert.assertEquals(before.getRequests(), after.getRequests());
+		Assert.assertEquals(0, after.getSize());
+	}
+	
+	@Test
+	public void compile_shouldShareTheDescriptorsOfObsGroupTagsBetweenSessions() throws Exception {
+		htmlForm.setXmlData(OBS_GROUP_XML);
+		ObsGroupDescriptor first = compileObsGroup();
+		ObsGroupDescriptor second = compileObsGroup();
+		
+		Assert.assertSame(first, second);
+		Assert.assertEquals("/23", first.getPath());
+		Assert.assertEquals(2, first.getComponents().size());
+		Assert.assertEquals(Integer.valueOf(23), first.getComponents().get(0).getQuestionId());
+		Assert.assertEquals(Integer.valueOf(18), first.getComponents().get(1).getQuestionId());
+		
+		// concepts may now resolve differently
+		compiler.conceptsChanged();
+		Assert.assertNotSame(first, compileObsGroup());
+	}
+	
+	private ObsGroupDescriptor compileObsGroup() throws Exception {
+		FormEntrySession session = new FormEntrySession(patient, htmlForm, null);
+		Document doc = compiler.compile(session, new HtmlFormEntryGenerator(), htmlForm.getXmlData());
+		return session.getContext().getObsGroupDescriptor(ObsGroupDescriptor.getObsGroupNodes(doc).get(0));
+	}
+}
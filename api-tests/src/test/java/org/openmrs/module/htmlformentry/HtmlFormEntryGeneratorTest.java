@@ -343,6 +343,23 @@ public class HtmlFormEntryGeneratorTest extends BaseHtmlFormEntryTest {
 		Assert.assertEquals("<div class=\"htmlform\">French (France)</div>", html);
 	}
 	
+	@Test
+	public void applyMacros_shouldApplyMacrosToAttributeValues() throws Exception {
+		String htmlform = "<htmlform><macros>size=big</macros><span class=\"$size\">$size</span></htmlform>";
+		FormEntrySession session = new FormEntrySession(patient, htmlform, null);
+		String html = session.getHtmlToDisplay();
+		Assert.assertEquals("<div class=\"htmlform\"><span class=\"big\">big</span></div>", html);
+	}
+	
+	@Test
+	public void applyMacros_shouldParseMacrosThatExpandToMarkup() throws Exception {
+		String htmlform = "<htmlform><macros><macro key=\"bold\" value=\"&lt;b&gt;text&lt;/b&gt;\"/></macros>$bold</htmlform>";
+		FormEntrySession session = new FormEntrySession(patient, htmlform, null);
+		String html = session.getHtmlToDisplay();
+		Assert.assertTrue(html.contains("<b>text</b>"));
+		Assert.assertFalse(html.contains("$bold"));
+	}
+	
 	@Test
 	public void processPages_shouldGenerateCorrectPagesIfPageTagIfUsed() throws Exception {
 		String pageHtmlform = "<htmlform><page title=\"firstTab\">Nothing Here</page><page title=\"secondTab\">Something here</page></htmlform>";
@@ -5,23 +5,41 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.openmrs.Concept;
+import org.openmrs.ConceptMap;
+import org.openmrs.ConceptReferenceTerm;
+import org.openmrs.DrugOrder;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.Form;
 import org.openmrs.FormResource;
+import org.openmrs.Order;
 import org.openmrs.Patient;
+import org.openmrs.Person;
+import org.openmrs.PersonAttribute;
+import org.openmrs.PersonAttributeType;
+import org.openmrs.PersonName;
+import org.openmrs.Privilege;
 import org.openmrs.Role;
 import org.openmrs.User;
+import org.openmrs.api.ConceptService;
 import org.openmrs.api.EncounterService;
 import org.openmrs.api.FormService;
 import org.openmrs.api.context.Context;
 import org.openmrs.customdatatype.datatype.FreeTextDatatype;
 import org.openmrs.customdatatype.datatype.RegexValidatedTextDatatype;
+import org.openmrs.module.htmlformentry.element.HtmlFormStub;
 import org.openmrs.module.htmlformentry.element.PersonStub;
+import org.openmrs.module.htmlformentry.util.CacheStatistics;
 import org.openmrs.test.Verifies;
 import org.openmrs.util.OpenmrsClassLoader;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Objects;
 
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -136,6 +154,32 @@ public class HtmlFormEntryServiceTest extends BaseHtmlFormEntryTest {
 		Assert.assertNull(concept);
 	}
 	
+	@Test
+	public void getConceptByMapping_shouldRememberMappingsThatDoNotMatchAnyConcept() throws Exception {
+		Assert.assertNull(htmlFormEntryService.getConceptByMapping("XYZ:NOT-A-CODE"));
+		CacheStatistics before = htmlFormEntryService.getConceptMappingCacheStatistics();
+		Assert.assertNull(htmlFormEntryService.getConceptByMapping("XYZ:NOT-A-CODE"));
+		CacheStatistics after = htmlFormEntryService.getConceptMappingCacheStatistics();
+		
+		Assert.assertEquals(before.getHits() + 1, after.getHits());
+		Assert.assertEquals(before.getMisses(), after.getMisses());
+	}
+	
+	@Test
+	public void getConceptByMapping_shouldFindMappingAddedAfterItFailedToMatch() throws Exception {
+		Assert.assertNull(htmlFormEntryService.getConceptByMapping("XYZ:WT"));
+		
+		ConceptService conceptService = Context.getConceptService();
+		ConceptReferenceTerm term = new ConceptReferenceTerm(conceptService.getConceptSourceByName("XYZ"), "WT", null);
+		conceptService.saveConceptReferenceTerm(term);
+		Concept weight = conceptService.getConcept(5089);
+		weight.addConceptMapping(new ConceptMap(term, conceptService.getConceptMapType(1)));
+		conceptService.saveConcept(weight);
+		Context.flushSession();
+		
+		Assert.assertEquals(weight, htmlFormEntryService.getConceptByMapping("XYZ:WT"));
+	}
+	
 	@Test
 	public void getStartingFormXml_shouldGetBasicFormXmlTemplate() throws Exception {
 		String xmlTemplate = htmlFormEntryService.getStartingFormXml(new HtmlForm());
@@ -225,6 +269,241 @@ public class HtmlFormEntryServiceTest extends BaseHtmlFormEntryTest {
 		assertThat(condition.getValueReference(), equalTo("${patient.gender === 'F'}"));
 	}
 	
+	@Test
+	public void getPeopleAsPersonStubs_shouldReturnThePeopleWithTheAttributeValue() throws Exception {
+		PersonAttributeType type = saveAttributeType("Stub Test");
+		savePersonAttribute(2, type, "yes");
+		savePersonAttribute(7, type, "yes");
+		savePersonAttribute(6, type, "no");
+		
+		List<PersonStub> stubs = htmlFormEntryService.getPeopleAsPersonStubs(Arrays.asList("Stub Test"),
+		    Arrays.asList("yes"), null, Arrays.<Person> asList(Context.getPersonService().getPerson(7)));
+		
+		Assert.assertEquals(1, stubs.size());
+		Assert.assertEquals(2, stubs.get(0).getId().intValue());
+		Assert.assertEquals(Context.getPersonService().getPerson(2).getFamilyName(), stubs.get(0).getFamilyName());
+	}
+	
+	@Test
+	public void getPeopleAsPersonStubs_shouldOrderThePeopleByFamilyNameThenGivenName() throws Exception {
+		PersonAttributeType type = saveAttributeType("Stub Test");
+		savePersonAttribute(2, type, "yes");
+		savePersonAttribute(6, type, "yes");
+		savePersonAttribute(7, type, "yes");
+		setName(2, "Alpha", "Zulu");
+		setName(6, "Bravo", "Alpha");
+		setName(7, "Alpha", "Alpha");
+		
+		List<PersonStub> stubs = htmlFormEntryService.getPeopleAsPersonStubs(Arrays.asList("Stub Test"), null, null,
+		    new ArrayList<Person>());
+		
+		Assert.assertEquals(3, stubs.size());
+		Assert.assertEquals(7, stubs.get(0).getId().intValue());
+		Assert.assertEquals(6, stubs.get(1).getId().intValue());
+		Assert.assertEquals(2, stubs.get(2).getId().intValue());
+	}
+	
+	@Test
+	public void getPeopleAsPersonStubs_shouldNotMatchVoidedAttributes() throws Exception {
+		PersonAttributeType type = saveAttributeType("Stub Test");
+		savePersonAttribute(2, type, "yes");
+		savePersonAttribute(7, type, "yes");
+		for (PersonAttribute attribute : Context.getPersonService().getPerson(7).getAttributes()) {
+			if (attribute.getAttributeType().equals(type)) {
+				attribute.setVoided(true);
+			}
+		}
+		Context.flushSession();
+		
+		List<PersonStub> stubs = htmlFormEntryService.getPeopleAsPersonStubs(Arrays.asList("Stub Test"),
+		    Arrays.asList("yes"), null, new ArrayList<Person>());
+		
+		Assert.assertEquals(1, stubs.size());
+		Assert.assertEquals(2, stubs.get(0).getId().intValue());
+	}
+	
+	@Test
+	public void getPeopleAsPersonStubs_shouldReturnPeopleWithoutANonVoidedName() throws Exception {
+		PersonAttributeType type = saveAttributeType("Stub Test");
+		savePersonAttribute(2, type, "yes");
+		for (PersonName name : Context.getPersonService().getPerson(2).getNames()) {
+			name.setVoided(true);
+		}
+		Context.flushSession();
+		
+		List<PersonStub> stubs = htmlFormEntryService.getPeopleAsPersonStubs(Arrays.asList("Stub Test"), null, null,
+		    new ArrayList<Person>());
+		
+		Assert.assertEquals(1, stubs.size());
+		Assert.assertEquals(2, stubs.get(0).getId().intValue());
+		Assert.assertNull(stubs.get(0).getFamilyName());
+	}
+	
+	@Test
+	public void getPeopleAsPersonStubs_shouldReturnEachPersonOnceWhateverNamesArePreferred() throws Exception {
+		PersonAttributeType type = saveAttributeType("Stub Test");
+		savePersonAttribute(2, type, "yes");
+		savePersonAttribute(7, type, "yes");
+		
+		// person 2 has no preferred name
+		Person noPreferredName = Context.getPersonService().getPerson(2);
+		PersonName firstName = null;
+		for (PersonName name : noPreferredName.getNames()) {
+			name.setPreferred(false);
+			if (!name.getVoided() && (firstName == null || name.getPersonNameId() < firstName.getPersonNameId())) {
+				firstName = name;
+			}
+		}
+		// person 7 has two preferred names
+		Person twoPreferredNames = Context.getPersonService().getPerson(7);
+		PersonName preferredName = twoPreferredNames.getPersonName();
+		PersonName secondName = new PersonName("Another", null, "Preferred");
+		secondName.setPreferred(true);
+		secondName.setCreator(Context.getAuthenticatedUser());
+		secondName.setDateCreated(new Date());
+		twoPreferredNames.addName(secondName);
+		preferredName.setPreferred(true);
+		Context.flushSession();
+		
+		List<PersonStub> stubs = htmlFormEntryService.getPeopleAsPersonStubs(Arrays.asList("Stub Test"), null, null,
+		    new ArrayList<Person>());
+		
+		Assert.assertEquals(2, stubs.size());
+		for (PersonStub stub : stubs) {
+			if (stub.getId() == 2) {
+				Assert.assertEquals(firstName.getFamilyName(), stub.getFamilyName());
+			} else {
+				Assert.assertEquals(7, stub.getId().intValue());
+				Assert.assertEquals(preferredName.getFamilyName(), stub.getFamilyName());
+			}
+		}
+	}
+	
+	@Test
+	public void getPersonIdsHavingAttributes_shouldMatchValuesContainingQuotes() throws Exception {
+		PersonAttributeType type = saveAttributeType("Stub Test");
+		savePersonAttribute(2, type, "O'Brien");
+		
+		Assert.assertEquals(Arrays.asList(2), htmlFormEntryService.getPersonIdsHavingAttributes("Stub Test", "O'Brien"));
+	}
+	
+	@Test
+	public void hasEncounterWithHtmlForm_shouldFindEncounterOfTheFormAtTheSameTime() throws Exception {
+		HtmlForm htmlForm = htmlFormEntryService.getHtmlForm(1);
+		Encounter encounter = Context.getEncounterService().getEncounter(3);
+		encounter.setForm(htmlForm.getForm());
+		Context.getEncounterService().saveEncounter(encounter);
+		Context.flushSession();
+		Integer patientId = encounter.getPatient().getPatientId();
+		Date encounterDatetime = encounter.getEncounterDatetime();
+		
+		Assert.assertTrue(htmlFormEntryService.hasEncounterWithHtmlForm(patientId, 1, encounterDatetime));
+		Assert.assertFalse(htmlFormEntryService.hasEncounterWithHtmlForm(patientId, 1,
+		    new Date(encounterDatetime.getTime() + 1000)));
+		Assert.assertFalse(htmlFormEntryService.hasEncounterWithHtmlForm(patientId, 2, encounterDatetime));
+	}
+	
+	@Test
+	public void hasEncounterWithHtmlForm_shouldNotCountEncountersOfTypesTheUserMayNotView() throws Exception {
+		HtmlForm htmlForm = htmlFormEntryService.getHtmlForm(1);
+		Encounter encounter = Context.getEncounterService().getEncounter(3);
+		encounter.setForm(htmlForm.getForm());
+		Context.getEncounterService().saveEncounter(encounter);
+		EncounterType type = encounter.getEncounterType();
+		type.setViewPrivilege(Context.getUserService().savePrivilege(new Privilege("View Test Encounters")));
+		Context.getEncounterService().saveEncounterType(type);
+		Context.flushSession();
+		Integer patientId = encounter.getPatient().getPatientId();
+		Date encounterDatetime = encounter.getEncounterDatetime();
+		
+		try {
+			Context.logout();
+			Assert.assertFalse(htmlFormEntryService.hasEncounterWithHtmlForm(patientId, 1, encounterDatetime));
+		}
+		finally {
+			Context.getRegisteredComponent("encounterTypePrivilegeCache", EncounterTypePrivilegeCache.class).clear();
+		}
+	}
+	
+	@Test
+	public void getOrders_shouldLoadEachOrderAsItsOwnSubclass() throws Exception {
+		Context.clearSession();
+		List<Order> orders = htmlFormEntryService.getOrders(Arrays.asList(3, 999999));
+		
+		Assert.assertEquals(1, orders.size());
+		Assert.assertEquals(3, orders.get(0).getOrderId().intValue());
+		Assert.assertTrue(orders.get(0) instanceof DrugOrder);
+	}
+	
+	@Test
+	public void getAllHtmlFormStubs_shouldReturnStubsOrderedByFormName() throws Exception {
+		List<HtmlFormStub> stubs = htmlFormEntryService.getAllHtmlFormStubs();
+		
+		Assert.assertEquals(2, stubs.size());
+		Assert.assertEquals("Form two", stubs.get(0).getFormName());
+		Assert.assertEquals(2, stubs.get(0).getFormId().intValue());
+		Assert.assertTrue(stubs.get(0).isPublished());
+		Assert.assertEquals("Test form", stubs.get(1).getFormName());
+	}
+	
+	@Test
+	public void getFormsWithHtmlForms_shouldLeaveOutFormsUnpublishedSinceTheLastCall() throws Exception {
+		Assert.assertEquals(2, htmlFormEntryService.getFormsWithHtmlForms(false).size());
+		
+		HtmlForm htmlForm = htmlFormEntryService.getHtmlForm(2);
+		htmlForm.getForm().setPublished(false);
+		htmlFormEntryService.saveHtmlForm(htmlForm);
+		
+		List<Form> published = htmlFormEntryService.getFormsWithHtmlForms(false);
+		Assert.assertEquals(1, published.size());
+		Assert.assertEquals(1, published.get(0).getFormId().intValue());
+		Assert.assertEquals(2, htmlFormEntryService.getFormsWithHtmlForms(true).size());
+	}
+	
+	@Test
+	public void getHtmlFormMetadata_shouldReturnStubOfTheHtmlFormOfTheForm() throws Exception {
+		HtmlFormStub stub = htmlFormEntryService.getHtmlFormMetadata(formService.getForm(1));
+		
+		Assert.assertEquals(1, stub.getId().intValue());
+		Assert.assertEquals("12e41146-e162-11df-9195-001e378eb67e", stub.getUuid());
+		Assert.assertEquals("Test form", stub.getFormName());
+	}
+	
+	@Test
+	public void getHtmlFormByForm_shouldReturnHtmlFormSavedAfterTheFormWasLookedUp() throws Exception {
+		Form form = formService.getForm(1);
+		Assert.assertEquals(1, htmlFormEntryService.getHtmlFormByForm(form).getId().intValue());
+		
+		HtmlForm newer = new HtmlForm();
+		newer.setForm(form);
+		newer.setXmlData("<htmlform></htmlform>");
+		htmlFormEntryService.saveHtmlForm(newer);
+		
+		Assert.assertEquals(newer, htmlFormEntryService.getHtmlFormByForm(form));
+		Assert.assertEquals(newer.getId(), htmlFormEntryService.getHtmlFormMetadata(form).getId());
+	}
+	
+	private PersonAttributeType saveAttributeType(String name) {
+		PersonAttributeType type = new PersonAttributeType();
+		type.setName(name);
+		type.setFormat("java.lang.String");
+		return Context.getPersonService().savePersonAttributeType(type);
+	}
+	
+	private void savePersonAttribute(Integer personId, PersonAttributeType type, String value) {
+		Person person = Context.getPersonService().getPerson(personId);
+		person.addAttribute(new PersonAttribute(type, value));
+		Context.getPersonService().savePerson(person);
+		Context.flushSession();
+	}
+	
+	private void setName(Integer personId, String givenName, String familyName) {
+		PersonName name = Context.getPersonService().getPerson(personId).getPersonName();
+		name.setGivenName(givenName);
+		name.setFamilyName(familyName);
+		Context.flushSession();
+	}
+	
 	private String getFormXml(String resourcePath) throws Exception {
 		try (InputStream in = getClass().getClassLoader().getResourceAsStream(resourcePath)) {
 			return IOUtils.toString(Objects.requireNonNull(in), StandardCharsets.UTF_8);
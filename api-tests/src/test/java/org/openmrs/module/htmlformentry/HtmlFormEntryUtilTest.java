@@ -44,8 +44,11 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -1066,6 +1069,42 @@ public class HtmlFormEntryUtilTest extends BaseHtmlFormEntryTest {
 		}
 	}
 	
+	@Test
+	public void stringToDocument_shouldNotResolveExternalEntitiesWhenParserIsReused() throws Exception {
+		File secret = File.createTempFile("htmlformentry", ".txt");
+		secret.deleteOnExit();
+		BufferedWriter writer = new BufferedWriter(new FileWriter(secret));
+		writer.write("secret");
+		writer.close();
+		String str = "<?xml version=\"1.0\"?><!DOCTYPE htmlform [ <!ENTITY xxe SYSTEM \"" + secret.toURI()
+		        + "\"> ]><htmlform>&xxe;</htmlform>";
+		for (int i = 0; i < 2; i++) {
+			Document doc = HtmlFormEntryUtil.stringToDocument(str);
+			Assert.assertFalse(doc.getDocumentElement().getTextContent().contains("secret"));
+		}
+	}
+	
+	@Test
+	public void readerToDocument_shouldParseTheSameDocumentAsStringToDocument() throws Exception {
+		String str = "<htmlform><section headerLabel=\"Vitals\"><obs conceptId=\"5089\"/></section></htmlform>";
+		String expected = HtmlFormEntryUtil.documentToString(HtmlFormEntryUtil.stringToDocument(str));
+		
+		Document fromReader = HtmlFormEntryUtil.readerToDocument(new StringReader(str));
+		Assert.assertEquals(expected, HtmlFormEntryUtil.documentToString(fromReader));
+		
+		Document fromStream = HtmlFormEntryUtil.inputStreamToDocument(new ByteArrayInputStream(str.getBytes("UTF-8")));
+		Assert.assertEquals(expected, HtmlFormEntryUtil.documentToString(fromStream));
+	}
+	
+	@Test
+	public void documentToWriter_shouldWriteTheSameXmlAsDocumentToString() throws Exception {
+		Document doc = HtmlFormEntryUtil.stringToDocument("<htmlform><p>text &amp; more</p></htmlform>");
+		StringWriter writer = new StringWriter();
+		HtmlFormEntryUtil.documentToWriter(doc, writer);
+		Assert.assertEquals(HtmlFormEntryUtil.documentToString(doc), writer.toString());
+		Assert.assertFalse(writer.toString().startsWith("<?xml"));
+	}
+	
 	@Test
 	@Verifies(value = "stringToDocument should handle escaped characters correctly if defined as an entity", method = "stringToDocument(String xml)")
 	public void stringToDocument_shouldHandleEsapeCharsWhenDefinedAsEntity() {
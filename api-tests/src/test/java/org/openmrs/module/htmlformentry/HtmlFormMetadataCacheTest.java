@@ -0,0 +1,64 @@
+package org.openmrs.module.htmlformentry;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.HtmlFormMetadataCache.MetadataType;
+import org.openmrs.module.htmlformentry.util.CacheStatistics;
+
+public class HtmlFormMetadataCacheTest extends BaseHtmlFormEntryTest {
+	
+	private HtmlFormMetadataCache cache;
+	
+	@Before
+	public void setupCache() {
+		cache = Context.getRegisteredComponent("htmlFormMetadataCache", HtmlFormMetadataCache.class);
+		cache.clear();
+		cache.resetStatistics();
+	}
+	
+	@Test
+	public void getConcept_shouldResolveEachIdentifierOnlyOnce() {
+		Assert.assertEquals(5089, HtmlFormEntryUtil.getConcept("5089").getConceptId().intValue());
+		Assert.assertEquals(5089, HtmlFormEntryUtil.getConcept(" 5089 ").getConceptId().intValue());
+		
+		CacheStatistics statistics = cache.getStatistics(MetadataType.CONCEPT);
+		Assert.assertEquals(1, statistics.getMisses());
+		Assert.assertEquals(1, statistics.getHits());
+	}
+	
+	@Test
+	public void getConcept_shouldCacheIdentifiersThatDoNotResolve() {
+		Assert.assertNull(HtmlFormEntryUtil.getConcept("XYZ:not-a-code"));
+		Assert.assertNull(HtmlFormEntryUtil.getConcept("XYZ:not-a-code"));
+		
+		Assert.assertEquals(1, cache.getStatistics(MetadataType.CONCEPT).getHits());
+	}
+	
+	@Test
+	public void getLocation_shouldFindLocationSavedAfterItsNameFailedToResolve() {
+		Assert.assertNull(HtmlFormEntryUtil.getLocation("Cached Location"));
+		
+		Location location = new Location();
+		location.setName("Cached Location");
+		Context.getLocationService().saveLocation(location);
+		Context.flushSession();
+		
+		Assert.assertEquals(location, HtmlFormEntryUtil.getLocation("Cached Location"));
+	}
+	
+	@Test
+	public void getLocation_shouldNotCacheIdentifiersThatDependOnTheUser() {
+		Context.getAuthenticatedUser().setUserProperty("defaultLocation", "1");
+		
+		Assert.assertEquals(1, HtmlFormEntryUtil.getLocation("UserProperty:defaultLocation").getLocationId().intValue());
+		Assert.assertEquals(1, HtmlFormEntryUtil.getLocation("UserProperty:defaultLocation").getLocationId().intValue());
+		
+		// only the value of the user property is cached
+		CacheStatistics statistics = cache.getStatistics(MetadataType.LOCATION);
+		Assert.assertEquals(1, statistics.getHits());
+		Assert.assertEquals(1, statistics.getSize());
+	}
+}
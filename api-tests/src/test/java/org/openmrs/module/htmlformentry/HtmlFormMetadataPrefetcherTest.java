@@ -0,0 +1,55 @@
+package org.openmrs.module.htmlformentry;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.hibernate.Hibernate;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.HtmlFormMetadataCache.MetadataType;
+import org.w3c.dom.Document;
+
+public class HtmlFormMetadataPrefetcherTest extends BaseHtmlFormEntryTest {
+	
+	private static final String WEIGHT_UUID = "c607c80f-1ea9-4da3-bb88-6276ce8868dd";
+	
+	private HtmlFormMetadataCache cache;
+	
+	private HtmlFormMetadataPrefetcher prefetcher;
+	
+	@Before
+	public void setupPrefetcher() {
+		cache = Context.getRegisteredComponent("htmlFormMetadataCache", HtmlFormMetadataCache.class);
+		prefetcher = Context.getRegisteredComponent("htmlFormMetadataPrefetcher", HtmlFormMetadataPrefetcher.class);
+	}
+	
+	@Test
+	public void prefetch_shouldRememberTheIdsTheUuidsOfTheFormResolveTo() throws Exception {
+		Document doc = HtmlFormEntryUtil
+		        .stringToDocument("<htmlform><obs conceptId=\"" + WEIGHT_UUID + "\"/><obs conceptId=\"XYZ:HT\"/></htmlform>");
+		
+		prefetcher.prefetch(doc);
+		
+		Assert.assertEquals(5089, cache.getResolvedId(MetadataType.CONCEPT, WEIGHT_UUID).intValue());
+		// mappings are left to the tag handlers
+		Assert.assertNull(cache.getResolvedId(MetadataType.CONCEPT, "XYZ:HT"));
+	}
+	
+	@Test
+	public void prefetchConcepts_shouldLoadTheNamesOfTheConcepts() {
+		Context.clearSession();
+		
+		List<Concept> concepts = HtmlFormEntryUtil.getService().prefetchConcepts(Arrays.asList(4, 5089),
+		    Collections.<String> emptyList());
+		
+		Assert.assertEquals(2, concepts.size());
+		for (Concept concept : concepts) {
+			Assert.assertTrue(Hibernate.isInitialized(concept.getNames()));
+			Assert.assertTrue(Hibernate.isInitialized(concept.getDatatype()));
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package org.openmrs.module.htmlformentry;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.PersonName;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.OptionListCache.OptionListType;
+import org.openmrs.module.htmlformentry.widget.Option;
+
+public class OptionListCacheTest extends BaseHtmlFormEntryTest {
+	
+	private OptionListCache cache;
+	
+	@Before
+	public void setupCache() {
+		cache = Context.getRegisteredComponent("optionListCache", OptionListCache.class);
+	}
+	
+	@Test
+	public void getOptions_shouldReturnACopyOfTheCachedOptionsSortedByLabel() {
+		List<Option> first = cache.getOptions(OptionListType.LOCATION_NAME, null, false);
+		first.get(0).setSelected(true);
+		List<Option> second = cache.getOptions(OptionListType.LOCATION_NAME, null, false);
+		
+		Assert.assertEquals(1, cache.getStatistics(OptionListType.LOCATION_NAME).getHits());
+		Assert.assertEquals(Context.getLocationService().getAllLocations(false).size(), second.size());
+		Assert.assertFalse(second.get(0).isSelected());
+		for (int i = 1; i < second.size(); i++) {
+			Assert.assertTrue(second.get(i - 1).getLabel().compareTo(second.get(i).getLabel()) <= 0);
+		}
+	}
+	
+	@Test
+	public void getOptions_shouldKeepSeparateListsForRetiredItems() {
+		Location location = Context.getLocationService().getAllLocations(false).get(0);
+		Context.getLocationService().retireLocation(location, "testing");
+		Context.flushSession();
+		
+		List<Option> all = cache.getOptions(OptionListType.LOCATION, null, true);
+		List<Option> unretired = cache.getOptions(OptionListType.LOCATION, null, false);
+		
+		Assert.assertEquals(all.size() - 1, unretired.size());
+	}
+	
+	@Test
+	public void getOptions_shouldBuildTheOptionsAgainOnceALocationIsSaved() {
+		cache.getOptions(OptionListType.LOCATION_NAME, null, false);
+		
+		Location location = Context.getLocationService().getAllLocations(false).get(0);
+		location.setName("A location that was renamed");
+		Context.getLocationService().saveLocation(location);
+		Context.flushSession();
+		
+		String label = null;
+		for (Option option : cache.getOptions(OptionListType.LOCATION_NAME, null, false)) {
+			if (option.getValue().equals(location.getLocationId().toString())) {
+				label = option.getLabel();
+			}
+		}
+		Assert.assertEquals("A location that was renamed", label);
+	}
+	
+	@Test
+	public void getOptions_shouldKeepTheProviderListsWhenThePatientsNameIsChanged() {
+		List<Option> options = cache.getOptions(OptionListType.PROVIDER_PERSON, null, false);
+		Patient patient = null;
+		for (Patient candidate : Context.getPatientService().getAllPatients()) {
+			boolean isProvider = false;
+			for (Option option : options) {
+				isProvider = isProvider || option.getValue().equals(candidate.getPersonId().toString());
+			}
+			if (!isProvider) {
+				patient = candidate;
+				break;
+			}
+		}
+		PersonName name = patient.getPersonName();
+		name.setGivenName("Renamed");
+		Context.getPatientService().savePatient(patient);
+		Context.flushSession();
+		
+		long hits = cache.getStatistics(OptionListType.PROVIDER_PERSON).getHits();
+		cache.getOptions(OptionListType.PROVIDER_PERSON, null, false);
+		Assert.assertEquals(hits + 1, cache.getStatistics(OptionListType.PROVIDER_PERSON).getHits());
+	}
+	
+	@Test(expected = APIException.class)
+	public void getOptions_shouldCheckThePrivilegeBeforeReturningACachedList() {
+		cache.getOptions(OptionListType.USER, null, false);
+		Context.logout();
+		cache.getOptions(OptionListType.USER, null, false);
+	}
+}
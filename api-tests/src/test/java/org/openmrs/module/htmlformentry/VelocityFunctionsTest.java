@@ -20,6 +20,7 @@ import org.openmrs.Visit;
 import org.openmrs.VisitType;
 import org.openmrs.api.ConceptService;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.element.EncounterStub;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import java.text.DateFormat;
@@ -104,6 +105,40 @@ public class VelocityFunctionsTest extends BaseHtmlFormEntryTest {
 		Assert.assertEquals("2008-08-15", df.format(latestWeight.getObsDatetime()));
 	}
 	
+	@Test
+	public void latestObs_shouldIgnoreVoidedObs() throws Exception {
+		
+		VelocityFunctions functions = setupFunctionsForPatient(7);
+		Obs latestWeight = functions.latestObs(5089);
+		Context.getObsService().voidObs(latestWeight, "testing");
+		
+		Obs weight = setupFunctionsForPatient(7).latestObs(5089);
+		Assert.assertNotEquals(latestWeight, weight);
+		Assert.assertTrue(weight.getObsDatetime().compareTo(latestWeight.getObsDatetime()) <= 0);
+	}
+	
+	@Test
+	public void latestObs_shouldRememberTheResultForTheSession() throws Exception {
+		
+		VelocityFunctions functions = setupFunctionsForPatient(7);
+		Obs latestWeight = functions.latestObs("5089");
+		Assert.assertEquals(0, functions.getMemoHits());
+		
+		Assert.assertSame(latestWeight, functions.latestObs(5089));
+		Assert.assertEquals(1, functions.getMemoHits());
+		Assert.assertNotSame(latestWeight, functions.latestObs(5089, "2008-08-17"));
+		Assert.assertEquals(1, functions.getMemoHits());
+	}
+	
+	@Test(expected = UnsupportedOperationException.class)
+	public void allObs_shouldReturnAListTheFormCannotModify() throws Exception {
+		
+		VelocityFunctions functions = setupFunctionsForPatient(7);
+		List<Obs> weights = functions.allObs("5089");
+		Assert.assertSame(weights, functions.allObs(5089));
+		functions.allObs("5089").clear();
+	}
+	
 	@Test
 	public void latestObs_shouldReturnTheMostRecentObsGivenThePassedConceptUuid() throws Exception {
 		
@@ -169,6 +204,19 @@ public class VelocityFunctionsTest extends BaseHtmlFormEntryTest {
 		Assert.assertNull(functions.latestEncounter("6"));
 	}
 	
+	@Test
+	public void latestEncounterStub_shouldReturnTheDateTypeAndLocationOfTheMostRecentEncounter() throws Exception {
+		VelocityFunctions functions = setupFunctionsForPatient(7);
+		Encounter latestEncounter = functions.latestEncounter("1", "2008-08-16");
+		EncounterStub stub = functions.latestEncounterStub("1", "2008-08-16");
+		
+		Assert.assertEquals(latestEncounter.getEncounterId(), stub.getId());
+		Assert.assertEquals(latestEncounter.getEncounterDatetime().getTime(), stub.getEncounterDatetime().getTime());
+		Assert.assertEquals(latestEncounter.getEncounterType().getName(), stub.getEncounterTypeName());
+		Assert.assertEquals(latestEncounter.getLocation().getLocationId(), stub.getLocationId());
+		Assert.assertNull(functions.latestEncounterStub("6"));
+	}
+	
 	/**
 	 * @see VelocityFunctions@allEncounters(EncounterType)
 	 * @verifies return all the encounters of the specified type
@@ -0,0 +1,90 @@
+package org.openmrs.module.htmlformentry.velocity;
+
+import java.io.StringWriter;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.exception.ParseErrorException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.BaseHtmlFormEntryTest;
+import org.openmrs.module.htmlformentry.FormEntrySession;
+import org.openmrs.module.htmlformentry.util.CacheStatistics;
+
+public class HtmlFormVelocityEngineTest extends BaseHtmlFormEntryTest {
+	
+	private HtmlFormVelocityEngine engine;
+	
+	@Before
+	public void setUp() throws Exception {
+		engine = Context.getRegisteredComponent("htmlFormVelocityEngine", HtmlFormVelocityEngine.class);
+		engine.clearCache();
+	}
+	
+	@Test
+	public void evaluate_shouldParseEachExpressionOnce() throws Exception {
+		VelocityContext first = new VelocityContext();
+		first.put("name", "first");
+		VelocityContext second = new VelocityContext();
+		second.put("name", "second");
+		
+		CacheStatistics before = engine.getStatistics();
+		StringWriter firstWriter = new StringWriter();
+		engine.evaluate(first, firstWriter, "Hello $name");
+		StringWriter secondWriter = new StringWriter();
+		engine.evaluate(second, secondWriter, "Hello $name");
+		CacheStatistics after = engine.getStatistics();
+		
+		Assert.assertEquals("Hello first", firstWriter.toString());
+		Assert.assertEquals("Hello second", secondWriter.toString());
+		Assert.assertEquals(before.getMisses() + 1, after.getMisses());
+		Assert.assertEquals(before.getHits() + 1, after.getHits());
+	}
+	
+	@Test(expected = ParseErrorException.class)
+	public void evaluate_shouldThrowParseErrorExceptionForInvalidExpression() throws Exception {
+		engine.evaluate(new VelocityContext(), new StringWriter(), "#if($name");
+	}
+	
+	@Test
+	public void evaluate_shouldBeSharedBySessions() throws Exception {
+		Patient patient = Context.getPatientService().getPatient(2);
+		String expression = "$patient.patientId";
+		
+		Assert.assertEquals("2", new FormEntrySession(patient, "<htmlform/>", null).evaluateVelocityExpression(expression));
+		CacheStatistics before = engine.getStatistics();
+		Assert.assertEquals("2", new FormEntrySession(patient, "<htmlform/>", null).evaluateVelocityExpression(expression));
+		CacheStatistics after = engine.getStatistics();
+		
+		Assert.assertEquals(before.getHits() + 1, after.getHits());
+		Assert.assertTrue(new FormEntrySession(patient, "<htmlform/>", null).evaluateVelocityExpression("#if($patient")
+		        .startsWith("Velocity Error! "));
+	}
+	
+	@Test
+	public void evaluate_shouldKeepInlineMacrosLocalToTheirForm() throws Exception {
+		Patient patient = Context.getPatientService().getPatient(2);
+		FormEntrySession first = new FormEntrySession(patient, "<htmlform/>", null);
+		FormEntrySession second = new FormEntrySession(patient, "<htmlform/>", null);
+		
+		Assert.assertEquals("first 2",
+		    first.evaluateVelocityExpression("#macro(greet)first $patient.patientId#end#greet()"));
+		Assert.assertEquals("second 2",
+		    second.evaluateVelocityExpression("#macro(greet)second $patient.patientId#end#greet()"));
+		Assert.assertEquals("first 2",
+		    first.evaluateVelocityExpression("#macro(greet)first $patient.patientId#end#greet()"));
+	}
+	
+	@Test
+	public void evaluate_shouldKeepTheInlineMacrosOfAnExpressionParsedAgain() throws Exception {
+		Patient patient = Context.getPatientService().getPatient(2);
+		FormEntrySession session = new FormEntrySession(patient, "<htmlform/>", null);
+		String expression = "#macro(greet)hello $patient.patientId#end#greet()";
+		
+		Assert.assertEquals("hello 2", session.evaluateVelocityExpression(expression));
+		engine.clearCache();
+		Assert.assertEquals("hello 2", session.evaluateVelocityExpression(expression));
+	}
+}
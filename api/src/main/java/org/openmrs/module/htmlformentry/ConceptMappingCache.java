@@ -0,0 +1,77 @@
+package org.openmrs.module.htmlformentry;
+
+import org.openmrs.module.htmlformentry.util.BoundedCache;
+import org.openmrs.module.htmlformentry.util.CacheStatistics;
+import org.springframework.stereotype.Component;
+
+/**
+ * Remembers which concept each mapping looked up by
+ * {@link HtmlFormEntryService#getConceptByMapping(String)} (e.g. "CIEL:5089") matched. Mappings that
+ * did not match any concept are remembered for {@link #NOT_FOUND_TTL} milliseconds.
+ * <p/>
+ * Only the id of the concept is cached. All the entries are removed whenever a concept, or one of
+ * its names or mappings, is saved, retired, or deleted, see {@link HtmlFormMetadataCacheInterceptor}.
+ */
+@Component
+public class ConceptMappingCache {
+	
+	public static final int MAX_CACHED_CONCEPT_MAPPINGS = 5000;
+	
+	/**
+	 * How long a mapping that did not match any concept is remembered for
+	 */
+	public static final long NOT_FOUND_TTL = 5 * 60 * 1000;
+	
+	private final BoundedCache<String, Entry> entries = new BoundedCache<String, Entry>(MAX_CACHED_CONCEPT_MAPPINGS);
+	
+	/**
+	 * @param mapping the mapping, as given to getConceptByMapping
+	 * @return what the mapping matched, or null if it has not been looked up yet
+	 */
+	public Entry get(String mapping) {
+		return entries.get(mapping, entry -> !entry.isExpired());
+	}
+	
+	/**
+	 * @param mapping the mapping, as given to getConceptByMapping
+	 * @param conceptId the id of the concept the mapping matched, or null if it did not match any
+	 */
+	public void put(String mapping, Integer conceptId) {
+		long expiresAt = conceptId == null ? System.currentTimeMillis() + NOT_FOUND_TTL : Long.MAX_VALUE;
+		entries.put(mapping, new Entry(conceptId, expiresAt));
+	}
+	
+	public void clear() {
+		entries.clear();
+	}
+	
+	public CacheStatistics getStatistics() {
+		return entries.getStatistics();
+	}
+	
+	/**
+	 * The concept a mapping matched, or that it did not match any concept
+	 */
+	public static class Entry {
+		
+		private final Integer conceptId;
+		
+		private final long expiresAt;
+		
+		private Entry(Integer conceptId, long expiresAt) {
+			this.conceptId = conceptId;
+			this.expiresAt = expiresAt;
+		}
+		
+		/**
+		 * @return the id of the concept the mapping matched, or null if it did not match any
+		 */
+		public Integer getConceptId() {
+			return conceptId;
+		}
+		
+		private boolean isExpired() {
+			return System.currentTimeMillis() > expiresAt;
+		}
+	}
+}
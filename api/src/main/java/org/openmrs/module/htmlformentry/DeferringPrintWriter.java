@@ -0,0 +1,147 @@
+package org.openmrs.module.htmlformentry;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A PrintWriter that passes the html of a form straight through to another writer (e.g. the
+ * response), except for parts of the form that can only be rendered once the rest of the form has
+ * been, such as obs groups that could not be matched to existing obs on the first pass.
+ * <p/>
+ * Once {@link #defer(int)} has been called, anything written afterwards is held back, and is only
+ * written out by {@link #writeDeferred(SegmentRenderer)} together with the output of the deferred
+ * segments. Forms without deferred segments are never held in memory.
+ */
+public class DeferringPrintWriter extends PrintWriter {
+	
+	private static final String PLACEHOLDER_START = "<unmatched id=\"";
+	
+	private static final String PLACEHOLDER_END = "\" />";
+	
+	private final Writer target;
+	
+	// the output held back since the first deferred segment, as strings with the deferred segment ids in between
+	private final List<Object> segments = new ArrayList<Object>();
+	
+	private StringWriter buffer;
+	
+	public DeferringPrintWriter(Writer target) {
+		super(target);
+		this.target = target;
+	}
+	
+	/**
+	 * Marks the current position in the output as a segment that will be rendered later. Everything
+	 * written after this is held back until {@link #writeDeferred(SegmentRenderer)} is called.
+	 *
+	 * @param id identifies the segment to the renderer
+	 */
+	public void defer(int id) {
+		synchronized (lock) {
+			if (buffer != null) {
+				segments.add(buffer.toString());
+			}
+			segments.add(id);
+			buffer = new StringWriter();
+			out = buffer;
+		}
+	}
+	
+	/**
+	 * @return true if any output is being held back
+	 */
+	public boolean hasDeferredSegments() {
+		return !segments.isEmpty();
+	}
+	
+	/**
+	 * Writes out the held back output, calling the renderer in place of each deferred segment. The
+	 * renderer writes to this writer, which from then on writes straight through to the target again.
+	 *
+	 * @param renderer renders the deferred segments, or null to write placeholders for them as
+	 *            returned by {@link #getPlaceholder(int)}
+	 */
+	public void writeDeferred(SegmentRenderer renderer) {
+		List<Object> toWrite;
+		synchronized (lock) {
+			if (segments.isEmpty()) {
+				return;
+			}
+			toWrite = new ArrayList<Object>(segments);
+			toWrite.add(buffer.toString());
+			segments.clear();
+			buffer = null;
+			out = target;
+		}
+		for (Object segment : toWrite) {
+			if (segment instanceof Integer) {
+				if (renderer == null) {
+					print(getPlaceholder((Integer) segment));
+				} else {
+					renderer.render((Integer) segment, this);
+				}
+			} else {
+				print((String) segment);
+			}
+		}
+	}
+	
+	/**
+	 * @return the text that marks the position of a deferred segment in output that is not written
+	 *         through a DeferringPrintWriter
+	 */
+	public static String getPlaceholder(int id) {
+		return PLACEHOLDER_START + id + PLACEHOLDER_END;
+	}
+	
+	/**
+	 * Replaces the placeholders of deferred segments in the given html with the output of those
+	 * segments, in a single pass over the html
+	 *
+	 * @param html html containing placeholders, as returned by {@link #getPlaceholder(int)}
+	 * @param segments the output of each segment, by id
+	 * @return the html with the placeholder of each of the given segments replaced by its output, and
+	 *         any other placeholders left as they are
+	 */
+	public static String replacePlaceholders(String html, Map<Integer, String> segments) {
+		StringBuilder ret = new StringBuilder(html.length());
+		int from = 0;
+		int start;
+		while ((start = html.indexOf(PLACEHOLDER_START, from)) >= 0) {
+			int idStart = start + PLACEHOLDER_START.length();
+			int idEnd = idStart;
+			while (idEnd < html.length() && idEnd - idStart < 9 && Character.isDigit(html.charAt(idEnd))) {
+				idEnd++;
+			}
+			String segment = null;
+			if (idEnd > idStart && html.startsWith(PLACEHOLDER_END, idEnd)) {
+				segment = segments.get(Integer.valueOf(html.substring(idStart, idEnd)));
+			}
+			if (segment == null) {
+				ret.append(html, from, idStart);
+				from = idStart;
+			} else {
+				ret.append(html, from, start).append(segment);
+				from = idEnd + PLACEHOLDER_END.length();
+			}
+		}
+		ret.append(html, from, html.length());
+		return ret.toString();
+	}
+	
+	/**
+	 * Renders the deferred segments of a form
+	 */
+	public interface SegmentRenderer {
+		
+		/**
+		 * @param id the id that was passed to {@link DeferringPrintWriter#defer(int)}
+		 * @param out the writer to render the segment to
+		 */
+		void render(int id, PrintWriter out);
+	}
+}
@@ -0,0 +1,486 @@
+package org.openmrs.module.htmlformentry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.BooleanUtils;
+import org.openmrs.Concept;
+import org.openmrs.Drug;
+import org.openmrs.DrugIngredient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.widget.Option;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the ids of all the non-retired drugs, the concepts they are for, and the details of them that
+ * order widgets show (see {@link DrugDetails}), so that order tags that offer the whole formulary, or
+ * all the drugs for a concept, do not need to load and index every drug each time a form is
+ * displayed. The labels of the drugs and concepts, sorted for display, are kept for each locale they
+ * are needed in.
+ * <p/>
+ * The formulary is shared by all forms as an immutable {@link Snapshot}. When a drug is saved,
+ * retired or deleted (see {@link HtmlFormMetadataCacheInterceptor}), only that drug is loaded again,
+ * and a new snapshot is built from the previous one the next time it is needed. When a concept of the
+ * formulary changes, only the labels of that concept and of its drugs are computed again. Drugs are
+ * loaded outside the lock, and a snapshot that was being built when the formulary was cleared is not
+ * kept.
+ * <p/>
+ * Entities are not kept, as they belong to the hibernate session they were loaded in. Callers that
+ * need more than the details kept here load the drugs they need by id.
+ */
+@Component
+public class DrugFormulary {
+	
+	private final Object lock = new Object();
+	
+	// the fields below are guarded by the lock
+	
+	private Snapshot snapshot;
+	
+	private final Set<Integer> changedDrugIds = new HashSet<Integer>();
+	
+	private final Set<Integer> changedConceptIds = new HashSet<Integer>();
+	
+	// incremented whenever a change is noted, so that changes noted while a snapshot is built are kept
+	private long changeCount = 0;
+	
+	// incremented whenever the formulary is cleared, so that snapshots built before then are not kept
+	private long generation = 0;
+	
+	/**
+	 * @return the current formulary, which is loaded or brought up to date first if needed
+	 */
+	public Snapshot getSnapshot() {
+		Snapshot current;
+		Set<Integer> drugIds;
+		Set<Integer> conceptIds;
+		long startChangeCount;
+		long startGeneration;
+		synchronized (lock) {
+			if (snapshot != null && changedDrugIds.isEmpty() && changedConceptIds.isEmpty()) {
+				return snapshot;
+			}
+			current = snapshot;
+			drugIds = new HashSet<Integer>(changedDrugIds);
+			conceptIds = new HashSet<Integer>(changedConceptIds);
+			startChangeCount = changeCount;
+			startGeneration = generation;
+		}
+		Snapshot updated;
+		if (current == null) {
+			updated = new Snapshot(0, HtmlFormEntryUtil.getService().getAllDrugsWithIngredients());
+		} else {
+			Map<Integer, Drug> changedDrugs = new HashMap<Integer, Drug>();
+			for (Integer drugId : drugIds) {
+				changedDrugs.put(drugId, null);
+			}
+			if (!drugIds.isEmpty()) {
+				for (Drug drug : HtmlFormEntryUtil.getService().prefetchDrugs(drugIds, null)) {
+					changedDrugs.put(drug.getDrugId(), drug);
+				}
+			}
+			updated = current.withChanges(changedDrugs, conceptIds);
+		}
+		synchronized (lock) {
+			if (generation == startGeneration) {
+				snapshot = updated;
+				// changes noted since are applied again the next time, which loads those drugs again
+				if (changeCount == startChangeCount) {
+					changedDrugIds.clear();
+					changedConceptIds.clear();
+				}
+			}
+		}
+		return updated;
+	}
+	
+	/**
+	 * Notes that the drug with the given id has been saved, retired or deleted
+	 */
+	public void drugChanged(Integer drugId) {
+		synchronized (lock) {
+			if (drugId != null) {
+				changedDrugIds.add(drugId);
+				changeCount++;
+			}
+		}
+	}
+	
+	/**
+	 * Notes that the concept with the given id, or one of its names, has changed, so that its label
+	 * and those of its drugs are computed again if it is a concept of the formulary
+	 */
+	public void conceptChanged(Integer conceptId) {
+		synchronized (lock) {
+			if (conceptId != null && snapshot != null && !snapshot.getDrugIdsForConcept(conceptId).isEmpty()) {
+				changedConceptIds.add(conceptId);
+				changeCount++;
+			}
+		}
+	}
+	
+	/**
+	 * Forgets the formulary, so that it is loaded again from the database the next time it is needed
+	 */
+	public void clear() {
+		synchronized (lock) {
+			snapshot = null;
+			changedDrugIds.clear();
+			changedConceptIds.clear();
+			generation++;
+		}
+	}
+	
+	/**
+	 * The non-retired drugs at one point in time, and the concepts they are for
+	 */
+	public static class Snapshot {
+		
+		private final long version;
+		
+		private final Map<Integer, DrugDetails> drugsById;
+		
+		private final Map<Integer, List<Integer>> drugIdsByConceptId;
+		
+		private final Map<Locale, Labels> labelsByLocale = new ConcurrentHashMap<Locale, Labels>();
+		
+		// the labels of the previous snapshot that are still correct, used to build the labels of this one
+		private final Map<Locale, Labels> previousLabelsByLocale;
+		
+		private Snapshot(long version, Collection<Drug> drugs) {
+			this.version = version;
+			Map<Integer, DrugDetails> details = new LinkedHashMap<Integer, DrugDetails>();
+			for (Drug drug : drugs) {
+				if (drug.getConcept() != null && !BooleanUtils.isTrue(drug.getRetired())) {
+					details.put(drug.getDrugId(), DrugDetails.of(drug));
+				}
+			}
+			this.drugsById = Collections.unmodifiableMap(details);
+			this.drugIdsByConceptId = indexByConcept(details);
+			this.previousLabelsByLocale = Collections.emptyMap();
+		}
+		
+		private Snapshot(long version, Map<Integer, DrugDetails> drugsById, Map<Locale, Labels> previousLabelsByLocale) {
+			this.version = version;
+			this.drugsById = Collections.unmodifiableMap(drugsById);
+			this.drugIdsByConceptId = indexByConcept(drugsById);
+			this.previousLabelsByLocale = previousLabelsByLocale;
+		}
+		
+		/**
+		 * @param changedDrugs the current version of each drug that changed, or null if it was deleted
+		 * @param changedConceptIds the ids of the concepts whose labels, and those of their drugs, need
+		 *            to be computed again
+		 * @return a copy of this snapshot with the given changes applied
+		 */
+		private Snapshot withChanges(Map<Integer, Drug> changedDrugs, Set<Integer> changedConceptIds) {
+			Map<Integer, DrugDetails> details = new LinkedHashMap<Integer, DrugDetails>(drugsById);
+			for (Map.Entry<Integer, Drug> e : changedDrugs.entrySet()) {
+				Drug drug = e.getValue();
+				details.remove(e.getKey());
+				if (drug != null && drug.getConcept() != null && !BooleanUtils.isTrue(drug.getRetired())) {
+					details.put(e.getKey(), DrugDetails.of(drug));
+				}
+			}
+			// drugs without a name of their own are labelled with the name of their concept
+			Set<Integer> relabelledDrugIds = new HashSet<Integer>(changedDrugs.keySet());
+			for (Integer conceptId : changedConceptIds) {
+				relabelledDrugIds.addAll(getDrugIdsForConcept(conceptId));
+			}
+			Map<Locale, Labels> previousLabels = new HashMap<Locale, Labels>();
+			for (Map.Entry<Locale, Labels> e : labelsByLocale.entrySet()) {
+				previousLabels.put(e.getKey(), e.getValue().without(relabelledDrugIds, changedConceptIds));
+			}
+			return new Snapshot(version + 1, details, previousLabels);
+		}
+		
+		private static Map<Integer, List<Integer>> indexByConcept(Map<Integer, DrugDetails> drugsById) {
+			Map<Integer, List<Integer>> ret = new LinkedHashMap<Integer, List<Integer>>();
+			for (Map.Entry<Integer, DrugDetails> e : drugsById.entrySet()) {
+				List<Integer> drugIds = ret.get(e.getValue().getConceptId());
+				if (drugIds == null) {
+					drugIds = new ArrayList<Integer>();
+					ret.put(e.getValue().getConceptId(), drugIds);
+				}
+				drugIds.add(e.getKey());
+			}
+			for (Map.Entry<Integer, List<Integer>> e : ret.entrySet()) {
+				e.setValue(Collections.unmodifiableList(e.getValue()));
+			}
+			return Collections.unmodifiableMap(ret);
+		}
+		
+		/**
+		 * @return a number that increases each time the formulary changes
+		 */
+		public long getVersion() {
+			return version;
+		}
+		
+		/**
+		 * @return the ids of all the drugs in the formulary
+		 */
+		public Set<Integer> getDrugIds() {
+			return drugsById.keySet();
+		}
+		
+		/**
+		 * @return the id of the concept of the drug with the given id, or null if it is not in the
+		 *         formulary
+		 */
+		public Integer getConceptId(Integer drugId) {
+			DrugDetails drug = drugsById.get(drugId);
+			return drug == null ? null : drug.getConceptId();
+		}
+		
+		/**
+		 * @return the details of the drug with the given id, or null if it is not in the formulary
+		 */
+		public DrugDetails getDrug(Integer drugId) {
+			return drugsById.get(drugId);
+		}
+		
+		/**
+		 * @return the ids of the drugs for the concept with the given id
+		 */
+		public List<Integer> getDrugIdsForConcept(Integer conceptId) {
+			List<Integer> ret = drugIdsByConceptId.get(conceptId);
+			return ret == null ? Collections.<Integer> emptyList() : ret;
+		}
+		
+		/**
+		 * @return an option for each concept that has a drug in the formulary, labelled in the locale of
+		 *         the authenticated user and sorted by label
+		 */
+		public List<Option> getConceptOptions() {
+			return copy(getLabels().conceptOptions);
+		}
+		
+		/**
+		 * @return an option for each drug in the formulary, labelled in the locale of the authenticated
+		 *         user and sorted by label
+		 */
+		public List<Option> getDrugOptions() {
+			return copy(getLabels().drugOptions);
+		}
+		
+		/**
+		 * @return the label of the drug with the given id in the locale of the authenticated user, or
+		 *         null if it is not in the formulary
+		 */
+		public String getDrugLabel(Integer drugId) {
+			return getLabels().drugLabels.get(drugId);
+		}
+		
+		/**
+		 * @return the label of the concept with the given id in the locale of the authenticated user, or
+		 *         null if it has no drugs in the formulary
+		 */
+		public String getConceptLabel(Integer conceptId) {
+			return getLabels().conceptLabels.get(conceptId);
+		}
+		
+		private List<Option> copy(List<Option> options) {
+			List<Option> ret = new ArrayList<Option>(options.size());
+			for (Option option : options) {
+				ret.add(new Option(option.getLabel(), option.getValue()));
+			}
+			return ret;
+		}
+		
+		private Labels getLabels() {
+			Locale locale = Context.getLocale();
+			Labels labels = labelsByLocale.get(locale);
+			if (labels == null) {
+				labels = new Labels(previousLabelsByLocale.get(locale), drugsById.keySet(), drugIdsByConceptId.keySet());
+				labelsByLocale.put(locale, labels);
+			}
+			return labels;
+		}
+		
+		/**
+		 * The labels of the drugs and concepts of a snapshot in one locale
+		 */
+		private static class Labels {
+			
+			private final Map<Integer, String> drugLabels;
+			
+			private final Map<Integer, String> conceptLabels;
+			
+			private final List<Option> drugOptions;
+			
+			private final List<Option> conceptOptions;
+			
+			/**
+			 * Computes the labels of the given drugs and concepts in the locale of the authenticated
+			 * user, loading those whose labels are not in the given previous labels
+			 */
+			private Labels(Labels previous, Set<Integer> drugIds, Set<Integer> conceptIds) {
+				drugLabels = new HashMap<Integer, String>();
+				conceptLabels = new HashMap<Integer, String>();
+				Set<Integer> missingDrugIds = new HashSet<Integer>();
+				for (Integer drugId : drugIds) {
+					String label = previous == null ? null : previous.drugLabels.get(drugId);
+					if (label == null) {
+						missingDrugIds.add(drugId);
+					} else {
+						drugLabels.put(drugId, label);
+					}
+				}
+				Set<Integer> missingConceptIds = new HashSet<Integer>();
+				for (Integer conceptId : conceptIds) {
+					String label = previous == null ? null : previous.conceptLabels.get(conceptId);
+					if (label == null) {
+						missingConceptIds.add(conceptId);
+					} else {
+						conceptLabels.put(conceptId, label);
+					}
+				}
+				// only the names are loaded, and the names of the concepts before the drugs that may be
+				// labelled with them
+				if (!missingConceptIds.isEmpty()) {
+					for (Concept concept : HtmlFormEntryUtil.getService().prefetchConceptNames(missingConceptIds)) {
+						conceptLabels.put(concept.getConceptId(), concept.getDisplayString());
+					}
+				}
+				if (!missingDrugIds.isEmpty()) {
+					for (Drug drug : HtmlFormEntryUtil.getService().prefetchDrugNames(missingDrugIds)) {
+						drugLabels.put(drug.getDrugId(), drug.getDisplayName());
+					}
+				}
+				drugOptions = toSortedOptions(drugLabels);
+				conceptOptions = toSortedOptions(conceptLabels);
+			}
+			
+			private Labels(Map<Integer, String> drugLabels, Map<Integer, String> conceptLabels) {
+				this.drugLabels = drugLabels;
+				this.conceptLabels = conceptLabels;
+				this.drugOptions = Collections.emptyList();
+				this.conceptOptions = Collections.emptyList();
+			}
+			
+			/**
+			 * @return these labels without those of the given drugs and concepts, to build the labels of
+			 *         a later snapshot from
+			 */
+			private Labels without(Set<Integer> drugIds, Set<Integer> conceptIds) {
+				Map<Integer, String> remainingDrugLabels = new HashMap<Integer, String>(drugLabels);
+				remainingDrugLabels.keySet().removeAll(drugIds);
+				Map<Integer, String> remainingConceptLabels = new HashMap<Integer, String>(conceptLabels);
+				remainingConceptLabels.keySet().removeAll(conceptIds);
+				return new Labels(remainingDrugLabels, remainingConceptLabels);
+			}
+			
+			private List<Option> toSortedOptions(Map<Integer, String> labels) {
+				List<Option> ret = new ArrayList<Option>();
+				for (Map.Entry<Integer, String> e : labels.entrySet()) {
+					ret.add(new Option(e.getValue() == null ? "" : e.getValue(), e.getKey().toString()));
+				}
+				ret.sort(Comparator.comparing(option -> option.getLabel().toLowerCase()));
+				return Collections.unmodifiableList(ret);
+			}
+		}
+	}
+	
+	/**
+	 * What an order widget shows of a drug besides its label: its concept, strength, dosage form and
+	 * ingredients, by id
+	 */
+	public static class DrugDetails {
+		
+		private final Integer drugId;
+		
+		private final Integer conceptId;
+		
+		private final String strength;
+		
+		private final Integer dosageFormId;
+		
+		private final List<Ingredient> ingredients;
+		
+		private DrugDetails(Integer drugId, Integer conceptId, String strength, Integer dosageFormId,
+		    List<Ingredient> ingredients) {
+			this.drugId = drugId;
+			this.conceptId = conceptId;
+			this.strength = strength;
+			this.dosageFormId = dosageFormId;
+			this.ingredients = Collections.unmodifiableList(ingredients);
+		}
+		
+		/**
+		 * @return the details of the given drug
+		 */
+		public static DrugDetails of(Drug drug) {
+			List<Ingredient> ingredients = new ArrayList<Ingredient>();
+			if (drug.getIngredients() != null) {
+				for (DrugIngredient di : drug.getIngredients()) {
+					ingredients.add(new Ingredient(di.getIngredient().getConceptId(), di.getStrength(),
+					        di.getUnits() == null ? null : di.getUnits().getConceptId()));
+				}
+			}
+			return new DrugDetails(drug.getDrugId(), drug.getConcept() == null ? null : drug.getConcept().getConceptId(),
+			        drug.getStrength(), drug.getDosageForm() == null ? null : drug.getDosageForm().getConceptId(),
+			        ingredients);
+		}
+		
+		public Integer getDrugId() {
+			return drugId;
+		}
+		
+		public Integer getConceptId() {
+			return conceptId;
+		}
+		
+		public String getStrength() {
+			return strength;
+		}
+		
+		public Integer getDosageFormId() {
+			return dosageFormId;
+		}
+		
+		public List<Ingredient> getIngredients() {
+			return ingredients;
+		}
+	}
+	
+	/**
+	 * An ingredient of a drug, by the ids of its concept and units
+	 */
+	public static class Ingredient {
+		
+		private final Integer ingredientId;
+		
+		private final Double strength;
+		
+		private final Integer unitsId;
+		
+		private Ingredient(Integer ingredientId, Double strength, Integer unitsId) {
+			this.ingredientId = ingredientId;
+			this.strength = strength;
+			this.unitsId = unitsId;
+		}
+		
+		public Integer getIngredientId() {
+			return ingredientId;
+		}
+		
+		public Double getStrength() {
+			return strength;
+		}
+		
+		public Integer getUnitsId() {
+			return unitsId;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package org.openmrs.module.htmlformentry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openmrs.EncounterType;
+import org.openmrs.api.context.Context;
+import org.openmrs.util.PrivilegeConstants;
+import org.springframework.stereotype.Component;
+
+/**
+ * Remembers the privilege needed to view the encounters of each encounter type that has one, so that
+ * the encounter types the authenticated user is not allowed to view can be worked out without
+ * loading all the encounter types each time.
+ * <p/>
+ * The privileges are loaded again the next time they are needed whenever an encounter type is saved,
+ * retired, or deleted, see {@link HtmlFormMetadataCacheInterceptor}.
+ */
+@Component
+public class EncounterTypePrivilegeCache {
+	
+	private volatile Map<Integer, String> viewPrivilegesByEncounterTypeId;
+	
+	/**
+	 * @return the ids of the encounter types whose encounters the authenticated user is not allowed to
+	 *         view
+	 */
+	public List<Integer> getEncounterTypeIdsNotViewable() {
+		List<Integer> ret = new ArrayList<Integer>();
+		for (Map.Entry<Integer, String> e : getViewPrivileges().entrySet()) {
+			if (!Context.hasPrivilege(e.getValue())) {
+				ret.add(e.getKey());
+			}
+		}
+		return ret;
+	}
+	
+	public void clear() {
+		viewPrivilegesByEncounterTypeId = null;
+	}
+	
+	private Map<Integer, String> getViewPrivileges() {
+		Map<Integer, String> ret = viewPrivilegesByEncounterTypeId;
+		if (ret == null) {
+			ret = new HashMap<Integer, String>();
+			// the privileges are needed for any user who views encounters, not only those who may view the types
+			Context.addProxyPrivilege(PrivilegeConstants.GET_ENCOUNTER_TYPES);
+			try {
+				for (EncounterType type : Context.getEncounterService().getAllEncounterTypes(true)) {
+					if (type.getViewPrivilege() != null) {
+						ret.put(type.getEncounterTypeId(), type.getViewPrivilege().getPrivilege());
+					}
+				}
+			}
+			finally {
+				Context.removeProxyPrivilege(PrivilegeConstants.GET_ENCOUNTER_TYPES);
+			}
+			ret = Collections.unmodifiableMap(ret);
+			viewPrivilegesByEncounterTypeId = ret;
+		}
+		return ret;
+	}
+}
@@ -12,8 +12,10 @@ import org.openmrs.Obs;
 import org.openmrs.Order;
 import org.openmrs.Patient;
 import org.openmrs.Visit;
-import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.matching.ExistingObsIndex;
+import org.openmrs.module.htmlformentry.matching.ObsGroupDescriptor;
 import org.openmrs.module.htmlformentry.matching.ObsGroupEntity;
+import org.openmrs.module.htmlformentry.matching.ObsGroupMatcher;
 import org.openmrs.module.htmlformentry.schema.HtmlFormField;
 import org.openmrs.module.htmlformentry.schema.HtmlFormSchema;
 import org.openmrs.module.htmlformentry.schema.HtmlFormSection;
@@ -22,6 +24,7 @@ import org.openmrs.module.htmlformentry.widget.ErrorWidget;
 import org.openmrs.module.htmlformentry.widget.Widget;
 import org.openmrs.util.LocaleUtility;
 import org.openmrs.util.OpenmrsUtil;
+import org.w3c.dom.Node;
 
 import javax.servlet.http.HttpSession;
 import java.util.ArrayList;
@@ -30,6 +33,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
@@ -91,12 +95,17 @@ public class FormEntryContext {
 	
 	private Encounter existingEncounter;
 	
-	protected Map<Concept, List<Obs>> existingObs;
+	protected ExistingObsIndex existingObs;
 	
 	private Map<Concept, List<Order>> existingOrders;
 	
 	private Map<Obs, Set<Obs>> existingObsInGroups;
 	
+	private ObsGroupMatcher obsGroupMatcher;
+	
+	// the descriptors of the obsgroup tags of the form being displayed, by tag
+	private Map<Node, ObsGroupDescriptor> obsGroupDescriptors = new IdentityHashMap<Node, ObsGroupDescriptor>();
+	
 	private Stack<Concept> currentObsGroupConcepts = new Stack<Concept>();
 	
 	protected List<Obs> currentObsGroupMembers;
@@ -351,7 +360,7 @@ public class FormEntryContext {
 	 * @return the Obs from the current {@see ObsGroup} with the specified concept and answer concept
 	 */
 	public Obs getObsFromExistingObs(Concept concept, String controlId) {
-		List<Obs> obsList = existingObs.get(concept);
+		List<Obs> obsList = existingObs.getObs(concept);
 		
 		return Optional.ofNullable(obsList).orElse(Collections.emptyList()).stream()
 		        .filter(obs -> StringUtils.equals(getControlId(obs), controlId)).reduce((obs1, obs2) -> {
@@ -367,7 +376,7 @@ public class FormEntryContext {
 	 */
 	public Obs getObsFromExistingObs(String controlId) {
 		
-		return existingObs.values().stream()
+		return existingObs.asMap().values().stream()
 		        .map(obs -> obs.stream().filter(o -> StringUtils.equals(getControlId(o), controlId)).reduce((obs1, obs2) -> {
 			        throw new IllegalStateException("Multiple obs are matching the control id '" + controlId + "'.");
 		        }).orElse(null)).filter(Objects::nonNull).reduce((obs1, obs2) -> {
@@ -496,21 +505,16 @@ public class FormEntryContext {
 		if (existingEncounter != null && existingEncounter.getEncounterDatetime() != null) {
 			previousEncounterDate = new Date(existingEncounter.getEncounterDatetime().getTime());
 		}
-		existingObs = new HashMap<Concept, List<Obs>>();
+		existingObs = new ExistingObsIndex(
+		        encounter == null ? Collections.<Obs> emptySet() : encounter.getObsAtTopLevel(false));
 		existingOrders = new HashMap<Concept, List<Order>>();
 		if (encounter != null) {
-			for (Obs obs : encounter.getObsAtTopLevel(false)) {
-				List<Obs> list = existingObs.get(obs.getConcept());
-				if (list == null) {
-					list = new LinkedList<Obs>();
-					existingObs.put(obs.getConcept(), list);
-				}
-				list.add(obs);
-			}
+			Map<Integer, Order> ordersById = loadOrders(encounter);
 			for (Order order : encounter.getOrders()) {
 				if (BooleanUtils.isNotTrue(order.getVoided())) {
-					//load subclasses for later retrieval
-					order = (Order) Context.getOrderService().getOrder(order.getOrderId());
+					if (ordersById.containsKey(order.getOrderId())) {
+						order = ordersById.get(order.getOrderId());
+					}
 					List<Order> list = existingOrders.get(order.getConcept());
 					if (list == null) {
 						list = new LinkedList<Order>();
@@ -522,16 +526,40 @@ public class FormEntryContext {
 		}
 		guessingInd = false;
 		existingObsInGroups = new LinkedHashMap<Obs, Set<Obs>>();
+		obsGroupMatcher = null;
 		if (encounter != null)
 			setupExistingObsInGroups(encounter.getObsAtTopLevel(false));
 	}
 	
+	/**
+	 * Loads the non-voided orders of the given encounter as their own subclasses for later retrieval,
+	 * in one query rather than one for each order
+	 *
+	 * @return the loaded orders, by id
+	 */
+	private Map<Integer, Order> loadOrders(Encounter encounter) {
+		List<Integer> orderIds = new ArrayList<Integer>();
+		for (Order order : encounter.getOrders()) {
+			if (BooleanUtils.isNotTrue(order.getVoided()) && order.getOrderId() != null) {
+				orderIds.add(order.getOrderId());
+			}
+		}
+		Map<Integer, Order> ret = new HashMap<Integer, Order>();
+		if (!orderIds.isEmpty()) {
+			for (Order order : HtmlFormEntryUtil.getService().getOrders(orderIds)) {
+				ret.put(order.getOrderId(), order);
+			}
+		}
+		return ret;
+	}
+	
 	/**
 	 * Sets obs associated with an obs groups in existing obs groups.
 	 *
 	 * @param Set the obsGroup to add to existingObsInGroups
 	 */
 	public void setupExistingObsInGroups(Set<Obs> oSet) {
+		obsGroupMatcher = null;
 		for (Obs parent : oSet)
 			if (parent.isObsGrouping()) {
 				existingObsInGroups.put(parent, parent.getGroupMembers());
@@ -547,19 +575,7 @@ public class FormEntryContext {
 	 * @return
 	 */
 	public Obs removeExistingObs(Concept question, Drug answer) {
-		List<Obs> list = existingObs.get(question);
-		if (list != null) {
-			for (Iterator<Obs> iter = list.iterator(); iter.hasNext();) {
-				Obs test = iter.next();
-				if (test.getFormFieldPath() == null && (answer == null || equalDrug(answer, test.getValueDrug()))) {
-					iter.remove();
-					if (list.size() == 0)
-						existingObs.remove(question);
-					return test;
-				}
-			}
-		}
-		return null;
+		return existingObs.claim(question, answer);
 	}
 	
 	/**
@@ -571,19 +587,7 @@ public class FormEntryContext {
 	 * @return
 	 */
 	public Obs removeExistingObs(Concept question, Concept answer) {
-		List<Obs> list = existingObs.get(question);
-		if (list != null) {
-			for (Iterator<Obs> iter = list.iterator(); iter.hasNext();) {
-				Obs test = iter.next();
-				if (test.getFormFieldPath() == null && (answer == null || equalConcepts(answer, test.getValueCoded()))) {
-					iter.remove();
-					if (list.size() == 0)
-						existingObs.remove(question);
-					return test;
-				}
-			}
-		}
-		return null;
+		return existingObs.claim(question, answer);
 	}
 	
 	/**
@@ -614,22 +618,7 @@ public class FormEntryContext {
 	 */
 	public Obs removeExistingObs(Concept question, String numericAns) {
 		
-		Number numVal = Double.valueOf(numericAns);
-		List<Obs> list = existingObs.get(question);
-		if (list != null) {
-			for (Iterator<Obs> iter = list.iterator(); iter.hasNext();) {
-				Obs test = iter.next();
-				if (test.getFormFieldPath() == null && test.getValueNumeric().equals(numVal)) {
-					iter.remove();
-					if (list.size() == 0) {
-						existingObs.remove(question);
-					}
-					return test;
-				}
-			}
-		}
-		
-		return null;
+		return existingObs.claim(question, Double.valueOf(numericAns));
 	}
 	
 	/**
@@ -641,9 +630,7 @@ public class FormEntryContext {
 	 * @return the list of obs associated with it
 	 */
 	public List<Obs> removeExistingObs(Concept question) {
-		List<Obs> list = existingObs.get(question);
-		existingObs.remove(question);
-		return list;
+		return existingObs.claimAll(question);
 	}
 	
 	/**
@@ -692,18 +679,15 @@ public class FormEntryContext {
 	 * @return
 	 */
 	public Obs removeExistingObs(Concept question, Boolean answer) {
-		List<Obs> list = existingObs.get(question);
+		List<Obs> list = existingObs.getObs(question);
 		if (list != null) {
-			for (Iterator<Obs> iter = list.iterator(); iter.hasNext();) {
-				Obs test = iter.next();
+			for (Obs test : list) {
 				if (test.getValueAsBoolean() == null) {
 					throw new RuntimeException(
 					        "Invalid boolean value for concept " + question + "; possibly caused by TRUNK-3150");
 				}
 				if (test.getFormFieldPath() == null && answer == test.getValueAsBoolean()) {
-					iter.remove();
-					if (list.size() == 0)
-						existingObs.remove(question);
+					existingObs.claim(test);
 					return test;
 				}
 			}
@@ -712,14 +696,27 @@ public class FormEntryContext {
 	}
 	
 	public Obs getNextUnmatchedObsGroup(List<ObsGroupComponent> questionsAndAnswers, String path) {
+		return getNextUnmatchedObsGroup(ObsGroupMatcher.compile(questionsAndAnswers), path);
+	}
+	
+	/**
+	 * Returns the first unmatched obs group at the path of the described obsgroup tag that is not
+	 * ruled out by the tag
+	 *
+	 * @see #getNextUnmatchedObsGroup(List, String)
+	 */
+	public Obs getNextUnmatchedObsGroup(ObsGroupDescriptor descriptor) {
+		return getNextUnmatchedObsGroup(descriptor.getQuery(), descriptor.getPath());
+	}
+	
+	private Obs getNextUnmatchedObsGroup(ObsGroupMatcher.Query query, String path) {
 		Obs ret = null;
 		int unmatchedContenterCount = 0;
-		for (Map.Entry<Obs, Set<Obs>> e : existingObsInGroups.entrySet()) {
-			if (path.equals(ObsGroupComponent.getObsGroupPath(e.getKey()))
-			        && !(ObsGroupComponent.supportingRank(questionsAndAnswers, e.getValue()) < 0) // don't match an obs group if it's explicitly ranked as NOT a match for this obs group (ie has a rank < 0)
-			) {
+		for (ObsGroupMatcher.Candidate candidate : getObsGroupMatcher().getCandidates(path)) {
+			// don't match an obs group if it's explicitly ranked as NOT a match for this obs group (ie has a rank < 0)
+			if (!(query.rank(candidate) < 0)) {
 				if (ret == null) {
-					ret = e.getKey();
+					ret = candidate.getObsGroup();
 				}
 				unmatchedContenterCount++;
 			}
@@ -729,12 +726,21 @@ public class FormEntryContext {
 				guessingInd = true;
 			}
 			existingObsInGroups.remove(ret);
-			existingObs.remove(ret);
 			return ret;
 		}
 		return null;
 	}
 	
+	/**
+	 * @return the index of the existing obs groups, which is built the first time it is needed
+	 */
+	private ObsGroupMatcher getObsGroupMatcher() {
+		if (obsGroupMatcher == null) {
+			obsGroupMatcher = new ObsGroupMatcher(existingObsInGroups);
+		}
+		return obsGroupMatcher;
+	}
+	
 	public int getExistingObsInGroupsCount() {
 		if (existingObsInGroups != null) {
 			return existingObsInGroups.size();
@@ -752,14 +758,22 @@ public class FormEntryContext {
 	 * @return the first matching {@see ObsGroup}
 	 */
 	public Obs findBestMatchingObsGroup(List<ObsGroupComponent> questionsAndAnswers, String path) {
-		Set<Obs> contenders = new HashSet<Obs>();
+		return findBestMatchingObsGroup(ObsGroupMatcher.compile(questionsAndAnswers), path);
+	}
+	
+	/**
+	 * Finds the best matching obsGroup for the described obsgroup tag
+	 *
+	 * @see #findBestMatchingObsGroup(List, String)
+	 */
+	public Obs findBestMatchingObsGroup(ObsGroupDescriptor descriptor) {
+		return findBestMatchingObsGroup(descriptor.getQuery(), descriptor.getPath());
+	}
+	
+	private Obs findBestMatchingObsGroup(ObsGroupMatcher.Query query, String path) {
 		// first all obsGroups matching parentObs.concept at the right obsGroup hierarchy level in the encounter are
 		// saved as contenders
-		for (Map.Entry<Obs, Set<Obs>> e : existingObsInGroups.entrySet()) {
-			if (path.equals(ObsGroupComponent.getObsGroupPath(e.getKey()))) {
-				contenders.add(e.getKey());
-			}
-		}
+		List<ObsGroupMatcher.Candidate> contenders = getObsGroupMatcher().getCandidates(path);
 		
 		Obs ret = null;
 		
@@ -767,16 +781,16 @@ public class FormEntryContext {
 			List<Obs> rankTable = new ArrayList<Obs>();
 			int topRanking = 0;
 			
-			for (Obs parentObs : contenders) {
-				int rank = ObsGroupComponent.supportingRank(questionsAndAnswers, existingObsInGroups.get(parentObs));
+			for (ObsGroupMatcher.Candidate contender : contenders) {
+				int rank = query.rank(contender);
 				
 				if (rank > 0) {
 					if (rank > topRanking) {
 						topRanking = rank;
 						rankTable.clear();
-						rankTable.add(parentObs);
+						rankTable.add(contender.getObsGroup());
 					} else if (rank == topRanking) {
-						rankTable.add(parentObs);
+						rankTable.add(contender.getObsGroup());
 					}
 				}
 			}
@@ -795,7 +809,6 @@ public class FormEntryContext {
 		
 		if (ret != null) {
 			existingObsInGroups.remove(ret);
-			existingObs.remove(ret);
 			return ret;
 		} else {
 			return null;
@@ -883,7 +896,7 @@ public class FormEntryContext {
 	}
 	
 	public Map<Concept, List<Obs>> getExistingObs() {
-		return existingObs;
+		return existingObs.asMap();
 	}
 	
 	public Map<Obs, Set<Obs>> getExistingObsInGroups() {
@@ -1019,6 +1032,31 @@ public class FormEntryContext {
 		return id;
 	}
 	
+	/**
+	 * Returns the descriptor of the given obsgroup tag, which is worked out from the tag if it was not
+	 * provided when the form was compiled
+	 *
+	 * @param node an obsgroup tag of the form being displayed
+	 * @return the descriptor of the tag
+	 * @see HtmlFormCompiler
+	 */
+	public ObsGroupDescriptor getObsGroupDescriptor(Node node) {
+		ObsGroupDescriptor ret = obsGroupDescriptors.get(node);
+		if (ret == null) {
+			ret = ObsGroupDescriptor.compile(node);
+			obsGroupDescriptors.put(node, ret);
+		}
+		return ret;
+	}
+	
+	/**
+	 * @param obsGroupDescriptors the descriptors of the obsgroup tags of the form being displayed, by
+	 *            tag
+	 */
+	public void setObsGroupDescriptors(Map<Node, ObsGroupDescriptor> obsGroupDescriptors) {
+		this.obsGroupDescriptors = new IdentityHashMap<Node, ObsGroupDescriptor>(obsGroupDescriptors);
+	}
+	
 	public List<ObsGroupEntity> getUnmatchedObsGroupEntities() {
 		return unmatchedObsGroupEntities;
 	}
@@ -5,10 +5,6 @@ import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.time.DateUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.VelocityEngine;
-import org.apache.velocity.runtime.RuntimeConstants;
-import org.apache.velocity.runtime.log.CommonsLogLogChute;
 import org.openmrs.Concept;
 import org.openmrs.Condition;
 import org.openmrs.Encounter;
@@ -30,7 +26,10 @@ import org.openmrs.api.ObsService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
 import org.openmrs.module.htmlformentry.appointment.AppointmentsAbstractor;
+import org.openmrs.module.htmlformentry.element.HtmlGeneratorElement;
 import org.openmrs.module.htmlformentry.property.ExitFromCareProperty;
+import org.openmrs.module.htmlformentry.velocity.HtmlFormVelocityEngine;
+import org.openmrs.module.htmlformentry.velocity.LazyVelocityContext;
 import org.openmrs.module.htmlformentry.velocity.VelocityContextContentProvider;
 import org.openmrs.module.htmlformentry.widget.AutocompleteWidget;
 import org.openmrs.module.htmlformentry.widget.ConceptSearchAutocompleteWidget;
@@ -39,10 +38,13 @@ import org.openmrs.module.htmlformentry.widget.Widget;
 import org.springframework.util.ReflectionUtils;
 import org.springframework.util.StringUtils;
 import org.springframework.web.util.JavaScriptUtils;
+import org.w3c.dom.Document;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
+import java.io.IOException;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Date;
@@ -52,6 +54,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Supplier;
 
 /**
  * This represents the multi-request transaction that begins the moment a user clicks on a form to
@@ -91,6 +94,9 @@ public class FormEntrySession {
 	 */
 	protected final Log log = LogFactory.getLog(getClass());
 	
+	// marks the placeholders of elements in the html of a form created without it, as it cannot occur in xml
+	private static final String ELEMENT_PLACEHOLDER = "\u0000";
+	
 	private Form form;
 	
 	private Encounter encounter;
@@ -122,9 +128,20 @@ public class FormEntrySession {
 	// calling the getter will build this once, then cache it
 	private String htmlToDisplay;
 	
-	private VelocityEngine velocityEngine;
+	// set once the html of the form has been written out by writeHtmlToDisplay without caching it
+	private boolean htmlWritten = false;
+	
+	// the html written by createFormWithoutHtml, with placeholders for the html of its elements
+	private String htmlWithoutElements;
+	
+	// the elements whose html is left out while the form is created without it, in the order of their placeholders
+	private List<HtmlGeneratorElement> elementsWithoutHtml;
+	
+	private HtmlFormVelocityEngine velocityEngine;
 	
-	private VelocityContext velocityContext;
+	private LazyVelocityContext velocityContext;
+	
+	private VelocityFunctions velocityFunctions;
 	
 	private boolean voidEncounter = false;
 	
@@ -158,87 +175,31 @@ public class FormEntrySession {
 		this.patient = patient;
 		
 		context.setupExistingData(patient);
-		velocityEngine = new VelocityEngine();
-		
-		// This code pattern is copied to HtmlFormEntryServiceImpl. Any bugfixes should be copied too.
-		// #1953 - Velocity errors in HTML form entry
-		velocityEngine.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS,
-		    "org.apache.velocity.runtime.log.CommonsLogLogChute");
-		velocityEngine.setProperty(CommonsLogLogChute.LOGCHUTE_COMMONS_LOG_NAME, "htmlformentry_velocity");
-		velocityEngine.setProperty(RuntimeConstants.UBERSPECT_CLASSNAME,
-		    "org.apache.velocity.util.introspection.SecureUberspector");
-		
-		try {
-			velocityEngine.init();
-		}
-		catch (Exception e) {
-			log.error("Error initializing Velocity engine", e);
-		}
-		velocityContext = new VelocityContext();
+		velocityEngine = Context.getRegisteredComponent("htmlFormVelocityEngine", HtmlFormVelocityEngine.class);
+		velocityContext = new LazyVelocityContext();
 		velocityContext.put("locale", Context.getLocale());
 		velocityContext.put("patient", patient);
-		velocityContext.put("fn", new VelocityFunctions(this));
+		velocityFunctions = new VelocityFunctions(this);
+		velocityContext.put("fn", velocityFunctions);
 		velocityContext.put("user", Context.getAuthenticatedUser());
 		velocityContext.put("session", this);
 		velocityContext.put("context", context);
 		velocityContext.put("formGeneratedDatetime", new Date());
 		velocityContext.put("visit", context.getVisit());
 		
-		{
-			Map<String, List<String>> identifiers = new HashMap<String, List<String>>();
-			if (patient != null) {
-				for (PatientIdentifier id : patient.getActiveIdentifiers()) {
-					String idType = id.getIdentifierType().getName();
-					List<String> list = identifiers.get(idType);
-					if (list == null) {
-						list = new ArrayList<String>();
-						identifiers.put(idType, list);
-					}
-					list.add(id.getIdentifier());
-				}
-			}
-			velocityContext.put("patientIdentifiers", identifiers);
-		}
-		
-		{
-			Map<String, Object> attributes = new HashMap<String, Object>();
-			if (patient != null) {
-				for (PersonAttribute att : patient.getActiveAttributes()) {
-					String attName = att.getAttributeType().getName();
-					if (att.getValue() != null) {
-						attributes.put(attName.replaceAll("'", ""), att.getHydratedObject());
-					}
-				}
-			}
-			velocityContext.put("personAttributes", attributes);
-		}
+		// the following are only computed if a velocity expression in the form uses them
+		velocityContext.putLazy("patientIdentifiers", () -> getPatientIdentifiers(patient));
+		velocityContext.putLazy("personAttributes", () -> getPersonAttributes(patient));
 		
 		// the relationship query only makes sense in the context of saved patients, so only call it if this patient
 		// has already been persisted (i.e., assigned an id and uuid)
 		if (patient != null && patient.getId() != null && patient.getUuid() != null
 		        && !("testing-html-form-entry".equals(patient.getUuid()))) {
-			List<Relationship> rels = Context.getPersonService().getRelationshipsByPerson(patient);
-			// TODO put this is core in relationship service
-			Map<String, List<Person>> relMap = new HashMap<String, List<Person>>();
-			for (Relationship rel : rels) {
-				if (rel.getPersonA().getPersonId().equals(patient.getPersonId())) {
-					List<Person> list = relMap.get(rel.getRelationshipType().getbIsToA());
-					if (list == null) {
-						list = new ArrayList<Person>();
-						relMap.put(rel.getRelationshipType().getbIsToA(), list);
-					}
-					list.add(rel.getPersonB());
-				} else {
-					List<Person> list = relMap.get(rel.getRelationshipType().getaIsToB());
-					if (list == null) {
-						list = new ArrayList<Person>();
-						relMap.put(rel.getRelationshipType().getaIsToB(), list);
-					}
-					list.add(rel.getPersonA());
-				}
-			}
-			velocityContext.put("relationshipList", rels);
-			velocityContext.put("relationshipMap", relMap);
+			// the relationships are looked up once, for whichever of the two variables is used first
+			Supplier<List<Relationship>> relationships = once(
+			    () -> Context.getPersonService().getRelationshipsByPerson(patient));
+			velocityContext.putLazy("relationshipList", relationships);
+			velocityContext.putLazy("relationshipMap", () -> getRelationshipMap(patient, relationships.get()));
 		}
 		
 		// finally allow modules to provide content to the velocity context
@@ -250,6 +211,80 @@ public class FormEntrySession {
 		htmlGenerator = new HtmlFormEntryGenerator();
 	}
 	
+	private static Map<String, List<String>> getPatientIdentifiers(Patient patient) {
+		Map<String, List<String>> identifiers = new HashMap<String, List<String>>();
+		if (patient != null) {
+			for (PatientIdentifier id : patient.getActiveIdentifiers()) {
+				String idType = id.getIdentifierType().getName();
+				List<String> list = identifiers.get(idType);
+				if (list == null) {
+					list = new ArrayList<String>();
+					identifiers.put(idType, list);
+				}
+				list.add(id.getIdentifier());
+			}
+		}
+		return identifiers;
+	}
+	
+	private static Map<String, Object> getPersonAttributes(Patient patient) {
+		Map<String, Object> attributes = new HashMap<String, Object>();
+		if (patient != null) {
+			for (PersonAttribute att : patient.getActiveAttributes()) {
+				String attName = att.getAttributeType().getName();
+				if (att.getValue() != null) {
+					attributes.put(attName.replaceAll("'", ""), att.getHydratedObject());
+				}
+			}
+		}
+		return attributes;
+	}
+	
+	/**
+	 * @return a supplier that calls the given one the first time it is used, and returns the same value
+	 *         after that
+	 */
+	private static <T> Supplier<T> once(Supplier<T> supplier) {
+		return new Supplier<T>() {
+			
+			private boolean computed = false;
+			
+			private T value;
+			
+			@Override
+			public T get() {
+				if (!computed) {
+					value = supplier.get();
+					computed = true;
+				}
+				return value;
+			}
+		};
+	}
+	
+	private static Map<String, List<Person>> getRelationshipMap(Patient patient, List<Relationship> rels) {
+		// TODO put this is core in relationship service
+		Map<String, List<Person>> relMap = new HashMap<String, List<Person>>();
+		for (Relationship rel : rels) {
+			if (rel.getPersonA().getPersonId().equals(patient.getPersonId())) {
+				List<Person> list = relMap.get(rel.getRelationshipType().getbIsToA());
+				if (list == null) {
+					list = new ArrayList<Person>();
+					relMap.put(rel.getRelationshipType().getbIsToA(), list);
+				}
+				list.add(rel.getPersonB());
+			} else {
+				List<Person> list = relMap.get(rel.getRelationshipType().getaIsToB());
+				if (list == null) {
+					list = new ArrayList<Person>();
+					relMap.put(rel.getRelationshipType().getaIsToB(), list);
+				}
+				list.add(rel.getPersonA());
+			}
+		}
+		return relMap;
+	}
+	
 	/**
 	 * Creates a new HTML Form Entry session (in "Enter" mode) for the specified Patient, using the
 	 * specified xml string to create the HTML Form object
@@ -390,7 +425,7 @@ public class FormEntrySession {
 	public String evaluateVelocityExpression(String velocityExpression) {
 		StringWriter writer = new StringWriter();
 		try {
-			velocityEngine.evaluate(velocityContext, writer, FormEntrySession.class.getName(), velocityExpression);
+			velocityEngine.evaluate(velocityContext, writer, velocityExpression);
 			return writer.toString();
 		}
 		catch (CannotBePreviewedException ex) {
@@ -420,30 +455,51 @@ public class FormEntrySession {
 	 *             with a compound expression in an includeIf tag
 	 */
 	public String createForm(String xml) throws Exception {
+		StringWriter writer = new StringWriter();
+		createForm(xml, writer);
+		return writer.toString();
+	}
+	
+	/**
+	 * Creates the HTML for a HTML Form given the xml for the form, writing it straight to the given
+	 * writer rather than building it up as a string
+	 *
+	 * @param xml the xml string representing the form we wish to create
+	 * @param writer the writer to write the html to, which is not flushed or closed
+	 * @throws Exception
+	 * @see #createForm(String)
+	 */
+	public void createForm(String xml, Writer writer) throws Exception {
 		if (htmlForm != null) {
 			context.getSchema().setName(htmlForm.getName());
 			context.setUnmatchedMode(false);
 		}
-		xml = htmlGenerator.substituteCharacterCodesWithAsciiCodes(xml);
-		xml = htmlGenerator.stripComments(xml);
-		xml = htmlGenerator.convertSpecialCharactersWithinLogicAndVelocityTests(xml);
-		xml = htmlGenerator.processSubforms(xml);
-		xml = htmlGenerator.applyRoleRestrictions(xml);
-		xml = htmlGenerator.applyMacros(this, xml);
-		xml = htmlGenerator.processPages(this, xml);
-		xml = htmlGenerator.applyRepeats(xml);
-		xml = htmlGenerator.applyTranslations(xml, context);
-		xml = htmlGenerator.applyTags(this, xml);
+		// the stages prior to the tag pass do not depend on the patient, so saved forms are compiled once and cached
+		Document doc = getHtmlFormCompiler().compile(this, htmlGenerator, xml);
+		
+		// load the concepts, drugs and locations the tags refer to in a few queries rather than one by one
+		Context.getRegisteredComponent("htmlFormMetadataPrefetcher", HtmlFormMetadataPrefetcher.class).prefetch(doc);
+		
+		// obs groups that cannot be matched on the first pass are deferred, and everything after them held back
+		DeferringPrintWriter out = new DeferringPrintWriter(writer);
+		htmlGenerator.applyTags(this, doc, out);
 		
 		if (context.hasUnmatchedObsGroupEntities() && (context.getMode() == Mode.EDIT || context.getMode() == Mode.VIEW)) {
 			if (context.getUnmatchedObsGroupEntities().size() > 1 && context.getExistingObsInGroupsCount() > 0)
 				context.setGuessingInd(true);
 			context.setUnmatchedMode(true);
-			xml = htmlGenerator.applyUnmatchedTags(this, xml);
+			htmlGenerator.applyUnmatchedTags(this, out);
+		} else {
+			out.writeDeferred(null);
 		}
 		
-		xml = htmlGenerator.wrapInDiv(xml);
-		return xml;
+		if (out.checkError()) {
+			throw new IOException("Error writing the html of the form");
+		}
+	}
+	
+	private HtmlFormCompiler getHtmlFormCompiler() {
+		return Context.getRegisteredComponent("htmlFormCompiler", HtmlFormCompiler.class);
 	}
 	
 	/**
@@ -1099,11 +1155,98 @@ public class FormEntrySession {
 	 */
 	public String getHtmlToDisplay() throws Exception {
 		if (htmlToDisplay == null) {
-			htmlToDisplay = createForm(xmlDefinition);
+			if (htmlWithoutElements != null) {
+				StringWriter writer = new StringWriter();
+				writeHtmlWithoutElements(writer);
+				htmlToDisplay = writer.toString();
+			} else if (htmlWritten) {
+				throw new IllegalStateException("The html of the form has already been written out without keeping it");
+			} else {
+				htmlToDisplay = createForm(xmlDefinition);
+			}
 		}
 		return htmlToDisplay;
 	}
 	
+	/**
+	 * Writes the form display HTML associated with the session to the given writer, e.g. the response.
+	 * Like {@link #getHtmlToDisplay()}, this populates the submissionActions list the first time it is
+	 * called, but the HTML is written out as it is generated instead of being kept in the session. So,
+	 * unless {@link #getHtmlToDisplay()} was called first, the HTML can only be written once.
+	 *
+	 * @param writer the writer to write the html to, which is not flushed or closed
+	 * @throws Exception
+	 */
+	public void writeHtmlToDisplay(Writer writer) throws Exception {
+		if (htmlToDisplay != null) {
+			writer.write(htmlToDisplay);
+		} else if (htmlWithoutElements != null) {
+			htmlWritten = true;
+			writeHtmlWithoutElements(writer);
+		} else if (htmlWritten) {
+			throw new IllegalStateException("The html of the form has already been written out without keeping it");
+		} else {
+			htmlWritten = true;
+			createForm(xmlDefinition, writer);
+		}
+	}
+	
+	/**
+	 * Creates the form's widgets and submission actions, like {@link #getHtmlToDisplay()}, but without
+	 * generating the html of its elements. This is all a session that is only used to validate and
+	 * handle a submission needs. If the html of the form is asked for afterwards (e.g. to show the form
+	 * again because of validation errors), the html of the elements is generated then, from the same
+	 * elements.
+	 *
+	 * @throws Exception
+	 * @see #generateHtml(HtmlGeneratorElement)
+	 */
+	public void createFormWithoutHtml() throws Exception {
+		if (htmlToDisplay == null && htmlWithoutElements == null && !htmlWritten) {
+			elementsWithoutHtml = new ArrayList<HtmlGeneratorElement>();
+			StringWriter writer = new StringWriter();
+			createForm(xmlDefinition, writer);
+			htmlWithoutElements = writer.toString();
+		}
+	}
+	
+	/**
+	 * Generates the html that a tag handler writes in place of the tag of an element. While the form
+	 * is being created without its html (see {@link #createFormWithoutHtml()}), a placeholder is
+	 * returned instead, and the html of the element is only generated if the html of the form is
+	 * needed after all.
+	 *
+	 * @param element the element of the form
+	 * @return the html of the element, or a placeholder for it
+	 */
+	public String generateHtml(HtmlGeneratorElement element) {
+		if (elementsWithoutHtml == null) {
+			return element.generateHtml(context);
+		}
+		elementsWithoutHtml.add(element);
+		return ELEMENT_PLACEHOLDER + (elementsWithoutHtml.size() - 1) + ELEMENT_PLACEHOLDER;
+	}
+	
+	/**
+	 * Writes the html kept by {@link #createFormWithoutHtml()}, generating the html of each element in
+	 * place of its placeholder. Elements register their property accessors as their html is generated,
+	 * so this is only done once.
+	 */
+	private void writeHtmlWithoutElements(Writer writer) throws IOException {
+		String[] parts = htmlWithoutElements.split(ELEMENT_PLACEHOLDER, -1);
+		List<HtmlGeneratorElement> elements = elementsWithoutHtml;
+		htmlWithoutElements = null;
+		elementsWithoutHtml = null;
+		// the parts alternate between the html around the elements and the index of an element
+		for (int i = 0; i < parts.length; i++) {
+			if (i % 2 == 0) {
+				writer.write(parts[i]);
+			} else {
+				writer.write(elements.get(Integer.parseInt(parts[i])).generateHtml(context));
+			}
+		}
+	}
+	
 	/**
 	 * Creates the Javascript necessary to set form fields to the values entered during last submission
 	 * Used to maintain previously-entered field values when redisplaying a form with validation errors
@@ -1440,6 +1583,32 @@ public class FormEntrySession {
 		velocityContext.put(key, value);
 	}
 	
+	/**
+	 * Adds a variable to the velocity context whose value is only computed if a velocity expression
+	 * uses it
+	 *
+	 * @param key the name of the variable
+	 * @param supplier computes the value of the variable, at most once per session
+	 */
+	public void addLazyToVelocityContext(String key, Supplier<?> supplier) {
+		velocityContext.putLazy(key, supplier);
+	}
+	
+	/**
+	 * @return the names of the lazily computed velocity variables that have been used in this session
+	 */
+	public Set<String> getMaterializedVelocityKeys() {
+		return velocityContext.getMaterializedKeys();
+	}
+	
+	/**
+	 * @return the number of calls to functions of {@code $fn} in this session that were answered with
+	 *         the result of a previous call
+	 */
+	public int getVelocityFunctionMemoHits() {
+		return velocityFunctions == null ? 0 : velocityFunctions.getMemoHits();
+	}
+	
 	public String getAfterSaveUrlTemplate() {
 		return afterSaveUrlTemplate;
 	}
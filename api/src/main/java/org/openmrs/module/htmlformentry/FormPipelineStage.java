@@ -0,0 +1,23 @@
+package org.openmrs.module.htmlformentry;
+
+import org.w3c.dom.Document;
+
+/**
+ * A single step in turning the xml of an html form into the document that the tag handlers are
+ * applied to, e.g. including subforms or expanding macros. Stages operate directly on the parsed
+ * document, so that a form only needs to be parsed once no matter how many stages it goes through.
+ *
+ * @see HtmlFormCompiler
+ */
+public interface FormPipelineStage {
+	
+	/**
+	 * Applies this stage to the given document
+	 *
+	 * @param session the session the form is being generated for
+	 * @param doc the document to process, which the stage may modify
+	 * @return the processed document, which is usually the same instance that was passed in
+	 * @throws Exception
+	 */
+	Document apply(FormEntrySession session, Document doc) throws Exception;
+}
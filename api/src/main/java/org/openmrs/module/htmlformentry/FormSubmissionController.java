@@ -147,6 +147,16 @@ public class FormSubmissionController {
 		return lastSubmission;
 	}
 	
+	/**
+	 * Sets the submission whose values are shown when the form is displayed again, e.g. by a session
+	 * other than the one that validated and handled it
+	 *
+	 * @param lastSubmission the submission
+	 */
+	public void setLastSubmission(HttpServletRequest lastSubmission) {
+		this.lastSubmission = lastSubmission;
+	}
+	
 	/**
 	 * Returns the last set of submission errors generated by validateSubmission
 	 * 
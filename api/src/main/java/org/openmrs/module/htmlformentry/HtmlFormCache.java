@@ -0,0 +1,92 @@
+package org.openmrs.module.htmlformentry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.openmrs.module.htmlformentry.element.HtmlFormStub;
+import org.openmrs.module.htmlformentry.util.BoundedCache;
+import org.springframework.stereotype.Component;
+
+/**
+ * Remembers the stubs of all the html forms, and the id of the most recently created html form of
+ * each form, for {@link HtmlFormEntryService#getAllHtmlFormStubs()} and
+ * {@link HtmlFormEntryService#getHtmlFormByForm(org.openmrs.Form)}.
+ * <p/>
+ * Everything is cleared whenever a form or an html form is saved or purged, see
+ * {@link HtmlFormMetadataCacheInterceptor}. Values loaded before the cache was last cleared are not
+ * kept, so that a load that overlaps a change cannot put back what the change replaced.
+ */
+@Component
+public class HtmlFormCache {
+	
+	public static final int MAX_CACHED_HTML_FORMS = 1000;
+	
+	// cached for forms that do not have an html form
+	private static final Integer NO_HTML_FORM = -1;
+	
+	private final BoundedCache<Integer, Integer> htmlFormIdsByFormId = new BoundedCache<Integer, Integer>(
+	        MAX_CACHED_HTML_FORMS);
+	
+	private List<HtmlFormStub> htmlFormStubs;
+	
+	// incremented whenever the cache is cleared, so that values loaded before then are not kept
+	private long version = 0;
+	
+	private final Object lock = new Object();
+	
+	/**
+	 * @param loader loads the stubs of all the html forms if they are not cached
+	 * @return an unmodifiable list of the stubs of all the html forms
+	 */
+	public List<HtmlFormStub> getHtmlFormStubs(Supplier<List<HtmlFormStub>> loader) {
+		long loadedVersion;
+		synchronized (lock) {
+			if (htmlFormStubs != null) {
+				return htmlFormStubs;
+			}
+			loadedVersion = version;
+		}
+		List<HtmlFormStub> stubs = Collections.unmodifiableList(new ArrayList<HtmlFormStub>(loader.get()));
+		synchronized (lock) {
+			if (loadedVersion == version) {
+				htmlFormStubs = stubs;
+			}
+		}
+		return stubs;
+	}
+	
+	/**
+	 * @param formId the id of a form
+	 * @param loader loads the id of the most recently created html form of a form, or null if it does
+	 *            not have one
+	 * @return the id of the most recently created html form of the form, or null if it does not have
+	 *         one
+	 */
+	public Integer getHtmlFormId(Integer formId, Function<Integer, Integer> loader) {
+		long loadedVersion;
+		synchronized (lock) {
+			loadedVersion = version;
+		}
+		Integer htmlFormId = htmlFormIdsByFormId.get(formId);
+		if (htmlFormId == null) {
+			htmlFormId = loader.apply(formId);
+			synchronized (lock) {
+				if (loadedVersion == version) {
+					htmlFormIdsByFormId.put(formId, htmlFormId == null ? NO_HTML_FORM : htmlFormId);
+				}
+			}
+		}
+		return NO_HTML_FORM.equals(htmlFormId) ? null : htmlFormId;
+	}
+	
+	public void clear() {
+		synchronized (lock) {
+			version++;
+			htmlFormStubs = null;
+			htmlFormIdsByFormId.clear();
+		}
+	}
+}
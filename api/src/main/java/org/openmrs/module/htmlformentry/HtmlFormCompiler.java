@@ -0,0 +1,376 @@
+package org.openmrs.module.htmlformentry;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Role;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.matching.ObsGroupDescriptor;
+import org.openmrs.module.htmlformentry.util.BoundedCache;
+import org.openmrs.module.htmlformentry.util.CacheStatistics;
+import org.openmrs.util.OpenmrsUtil;
+import org.springframework.stereotype.Component;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the part of the form generation pipeline that does not depend on the patient (character
+ * substitution, comments, subforms, role restrictions, macros, pages, repeats and translations) and
+ * caches the result, so that only the tag pass needs to run each time a saved form is opened.
+ * <p/>
+ * A compiled form is keyed by the HtmlForm id and its last modified date, the modification dates of
+ * any subform files it includes, and the roles of the current user (if the form uses
+ * restrictByRole). Macro expressions are evaluated against the patient, so for forms that define a
+ * macro by an expression only the stages that come before the macros are cached.
+ * <p/>
+ * The form is parsed once, and every stage is applied to the parsed document (see
+ * {@link FormPipelineStage}). Compiled documents are copied for each session that uses them.
+ * <p/>
+ * The obsgroup tags of a compiled form are also described once (see {@link ObsGroupDescriptor}), and
+ * the descriptors are handed to each session along with its copy of the document. As they refer to
+ * concepts and drugs by id, they are described again after any concept or drug is changed.
+ */
+@Component
+public class HtmlFormCompiler {
+	
+	private static final Log log = LogFactory.getLog(HtmlFormCompiler.class);
+	
+	public static final int MAX_CACHED_FORMS = 100;
+	
+	private final BoundedCache<CompiledFormKey, CompiledForm> cache = new BoundedCache<CompiledFormKey, CompiledForm>(
+	        MAX_CACHED_FORMS);
+	
+	// the subform files each HtmlForm included the last time it was compiled, needed to build its key
+	private final Map<Integer, Set<String>> subformPathsByHtmlForm = new ConcurrentHashMap<Integer, Set<String>>();
+	
+	// incremented whenever a concept or drug changes, which the obsgroup descriptors may have resolved differently
+	private final AtomicLong conceptsVersion = new AtomicLong();
+	
+	/**
+	 * Returns the document for the given form with every stage prior to the tag pass applied, using a
+	 * previously compiled version of the form if one is available. The xml is parsed at most once,
+	 * and all stages are then applied to the parsed document.
+	 *
+	 * @param session the session the form is being generated for
+	 * @param generator the generator to use to run any stages that need to be applied
+	 * @param xml the xml of the form, as stored in the HtmlForm
+	 * @return a document that is ready for
+	 *         {@link HtmlFormEntryGenerator#applyTags(FormEntrySession, Document)}, and which the
+	 *         caller is free to modify
+	 */
+	public Document compile(FormEntrySession session, HtmlFormEntryGenerator generator, String xml) throws Exception {
+		CompiledFormKey key = buildKey(session, xml, null);
+		CompiledForm compiled = (key == null ? null : cache.get(key));
+		if (compiled == null) {
+			Map<String, Long> subformModifiedDates = new LinkedHashMap<String, Long>();
+			Document doc = parse(generator, xml);
+			doc = applyStages(session, doc, getPatientIndependentStages(generator, subformModifiedDates));
+			
+			// macro expressions are evaluated against the patient, so forms using them can only be partially compiled
+			boolean complete = !hasExpressionMacros(doc);
+			if (complete) {
+				doc = applyStages(session, doc, getPatientDependentStages(generator));
+			}
+			if (key != null) {
+				compiled = new CompiledForm(doc, complete, complete ? copyTranslations(session)
+				        : Collections.<String, Map<String, String>> emptyMap(), subformModifiedDates);
+				subformPathsByHtmlForm.put(key.htmlFormId, subformModifiedDates.keySet());
+				cache.put(buildKey(session, xml, subformModifiedDates), compiled);
+				if (complete) {
+					setupObsGroupDescriptors(session, compiled, doc);
+				}
+			}
+			return complete ? doc : applyStages(session, doc, getPatientDependentStages(generator));
+		}
+		
+		Document doc = compiled.newDocument();
+		if (!compiled.isComplete()) {
+			return applyStages(session, doc, getPatientDependentStages(generator));
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Using compiled form for HtmlForm " + key.htmlFormId);
+		}
+		for (Map.Entry<String, Map<String, String>> e : compiled.getTranslations().entrySet()) {
+			for (Map.Entry<String, String> translation : e.getValue().entrySet()) {
+				session.getContext().getTranslator().addTranslation(e.getKey(), translation.getKey(),
+				    translation.getValue());
+			}
+		}
+		setupObsGroupDescriptors(session, compiled, doc);
+		return doc;
+	}
+	
+	/**
+	 * Tells the compiler that a concept or drug has changed, so that the obsgroup tags of compiled forms
+	 * are described again
+	 */
+	public void conceptsChanged() {
+		conceptsVersion.incrementAndGet();
+	}
+	
+	/**
+	 * Gives the session the descriptors of the obsgroup tags in its copy of the compiled document,
+	 * which is in the same order as the document they were worked out from
+	 */
+	private void setupObsGroupDescriptors(FormEntrySession session, CompiledForm compiled, Document doc) {
+		List<ObsGroupDescriptor> descriptors = compiled.getObsGroupDescriptors(conceptsVersion.get());
+		List<Node> nodes = ObsGroupDescriptor.getObsGroupNodes(doc);
+		if (nodes.size() != descriptors.size()) {
+			// the obs groups of the session are then matched without descriptors, which is slower
+			log.warn("Compiled form has " + descriptors.size() + " obsgroup descriptors but its document has "
+			        + nodes.size() + " obsgroup tags, so they are not used");
+			return;
+		}
+		Map<Node, ObsGroupDescriptor> descriptorsByNode = new IdentityHashMap<Node, ObsGroupDescriptor>();
+		for (int i = 0; i < nodes.size(); i++) {
+			if (descriptors.get(i) != null) {
+				descriptorsByNode.put(nodes.get(i), descriptors.get(i));
+			}
+		}
+		session.getContext().setObsGroupDescriptors(descriptorsByNode);
+	}
+	
+	/**
+	 * @return the hit, miss, and eviction counts of the compiled form cache
+	 */
+	public CacheStatistics getStatistics() {
+		return cache.getStatistics();
+	}
+	
+	/**
+	 * Removes all compiled forms, for instance after subform files have been replaced in bulk
+	 */
+	public void clearCache() {
+		cache.clear();
+		subformPathsByHtmlForm.clear();
+	}
+	
+	/**
+	 * Applies the stages that prepare the raw text of the form for parsing, which need to run on the
+	 * string, and parses the result
+	 */
+	private Document parse(HtmlFormEntryGenerator generator, String xml) throws Exception {
+		xml = generator.substituteCharacterCodesWithAsciiCodes(xml);
+		xml = generator.stripComments(xml);
+		xml = generator.convertSpecialCharactersWithinLogicAndVelocityTests(xml);
+		return HtmlFormEntryUtil.stringToDocument(xml);
+	}
+	
+	private boolean hasExpressionMacros(Document doc) {
+		Node macrosNode = HtmlFormEntryUtil.findChild(HtmlFormEntryUtil.findChild(doc, "htmlform"), "macros");
+		if (macrosNode != null) {
+			NodeList children = macrosNode.getChildNodes();
+			for (int i = 0; i < children.getLength(); i++) {
+				Node node = children.item(i);
+				if ("macro".equals(node.getNodeName())
+				        && HtmlFormEntryUtil.getNodeAttribute(node, "expression", null) != null) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @return the stages that produce the same result for every session
+	 */
+	private List<FormPipelineStage> getPatientIndependentStages(final HtmlFormEntryGenerator generator,
+	        final Map<String, Long> subformModifiedDates) {
+		List<FormPipelineStage> stages = new ArrayList<FormPipelineStage>();
+		stages.add((session, doc) -> generator.processSubforms(doc, subformModifiedDates));
+		stages.add((session, doc) -> generator.applyRoleRestrictions(doc));
+		return stages;
+	}
+	
+	/**
+	 * @return the stages starting from the macros, which only depend on the patient if a macro is
+	 *         defined by an expression
+	 */
+	private List<FormPipelineStage> getPatientDependentStages(HtmlFormEntryGenerator generator) {
+		List<FormPipelineStage> stages = new ArrayList<FormPipelineStage>();
+		stages.add(generator::applyMacros);
+		stages.add(generator::processPages);
+		stages.add((session, doc) -> generator.applyRepeats(doc));
+		stages.add((session, doc) -> generator.applyTranslations(doc, session.getContext()));
+		return stages;
+	}
+	
+	private Document applyStages(FormEntrySession session, Document doc, List<FormPipelineStage> stages)
+	        throws Exception {
+		for (FormPipelineStage stage : stages) {
+			doc = stage.apply(session, doc);
+		}
+		return doc;
+	}
+	
+	/**
+	 * The translations stage registers its codes with the context, so keep a copy to replay on later
+	 * sessions
+	 */
+	private Map<String, Map<String, String>> copyTranslations(FormEntrySession session) {
+		Map<String, Map<String, String>> translations = new HashMap<String, Map<String, String>>();
+		Map<String, Map<String, String>> registered = session.getContext().getTranslator().getTranslations();
+		if (registered != null) {
+			for (Map.Entry<String, Map<String, String>> e : registered.entrySet()) {
+				translations.put(e.getKey(), new HashMap<String, String>(e.getValue()));
+			}
+		}
+		return translations;
+	}
+	
+	/**
+	 * @return the cache key for the form in the given session, or null if the form is not a saved
+	 *         HtmlForm and cannot be cached
+	 */
+	private CompiledFormKey buildKey(FormEntrySession session, String xml, Map<String, Long> subformModifiedDates) {
+		Integer htmlFormId = session.getHtmlFormId();
+		if (htmlFormId == null || xml == null) {
+			return null;
+		}
+		if (subformModifiedDates == null) {
+			subformModifiedDates = new HashMap<String, Long>();
+			Set<String> subformPaths = subformPathsByHtmlForm.get(htmlFormId);
+			if (subformPaths != null) {
+				for (String path : subformPaths) {
+					subformModifiedDates.put(path, new File(OpenmrsUtil.getApplicationDataDirectory(), path).lastModified());
+				}
+			}
+		}
+		Set<String> roles = new TreeSet<String>();
+		// subform files are not checked for restrictByRole tags, so forms that include any are assumed to use them
+		if (xml.contains("<restrictByRole") || !subformModifiedDates.isEmpty()) {
+			User user = Context.getAuthenticatedUser();
+			if (user != null) {
+				for (Role role : user.getAllRoles()) {
+					roles.add(role.getRole());
+				}
+			}
+		}
+		return new CompiledFormKey(htmlFormId, session.getFormModifiedTimestamp(), xml.length(), xml.hashCode(),
+		        new HashMap<String, Long>(subformModifiedDates), roles);
+	}
+	
+	/**
+	 * The result of compiling a form: the document after the patient-independent stages have been
+	 * applied, together with the translations and subform files that went into it
+	 */
+	static class CompiledForm {
+		
+		// never handed out directly, as DOM nodes are neither immutable nor safe to read concurrently
+		private final Document document;
+		
+		private final boolean complete;
+		
+		private final Map<String, Map<String, String>> translations;
+		
+		private final Map<String, Long> subformModifiedDates;
+		
+		private List<ObsGroupDescriptor> obsGroupDescriptors;
+		
+		private long obsGroupDescriptorsVersion = -1;
+		
+		CompiledForm(Document document, boolean complete, Map<String, Map<String, String>> translations,
+		    Map<String, Long> subformModifiedDates) {
+			this.document = (Document) document.cloneNode(true);
+			this.complete = complete;
+			this.translations = translations;
+			this.subformModifiedDates = subformModifiedDates;
+		}
+		
+		/**
+		 * @return a copy of the compiled document, which can be freely modified
+		 */
+		synchronized Document newDocument() {
+			return (Document) document.cloneNode(true);
+		}
+		
+		/**
+		 * @param conceptsVersion the number of times concepts or drugs have changed
+		 * @return the descriptors of the obsgroup tags of the compiled document, in document order, which
+		 *         are worked out again if concepts or drugs have changed since they last were
+		 */
+		synchronized List<ObsGroupDescriptor> getObsGroupDescriptors(long conceptsVersion) {
+			if (obsGroupDescriptors == null || obsGroupDescriptorsVersion != conceptsVersion) {
+				obsGroupDescriptors = Collections.unmodifiableList(ObsGroupDescriptor.compileAll(document));
+				obsGroupDescriptorsVersion = conceptsVersion;
+			}
+			return obsGroupDescriptors;
+		}
+		
+		/**
+		 * @return true if all stages prior to the tag pass have been applied, false if the stages from
+		 *         the macros onwards still need to be applied for each session
+		 */
+		boolean isComplete() {
+			return complete;
+		}
+		
+		Map<String, Map<String, String>> getTranslations() {
+			return translations;
+		}
+		
+		Map<String, Long> getSubformModifiedDates() {
+			return subformModifiedDates;
+		}
+	}
+	
+	private static class CompiledFormKey {
+		
+		private final Integer htmlFormId;
+		
+		private final long formModifiedTimestamp;
+		
+		// guards against unsaved edits to the xml of a saved form, e.g. when previewing
+		private final int xmlLength;
+		
+		private final int xmlHash;
+		
+		private final Map<String, Long> subformModifiedDates;
+		
+		private final Set<String> roles;
+		
+		CompiledFormKey(Integer htmlFormId, long formModifiedTimestamp, int xmlLength, int xmlHash,
+		    Map<String, Long> subformModifiedDates, Set<String> roles) {
+			this.htmlFormId = htmlFormId;
+			this.formModifiedTimestamp = formModifiedTimestamp;
+			this.xmlLength = xmlLength;
+			this.xmlHash = xmlHash;
+			this.subformModifiedDates = subformModifiedDates;
+			this.roles = roles;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof CompiledFormKey)) {
+				return false;
+			}
+			CompiledFormKey that = (CompiledFormKey) o;
+			return formModifiedTimestamp == that.formModifiedTimestamp && xmlLength == that.xmlLength
+			        && xmlHash == that.xmlHash && htmlFormId.equals(that.htmlFormId) && subformModifiedDates.equals(that.subformModifiedDates)
+			        && roles.equals(that.roles);
+		}
+		
+		@Override
+		public int hashCode() {
+			return Objects.hash(htmlFormId, formModifiedTimestamp, xmlHash, subformModifiedDates, roles);
+		}
+	}
+}
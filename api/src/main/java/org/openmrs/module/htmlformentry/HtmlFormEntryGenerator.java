@@ -23,7 +23,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -89,12 +89,29 @@ public class HtmlFormEntryGenerator implements TagHandler {
 	 */
 	public String applyMacros(FormEntrySession session, String xml) throws Exception {
 		Document doc = HtmlFormEntryUtil.stringToDocument(xml);
+		
+		// if there are no macros defined, we just return the original xml unchanged
+		if (HtmlFormEntryUtil.findChild(HtmlFormEntryUtil.findChild(doc, "htmlform"), "macros") == null) {
+			return xml;
+		}
+		return HtmlFormEntryUtil.documentToString(applyMacros(session, doc));
+	}
+	
+	/**
+	 * Finds the {@code <macros></macros>} section in the given document, and applies those
+	 * substitutions to the text and attribute values of the document
+	 *
+	 * @see #applyMacros(FormEntrySession, String)
+	 * @param doc the document to process for macros
+	 * @return the document after macro substitution (a new document if any macro expands to markup)
+	 * @throws Exception
+	 */
+	public Document applyMacros(FormEntrySession session, Document doc) throws Exception {
 		Node content = HtmlFormEntryUtil.findChild(doc, "htmlform");
 		Node macrosNode = HtmlFormEntryUtil.findChild(content, "macros");
 		
-		// if there are no macros defined, we just return the original xml unchanged
 		if (macrosNode == null) {
-			return xml;
+			return doc;
 		}
 		
 		// One way to define macros is simply as the text content of the macros node.  This is left for backwards compatibility
@@ -132,26 +149,77 @@ public class HtmlFormEntryGenerator implements TagHandler {
 		// now remove the macros node
 		content.removeChild(macrosNode);
 		
-		// switch back to String mode from the document so we can use string utilities to substitute
-		xml = HtmlFormEntryUtil.documentToString(doc);
-		
-		// substitute any macros we found
+		Map<String, String> substitutions = new LinkedHashMap<String, String>();
+		boolean expandsToMarkup = false;
 		for (Object temp : macros.keySet()) {
 			String key = (String) temp;
 			String value = macros.getProperty(key, "");
-			xml = xml.replace("$" + key, value);
+			substitutions.put("$" + key, value);
+			expandsToMarkup = expandsToMarkup || value.indexOf('<') >= 0 || value.indexOf('&') >= 0;
 		}
 		
-		return xml;
+		// a macro whose value contains markup has to be substituted into the xml text so that the markup gets parsed
+		if (expandsToMarkup) {
+			String xml = HtmlFormEntryUtil.documentToString(doc);
+			for (Map.Entry<String, String> substitution : substitutions.entrySet()) {
+				xml = xml.replace(substitution.getKey(), substitution.getValue());
+			}
+			return HtmlFormEntryUtil.stringToDocument(xml);
+		}
+		
+		applySubstitutions(doc.getDocumentElement(), substitutions);
+		return doc;
+	}
+	
+	/**
+	 * Replaces each key of the given map with its value in all text and attribute values within the
+	 * given node
+	 */
+	private void applySubstitutions(Node node, Map<String, String> substitutions) {
+		if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE) {
+			node.setNodeValue(substitute(node.getNodeValue(), substitutions));
+		} else if (node.getNodeType() == Node.ELEMENT_NODE) {
+			NamedNodeMap attrs = node.getAttributes();
+			for (int i = 0; i < attrs.getLength(); i++) {
+				Node attr = attrs.item(i);
+				attr.setNodeValue(substitute(attr.getNodeValue(), substitutions));
+			}
+			NodeList children = node.getChildNodes();
+			for (int i = 0; i < children.getLength(); i++) {
+				applySubstitutions(children.item(i), substitutions);
+			}
+		}
+	}
+	
+	private String substitute(String value, Map<String, String> substitutions) {
+		for (Map.Entry<String, String> substitution : substitutions.entrySet()) {
+			if (value.contains(substitution.getKey())) {
+				value = value.replace(substitution.getKey(), substitution.getValue());
+			}
+		}
+		return value;
 	}
 	
 	public String processPages(FormEntrySession session, String xml) throws Exception {
 		Document doc = HtmlFormEntryUtil.stringToDocument(xml);
+		if (HtmlFormEntryUtil.findChild(HtmlFormEntryUtil.findChild(doc, "htmlform"), "page") == null) {
+			return xml;
+		}
+		return HtmlFormEntryUtil.documentToString(processPages(session, doc));
+	}
+	
+	/**
+	 * Turns each {@code <page>} of the given document into a tab of the form
+	 *
+	 * @param doc the document to process for pages
+	 * @return the document with pages converted
+	 */
+	public Document processPages(FormEntrySession session, Document doc) throws Exception {
 		Node content = HtmlFormEntryUtil.findChild(doc, "htmlform");
 		Node pageNode = HtmlFormEntryUtil.findChild(content, "page");
 		
 		if (pageNode == null) {
-			return xml;
+			return doc;
 		}
 		
 		NodeList contentnodes = content.getChildNodes();
@@ -240,8 +308,7 @@ public class HtmlFormEntryGenerator implements TagHandler {
 			doc.renameNode(pageNodes.item(y), null, "div");
 		}
 		
-		xml = HtmlFormEntryUtil.documentToString(doc);
-		return xml;
+		return doc;
 	}
 	
 	/**
@@ -266,12 +333,28 @@ public class HtmlFormEntryGenerator implements TagHandler {
 	 */
 	public String applyTranslations(String xml, FormEntryContext context) throws Exception {
 		Document doc = HtmlFormEntryUtil.stringToDocument(xml);
+		
+		// if there are no translations defined, we just return the original xml unchanged
+		if (HtmlFormEntryUtil.findChild(HtmlFormEntryUtil.findChild(doc, "htmlform"), "translations") == null) {
+			return xml;
+		}
+		return HtmlFormEntryUtil.documentToString(applyTranslations(doc, context));
+	}
+	
+	/**
+	 * Finds the {@code <translations></translations>} section in the given document, adds those
+	 * translations to the context, and removes the section from the document
+	 *
+	 * @see #applyTranslations(String, FormEntryContext)
+	 * @param doc the document to process for translations
+	 * @return the document without its translations section
+	 */
+	public Document applyTranslations(Document doc, FormEntryContext context) throws Exception {
 		Node content = HtmlFormEntryUtil.findChild(doc, "htmlform");
 		Node transNode = HtmlFormEntryUtil.findChild(content, "translations");
 		
-		// if there are no translations defined, we just return the original xml unchanged
 		if (transNode == null) {
-			return xml;
+			return doc;
 		}
 		
 		String defaultLocaleStr = HtmlFormEntryUtil.getNodeAttribute(transNode, "defaultLocale", "en");
@@ -299,12 +382,9 @@ public class HtmlFormEntryGenerator implements TagHandler {
 			}
 		}
 		
-		// now remove the macros node
+		// now remove the translations node
 		content.removeChild(transNode);
-		
-		// switch back to String mode from the document so we can use string utilities to substitute
-		xml = HtmlFormEntryUtil.documentToString(doc);
-		return xml;
+		return doc;
 	}
 	
 	/**
@@ -383,14 +463,28 @@ public class HtmlFormEntryGenerator implements TagHandler {
 	 * @throws Exception
 	 */
 	public String applyRepeats(String xml) throws Exception {
-		xml = applyRepeatTemplateTags(xml);
-		xml = applyRepeatWithTags(xml);
-		return xml;
+		if (!xml.contains("<repeat")) {
+			return xml;
+		}
+		return HtmlFormEntryUtil.documentToString(applyRepeats(HtmlFormEntryUtil.stringToDocument(xml)));
 	}
 	
 	/**
-	 * Handles the original version of the <repeat>: Takes an XML string, finds each
-	 * {@code <repeat></repeat>} section in it, and applies those substitutions {@code
+	 * Calls the two underlying methods for handling the "<repeat>" tag on the given document
+	 *
+	 * @param doc
+	 * @return the document with all repeats expanded
+	 * @throws Exception
+	 */
+	public Document applyRepeats(Document doc) throws Exception {
+		applyRepeatTemplateTags(doc);
+		applyRepeatWithTags(doc);
+		return doc;
+	}
+	
+	/**
+	 * Handles the original version of the <repeat>: Finds each {@code <repeat></repeat>} section in
+	 * the document, and applies those substitutions {@code
 	 * <htmlform>
 	 *   <repeat>
 	 *     <template>
@@ -409,40 +503,40 @@ public class HtmlFormEntryGenerator implements TagHandler {
 	 * <render conceptId="2124" answerLabel="Traitement des enfants de &lt; ans: 2 HRZ/4 HR"/> </repeat>
 	 * </htmlform> }
 	 **/
-	private String applyRepeatTemplateTags(String xml) throws Exception {
-		Document doc = HtmlFormEntryUtil.stringToDocument(xml);
+	private void applyRepeatTemplateTags(Document doc) throws Exception {
 		Node content = HtmlFormEntryUtil.findChild(doc, "htmlform");
 		
-		// We are doing this as follows since I can't seem to get the XML node cloning to work right.
-		// We can refactor later as needed if we can get it to work properly, or replace the xml library
-		// First we need to parse the document to get the node attributes for repeating elements
-		List<List<Map<String, String>>> renderMaps = new ArrayList<List<Map<String, String>>>();
-		
-		loadRenderElementsForEachRepeatElement(content, renderMaps);
+		List<Node> repeatNodes = new ArrayList<Node>();
+		findRepeatTemplateNodes(content, repeatNodes);
 		
-		// Now we are just going to use String replacements to explode the repeat tags properly
-		Iterator<List<Map<String, String>>> renderMapIter = renderMaps.iterator();
-		int idLabelpairIndex = 0;
-		while (xml.contains("<repeat>")) {
-			int startIndex = xml.indexOf("<repeat>");
-			int endIndex = xml.indexOf("</repeat>", startIndex) + 9;
-			String xmlToReplace = xml.substring(startIndex, endIndex);
-			
-			String template = xmlToReplace.substring(xmlToReplace.indexOf("<template>") + 10,
-			    xmlToReplace.indexOf("</template>"));
-			StringBuilder replacement = new StringBuilder();
-			for (Map<String, String> replacements : renderMapIter.next()) {
-				String curr = template;
-				for (String key : replacements.keySet()) {
-					curr = curr.replace("{" + key + "}", replacements.get(key));
+		for (Node repeatNode : repeatNodes) {
+			Node templateNode = HtmlFormEntryUtil.findChild(repeatNode, "template");
+			NodeList children = repeatNode.getChildNodes();
+			for (int i = 0; i < children.getLength(); i++) {
+				Node renderNode = children.item(i);
+				if (renderNode.getNodeName().equalsIgnoreCase("render")) {
+					Map<String, String> substitutions = new LinkedHashMap<String, String>();
+					for (Map.Entry<String, String> e : HtmlFormEntryUtil.getNodeAttributes(renderNode).entrySet()) {
+						substitutions.put("{" + e.getKey() + "}", e.getValue());
+					}
+					insertRepetition(templateNode, repeatNode, substitutions);
 				}
-				replacement.append(curr);
 			}
-			xml = xml.substring(0, startIndex) + replacement + xml.substring(endIndex);
-			
+			repeatNode.getParentNode().removeChild(repeatNode);
+		}
+	}
+	
+	/**
+	 * Inserts a copy of the children of the given template before the given node, with the given
+	 * substitutions applied to the copy
+	 */
+	private void insertRepetition(Node templateNode, Node before, Map<String, String> substitutions) {
+		NodeList templateChildren = templateNode.getChildNodes();
+		for (int i = 0; i < templateChildren.getLength(); i++) {
+			Node copy = templateChildren.item(i).cloneNode(true);
+			applySubstitutions(copy, substitutions);
+			before.getParentNode().insertBefore(copy, before);
 		}
-		
-		return xml;
 	}
 	
 	/**
@@ -455,7 +549,31 @@ public class HtmlFormEntryGenerator implements TagHandler {
 	 * replace any element in the reference subform with the same subform-parameter attribute
 	 */
 	public String processSubforms(String xml) throws Exception {
+		return processSubforms(xml, null);
+	}
+	
+	/**
+	 * @see #processSubforms(String)
+	 * @param subformModifiedDates if not null, the path and last modified date of each subform file
+	 *            that is loaded is added to this map
+	 */
+	public String processSubforms(String xml, Map<String, Long> subformModifiedDates) throws Exception {
 		Document doc = HtmlFormEntryUtil.stringToDocument(xml);
+		if (doc.getElementsByTagName(SUBFORM).getLength() == 0) {
+			return xml;
+		}
+		return HtmlFormEntryUtil.documentToString(processSubforms(doc, subformModifiedDates));
+	}
+	
+	/**
+	 * Replaces each subform tag in the given document with the contents of the file it refers to
+	 *
+	 * @see #processSubforms(String)
+	 * @param subformModifiedDates if not null, the path and last modified date of each subform file
+	 *            that is loaded is added to this map
+	 * @return the document with all subforms included
+	 */
+	public Document processSubforms(Document doc, Map<String, Long> subformModifiedDates) throws Exception {
 		NodeList nodesToReplace = doc.getElementsByTagName(SUBFORM);
 		if (nodesToReplace.getLength() > 0) {
 			while (nodesToReplace.getLength() > 0) {
@@ -471,6 +589,9 @@ public class HtmlFormEntryGenerator implements TagHandler {
 					if (!subform.exists()) {
 						throw new IllegalArgumentException("Subform cannot be processed, no file found at: " + formPath);
 					}
+					if (subformModifiedDates != null) {
+						subformModifiedDates.put(formPath, subform.lastModified());
+					}
 					String subformXml = FileUtils.readFileToString(subform, "UTF-8").trim();
 					
 					// If the loaded contents are javascript or css, wrap these in the appropriate xml tags
@@ -487,12 +608,12 @@ public class HtmlFormEntryGenerator implements TagHandler {
 						subformXml = convertSpecialCharactersWithinLogicAndVelocityTests(subformXml);
 					}
 					
-					// Recursively process the loaded xml to enable subforms to contain subforms
-					subformXml = processSubforms(subformXml);
-					
 					// Load the subform contents as xml
 					Document subformDocument = HtmlFormEntryUtil.stringToDocument(subformXml);
 					
+					// Recursively process the loaded xml to enable subforms to contain subforms
+					subformDocument = processSubforms(subformDocument, subformModifiedDates);
+					
 					// If the subform tag has nested replacement nodes, apply these to the subform document
 					if (subformTagNode.getChildNodes().getLength() > 0) {
 						for (int i = 0; i < subformTagNode.getChildNodes().getLength(); i++) {
@@ -518,9 +639,8 @@ public class HtmlFormEntryGenerator implements TagHandler {
 					nodesToReplace = doc.getElementsByTagName(SUBFORM);
 				}
 			}
-			xml = HtmlFormEntryUtil.documentToString(doc);
 		}
-		return xml;
+		return doc;
 	}
 	
 	/**
@@ -553,7 +673,7 @@ public class HtmlFormEntryGenerator implements TagHandler {
 		return replaced;
 	}
 	
-	private void loadRenderElementsForEachRepeatElement(Node node, List<List<Map<String, String>>> renderMaps) {
+	private void findRepeatTemplateNodes(Node node, List<Node> repeatNodes) {
 		
 		NodeList list = node.getChildNodes();
 		for (int i = 0; i < list.getLength(); i++) {
@@ -563,17 +683,9 @@ public class HtmlFormEntryGenerator implements TagHandler {
 				if (templateNode == null) {
 					throw new IllegalArgumentException("All <repeat> elements must contain a child <template> element.");
 				}
-				List<Map<String, String>> l = new ArrayList<Map<String, String>>();
-				NodeList repeatNodes = n.getChildNodes();
-				for (int j = 0; j < repeatNodes.getLength(); j++) {
-					Node renderNode = repeatNodes.item(j);
-					if (renderNode.getNodeName().equalsIgnoreCase("render")) {
-						l.add(HtmlFormEntryUtil.getNodeAttributes(renderNode));
-					}
-				}
-				renderMaps.add(l);
+				repeatNodes.add(n);
 			} else {
-				loadRenderElementsForEachRepeatElement(n, renderMaps);
+				findRepeatTemplateNodes(n, repeatNodes);
 			}
 		}
 	}
@@ -581,8 +693,8 @@ public class HtmlFormEntryGenerator implements TagHandler {
 	/**
 	 * Handle the new, less-verbose version of the <repeat> tag: </pre>
 	 * <p/>
-	 * Takes an XML string, finds each {@code <repeat with=""></repeat>} sections in it, and applies
-	 * those substitutions <pre>
+	 * Finds each {@code <repeat with=""></repeat>} section in the document, and applies those
+	 * substitutions <pre>
 	 * { @code
 	 * <repeat with="['664','No Complaints'], ['832','Weight Loss']">
 	 *    <obs conceptId="1069" answerConceptId="{0}" answerLabel="{1}" style="checkbox" /><br/>
@@ -596,50 +708,34 @@ public class HtmlFormEntryGenerator implements TagHandler {
 	 *
 	 * </pre>
 	 *
-	 * @param xml the xml string to process for repeat sections
-	 * @return the xml string after repeat substitutions have been made
+	 * @param doc the document to process for repeat sections
 	 * @throws Exception
 	 */
-	private String applyRepeatWithTags(String xml) throws Exception {
-		
-		// replacing extra space between "repeat & with" to ease of checking "<repeat with=" occurances
-		xml = xml.replaceAll("<repeat(\\s)+with=", "<repeat with=");
-		while (xml.contains("<repeat with=")) {
-			
-			int startIndex = xml.indexOf("<repeat with=");
-			int endIndex = xml.indexOf("</repeat>", startIndex) + 9;
-			
-			String xmlToReplace = xml.substring(startIndex, endIndex);
-			
-			int substitutionSetsStartIndex = xmlToReplace.indexOf("with=") + 6;
-			int substitutionSetsEndIndex = xmlToReplace.indexOf("]\">") + 1;
-			List<List<String>> substitutionSets = getSubstitutionSets(
-			    xmlToReplace.substring(substitutionSetsStartIndex, substitutionSetsEndIndex));
-			
-			int templateStartIndex = xmlToReplace.indexOf("]\">") + 3;
-			int templateEndIndex = xmlToReplace.indexOf("</repeat>");
-			String template = xmlToReplace.substring(templateStartIndex, templateEndIndex);
-			
-			StringBuilder sb = new StringBuilder();
-			
-			String current = template;
-			for (List<String> substitutionSet : substitutionSets) {
-				
+	private void applyRepeatWithTags(Document doc) throws Exception {
+		org.w3c.dom.Element repeatNode;
+		while ((repeatNode = findRepeatWithNode(doc)) != null) {
+			for (List<String> substitutionSet : getSubstitutionSets(repeatNode.getAttribute("with"))) {
+				Map<String, String> substitutions = new LinkedHashMap<String, String>();
 				int i = 0;
-				
 				for (String substitution : substitutionSet) {
-					current = current.replace("{" + i + "}", substitution);
+					substitutions.put("{" + i + "}", substitution);
 					i++;
 				}
-				
-				sb.append(current);
-				current = template;
+				insertRepetition(repeatNode, repeatNode, substitutions);
 			}
-			
-			xml = xml.substring(0, startIndex) + sb + xml.substring(endIndex);
+			repeatNode.getParentNode().removeChild(repeatNode);
 		}
-		
-		return xml;
+	}
+	
+	private org.w3c.dom.Element findRepeatWithNode(Document doc) {
+		NodeList repeatNodes = doc.getElementsByTagName("repeat");
+		for (int i = 0; i < repeatNodes.getLength(); i++) {
+			org.w3c.dom.Element repeatNode = (org.w3c.dom.Element) repeatNodes.item(i);
+			if (repeatNode.hasAttribute("with")) {
+				return repeatNode;
+			}
+		}
+		return null;
 	}
 	
 	/**
@@ -677,17 +773,39 @@ public class HtmlFormEntryGenerator implements TagHandler {
 		return substitutionSet;
 	}
 	
+	/**
+	 * Renders the obs groups that could not be matched to existing obs on the first pass, in the order
+	 * they were found, and puts them in place of their placeholders in the given html in a single pass
+	 *
+	 * @param session the current form entry session context
+	 * @param xml the html of the first pass, with placeholders for the unmatched obs groups
+	 * @return the html with the obs groups in place
+	 * @see #applyUnmatchedTags(FormEntrySession, DeferringPrintWriter)
+	 */
 	public String applyUnmatchedTags(FormEntrySession session, String xml) throws Exception {
 		List<ObsGroupEntity> obsGroupEntities = session.getContext().getUnmatchedObsGroupEntities();
 		
+		Map<Integer, String> rendered = new HashMap<Integer, String>();
 		for (ObsGroupEntity obsGroupEntity : obsGroupEntities) {
 			StringWriter out = new StringWriter();
 			applyTagsHelper(session, new PrintWriter(out), null, obsGroupEntity.getNode(), null);
-			xml = xml.replaceAll("<unmatched id=\"" + obsGroupEntity.getId() + "\" />",
-			    Matcher.quoteReplacement(out.toString()));
+			rendered.put(obsGroupEntity.getId(), out.toString());
 		}
 		
-		return xml;
+		return DeferringPrintWriter.replacePlaceholders(xml, rendered);
+	}
+	
+	/**
+	 * Renders the obs groups that could not be matched to existing obs on the first pass in place of
+	 * the segments that were deferred for them, writing out the rest of the form along with them
+	 *
+	 * @param session the current form entry session context
+	 * @param out the writer the first pass was written to
+	 * @see #applyTags(FormEntrySession, Document, DeferringPrintWriter)
+	 */
+	public void applyUnmatchedTags(final FormEntrySession session, DeferringPrintWriter out) {
+		final List<ObsGroupEntity> obsGroupEntities = session.getContext().getUnmatchedObsGroupEntities();
+		out.writeDeferred((id, writer) -> applyTagsHelper(session, writer, null, obsGroupEntities.get(id).getNode(), null));
 	}
 	
 	/**
@@ -702,13 +820,50 @@ public class HtmlFormEntryGenerator implements TagHandler {
 	 * @throws Exception
 	 */
 	public String applyTags(FormEntrySession session, String xml) throws Exception {
-		Document doc = HtmlFormEntryUtil.stringToDocument(xml);
+		return applyTags(session, HtmlFormEntryUtil.stringToDocument(xml));
+	}
+	
+	/**
+	 * Applies all the HTML Form Entry tags in the given document
+	 *
+	 * @see #applyTags(FormEntrySession, String)
+	 * @param session the current form entry session context
+	 * @param doc the document to process
+	 * @return the html after tag processing
+	 * @throws Exception
+	 */
+	public String applyTags(FormEntrySession session, Document doc) throws Exception {
 		Node content = HtmlFormEntryUtil.findChild(doc, "htmlform");
 		StringWriter out = new StringWriter();
 		applyTagsHelper(session, new PrintWriter(out), null, content, null);
 		return out.toString();
 	}
 	
+	/**
+	 * Applies all the HTML Form Entry tags in the given document, writing the html straight to the
+	 * given writer. The outer {@code <htmlform>} tag is written as the div that
+	 * {@link #wrapInDiv(String)} would replace it with, and obs groups that cannot be matched to
+	 * existing obs are deferred (see {@link #applyUnmatchedTags(FormEntrySession, DeferringPrintWriter)}).
+	 *
+	 * @param session the current form entry session context
+	 * @param doc the document to process
+	 * @param out the writer to write the html to
+	 */
+	public void applyTags(FormEntrySession session, Document doc, DeferringPrintWriter out) {
+		Node content = HtmlFormEntryUtil.findChild(doc, "htmlform");
+		if (content.hasAttributes() || HtmlFormEntryUtil.getService().getHandlerByTagName(content.getNodeName()) != null) {
+			applyTagsHelper(session, out, null, content, null);
+			return;
+		}
+		Map<String, TagHandler> tagHandlerCache = new HashMap<String, TagHandler>();
+		out.print("<div class=\"htmlform\">");
+		NodeList list = content.getChildNodes();
+		for (int i = 0; i < list.getLength(); ++i) {
+			applyTagsHelper(session, out, content, list.item(i), tagHandlerCache);
+		}
+		out.print("</div>");
+	}
+	
 	private void applyTagsHelper(FormEntrySession session, PrintWriter out, Node parent, Node node,
 	        Map<String, TagHandler> tagHandlerCache) {
 		if (tagHandlerCache == null)
@@ -730,7 +885,7 @@ public class HtmlFormEntryGenerator implements TagHandler {
 		
 		if (handler == null)
 			handler = this; // do default actions
-			
+		
 		try {
 			boolean handleContents = handler.doStartTag(session, out, parent, node);
 			
@@ -889,6 +1044,40 @@ public class HtmlFormEntryGenerator implements TagHandler {
 		return xml;
 	}
 	
+	/**
+	 * Applies each {@code <restrictByRole>} tag in the given document, removing the tag and either
+	 * keeping or removing its contents depending on the roles of the current user
+	 *
+	 * @see #applyRoleRestrictions(String)
+	 * @param doc the document to process for restrictByRole tags
+	 * @return the document after the restrictByRole tags are applied
+	 * @throws BadFormDesignException
+	 */
+	public Document applyRoleRestrictions(Document doc) throws BadFormDesignException {
+		NodeList restrictions = doc.getElementsByTagName("restrictByRole");
+		while (restrictions.getLength() > 0) {
+			Node restriction = restrictions.item(0);
+			String includeStr = "";
+			String include = HtmlFormEntryUtil.getNodeAttribute(restriction, "include", null);
+			String exclude = HtmlFormEntryUtil.getNodeAttribute(restriction, "exclude", null);
+			if (include != null) {
+				includeStr = "include=\"" + include + "\"";
+			} else if (exclude != null) {
+				includeStr = "exclude=\"" + exclude + "\"";
+			}
+			
+			boolean result = HtmlFormEntryGenerator.processRoleRestrictionLogic(includeStr);
+			Node parent = restriction.getParentNode();
+			if (result) {
+				while (restriction.getFirstChild() != null) {
+					parent.insertBefore(restriction.getFirstChild(), restriction);
+				}
+			}
+			parent.removeChild(restriction);
+		}
+		return doc;
+	}
+	
 	/**
 	 * given a test string, parse the string to return a boolean value for comparison of user role into
 	 * a specified role
@@ -7,17 +7,29 @@ import java.util.Map;
 import java.util.Set;
 
 import org.openmrs.Concept;
+import org.openmrs.Drug;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
 import org.openmrs.Form;
 import org.openmrs.FormResource;
+import org.openmrs.Location;
+import org.openmrs.Order;
+import org.openmrs.Obs;
 import org.openmrs.OpenmrsMetadata;
 import org.openmrs.OpenmrsObject;
 import org.openmrs.Patient;
 import org.openmrs.Person;
 import org.openmrs.Program;
+import org.openmrs.Visit;
+import org.openmrs.annotation.Authorized;
 import org.openmrs.api.APIException;
 import org.openmrs.api.OpenmrsService;
+import org.openmrs.module.htmlformentry.element.EncounterStub;
+import org.openmrs.module.htmlformentry.element.HtmlFormStub;
 import org.openmrs.module.htmlformentry.element.PersonStub;
 import org.openmrs.module.htmlformentry.handler.TagHandler;
+import org.openmrs.module.htmlformentry.util.CacheStatistics;
+import org.openmrs.util.PrivilegeConstants;
 
 /**
  * Defines the services provided by the HTML Form Entry module
@@ -45,6 +57,49 @@ public interface HtmlFormEntryService extends OpenmrsService {
 	 */
 	HtmlForm getHtmlFormByForm(Form form);
 	
+	/**
+	 * Like {@link #getHtmlFormByForm(Form)}, but returns a stub of the HtmlForm without its xml. The
+	 * HtmlForm of each Form is remembered until an HtmlForm or a Form is saved or purged.
+	 *
+	 * @return a stub of the most-recently-created HtmlForm for the given Form, or null if there is none
+	 */
+	HtmlFormStub getHtmlFormMetadata(Form form);
+	
+	/**
+	 * Checks whether the patient already has a non-voided encounter entered with the given HTML Form,
+	 * i.e. for the Form whose most-recently-created HtmlForm it is, at exactly the given date and time.
+	 * Encounters of types the user is not allowed to view are not counted.
+	 *
+	 * @param patientId the id of the patient
+	 * @param htmlFormId the id of the HtmlForm
+	 * @param encounterDatetime the date and time of the encounter
+	 * @return true if there is such an encounter
+	 */
+	boolean hasEncounterWithHtmlForm(Integer patientId, Integer htmlFormId, Date encounterDatetime);
+	
+	/**
+	 * Returns stubs of all HTML Forms, with the id, name and status of their forms but not their xml,
+	 * ordered by name. The stubs are kept in memory until an HTML Form or a Form is changed.
+	 *
+	 * @return an unmodifiable list of the stubs
+	 */
+	List<HtmlFormStub> getAllHtmlFormStubs();
+	
+	/**
+	 * Returns the forms that have an HTML Form, ordered by name, without loading the xml of the HTML
+	 * Forms
+	 *
+	 * @param includeUnpublished whether to include forms that are not published
+	 * @return the forms
+	 */
+	List<Form> getFormsWithHtmlForms(boolean includeUnpublished);
+	
+	/**
+	 * Clears the cached stubs of the HTML Forms and the HTML Form of each Form, which is done whenever
+	 * an HTML Form or a Form is saved or purged
+	 */
+	void clearHtmlFormCaches();
+	
 	/**
 	 * Retrieves all HTML Forms in the system
 	 * 
@@ -162,7 +217,8 @@ public interface HtmlFormEntryService extends OpenmrsService {
 	 * Returns a list of Person stubs for people matching the attributes and programs parameters passed
 	 * in. The method takes in multiple attributes and program ids, if the corresponding attribute value
 	 * is null then all people having that attribute will be returned. The attributeValues list should
-	 * either be null or contain the same number of values as the attributeIds list.
+	 * either be null or contain the same number of values as the attributeIds list. Voided people and
+	 * voided attributes do not match, and the people are ordered by family name, then given name.
 	 * 
 	 * @param attributeIds the optional list of Person_attribute_id for the given person attribute
 	 * @param attributeValues the list of optional values to match against the person attribute
@@ -200,11 +256,120 @@ public interface HtmlFormEntryService extends OpenmrsService {
 	 */
 	void clearConceptMappingCache();
 	
+	/**
+	 * @return the hit, miss and eviction counts of the concept mapping cache
+	 */
+	CacheStatistics getConceptMappingCacheStatistics();
+	
 	/**
 	 * Return a List of patient ids who have ever been enrolled in the given program
 	 */
 	Set<Integer> getPatientIdHavingEnrollments(Program program);
 	
+	/**
+	 * @return the most recent non-voided obs of the person for the given question, on or before the
+	 *         given date if there is one
+	 */
+	@Authorized(PrivilegeConstants.GET_OBS)
+	Obs getLatestObs(Person person, Concept question, Date onOrBefore);
+	
+	/**
+	 * Returns the most recent non-voided obs of the person for the given question that was not
+	 * recorded in the given encounter. If no encounter is given, obs that were not recorded in any
+	 * encounter are left out.
+	 *
+	 * @param person the person the obs are for
+	 * @param question the concept of the obs
+	 * @param onOrBefore if not null, obs after this date are left out
+	 * @param encounter the encounter whose obs to leave out
+	 * @param visit if not null, only obs recorded in an encounter of this visit are included
+	 * @param answer if not null, only obs with this coded value are included
+	 * @return the obs, or null if there is none
+	 */
+	@Authorized(PrivilegeConstants.GET_OBS)
+	Obs getLatestObsOutsideEncounter(Person person, Concept question, Date onOrBefore, Encounter encounter, Visit visit,
+	        Concept answer);
+	
+	/**
+	 * @return the first non-voided obs of the person for the given question
+	 */
+	@Authorized(PrivilegeConstants.GET_OBS)
+	Obs getEarliestObs(Person person, Concept question);
+	
+	/**
+	 * Returns the most recent non-voided encounter of the patient that the authenticated user is
+	 * allowed to view
+	 *
+	 * @param patient the patient the encounter is for
+	 * @param type if not null, only encounters of this type are included
+	 * @param onOrBefore if not null, encounters after this date are left out
+	 * @return the encounter, or null if there is none
+	 */
+	@Authorized(PrivilegeConstants.GET_ENCOUNTERS)
+	Encounter getLatestEncounter(Patient patient, EncounterType type, Date onOrBefore);
+	
+	/**
+	 * Like {@link #getLatestEncounter(Patient, EncounterType, Date)}, but only loads the date, type
+	 * and location of the encounter
+	 */
+	@Authorized(PrivilegeConstants.GET_ENCOUNTERS)
+	EncounterStub getLatestEncounterStub(Patient patient, EncounterType type, Date onOrBefore);
+	
+	/**
+	 * Loads the concepts with the given ids or uuids into the hibernate session, along with their
+	 * names, answers, and numeric ranges, and the names of their answers, so that displaying a form
+	 * that uses them does not need a query for each one
+	 *
+	 * @return the concepts that were found
+	 */
+	List<Concept> prefetchConcepts(Collection<Integer> ids, Collection<String> uuids);
+	
+	/**
+	 * Loads the drugs with the given ids or uuids into the hibernate session, along with their concepts
+	 * and ingredients
+	 *
+	 * @return the drugs that were found
+	 */
+	List<Drug> prefetchDrugs(Collection<Integer> ids, Collection<String> uuids);
+	
+	/**
+	 * Loads the concepts with the given ids into the hibernate session along with their names, but not
+	 * their answers, for callers that only need to label them
+	 *
+	 * @return the concepts that were found
+	 */
+	List<Concept> prefetchConceptNames(Collection<Integer> ids);
+	
+	/**
+	 * Loads the drugs with the given ids into the hibernate session, but not their ingredients, for
+	 * callers that only need to label them
+	 *
+	 * @return the drugs that were found
+	 */
+	List<Drug> prefetchDrugNames(Collection<Integer> ids);
+	
+	/**
+	 * Loads all the non-retired drugs, along with their concepts and ingredients, in a single query
+	 *
+	 * @return the non-retired drugs
+	 */
+	List<Drug> getAllDrugsWithIngredients();
+	
+	/**
+	 * Loads the locations with the given ids or uuids into the hibernate session
+	 *
+	 * @return the locations that were found
+	 */
+	List<Location> prefetchLocations(Collection<Integer> ids, Collection<String> uuids);
+	
+	/**
+	 * Loads the orders with the given ids in a single query (per batch of ids), each as an instance of
+	 * its own subclass, e.g. a DrugOrder, rather than as a proxy of Order
+	 *
+	 * @return the orders that were found
+	 */
+	List<Order> getOrders(Collection<Integer> ids);
+	
 	/**
 	 * Removed from OpenMRS core in 2.x, added back in here to support this legacy functionality and
 	 * exitFromCare tag
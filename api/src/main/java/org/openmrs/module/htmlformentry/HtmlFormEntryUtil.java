@@ -56,6 +56,8 @@ import org.openmrs.api.context.Context;
 import org.openmrs.api.db.hibernate.HibernateUtil;
 import org.openmrs.messagesource.MessageSourceService;
 import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
+import org.openmrs.module.htmlformentry.HtmlFormMetadataCache.MetadataType;
+import org.openmrs.module.htmlformentry.OptionListCache.OptionListType;
 import org.openmrs.module.htmlformentry.action.FormSubmissionControllerAction;
 import org.openmrs.module.htmlformentry.action.ObsGroupAction;
 import org.openmrs.module.htmlformentry.compatibility.EncounterCompatibility;
@@ -66,6 +68,7 @@ import org.openmrs.module.htmlformentry.schema.HtmlFormSchema;
 import org.openmrs.module.htmlformentry.util.MatchMode;
 import org.openmrs.module.htmlformentry.util.Predicate;
 import org.openmrs.module.htmlformentry.util.ProviderTransformer;
+import org.openmrs.module.htmlformentry.widget.Option;
 import org.openmrs.obs.ComplexData;
 import org.openmrs.propertyeditor.ConceptEditor;
 import org.openmrs.propertyeditor.DrugEditor;
@@ -87,6 +90,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
@@ -96,8 +100,11 @@ import javax.xml.transform.stream.StreamResult;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.text.DateFormat;
@@ -118,6 +125,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 
 /**
  * HTML Form Entry utility methods
@@ -126,6 +134,25 @@ public class HtmlFormEntryUtil {
 	
 	public static Log log = LogFactory.getLog(HtmlFormEntryUtil.class);
 	
+	// parsers and transformers are expensive to create and not thread-safe, so each thread keeps its own and resets it after use
+	private static final ThreadLocal<DocumentBuilder> documentBuilder = ThreadLocal.withInitial(() -> {
+		try {
+			return newDocumentBuilderFactory().newDocumentBuilder();
+		}
+		catch (ParserConfigurationException e) {
+			throw new IllegalStateException("Unable to create a DocumentBuilder", e);
+		}
+	});
+	
+	private static final ThreadLocal<Transformer> transformer = ThreadLocal.withInitial(() -> {
+		try {
+			return TransformerFactory.newInstance().newTransformer();
+		}
+		catch (TransformerException te) {
+			throw new IllegalStateException(HtmlFormEntryConstants.ERROR_TRANSFORMER_1 + te, te);
+		}
+	});
+	
 	private static MetadataMappingResolver getMetadaMappingResolver() {
 		return Context.getRegisteredComponent("metadataMappingResolver", MetadataMappingResolver.class);
 	}
@@ -139,6 +166,29 @@ public class HtmlFormEntryUtil {
 		return Context.getService(HtmlFormEntryService.class);
 	}
 	
+	/**
+	 * Returns the options of the given type through the {@link OptionListCache}
+	 *
+	 * @see OptionListCache#getOptions(OptionListType, String, boolean)
+	 */
+	public static List<Option> getOptions(OptionListType type, String filter, boolean includeRetired) {
+		return Context.getRegisteredComponent("optionListCache", OptionListCache.class).getOptions(type, filter,
+		    includeRetired);
+	}
+	
+	/**
+	 * Resolves the identifier of a concept, drug, location, program or encounter type through the
+	 * {@link HtmlFormMetadataCache}
+	 */
+	private static <T extends OpenmrsObject> T resolveMetadata(MetadataType type, String id, Function<String, T> resolver,
+	        Function<Integer, T> loader) {
+		if (id == null) {
+			return null;
+		}
+		return Context.getRegisteredComponent("htmlFormMetadataCache", HtmlFormMetadataCache.class).resolve(type, id,
+		    resolver, loader);
+	}
+	
 	private static <T extends OpenmrsMetadata> T getMetadataByMapping(Class<T> type, String identifier) {
 		MetadataMappingResolver metadataMappingResolver = getMetadaMappingResolver();
 		if (metadataMappingResolver != null) {
@@ -336,17 +386,7 @@ public class HtmlFormEntryUtil {
 	 */
 	public static Document stringToDocument(String xml) throws Exception {
 		try {
-			DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-			
-			// Disable XXE: security measure to prevent DOS, arbitrary-file-read, and possibly RCE
-			dbf.setExpandEntityReferences(false);
-			dbf.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
-			dbf.setFeature("http://xml.org/sax/features/external-general-entities", false);
-			dbf.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
-			
-			DocumentBuilder db = dbf.newDocumentBuilder();
-			Document document = db.parse(new InputSource(new StringReader(xml)));
-			return document;
+			return parseDocument(new InputSource(new StringReader(xml)));
 		}
 		catch (Exception e) {
 			log.error("Error converting String to Document:\n" + xml);
@@ -354,6 +394,40 @@ public class HtmlFormEntryUtil {
 		}
 	}
 	
+	/**
+	 * Parses the xml read from the given Reader into a Document object, without reading it into a
+	 * String first
+	 *
+	 * @param reader the source of the xml, which is not closed by this method
+	 * @return the resulting Document object
+	 * @throws Exception
+	 */
+	public static Document readerToDocument(Reader reader) throws Exception {
+		return parseDocument(new InputSource(reader));
+	}
+	
+	/**
+	 * Parses the xml read from the given InputStream into a Document object, without reading it into
+	 * a String first. The encoding is taken from the xml declaration, and defaults to UTF-8.
+	 *
+	 * @param in the source of the xml, which is not closed by this method
+	 * @return the resulting Document object
+	 * @throws Exception
+	 */
+	public static Document inputStreamToDocument(InputStream in) throws Exception {
+		return parseDocument(new InputSource(in));
+	}
+	
+	private static Document parseDocument(InputSource source) throws Exception {
+		DocumentBuilder db = documentBuilder.get();
+		try {
+			return db.parse(source);
+		}
+		finally {
+			db.reset();
+		}
+	}
+	
 	/**
 	 * Converts a Document object to an xml string
 	 *
@@ -362,34 +436,47 @@ public class HtmlFormEntryUtil {
 	 * @throws Exception
 	 */
 	public static String documentToString(Document document) throws Exception {
-		//set up a transformer
-		Transformer trans = null;
-		TransformerFactory transfac = TransformerFactory.newInstance();
-		
-		try {
-			trans = transfac.newTransformer();
-		}
-		catch (TransformerException te) {
-			System.out.println(HtmlFormEntryConstants.ERROR_TRANSFORMER_1 + te);
-		}
-		trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, HtmlFormEntryConstants.CONSTANT_YES);
-		trans.setOutputProperty(OutputKeys.INDENT, HtmlFormEntryConstants.CONSTANT_YES);
-		trans.setOutputProperty(OutputKeys.METHOD, HtmlFormEntryConstants.CONSTANT_XML);
-		trans.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-		
-		//create string from xml tree
 		StringWriter sw = new StringWriter();
-		StreamResult result = new StreamResult(sw);
-		DOMSource source = new DOMSource(document);
+		documentToWriter(document, sw);
+		return sw.toString();
+	}
+	
+	/**
+	 * Writes a Document object as xml to the given Writer, formatted the same way as
+	 * {@link #documentToString(Document)}
+	 *
+	 * @param document the Document instance to write
+	 * @param writer the Writer to write to, which is not closed by this method
+	 * @throws Exception
+	 */
+	public static void documentToWriter(Document document, Writer writer) throws Exception {
+		Transformer trans = transformer.get();
 		try {
-			trans.transform(source, result);
+			trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, HtmlFormEntryConstants.CONSTANT_YES);
+			trans.setOutputProperty(OutputKeys.INDENT, HtmlFormEntryConstants.CONSTANT_YES);
+			trans.setOutputProperty(OutputKeys.METHOD, HtmlFormEntryConstants.CONSTANT_XML);
+			trans.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+			trans.transform(new DOMSource(document), new StreamResult(writer));
 		}
 		catch (TransformerException te) {
 			System.out.println(HtmlFormEntryConstants.ERROR_TRANSFORMER_2 + te);
 		}
-		String xmlString = sw.toString();
-		
-		return xmlString;
+		finally {
+			trans.reset();
+		}
+	}
+	
+	/**
+	 * Creates a DocumentBuilderFactory with external entities disabled: a security measure to prevent
+	 * DOS, arbitrary-file-read, and possibly RCE
+	 */
+	private static DocumentBuilderFactory newDocumentBuilderFactory() throws ParserConfigurationException {
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setExpandEntityReferences(false);
+		dbf.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+		dbf.setFeature("http://xml.org/sax/features/external-general-entities", false);
+		dbf.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+		return dbf;
 	}
 	
 	/**
@@ -524,7 +611,7 @@ public class HtmlFormEntryUtil {
 		try {
 			Patient patient = HtmlFormEntryUtil.getFakePerson();
 			FormEntrySession fes = new FormEntrySession(patient, null, mode, htmlForm, null);
-			fes.getHtmlToDisplay();
+			fes.createFormWithoutHtml();
 			return fes.getContext().getSchema();
 		}
 		catch (Exception e) {
@@ -642,6 +729,11 @@ public class HtmlFormEntryUtil {
 	 * Find drug by uuid, name, or id
 	 */
 	public static Drug getDrug(String uuidOrIdOrName) {
+		return resolveMetadata(MetadataType.DRUG, uuidOrIdOrName, HtmlFormEntryUtil::findDrug,
+		    drugId -> Context.getConceptService().getDrug(drugId));
+	}
+	
+	private static Drug findDrug(String uuidOrIdOrName) {
 		Drug drug = null;
 		if (StringUtils.isNotBlank(uuidOrIdOrName)) {
 			uuidOrIdOrName = uuidOrIdOrName.trim();
@@ -720,12 +812,24 @@ public class HtmlFormEntryUtil {
 	 * @return all orders for a patient, ordered by date, accounting for previous orders
 	 */
 	public static List<Order> getOrdersForPatient(Patient patient, Set<Concept> concepts) {
+		Set<Integer> conceptIds = new HashSet<>();
+		for (Concept concept : concepts) {
+			conceptIds.add(concept.getConceptId());
+		}
+		return getOrdersForPatientByConceptIds(patient, conceptIds);
+	}
+	
+	/**
+	 * @return all orders for a patient for the concepts with the given ids, ordered by date,
+	 *         accounting for previous orders
+	 */
+	public static List<Order> getOrdersForPatientByConceptIds(Patient patient, Set<Integer> conceptIds) {
 		List<Order> ret = new ArrayList<>();
 		List<Order> orders = Context.getOrderService().getAllOrdersByPatient(patient);
 		for (Order order : orders) {
 			order = HibernateUtil.getRealObjectFromProxy(order);
 			if (BooleanUtils.isNotTrue(order.getVoided())) {
-				if (concepts.contains(order.getConcept())) {
+				if (order.getConcept() != null && conceptIds.contains(order.getConcept().getConceptId())) {
 					ret.add(order);
 				}
 			}
@@ -859,6 +963,11 @@ public class HtmlFormEntryUtil {
 	 *         its mapping with a space in between
 	 */
 	public static Concept getConcept(String id) {
+		return resolveMetadata(MetadataType.CONCEPT, id, HtmlFormEntryUtil::findConcept,
+		    conceptId -> Context.getConceptService().getConcept(conceptId));
+	}
+	
+	private static Concept findConcept(String id) {
 		
 		Concept cpt = null;
 		
@@ -958,6 +1067,11 @@ public class HtmlFormEntryUtil {
 	 *         otherwise
 	 */
 	public static Location getLocation(String id, FormEntryContext context) {
+		return resolveMetadata(MetadataType.LOCATION, id, locationId -> findLocation(locationId, context),
+		    locationId -> Context.getLocationService().getLocation(locationId));
+	}
+	
+	private static Location findLocation(String id, FormEntryContext context) {
 		
 		Location location = null;
 		
@@ -1077,6 +1191,11 @@ public class HtmlFormEntryUtil {
 	 *         otherwise
 	 */
 	public static Program getProgram(String id) {
+		return resolveMetadata(MetadataType.PROGRAM, id, HtmlFormEntryUtil::findProgram,
+		    programId -> Context.getProgramWorkflowService().getProgram(programId));
+	}
+	
+	private static Program findProgram(String id) {
 		
 		Program program = null;
 		
@@ -1786,7 +1905,7 @@ public class HtmlFormEntryUtil {
 			Map<Order, Order> replacementOrders = new HashMap<Order, Order>();//new, then source
 			Encounter eTmp = returnEncounterCopy(e, replacementObs, replacementOrders);
 			FormEntrySession session = new FormEntrySession(eTmp.getPatient(), eTmp, Mode.VIEW, htmlform, null); // session gets a null HttpSession
-			session.getHtmlToDisplay();
+			session.createFormWithoutHtml();
 			List<FormSubmissionControllerAction> actions = session.getSubmissionController().getActions();
 			Set<Obs> matchedObs = new HashSet<Obs>();
 			Set<Order> matchedOrders = new HashSet<Order>();
@@ -2390,6 +2509,11 @@ public class HtmlFormEntryUtil {
 	 *         null otherwise
 	 */
 	public static EncounterType getEncounterType(String id) {
+		return resolveMetadata(MetadataType.ENCOUNTER_TYPE, id, HtmlFormEntryUtil::findEncounterType,
+		    encounterTypeId -> Context.getEncounterService().getEncounterType(encounterTypeId));
+	}
+	
+	private static EncounterType findEncounterType(String id) {
 		
 		EncounterType encounterType = null;
 		
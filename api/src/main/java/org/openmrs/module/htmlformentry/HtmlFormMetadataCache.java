@@ -0,0 +1,155 @@
+package org.openmrs.module.htmlformentry;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.openmrs.OpenmrsObject;
+import org.openmrs.module.htmlformentry.util.BoundedCache;
+import org.openmrs.module.htmlformentry.util.CacheStatistics;
+import org.springframework.stereotype.Component;
+
+/**
+ * Remembers which concept, drug, location, program, or encounter type each identifier used in a form
+ * (e.g. "5089", "CIEL:5089", a uuid, or a name) resolved to, so that the lookups in
+ * {@link HtmlFormEntryUtil}, which can try several strategies that each hit the database, only run
+ * once per identifier rather than for every attribute of every tag each time a form is displayed.
+ * <p/>
+ * Only the id of the resolved item is cached, and the item itself is loaded by id on each use.
+ * Identifiers that resolve to nothing are cached as well. Identifiers whose meaning depends on the
+ * user, the http session, or a global property (e.g. "SessionAttribute:emrContext") are never
+ * cached, though the value they point to is.
+ * <p/>
+ * All the entries for a type are removed whenever an item of that type (or one of its mappings) is
+ * saved, retired, or deleted, see {@link HtmlFormMetadataCacheInterceptor}.
+ */
+@Component
+public class HtmlFormMetadataCache {
+	
+	public static final int MAX_CACHED_IDENTIFIERS = 5000;
+	
+	// cached for identifiers that did not resolve to anything
+	private static final Integer NOT_FOUND = -1;
+	
+	private static final String[] CONTEXTUAL_PREFIXES = { "SessionAttribute:", "UserProperty:", "GlobalProperty:",
+	        HtmlFormEntryConstants.SYSTEM_DEFAULT };
+	
+	public enum MetadataType {
+		CONCEPT,
+		DRUG,
+		LOCATION,
+		PROGRAM,
+		ENCOUNTER_TYPE
+	}
+	
+	private final Map<MetadataType, BoundedCache<String, Integer>> caches = new EnumMap<MetadataType, BoundedCache<String, Integer>>(
+	        MetadataType.class);
+	
+	public HtmlFormMetadataCache() {
+		for (MetadataType type : MetadataType.values()) {
+			caches.put(type, new BoundedCache<String, Integer>(MAX_CACHED_IDENTIFIERS));
+		}
+	}
+	
+	/**
+	 * Returns the item the given identifier resolves to, using the id it resolved to previously if
+	 * there is one
+	 *
+	 * @param type the type of item the identifier refers to
+	 * @param identifier the identifier used in the form
+	 * @param resolver resolves the identifier if it is not in the cache
+	 * @param loader loads the item by the cached id
+	 * @return the item, or null if the identifier does not resolve to anything
+	 */
+	public <T extends OpenmrsObject> T resolve(MetadataType type, String identifier, Function<String, T> resolver,
+	        Function<Integer, T> loader) {
+		if (!isCacheable(identifier)) {
+			return resolver.apply(identifier);
+		}
+		String key = identifier.trim();
+		BoundedCache<String, Integer> cache = caches.get(type);
+		Integer id = cache.get(key);
+		if (NOT_FOUND.equals(id)) {
+			return null;
+		}
+		if (id != null) {
+			T item = loader.apply(id);
+			if (item != null) {
+				return item;
+			}
+			cache.remove(key);
+		}
+		T item = resolver.apply(identifier);
+		if (item == null) {
+			cache.put(key, NOT_FOUND);
+		} else if (item.getId() != null) {
+			cache.put(key, item.getId());
+		}
+		return item;
+	}
+	
+	/**
+	 * @return the id the given identifier was last resolved to, or null if it has not been resolved or
+	 *         did not resolve to anything, without counting as a lookup
+	 */
+	public Integer getResolvedId(MetadataType type, String identifier) {
+		if (!isCacheable(identifier)) {
+			return null;
+		}
+		Integer id = caches.get(type).peek(identifier.trim());
+		return NOT_FOUND.equals(id) ? null : id;
+	}
+	
+	/**
+	 * Records the id an identifier resolves to, for callers that have looked up items in the same way
+	 * as the resolver would, e.g. several at once
+	 */
+	public void putResolvedId(MetadataType type, String identifier, Integer id) {
+		if (isCacheable(identifier) && id != null) {
+			caches.get(type).put(identifier.trim(), id);
+		}
+	}
+	
+	/**
+	 * @return false for identifiers that may resolve to different items for different users or
+	 *         sessions
+	 */
+	public boolean isCacheable(String identifier) {
+		if (identifier == null) {
+			return false;
+		}
+		String trimmed = identifier.trim();
+		for (String prefix : CONTEXTUAL_PREFIXES) {
+			if (trimmed.startsWith(prefix)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Removes all the cached identifiers of the given type
+	 */
+	public void evict(MetadataType type) {
+		caches.get(type).clear();
+	}
+	
+	public void clear() {
+		for (BoundedCache<String, Integer> cache : caches.values()) {
+			cache.clear();
+		}
+	}
+	
+	/**
+	 * @return the hit, miss and eviction counts of the cache for the given type
+	 */
+	public CacheStatistics getStatistics(MetadataType type) {
+		return caches.get(type).getStatistics();
+	}
+	
+	public void resetStatistics() {
+		for (BoundedCache<String, Integer> cache : caches.values()) {
+			cache.resetStatistics();
+		}
+	}
+}
@@ -0,0 +1,318 @@
+package org.openmrs.module.htmlformentry;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.Transaction;
+import org.hibernate.type.Type;
+import org.openmrs.Concept;
+import org.openmrs.ConceptMap;
+import org.openmrs.ConceptName;
+import org.openmrs.ConceptReferenceTerm;
+import org.openmrs.Drug;
+import org.openmrs.EncounterType;
+import org.openmrs.Form;
+import org.openmrs.Location;
+import org.openmrs.LocationTag;
+import org.openmrs.Patient;
+import org.openmrs.Person;
+import org.openmrs.PersonName;
+import org.openmrs.Program;
+import org.openmrs.Provider;
+import org.openmrs.ProviderRole;
+import org.openmrs.Role;
+import org.openmrs.User;
+import org.openmrs.module.htmlformentry.HtmlFormMetadataCache.MetadataType;
+import org.openmrs.module.htmlformentry.OptionListCache.OptionListType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the {@link HtmlFormMetadataCache} and the {@link ConceptMappingCache} up to date by evicting
+ * the identifiers of a type whenever an item of that type, or something it can be looked up by (a
+ * name or a mapping), is saved, retired, or deleted. The {@link HtmlFormCache} is cleared whenever
+ * a form or an html form is changed. The {@link DrugFormulary} is told about every drug, and every
+ * concept or concept name, that changes, and the {@link HtmlFormCompiler} about every change to
+ * concepts and drugs. The lists of the {@link OptionListCache} are removed whenever a provider,
+ * user, location, or encounter type they are built from changes, or the name of a person they are
+ * labelled with changes, and the {@link EncounterTypePrivilegeCache} is cleared whenever an
+ * encounter type changes.
+ * <p/>
+ * Entries are evicted as soon as the change is flushed, and again once the transaction completes,
+ * so that lookups made by other threads before the change was committed are not kept.
+ */
+@Component
+public class HtmlFormMetadataCacheInterceptor extends EmptyInterceptor {
+	
+	private static final long serialVersionUID = 1L;
+	
+	// the metadatamapping module is optional, so its mappings are recognised by name rather than by class
+	static final String METADATA_TERM_MAPPING_CLASS = "org.openmrs.module.metadatamapping.MetadataTermMapping";
+	
+	// the properties of a user that the user option lists are built from
+	private static final List<String> USER_OPTION_PROPERTIES = Arrays.asList("retired", "person");
+	
+	private static final ThreadLocal<Set<MetadataType>> changedTypes = ThreadLocal
+	        .withInitial(() -> EnumSet.noneOf(MetadataType.class));
+	
+	private static final ThreadLocal<Set<OptionListType>> changedOptionLists = ThreadLocal
+	        .withInitial(() -> EnumSet.noneOf(OptionListType.class));
+	
+	private static final ThreadLocal<Set<Integer>> changedPersonIds = ThreadLocal
+	        .withInitial(() -> new HashSet<Integer>());
+	
+	private static final ThreadLocal<Boolean> formsChanged = new ThreadLocal<Boolean>();
+	
+	private static final ThreadLocal<Set<Integer>> changedConceptIds = ThreadLocal
+	        .withInitial(() -> new HashSet<Integer>());
+	
+	// new drugs may only get their ids once they are inserted, so the drugs themselves are kept
+	private static final ThreadLocal<List<Drug>> changedDrugs = ThreadLocal.withInitial(() -> new ArrayList<Drug>());
+	
+	@Autowired
+	private HtmlFormMetadataCache metadataCache;
+	
+	@Autowired
+	private ConceptMappingCache conceptMappingCache;
+	
+	@Autowired
+	private DrugFormulary drugFormulary;
+	
+	@Autowired
+	private EncounterTypePrivilegeCache encounterTypePrivilegeCache;
+	
+	@Autowired
+	private OptionListCache optionListCache;
+	
+	@Autowired
+	private HtmlFormCompiler htmlFormCompiler;
+	
+	@Autowired
+	private HtmlFormCache htmlFormCache;
+	
+	@Override
+	public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+		entityChanged(entity);
+		return false;
+	}
+	
+	@Override
+	public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState,
+	        String[] propertyNames, Type[] types) {
+		// users are updated on routine actions such as logging in, which do not change the user lists
+		if (entity instanceof User
+		        && !isAnyChanged(USER_OPTION_PROPERTIES, propertyNames, currentState, previousState)) {
+			return false;
+		}
+		entityChanged(entity);
+		return false;
+	}
+	
+	@Override
+	public void onDelete(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+		entityChanged(entity);
+	}
+	
+	@Override
+	public void afterTransactionCompletion(Transaction tx) {
+		Set<MetadataType> types = changedTypes.get();
+		if (!types.isEmpty()) {
+			evict(types);
+			changedTypes.remove();
+		}
+		Set<OptionListType> optionLists = changedOptionLists.get();
+		if (!optionLists.isEmpty()) {
+			evictOptionLists(optionLists);
+			changedOptionLists.remove();
+		}
+		Set<Integer> personIds = changedPersonIds.get();
+		if (!personIds.isEmpty()) {
+			for (Integer personId : personIds) {
+				optionListCache.evictPerson(personId);
+			}
+			changedPersonIds.remove();
+		}
+		if (formsChanged.get() != null) {
+			htmlFormCache.clear();
+			formsChanged.remove();
+		}
+		List<Drug> drugs = changedDrugs.get();
+		if (!drugs.isEmpty()) {
+			for (Drug drug : drugs) {
+				drugFormulary.drugChanged(drug.getDrugId());
+			}
+			changedDrugs.remove();
+		}
+		Set<Integer> conceptIds = changedConceptIds.get();
+		if (!conceptIds.isEmpty()) {
+			for (Integer conceptId : conceptIds) {
+				drugFormulary.conceptChanged(conceptId);
+			}
+			changedConceptIds.remove();
+		}
+	}
+	
+	private void entityChanged(Object entity) {
+		if (entity instanceof Form || entity instanceof HtmlForm) {
+			htmlFormCache.clear();
+			formsChanged.set(Boolean.TRUE);
+		}
+		if (entity instanceof Drug) {
+			drugFormulary.drugChanged(((Drug) entity).getDrugId());
+			changedDrugs.get().add((Drug) entity);
+		}
+		Integer conceptId = getConceptIdOfName(entity);
+		if (conceptId != null) {
+			drugFormulary.conceptChanged(conceptId);
+			changedConceptIds.get().add(conceptId);
+		}
+		Set<MetadataType> types = getAffectedTypes(entity);
+		if (!types.isEmpty()) {
+			evict(types);
+			changedTypes.get().addAll(types);
+		}
+		Set<OptionListType> optionLists = getAffectedOptionLists(entity);
+		if (!optionLists.isEmpty()) {
+			evictOptionLists(optionLists);
+			changedOptionLists.get().addAll(optionLists);
+		}
+		Integer personId = getPersonIdOfName(entity);
+		if (personId != null) {
+			optionListCache.evictPerson(personId);
+			changedPersonIds.get().add(personId);
+		}
+	}
+	
+	/**
+	 * @return the id of the concept that drugs and concepts of the formulary could be labelled with the
+	 *         name of, if the given entity changes an existing concept or one of its names
+	 */
+	private Integer getConceptIdOfName(Object entity) {
+		if (entity instanceof ConceptName && ((ConceptName) entity).getConcept() != null) {
+			return ((ConceptName) entity).getConcept().getConceptId();
+		}
+		if (entity instanceof Concept) {
+			return ((Concept) entity).getConceptId();
+		}
+		return null;
+	}
+	
+	/**
+	 * @return the id of the person that provider and user options could be labelled with the name of,
+	 *         if the given entity changes the name of an existing person. Patients are left out, as
+	 *         their own properties are not part of any label.
+	 */
+	private Integer getPersonIdOfName(Object entity) {
+		if (entity instanceof PersonName && ((PersonName) entity).getPerson() != null) {
+			return ((PersonName) entity).getPerson().getPersonId();
+		}
+		if (entity instanceof Person && !(entity instanceof Patient)) {
+			return ((Person) entity).getPersonId();
+		}
+		return null;
+	}
+	
+	private boolean isAnyChanged(List<String> properties, String[] propertyNames, Object[] currentState,
+	        Object[] previousState) {
+		if (previousState == null) {
+			return true;
+		}
+		for (int i = 0; i < propertyNames.length; i++) {
+			if (properties.contains(propertyNames[i]) && !Objects.equals(currentState[i], previousState[i])) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private void evict(Set<MetadataType> types) {
+		for (MetadataType type : types) {
+			metadataCache.evict(type);
+		}
+		if (types.contains(MetadataType.CONCEPT)) {
+			conceptMappingCache.clear();
+		}
+		if (types.contains(MetadataType.CONCEPT) || types.contains(MetadataType.DRUG)) {
+			htmlFormCompiler.conceptsChanged();
+		}
+		if (types.contains(MetadataType.ENCOUNTER_TYPE)) {
+			encounterTypePrivilegeCache.clear();
+		}
+	}
+	
+	private void evictOptionLists(Set<OptionListType> types) {
+		for (OptionListType type : types) {
+			optionListCache.evict(type);
+		}
+	}
+	
+	/**
+	 * @return the types whose identifiers could resolve differently once the given entity is changed
+	 */
+	private Set<MetadataType> getAffectedTypes(Object entity) {
+		if (entity instanceof Concept || entity instanceof ConceptMap || entity instanceof ConceptReferenceTerm
+		        || entity instanceof ConceptName) {
+			// programs are looked up by the name of their concept
+			return EnumSet.of(MetadataType.CONCEPT, MetadataType.PROGRAM);
+		}
+		if (entity instanceof Drug) {
+			return EnumSet.of(MetadataType.DRUG);
+		}
+		if (entity instanceof Location) {
+			return EnumSet.of(MetadataType.LOCATION);
+		}
+		if (entity instanceof Program) {
+			return EnumSet.of(MetadataType.PROGRAM);
+		}
+		if (entity instanceof EncounterType) {
+			return EnumSet.of(MetadataType.ENCOUNTER_TYPE);
+		}
+		if (isInstanceOf(entity, METADATA_TERM_MAPPING_CLASS)) {
+			return EnumSet.of(MetadataType.LOCATION, MetadataType.PROGRAM, MetadataType.ENCOUNTER_TYPE);
+		}
+		return EnumSet.noneOf(MetadataType.class);
+	}
+	
+	/**
+	 * @return whether the given entity is an instance of the named class, which does not need to be
+	 *         loadable
+	 */
+	static boolean isInstanceOf(Object entity, String className) {
+		for (Class<?> c = entity.getClass(); c != null; c = c.getSuperclass()) {
+			if (c.getName().equals(className)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @return the types of option lists that could be built differently once the given entity is
+	 *         changed
+	 */
+	private Set<OptionListType> getAffectedOptionLists(Object entity) {
+		if (entity instanceof Provider) {
+			return EnumSet.of(OptionListType.PROVIDER, OptionListType.PROVIDER_PERSON);
+		}
+		if (entity instanceof ProviderRole) {
+			return EnumSet.of(OptionListType.PROVIDER);
+		}
+		if (entity instanceof User || entity instanceof Role) {
+			return EnumSet.of(OptionListType.USER, OptionListType.USER_PERSON);
+		}
+		if (entity instanceof Location || entity instanceof LocationTag) {
+			return EnumSet.of(OptionListType.LOCATION, OptionListType.LOCATION_NAME);
+		}
+		if (entity instanceof EncounterType) {
+			return EnumSet.of(OptionListType.ENCOUNTER_TYPE);
+		}
+		return EnumSet.noneOf(OptionListType.class);
+	}
+}
@@ -0,0 +1,152 @@
+package org.openmrs.module.htmlformentry;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.Concept;
+import org.openmrs.Drug;
+import org.openmrs.Location;
+import org.openmrs.OpenmrsObject;
+import org.openmrs.module.htmlformentry.HtmlFormMetadataCache.MetadataType;
+import org.openmrs.module.htmlformentry.handler.AttributeDescriptor;
+import org.openmrs.module.htmlformentry.handler.TagHandler;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Loads the concepts, drugs, and locations a form refers to in a few queries before the tag pass,
+ * so that the tag handlers find them in the hibernate session rather than loading each one, and
+ * each of its names and answers, separately.
+ * <p/>
+ * The references are found through the {@link AttributeDescriptor}s of the tag handlers. Identifiers
+ * that are ids or uuids, or that have been resolved before (see {@link HtmlFormMetadataCache}), are
+ * loaded here, and the ids the uuids resolve to are remembered. Any other identifier (e.g. a mapping
+ * or a name) is left to be resolved by the tag handler as usual, which then remembers its id for
+ * the next time the form is displayed.
+ */
+@Component
+public class HtmlFormMetadataPrefetcher {
+	
+	@Autowired
+	private HtmlFormMetadataCache metadataCache;
+	
+	/**
+	 * Loads the items referred to by the tags of the given document into the hibernate session
+	 */
+	public void prefetch(Node doc) {
+		Map<MetadataType, References> references = new EnumMap<MetadataType, References>(MetadataType.class);
+		for (MetadataType type : new MetadataType[] { MetadataType.CONCEPT, MetadataType.DRUG, MetadataType.LOCATION }) {
+			references.put(type, new References());
+		}
+		collectReferences(doc, HtmlFormEntryUtil.getService().getHandlers(), references);
+		
+		// failures are not caught: the service calls join the transaction of the caller and mark it for
+		// rollback, so a form displayed anyway could not be saved
+		References concepts = references.get(MetadataType.CONCEPT);
+		References drugs = references.get(MetadataType.DRUG);
+		if (!drugs.isEmpty()) {
+			List<Drug> loaded = HtmlFormEntryUtil.getService().prefetchDrugs(drugs.ids, drugs.uuids);
+			drugs.remember(MetadataType.DRUG, loaded);
+			for (Drug drug : loaded) {
+				if (drug.getConcept() != null) {
+					concepts.ids.add(drug.getConcept().getConceptId());
+				}
+			}
+		}
+		if (!concepts.isEmpty()) {
+			concepts.remember(MetadataType.CONCEPT,
+			    HtmlFormEntryUtil.getService().prefetchConcepts(concepts.ids, concepts.uuids));
+		}
+		References locations = references.get(MetadataType.LOCATION);
+		if (!locations.isEmpty()) {
+			locations.remember(MetadataType.LOCATION,
+			    HtmlFormEntryUtil.getService().prefetchLocations(locations.ids, locations.uuids));
+		}
+	}
+	
+	private void collectReferences(Node node, Map<String, TagHandler> handlers, Map<MetadataType, References> references) {
+		if (node instanceof Element) {
+			TagHandler handler = handlers.get(node.getNodeName());
+			if (handler != null && handler.getAttributeDescriptors() != null) {
+				for (AttributeDescriptor descriptor : handler.getAttributeDescriptors()) {
+					MetadataType type = getMetadataType(descriptor.getClazz());
+					String value = ((Element) node).getAttribute(descriptor.getName());
+					if (type != null && StringUtils.isNotBlank(value)) {
+						for (String identifier : value.split(",")) {
+							addReference(type, identifier.trim(), references.get(type));
+						}
+					}
+				}
+			}
+		}
+		NodeList children = node.getChildNodes();
+		for (int i = 0; i < children.getLength(); i++) {
+			collectReferences(children.item(i), handlers, references);
+		}
+	}
+	
+	private void addReference(MetadataType type, String identifier, References references) {
+		if (identifier.isEmpty() || !metadataCache.isCacheable(identifier)) {
+			return;
+		}
+		Integer id = metadataCache.getResolvedId(type, identifier);
+		if (id != null) {
+			references.ids.add(id);
+		} else if (StringUtils.isNumeric(identifier)) {
+			try {
+				references.ids.add(Integer.valueOf(identifier));
+			}
+			catch (NumberFormatException e) {
+				// too large to be an id, so left to the tag handler
+			}
+		} else if (HtmlFormEntryUtil.isValidUuidFormat(identifier)) {
+			references.uuids.add(identifier);
+		}
+	}
+	
+	private MetadataType getMetadataType(Class<?> clazz) {
+		if (clazz == Concept.class) {
+			return MetadataType.CONCEPT;
+		}
+		if (clazz == Drug.class) {
+			return MetadataType.DRUG;
+		}
+		if (clazz == Location.class) {
+			return MetadataType.LOCATION;
+		}
+		return null;
+	}
+	
+	/**
+	 * The ids and uuids of the items of one type that a form refers to
+	 */
+	private class References {
+		
+		private final Set<Integer> ids = new LinkedHashSet<Integer>();
+		
+		private final Set<String> uuids = new LinkedHashSet<String>();
+		
+		public boolean isEmpty() {
+			return ids.isEmpty() && uuids.isEmpty();
+		}
+		
+		/**
+		 * Remembers the ids that the uuids of the form resolve to
+		 */
+		public void remember(MetadataType type, Collection<? extends OpenmrsObject> loaded) {
+			for (OpenmrsObject item : loaded) {
+				if (uuids.contains(item.getUuid())) {
+					metadataCache.putResolvedId(type, item.getUuid(), item.getId());
+				}
+			}
+		}
+	}
+}
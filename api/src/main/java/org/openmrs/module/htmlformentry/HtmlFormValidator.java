@@ -77,11 +77,11 @@ public class HtmlFormValidator implements Validator {
 				xml = htmlGenerator.substituteCharacterCodesWithAsciiCodes(xml);
 				xml = htmlGenerator.stripComments(xml);
 				xml = htmlGenerator.convertSpecialCharactersWithinLogicAndVelocityTests(xml);
-				xml = htmlGenerator.processSubforms(xml);
-				xml = htmlGenerator.applyRoleRestrictions(xml);
-				xml = htmlGenerator.applyMacros(session, xml);
-				xml = htmlGenerator.applyRepeats(xml);
 				Document document = HtmlFormEntryUtil.stringToDocument(xml);
+				document = htmlGenerator.processSubforms(document, null);
+				document = htmlGenerator.applyRoleRestrictions(document);
+				document = htmlGenerator.applyMacros(session, document);
+				document = htmlGenerator.applyRepeats(document);
 				validateTags(document, errors, null);
 			}
 			catch (Exception ex) {
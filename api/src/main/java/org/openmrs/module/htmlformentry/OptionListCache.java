@@ -0,0 +1,331 @@
+package org.openmrs.module.htmlformentry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.apache.commons.lang.BooleanUtils;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.EncounterType;
+import org.openmrs.Location;
+import org.openmrs.LocationTag;
+import org.openmrs.Provider;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.comparator.OptionComparator;
+import org.openmrs.module.htmlformentry.element.PersonStub;
+import org.openmrs.module.htmlformentry.util.BoundedCache;
+import org.openmrs.module.htmlformentry.util.CacheStatistics;
+import org.openmrs.module.htmlformentry.widget.Option;
+import org.openmrs.util.PrivilegeConstants;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the lists of options that provider, location, user, and encounter type widgets offer when a
+ * form does not list them explicitly, so that every dropdown on every form does not load all the
+ * providers or locations and label and sort them again each time the form is displayed.
+ * <p/>
+ * A list is kept for each type of option, filter (e.g. the provider roles or location tags it is
+ * restricted to), locale, and whether retired items are included. Only labels and ids are kept, and
+ * each caller gets its own copy of the options, so that it can select one of them. The privilege
+ * needed to load a type of options is checked each time a list of that type is returned.
+ * <p/>
+ * All the lists of a type are removed whenever an item they are built from is saved, retired, or
+ * deleted, and the lists labelled with the name of a person are removed whenever that person
+ * changes, see {@link HtmlFormMetadataCacheInterceptor}. A list that was being loaded when its type
+ * was evicted is not kept.
+ */
+@Component
+public class OptionListCache {
+	
+	public static final int MAX_CACHED_OPTION_LISTS = 100;
+	
+	public enum OptionListType {
+		
+		/**
+		 * Providers by provider id, labelled for display, optionally filtered by a comma-separated list
+		 * of provider roles
+		 */
+		PROVIDER(true, PrivilegeConstants.GET_PROVIDERS),
+		
+		/**
+		 * The persons of all the providers that are attached to a person, by person id
+		 */
+		PROVIDER_PERSON(true, PrivilegeConstants.GET_PROVIDERS),
+		
+		/**
+		 * All users by user id, labelled with their name, in the order the user service returns them
+		 */
+		USER(false, PrivilegeConstants.GET_USERS),
+		
+		/**
+		 * The persons of the non-retired users with the role given as the filter, by person id
+		 */
+		USER_PERSON(true, null),
+		
+		/**
+		 * Locations by location id, labelled for display, optionally filtered by a comma-separated list
+		 * of location tags
+		 */
+		LOCATION(true, PrivilegeConstants.GET_LOCATIONS),
+		
+		/**
+		 * Locations by location id, labelled with their name, optionally filtered by a comma-separated
+		 * list of location tags
+		 */
+		LOCATION_NAME(true, PrivilegeConstants.GET_LOCATIONS),
+		
+		/**
+		 * All encounter types by encounter type id, labelled with their name, in the order the encounter
+		 * service returns them
+		 */
+		ENCOUNTER_TYPE(false, PrivilegeConstants.GET_ENCOUNTER_TYPES);
+		
+		private final boolean sorted;
+		
+		// the privilege required by the service methods the options are loaded with, if any
+		private final String privilege;
+		
+		OptionListType(boolean sorted, String privilege) {
+			this.sorted = sorted;
+			this.privilege = privilege;
+		}
+	}
+	
+	// the types of options that are labelled with the names of persons
+	private static final Set<OptionListType> PERSON_LIST_TYPES = EnumSet.of(OptionListType.PROVIDER,
+	    OptionListType.PROVIDER_PERSON, OptionListType.USER, OptionListType.USER_PERSON);
+	
+	private final Map<OptionListType, BoundedCache<Key, OptionList>> caches = new EnumMap<OptionListType, BoundedCache<Key, OptionList>>(
+	        OptionListType.class);
+	
+	// incremented whenever lists of a type are evicted, so that lists loaded before then are not kept
+	private final long[] versions = new long[OptionListType.values().length];
+	
+	public OptionListCache() {
+		for (OptionListType type : OptionListType.values()) {
+			caches.put(type, new BoundedCache<Key, OptionList>(MAX_CACHED_OPTION_LISTS));
+		}
+	}
+	
+	/**
+	 * @param type the type of options
+	 * @param filter what the options are restricted to, as described for the type, or null for all
+	 * @param includeRetired whether to include retired items
+	 * @return a copy of the options, labelled in the locale of the authenticated user, none of which
+	 *         is selected
+	 */
+	public List<Option> getOptions(OptionListType type, String filter, boolean includeRetired) {
+		if (type.privilege != null) {
+			Context.requirePrivilege(type.privilege);
+		}
+		Key key = new Key(type, StringUtils.trimToNull(filter), Context.getLocale(), includeRetired);
+		BoundedCache<Key, OptionList> cache = caches.get(type);
+		long version;
+		synchronized (versions) {
+			version = versions[type.ordinal()];
+		}
+		OptionList optionList = cache.get(key);
+		if (optionList == null) {
+			optionList = load(key);
+			synchronized (versions) {
+				if (version == versions[type.ordinal()]) {
+					cache.put(key, optionList);
+				}
+			}
+		}
+		List<Option> ret = new ArrayList<Option>(optionList.options.size());
+		for (Option option : optionList.options) {
+			ret.add(new Option(option.getLabel(), option.getValue(), false));
+		}
+		return ret;
+	}
+	
+	/**
+	 * Removes all the cached lists of the given type
+	 */
+	public void evict(OptionListType type) {
+		synchronized (versions) {
+			versions[type.ordinal()]++;
+			caches.get(type).clear();
+		}
+	}
+	
+	/**
+	 * Removes the cached lists that are labelled with the name of the person with the given id, i.e.
+	 * the lists of providers and users that include that person
+	 */
+	public void evictPerson(Integer personId) {
+		synchronized (versions) {
+			for (OptionListType type : PERSON_LIST_TYPES) {
+				// a list that is being loaded could still include the person as it was before the change
+				versions[type.ordinal()]++;
+				caches.get(type).removeIf(optionList -> optionList.personIds.contains(personId));
+			}
+		}
+	}
+	
+	public void clear() {
+		synchronized (versions) {
+			for (OptionListType type : OptionListType.values()) {
+				versions[type.ordinal()]++;
+				caches.get(type).clear();
+			}
+		}
+	}
+	
+	/**
+	 * @return the hit, miss and eviction counts of the cache for the given type
+	 */
+	public CacheStatistics getStatistics(OptionListType type) {
+		return caches.get(type).getStatistics();
+	}
+	
+	private OptionList load(Key key) {
+		List<Option> ret = new ArrayList<Option>();
+		Set<Integer> personIds = new HashSet<Integer>();
+		switch (key.type) {
+			case PROVIDER:
+				for (Provider provider : HtmlFormEntryUtil.getProviders(split(key.filter), true, key.includeRetired)) {
+					ret.add(new Option(HtmlFormEntryUtil.format(provider, key.locale), provider.getId().toString()));
+					if (provider.getPerson() != null) {
+						personIds.add(provider.getPerson().getPersonId());
+					}
+				}
+				break;
+			case PROVIDER_PERSON:
+				for (Provider provider : HtmlFormEntryUtil.getAllProviders(key.includeRetired)) {
+					if (provider.getPerson() != null) {
+						PersonStub person = new PersonStub(provider.getPerson());
+						ret.add(new Option(StringEscapeUtils.escapeHtml(person.toString()), person.getId().toString()));
+						personIds.add(person.getId());
+					}
+				}
+				break;
+			case USER:
+				for (User user : Context.getUserService().getAllUsers()) {
+					if (key.includeRetired || !BooleanUtils.isTrue(user.getRetired())) {
+						ret.add(new Option(String.valueOf(user.getPersonName()), user.getUserId().toString()));
+						if (user.getPerson() != null) {
+							personIds.add(user.getPerson().getPersonId());
+						}
+					}
+				}
+				break;
+			case USER_PERSON:
+				for (PersonStub person : HtmlFormEntryUtil.getService().getUsersAsPersonStubs(key.filter)) {
+					ret.add(new Option(StringEscapeUtils.escapeHtml(person.toString()), person.getId().toString()));
+					personIds.add(person.getId());
+				}
+				break;
+			case LOCATION:
+				for (Location location : getLocations(key)) {
+					ret.add(new Option(HtmlFormEntryUtil.format(location, key.locale), location.getId().toString()));
+				}
+				break;
+			case LOCATION_NAME:
+				for (Location location : getLocations(key)) {
+					ret.add(new Option(location.getName(), location.getId().toString()));
+				}
+				break;
+			case ENCOUNTER_TYPE:
+				for (EncounterType encounterType : Context.getEncounterService().getAllEncounterTypes(key.includeRetired)) {
+					ret.add(new Option(encounterType.getName(), encounterType.getId().toString()));
+				}
+				break;
+		}
+		if (key.type.sorted) {
+			Collections.sort(ret, new OptionComparator());
+		}
+		return new OptionList(Collections.unmodifiableList(ret), personIds);
+	}
+	
+	private List<Location> getLocations(Key key) {
+		if (key.filter == null) {
+			return Context.getLocationService().getAllLocations(key.includeRetired);
+		}
+		List<LocationTag> tags = new ArrayList<LocationTag>();
+		for (String identifier : split(key.filter)) {
+			LocationTag tag = HtmlFormEntryUtil.getLocationTag(identifier);
+			if (tag == null) {
+				throw new RuntimeException("Cannot find tag: " + identifier);
+			}
+			tags.add(tag);
+		}
+		List<Location> ret = new ArrayList<Location>();
+		for (Location location : Context.getLocationService().getLocationsHavingAnyTag(tags)) {
+			if (key.includeRetired || !BooleanUtils.isTrue(location.getRetired())) {
+				ret.add(location);
+			}
+		}
+		return ret;
+	}
+	
+	private List<String> split(String filter) {
+		List<String> ret = new ArrayList<String>();
+		if (filter != null) {
+			for (String s : filter.split(",")) {
+				if (StringUtils.isNotBlank(s)) {
+					ret.add(s.trim());
+				}
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * A cached list of options, with the ids of the persons whose names they are labelled with
+	 */
+	private static class OptionList {
+		
+		private final List<Option> options;
+		
+		private final Set<Integer> personIds;
+		
+		private OptionList(List<Option> options, Set<Integer> personIds) {
+			this.options = options;
+			this.personIds = personIds;
+		}
+	}
+	
+	private static class Key {
+		
+		private final OptionListType type;
+		
+		private final String filter;
+		
+		private final Locale locale;
+		
+		private final boolean includeRetired;
+		
+		private Key(OptionListType type, String filter, Locale locale, boolean includeRetired) {
+			this.type = type;
+			this.filter = filter;
+			this.locale = locale;
+			this.includeRetired = includeRetired;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return type == other.type && Objects.equals(filter, other.filter) && Objects.equals(locale, other.locale)
+			        && includeRetired == other.includeRetired;
+		}
+		
+		@Override
+		public int hashCode() {
+			return Objects.hash(type, filter, locale, includeRetired);
+		}
+	}
+}
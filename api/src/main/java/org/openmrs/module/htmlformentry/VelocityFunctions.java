@@ -24,24 +24,43 @@ import org.openmrs.api.MissingRequiredPropertyException;
 import org.openmrs.api.ObsService;
 import org.openmrs.api.ProgramWorkflowService;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.element.EncounterStub;
 import org.openmrs.parameter.EncounterSearchCriteriaBuilder;
 import org.openmrs.util.LocaleUtility;
-import org.openmrs.util.OpenmrsUtil;
 
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
 
 import static org.openmrs.util.TimeZoneUtil.toClientTimezone;
 
+/**
+ * The functions available to velocity expressions in a form as {@code $fn}.
+ * <p/>
+ * Functions that query the database remember their results for the life of the
+ * {@link FormEntrySession}, since forms often repeat the same expression in several places (e.g. a
+ * macro, an includeIf, and a lookup). The lists they return are shared between those calls, so they
+ * are unmodifiable. Functions whose result depends on state that can change during the session, such
+ * as the encounter and visit the form is being filled in for, or that return objects the form may
+ * modify, do not use {@link #memoize(String, Supplier, Object...)}.
+ */
 public class VelocityFunctions {
 	
 	private FormEntrySession session;
 	
+	// results of the functions called so far, keyed by the name of the function followed by its arguments
+	private final Map<List<Object>, Object> memo = new HashMap<List<Object>, Object>();
+	
+	private int memoHits = 0;
+	
 	private ObsService obsService;
 	
 	private ProgramWorkflowService programWorkflowService;
@@ -54,6 +73,35 @@ public class VelocityFunctions {
 		this.session = session;
 	}
 	
+	/**
+	 * Returns the result of a previous call of the given function with the same arguments, or calls it
+	 * and remembers the result (even if it is null)
+	 *
+	 * @param function the name of the function
+	 * @param call computes the result of the function
+	 * @param args the arguments of the function, which must implement equals and hashCode
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> T memoize(String function, Supplier<T> call, Object... args) {
+		List<Object> key = new ArrayList<Object>(args.length + 1);
+		key.add(function);
+		Collections.addAll(key, args);
+		if (memo.containsKey(key)) {
+			memoHits++;
+			return (T) memo.get(key);
+		}
+		T result = call.get();
+		memo.put(key, result);
+		return result;
+	}
+	
+	/**
+	 * @return the number of function calls that were answered with the result of a previous call
+	 */
+	public int getMemoHits() {
+		return memoHits;
+	}
+	
 	private ObsService getObsService() {
 		if (obsService == null)
 			obsService = Context.getObsService();
@@ -100,6 +148,11 @@ public class VelocityFunctions {
 	}
 	
 	public List<Obs> allObs(String conceptId, Date latestDate) {
+		return memoize("allObs", () -> Collections.unmodifiableList(new ArrayList<Obs>(findAllObs(conceptId, latestDate))),
+		    conceptId, latestDate);
+	}
+	
+	private List<Obs> findAllObs(String conceptId, Date latestDate) {
 		
 		if (session.getPatient() == null) {
 			return new ArrayList<Obs>();
@@ -123,6 +176,19 @@ public class VelocityFunctions {
 		}
 	}
 	
+	/**
+	 * Checks the same things as {@link #allObs(String, Date)} before looking up a single obs
+	 *
+	 * @return the concept to look up obs of the patient for, or null if there can be none
+	 */
+	private Concept getObsQuestion(String conceptId) {
+		if (session.getPatient() == null) {
+			return null;
+		}
+		cannotBePreviewed();
+		return HtmlFormEntryUtil.getConcept(conceptId);
+	}
+	
 	public List<Obs> allObs(String conceptId) {
 		return allObs(conceptId, null);
 	}
@@ -152,13 +218,13 @@ public class VelocityFunctions {
 	}
 	
 	public Obs latestObs(String conceptId, Date latestDate) {
-		List<Obs> obs = allObs(conceptId, latestDate);
-		
-		if (obs == null || obs.isEmpty()) {
-			return null;
-		} else {
-			return obs.get(0);
-		}
+		return memoize("latestObs", () -> {
+			Concept question = getObsQuestion(conceptId);
+			if (question == null) {
+				return null;
+			}
+			return HtmlFormEntryUtil.getService().getLatestObs(session.getPatient(), question, latestDate);
+		}, conceptId, latestDate);
 	}
 	
 	public Obs latestObsBeforeCurrentEncounter(String conceptId, boolean onlyInCurrentVisit) {
@@ -169,18 +235,12 @@ public class VelocityFunctions {
 			currentVisit = currentEncounter.getVisit();
 			maxDate = currentEncounter.getEncounterDatetime();
 		}
-		List<Obs> obs = allObs(conceptId, maxDate);
-		if (obs != null) {
-			for (Obs o : obs) {
-				if (!OpenmrsUtil.nullSafeEquals(currentEncounter, o.getEncounter())) {
-					Visit obsVisit = (o.getEncounter() != null ? o.getEncounter().getVisit() : null);
-					if (!onlyInCurrentVisit || (currentVisit != null && currentVisit.equals(obsVisit))) {
-						return o;
-					}
-				}
-			}
+		Concept question = getObsQuestion(conceptId);
+		if (question == null || (onlyInCurrentVisit && currentVisit == null)) {
+			return null;
 		}
-		return null;
+		return HtmlFormEntryUtil.getService().getLatestObsOutsideEncounter(session.getPatient(), question, maxDate,
+		    currentEncounter, onlyInCurrentVisit ? currentVisit : null, null);
 	}
 	
 	public Obs latestObsInVisitPriorToEncounter(String conceptId, String valueCodedConceptId) {
@@ -193,18 +253,10 @@ public class VelocityFunctions {
 		}
 		if (currentVisit != null) {
 			Concept valCoded = (valueCodedConceptId == null ? null : HtmlFormEntryUtil.getConcept(valueCodedConceptId));
-			List<Obs> obs = allObs(conceptId, maxDate);
-			if (obs != null) {
-				for (Obs o : obs) {
-					if (!OpenmrsUtil.nullSafeEquals(currentEncounter, o.getEncounter())) {
-						Visit obsVisit = (o.getEncounter() != null ? o.getEncounter().getVisit() : null);
-						if (currentVisit.equals(obsVisit)) {
-							if (valCoded == null || valCoded.equals(o.getValueCoded())) {
-								return o;
-							}
-						}
-					}
-				}
+			Concept question = getObsQuestion(conceptId);
+			if (question != null) {
+				return HtmlFormEntryUtil.getService().getLatestObsOutsideEncounter(session.getPatient(), question,
+				    maxDate, currentEncounter, currentVisit, valCoded);
 			}
 		}
 		return null;
@@ -219,14 +271,13 @@ public class VelocityFunctions {
 	 *         given the passed conceptId
 	 */
 	public Obs earliestObs(String conceptId) {
-		List<Obs> obs = allObs(conceptId, null);
-		
-		if (obs == null || obs.isEmpty()) {
-			return null;
-		} else {
-			return obs.get(obs.size() - 1);
-		}
-		
+		return memoize("earliestObs", () -> {
+			Concept question = getObsQuestion(conceptId);
+			if (question == null) {
+				return null;
+			}
+			return HtmlFormEntryUtil.getService().getEarliestObs(session.getPatient(), question);
+		}, conceptId);
 	}
 	
 	public Obs earliestObs(Integer conceptId) {
@@ -248,6 +299,12 @@ public class VelocityFunctions {
 	}
 	
 	private List<Encounter> getAllEncounters(EncounterType type, Date latestDate) {
+		return memoize("allEncounters",
+		    () -> Collections.unmodifiableList(new ArrayList<Encounter>(findAllEncounters(type, latestDate))), type,
+		    latestDate);
+	}
+	
+	private List<Encounter> findAllEncounters(EncounterType type, Date latestDate) {
 		if (session.getPatient() == null) {
 			return new ArrayList<Encounter>();
 		}
@@ -324,12 +381,50 @@ public class VelocityFunctions {
 	}
 	
 	private Encounter getLatestEncounter(EncounterType type, Date latestDate) {
-		List<Encounter> encounters = getAllEncounters(type, latestDate);
-		if (encounters == null || encounters.isEmpty()) {
+		return memoize("latestEncounter", () -> {
+			Patient p = getSavedPatient();
+			if (p == null) {
+				return null;
+			}
+			return HtmlFormEntryUtil.getService().getLatestEncounter(p, type, latestDate);
+		}, type, latestDate);
+	}
+	
+	/**
+	 * @return the date, type and location of the most recent encounter of the specified type, or of
+	 *         any type if none is specified, without loading the rest of the encounter
+	 */
+	public EncounterStub latestEncounterStub(String encounterTypeId) {
+		return latestEncounterStub(encounterTypeId, (Date) null);
+	}
+	
+	public EncounterStub latestEncounterStub(String encounterTypeId, String latestDateString) throws ParseException {
+		return latestEncounterStub(encounterTypeId, parseDate(latestDateString));
+	}
+	
+	public EncounterStub latestEncounterStub(String encounterTypeId, Date latestDate) {
+		return memoize("latestEncounterStub", () -> {
+			Patient p = getSavedPatient();
+			if (p == null) {
+				return null;
+			}
+			EncounterType encounterType = null;
+			if (StringUtils.isNotEmpty(encounterTypeId)) {
+				encounterType = HtmlFormEntryUtil.getEncounterType(encounterTypeId);
+			}
+			return HtmlFormEntryUtil.getService().getLatestEncounterStub(p, encounterType, latestDate);
+		}, encounterTypeId, latestDate);
+	}
+	
+	/**
+	 * @return the patient of the session, if it has been saved and so can have encounters
+	 */
+	private Patient getSavedPatient() {
+		if (session.getPatient() == null) {
 			return null;
-		} else {
-			return encounters.get(encounters.size() - 1);
 		}
+		cannotBePreviewed();
+		return session.getPatient().getPatientId() == null ? null : session.getPatient();
 	}
 	
 	/**
@@ -350,8 +445,13 @@ public class VelocityFunctions {
 		return null;
 	}
 	
-	@SuppressWarnings("deprecation")
 	public PatientState currentProgramWorkflowStatus(Integer programWorkflowId) {
+		return memoize("currentProgramWorkflowStatus", () -> findCurrentProgramWorkflowStatus(programWorkflowId),
+		    programWorkflowId);
+	}
+	
+	@SuppressWarnings("deprecation")
+	private PatientState findCurrentProgramWorkflowStatus(Integer programWorkflowId) {
 		Patient p = session.getPatient();
 		if (p == null || p.getId() == null) {
 			return null;
@@ -432,12 +532,17 @@ public class VelocityFunctions {
 		return currentProgramWorkflowStatus(programWorkflowId, parseDate(latestDateString));
 	}
 	
-	@SuppressWarnings("deprecation")
 	public PatientState currentProgramWorkflowStatus(Integer programWorkflowId, Date latestDate) {
 		if (latestDate == null) {
 			// the date format is invalid or the string is empty so just call the original method
 			return currentProgramWorkflowStatus(programWorkflowId);
 		}
+		return memoize("currentProgramWorkflowStatus", () -> findCurrentProgramWorkflowStatus(programWorkflowId, latestDate),
+		    programWorkflowId, latestDate);
+	}
+	
+	@SuppressWarnings("deprecation")
+	private PatientState findCurrentProgramWorkflowStatus(Integer programWorkflowId, Date latestDate) {
 		Patient p = session.getPatient();
 		if (p == null || p.getId() == null) {
 			return null;
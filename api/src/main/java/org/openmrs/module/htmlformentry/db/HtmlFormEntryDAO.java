@@ -1,14 +1,28 @@
 package org.openmrs.module.htmlformentry.db;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 import java.util.Set;
 
+import org.openmrs.Concept;
+import org.openmrs.Drug;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
 import org.openmrs.Form;
+import org.openmrs.Location;
+import org.openmrs.Order;
+import org.openmrs.Obs;
 import org.openmrs.OpenmrsMetadata;
 import org.openmrs.OpenmrsObject;
+import org.openmrs.Patient;
+import org.openmrs.Person;
 import org.openmrs.Program;
+import org.openmrs.Visit;
 import org.openmrs.module.htmlformentry.HtmlForm;
 import org.openmrs.module.htmlformentry.HtmlFormEntryService;
+import org.openmrs.module.htmlformentry.element.EncounterStub;
+import org.openmrs.module.htmlformentry.element.HtmlFormStub;
 import org.openmrs.module.htmlformentry.element.PersonStub;
 
 /**
@@ -40,6 +54,20 @@ public interface HtmlFormEntryDAO {
 	 */
 	public HtmlForm getHtmlFormByForm(Form form);
 	
+	/**
+	 * @return the id of the most-recently-created HtmlForm for the form with the given id, or null if
+	 *         there is none
+	 */
+	public Integer getHtmlFormIdByFormId(Integer formId);
+	
+	/**
+	 * @param excludedTypeIds encounters of the types with these ids are left out
+	 * @return whether the patient has a non-voided encounter of the given form at exactly the given
+	 *         date and time
+	 */
+	public boolean hasEncounter(Integer patientId, Integer formId, Date encounterDatetime,
+	        Collection<Integer> excludedTypeIds);
+	
 	/**
 	 * Saves an HtmlForm to the database
 	 * 
@@ -62,6 +90,18 @@ public interface HtmlFormEntryDAO {
 	 */
 	public List<HtmlForm> getAllHtmlForms();
 	
+	/**
+	 * Returns stubs of all HtmlForms, ordered by the names of their forms, without loading their xml
+	 *
+	 * @see HtmlFormEntryService#getAllHtmlFormStubs()
+	 */
+	public List<HtmlFormStub> getAllHtmlFormStubs();
+	
+	/**
+	 * @return the forms with the given ids, in no particular order
+	 */
+	public List<Form> getForms(Collection<Integer> ids);
+	
 	/**
 	 * @see HtmlFormEntryService#needsNameAndDescriptionMigration()
 	 */
@@ -92,8 +132,100 @@ public interface HtmlFormEntryDAO {
 	 */
 	public List<Integer> getPersonIdHavingAttributes(String attributeId, String attributeValue);
 	
+	/**
+	 * Returns stubs of the people who have all the given attributes and are enrolled in all the given
+	 * programs, ordered by name. Each person is returned once, with their preferred name, or with their
+	 * first non-voided name if none is preferred. People without a non-voided name are returned without
+	 * a name.
+	 *
+	 * @param attributes the names of the person attribute types
+	 * @param attributeValues the values the attributes must have, null meaning any value
+	 * @param programs the programs the people must have been enrolled in
+	 * @param personIdsToExclude people to leave out of the results
+	 * @see HtmlFormEntryService#getPeopleAsPersonStubs(List, List, List, List)
+	 */
+	public List<PersonStub> getPeopleAsPersonStubs(List<String> attributes, List<String> attributeValues,
+	        List<Program> programs, Collection<Integer> personIdsToExclude);
+	
 	/**
 	 * Return a List of patient ids who have ever been enrolled in the given program
 	 */
 	public Set<Integer> getPatientIdHavingEnrollments(Program program);
+	
+	/**
+	 * Returns the most recent non-voided obs of the person for the given question
+	 * 
+	 * @param person the person the obs are for
+	 * @param question the concept of the obs
+	 * @param onOrBefore if not null, obs after this date are left out
+	 * @param excludeEncounter whether to leave out the obs of the given encounter, or of no encounter
+	 *            if it is null
+	 * @param encounter the encounter whose obs to leave out
+	 * @param visit if not null, only obs recorded in an encounter of this visit are included
+	 * @param answer if not null, only obs with this coded value are included
+	 * @see HtmlFormEntryService#getLatestObsOutsideEncounter(Person, Concept, Date, Encounter, Visit,
+	 *      Concept)
+	 */
+	public Obs getLatestObs(Person person, Concept question, Date onOrBefore, boolean excludeEncounter,
+	        Encounter encounter, Visit visit, Concept answer);
+	
+	/**
+	 * @see HtmlFormEntryService#getEarliestObs(Person, Concept)
+	 */
+	public Obs getEarliestObs(Person person, Concept question);
+	
+	/**
+	 * @param excludedTypeIds encounters of the types with these ids are left out
+	 * @see HtmlFormEntryService#getLatestEncounter(Patient, EncounterType, Date)
+	 */
+	public Encounter getLatestEncounter(Patient patient, EncounterType type, Date onOrBefore,
+	        Collection<Integer> excludedTypeIds);
+	
+	/**
+	 * @param excludedTypeIds encounters of the types with these ids are left out
+	 * @see HtmlFormEntryService#getLatestEncounterStub(Patient, EncounterType, Date)
+	 */
+	public EncounterStub getLatestEncounterStub(Patient patient, EncounterType type, Date onOrBefore,
+	        Collection<Integer> excludedTypeIds);
+	
+	/**
+	 * Loads the concepts with the given ids or uuids, along with their names and answers, and the names
+	 * of their answers, in a few queries
+	 *
+	 * @see HtmlFormEntryService#prefetchConcepts(Collection, Collection)
+	 */
+	public List<Concept> getConceptsWithNamesAndAnswers(Collection<Integer> ids, Collection<String> uuids);
+	
+	/**
+	 * Loads the drugs with the given ids or uuids, along with their concepts and ingredients, in a few
+	 * queries
+	 *
+	 * @see HtmlFormEntryService#prefetchDrugs(Collection, Collection)
+	 */
+	public List<Drug> getDrugsWithConcepts(Collection<Integer> ids, Collection<String> uuids);
+	
+	/**
+	 * @see HtmlFormEntryService#prefetchConceptNames(Collection)
+	 */
+	public List<Concept> getConceptsWithNames(Collection<Integer> ids);
+	
+	/**
+	 * @see HtmlFormEntryService#prefetchDrugNames(Collection)
+	 */
+	public List<Drug> getDrugs(Collection<Integer> ids);
+	
+	/**
+	 * @see HtmlFormEntryService#getAllDrugsWithIngredients()
+	 */
+	public List<Drug> getAllDrugsWithIngredients();
+	
+	/**
+	 * @see HtmlFormEntryService#prefetchLocations(Collection, Collection)
+	 */
+	public List<Location> getLocations(Collection<Integer> ids, Collection<String> uuids);
+	
+	/**
+	 * @see HtmlFormEntryService#getOrders(Collection)
+	 */
+	public List<Order> getOrders(Collection<Integer> ids);
 }
@@ -1,6 +1,10 @@
 package org.openmrs.module.htmlformentry.db.hibernate;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -9,17 +13,33 @@ import org.apache.commons.logging.LogFactory;
 import org.hibernate.CacheMode;
 import org.hibernate.Criteria;
 import org.hibernate.Query;
+import org.hibernate.SQLQuery;
 import org.hibernate.criterion.Expression;
 import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.sql.JoinType;
 import org.hibernate.transform.Transformers;
+import org.openmrs.Concept;
+import org.openmrs.ConceptAnswer;
+import org.openmrs.Drug;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
 import org.openmrs.Form;
+import org.openmrs.Location;
+import org.openmrs.Obs;
 import org.openmrs.OpenmrsMetadata;
 import org.openmrs.OpenmrsObject;
+import org.openmrs.Patient;
+import org.openmrs.Person;
 import org.openmrs.Program;
+import org.openmrs.Visit;
 import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.api.db.hibernate.HibernateUtil;
 import org.openmrs.module.htmlformentry.HtmlForm;
 import org.openmrs.module.htmlformentry.db.HtmlFormEntryDAO;
+import org.openmrs.module.htmlformentry.element.EncounterStub;
+import org.openmrs.module.htmlformentry.element.HtmlFormStub;
 import org.openmrs.module.htmlformentry.element.PersonStub;
 
 /**
@@ -29,6 +49,8 @@ public class HibernateHtmlFormEntryDAO implements HtmlFormEntryDAO {
 	
 	private static Log log = LogFactory.getLog(HibernateHtmlFormEntryDAO.class);
 	
+	private static final int MAX_PARAMETERS_PER_QUERY = 500;
+	
 	private DbSessionFactory sessionFactory;
 	
 	public void setSessionFactory(DbSessionFactory sessionFactory) {
@@ -64,12 +86,28 @@ public class HibernateHtmlFormEntryDAO implements HtmlFormEntryDAO {
 		return (List<HtmlForm>) query.list();
 	}
 	
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<HtmlFormStub> getAllHtmlFormStubs() {
+		Query query = sessionFactory.getCurrentSession()
+		        .createQuery("select h.id as id, h.uuid as uuid, f.formId as formId, f.name as formName, "
+		                + "f.published as published, f.retired as retired from HtmlForm h join h.form f order by f.name asc");
+		query.setResultTransformer(Transformers.aliasToBean(HtmlFormStub.class));
+		return (List<HtmlFormStub>) query.list();
+	}
+	
+	@Override
+	public List<Form> getForms(Collection<Integer> ids) {
+		return getByIdsOrUuids("from Form f where f.formId in (:ids)", null, ids, null);
+	}
+	
 	@Override
 	@SuppressWarnings("unchecked")
 	public HtmlForm getHtmlFormByForm(Form form) {
 		Criteria crit = sessionFactory.getCurrentSession().createCriteria(HtmlForm.class);
 		crit.add(Restrictions.eq("form", form));
 		crit.addOrder(Order.desc("dateCreated"));
+		crit.setMaxResults(1);
 		List<HtmlForm> list = (List<HtmlForm>) crit.list();
 		if (list.size() >= 1)
 			return list.get(0);
@@ -77,6 +115,35 @@ public class HibernateHtmlFormEntryDAO implements HtmlFormEntryDAO {
 			return null;
 	}
 	
+	@Override
+	public Integer getHtmlFormIdByFormId(Integer formId) {
+		Criteria crit = sessionFactory.getCurrentSession().createCriteria(HtmlForm.class);
+		crit.add(Restrictions.eq("form.formId", formId));
+		crit.addOrder(Order.desc("dateCreated"));
+		crit.setProjection(Projections.id());
+		crit.setMaxResults(1);
+		return (Integer) crit.uniqueResult();
+	}
+	
+	@Override
+	public boolean hasEncounter(Integer patientId, Integer formId, Date encounterDatetime,
+	        Collection<Integer> excludedTypeIds) {
+		String hql = "select e.encounterId from Encounter e where e.patient.patientId = :patientId "
+		        + "and e.form.formId = :formId and e.encounterDatetime = :encounterDatetime and e.voided = false";
+		if (excludedTypeIds != null && !excludedTypeIds.isEmpty()) {
+			hql += " and e.encounterType.encounterTypeId not in (:excludedTypeIds)";
+		}
+		Query query = sessionFactory.getCurrentSession().createQuery(hql);
+		query.setInteger("patientId", patientId);
+		query.setInteger("formId", formId);
+		query.setTimestamp("encounterDatetime", encounterDatetime);
+		if (excludedTypeIds != null && !excludedTypeIds.isEmpty()) {
+			query.setParameterList("excludedTypeIds", excludedTypeIds);
+		}
+		query.setMaxResults(1);
+		return query.uniqueResult() != null;
+	}
+	
 	@Override
 	public boolean needsNameAndDescriptionMigration() {
 		Query query = sessionFactory.getCurrentSession().createQuery(
@@ -89,10 +156,14 @@ public class HibernateHtmlFormEntryDAO implements HtmlFormEntryDAO {
 	public List<PersonStub> getUsersAsPersonStubs(String roleName) {
 		String query = " select  u.person_id as id, pn.given_name as givenName, pn.family_name as familyName, pn.middle_name as middleName, pn.family_name2 as familyName2 from users u, person_name pn, user_role ur where u.retired = 0 and u.person_id = pn.person_id and pn.voided = 0 and u.user_id = ur.user_id  ";
 		if (roleName != null)
-			query += " and ur.role = '" + roleName + "' ";
+			query += " and ur.role = :roleName ";
 		query += " order by familyName ";
-		return (List<PersonStub>) sessionFactory.getCurrentSession().createSQLQuery(query).addScalar("id")
-		        .addScalar("givenName").addScalar("familyName").addScalar("middleName").addScalar("familyName2")
+		SQLQuery sqlQuery = sessionFactory.getCurrentSession().createSQLQuery(query);
+		if (roleName != null) {
+			sqlQuery.setString("roleName", roleName);
+		}
+		return (List<PersonStub>) sqlQuery.addScalar("id").addScalar("givenName").addScalar("familyName")
+		        .addScalar("middleName").addScalar("familyName2")
 		        .setResultTransformer(Transformers.aliasToBean(PersonStub.class)).list();
 	}
 	
@@ -144,12 +215,78 @@ public class HibernateHtmlFormEntryDAO implements HtmlFormEntryDAO {
 	@Override
 	@SuppressWarnings("unchecked")
 	public List<Integer> getPersonIdHavingAttributes(String attribute, String attributeValue) {
-		String query = "select distinct(pa.person_id) from person_attribute pa, person_attribute_type pat where pa.person_attribute_type_id = pat.person_attribute_type_id and pat.name='"
-		        + attribute + "'";
+		String query = "select distinct(pa.person_id) from person_attribute pa, person_attribute_type pat where pa.person_attribute_type_id = pat.person_attribute_type_id and pat.name = :attribute";
+		if (attributeValue != null) {
+			query = query + " and value = :attributeValue";
+		}
+		SQLQuery sqlQuery = sessionFactory.getCurrentSession().createSQLQuery(query);
+		sqlQuery.setString("attribute", attribute);
 		if (attributeValue != null) {
-			query = query + " and value='" + attributeValue + "'";
+			sqlQuery.setString("attributeValue", attributeValue);
 		}
-		return (List<Integer>) sessionFactory.getCurrentSession().createSQLQuery(query).list();
+		return (List<Integer>) sqlQuery.list();
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<PersonStub> getPeopleAsPersonStubs(List<String> attributes, List<String> attributeValues,
+	        List<Program> programs, Collection<Integer> personIdsToExclude) {
+		StringBuilder hql = new StringBuilder();
+		hql.append("select p.personId as id, pn.givenName as givenName, pn.middleName as middleName, ");
+		hql.append("pn.familyName as familyName, pn.familyName2 as familyName2 ");
+		hql.append("from Person p left join p.names pn with pn.voided = false ");
+		// one name for each person: the preferred name, or the first name if none is preferred, and the
+		// first preferred name if more than one is; people without a non-voided name are kept, without one
+		hql.append("where p.voided = false and (pn.personNameId is null or pn.personNameId = ");
+		hql.append("(select min(pn2.personNameId) from PersonName pn2 ");
+		hql.append("where pn2.person = p and pn2.voided = false and (pn2.preferred = true or not exists ");
+		hql.append("(select pn3.personNameId from PersonName pn3 where pn3.person = p and pn3.voided = false ");
+		hql.append("and pn3.preferred = true)))) ");
+		if (attributes != null) {
+			for (int i = 0; i < attributes.size(); i++) {
+				hql.append("and exists (select pa.personAttributeId from PersonAttribute pa where pa.person = p ");
+				hql.append("and pa.voided = false and pa.attributeType.name = :attribute" + i + " ");
+				if (getAttributeValue(attributeValues, i) != null) {
+					hql.append("and pa.value = :attributeValue" + i + " ");
+				}
+				hql.append(") ");
+			}
+		}
+		if (programs != null) {
+			for (int i = 0; i < programs.size(); i++) {
+				hql.append("and exists (select pp.patientProgramId from PatientProgram pp ");
+				hql.append("where pp.patient.patientId = p.personId and pp.voided = false and pp.program = :program" + i
+				        + ") ");
+			}
+		}
+		if (personIdsToExclude != null && !personIdsToExclude.isEmpty()) {
+			hql.append("and p.personId not in (:personIdsToExclude) ");
+		}
+		hql.append("order by pn.familyName, pn.givenName, p.personId");
+		
+		Query query = sessionFactory.getCurrentSession().createQuery(hql.toString());
+		if (attributes != null) {
+			for (int i = 0; i < attributes.size(); i++) {
+				query.setString("attribute" + i, attributes.get(i));
+				if (getAttributeValue(attributeValues, i) != null) {
+					query.setString("attributeValue" + i, getAttributeValue(attributeValues, i));
+				}
+			}
+		}
+		if (programs != null) {
+			for (int i = 0; i < programs.size(); i++) {
+				query.setEntity("program" + i, programs.get(i));
+			}
+		}
+		if (personIdsToExclude != null && !personIdsToExclude.isEmpty()) {
+			query.setParameterList("personIdsToExclude", personIdsToExclude);
+		}
+		query.setResultTransformer(Transformers.aliasToBean(PersonStub.class));
+		return (List<PersonStub>) query.list();
+	}
+	
+	private String getAttributeValue(List<String> attributeValues, int index) {
+		return attributeValues != null && attributeValues.size() > index ? attributeValues.get(index) : null;
 	}
 	
 	/**
@@ -165,4 +302,215 @@ public class HibernateHtmlFormEntryDAO implements HtmlFormEntryDAO {
 		query.setInteger("programId", program.getProgramId());
 		return new HashSet<Integer>(query.list());
 	}
+	
+	@Override
+	public Obs getLatestObs(Person person, Concept question, Date onOrBefore, boolean excludeEncounter,
+	        Encounter encounter, Visit visit, Concept answer) {
+		Criteria criteria = createObsCriteria(person, question);
+		if (onOrBefore != null) {
+			criteria.add(Restrictions.le("obsDatetime", onOrBefore));
+		}
+		// encounters and visits are compared by uuid, as they are by equals, since they may not be saved yet
+		if (excludeEncounter || visit != null) {
+			criteria.createAlias("encounter", "e", JoinType.LEFT_OUTER_JOIN);
+		}
+		if (excludeEncounter) {
+			if (encounter == null) {
+				criteria.add(Restrictions.isNotNull("encounter"));
+			} else {
+				criteria.add(Restrictions.or(Restrictions.isNull("encounter"), Restrictions.ne("e.uuid", encounter.getUuid())));
+			}
+		}
+		if (visit != null) {
+			criteria.createAlias("e.visit", "v");
+			criteria.add(Restrictions.eq("v.uuid", visit.getUuid()));
+		}
+		if (answer != null) {
+			criteria.add(Restrictions.eq("valueCoded.conceptId", answer.getConceptId()));
+		}
+		criteria.addOrder(Order.desc("obsDatetime"));
+		criteria.addOrder(Order.desc("obsId"));
+		criteria.setMaxResults(1);
+		return (Obs) criteria.uniqueResult();
+	}
+	
+	@Override
+	public Obs getEarliestObs(Person person, Concept question) {
+		Criteria criteria = createObsCriteria(person, question);
+		criteria.addOrder(Order.asc("obsDatetime"));
+		criteria.addOrder(Order.asc("obsId"));
+		criteria.setMaxResults(1);
+		return (Obs) criteria.uniqueResult();
+	}
+	
+	@Override
+	public Encounter getLatestEncounter(Patient patient, EncounterType type, Date onOrBefore,
+	        Collection<Integer> excludedTypeIds) {
+		return (Encounter) createLatestEncounterCriteria(patient, type, onOrBefore, excludedTypeIds).uniqueResult();
+	}
+	
+	@Override
+	public EncounterStub getLatestEncounterStub(Patient patient, EncounterType type, Date onOrBefore,
+	        Collection<Integer> excludedTypeIds) {
+		Criteria criteria = createLatestEncounterCriteria(patient, type, onOrBefore, excludedTypeIds);
+		criteria.createAlias("encounterType", "et");
+		criteria.createAlias("location", "l", JoinType.LEFT_OUTER_JOIN);
+		criteria.setProjection(Projections.projectionList().add(Projections.property("encounterId"), "id")
+		        .add(Projections.property("encounterDatetime"), "encounterDatetime")
+		        .add(Projections.property("et.encounterTypeId"), "encounterTypeId")
+		        .add(Projections.property("et.name"), "encounterTypeName")
+		        .add(Projections.property("l.locationId"), "locationId")
+		        .add(Projections.property("l.name"), "locationName"));
+		criteria.setResultTransformer(Transformers.aliasToBean(EncounterStub.class));
+		return (EncounterStub) criteria.uniqueResult();
+	}
+	
+	@Override
+	public List<Concept> getConceptsWithNamesAndAnswers(Collection<Integer> ids, Collection<String> uuids) {
+		List<Concept> concepts = getByIdsOrUuids(
+		    "select c from Concept c join fetch c.datatype join fetch c.conceptClass where c.conceptId in (:ids)",
+		    "select c from Concept c join fetch c.datatype join fetch c.conceptClass where c.uuid in (:uuids)", ids,
+		    uuids);
+		Set<Integer> conceptIds = new LinkedHashSet<Integer>();
+		for (Concept concept : concepts) {
+			conceptIds.add(concept.getConceptId());
+		}
+		// names and answers are fetched by separate queries, as fetching both at once would return
+		// every combination of them
+		Set<Integer> answerIds = new LinkedHashSet<Integer>();
+		for (Concept concept : this.<Concept> getByIdsOrUuids(
+		    "select distinct c from Concept c left join fetch c.answers a left join fetch a.answerConcept where c.conceptId in (:ids)",
+		    null, conceptIds, null)) {
+			for (ConceptAnswer answer : concept.getAnswers(true)) {
+				if (answer.getAnswerConcept() != null) {
+					answerIds.add(answer.getAnswerConcept().getConceptId());
+				}
+			}
+		}
+		conceptIds.addAll(answerIds);
+		getByIdsOrUuids("select distinct c from Concept c left join fetch c.names where c.conceptId in (:ids)", null,
+		    conceptIds, null);
+		return concepts;
+	}
+	
+	@Override
+	public List<Drug> getDrugsWithConcepts(Collection<Integer> ids, Collection<String> uuids) {
+		List<Drug> drugs = getByIdsOrUuids("select d from Drug d left join fetch d.concept where d.drugId in (:ids)",
+		    "select d from Drug d left join fetch d.concept where d.uuid in (:uuids)", ids, uuids);
+		Set<Integer> drugIds = new LinkedHashSet<Integer>();
+		for (Drug drug : drugs) {
+			drugIds.add(drug.getDrugId());
+		}
+		getByIdsOrUuids("select distinct d from Drug d left join fetch d.ingredients where d.drugId in (:ids)", null,
+		    drugIds, null);
+		return drugs;
+	}
+	
+	@Override
+	public List<Concept> getConceptsWithNames(Collection<Integer> ids) {
+		return getByIdsOrUuids("select distinct c from Concept c left join fetch c.names where c.conceptId in (:ids)",
+		    null, ids, null);
+	}
+	
+	@Override
+	public List<Drug> getDrugs(Collection<Integer> ids) {
+		return getByIdsOrUuids("from Drug d where d.drugId in (:ids)", null, ids, null);
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<Drug> getAllDrugsWithIngredients() {
+		return sessionFactory.getCurrentSession()
+		        .createQuery(
+		            "select distinct d from Drug d left join fetch d.concept left join fetch d.ingredients where d.retired = false")
+		        .list();
+	}
+	
+	@Override
+	public List<Location> getLocations(Collection<Integer> ids, Collection<String> uuids) {
+		return getByIdsOrUuids("from Location l where l.locationId in (:ids)", "from Location l where l.uuid in (:uuids)",
+		    ids, uuids);
+	}
+	
+	@Override
+	public List<org.openmrs.Order> getOrders(Collection<Integer> ids) {
+		// the query is polymorphic, so each order is loaded from the table of its own subclass as well
+		List<org.openmrs.Order> orders = getByIdsOrUuids("from Order o where o.orderId in (:ids)", null, ids, null);
+		List<org.openmrs.Order> ret = new ArrayList<org.openmrs.Order>(orders.size());
+		for (org.openmrs.Order order : orders) {
+			// an order that was already in the session as a proxy is returned as that proxy
+			ret.add(HibernateUtil.getRealObjectFromProxy(order));
+		}
+		return ret;
+	}
+	
+	/**
+	 * Runs the given queries for the ids and the uuids, in batches so that databases that limit the
+	 * number of parameters of a query are not exceeded
+	 *
+	 * @param idQuery a query with an "ids" parameter
+	 * @param uuidQuery a query with a "uuids" parameter, only needed if uuids are given
+	 * @return the distinct results of all the queries
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> List<T> getByIdsOrUuids(String idQuery, String uuidQuery, Collection<Integer> ids,
+	        Collection<String> uuids) {
+		Set<T> ret = new LinkedHashSet<T>();
+		if (ids != null) {
+			for (List<Integer> batch : partition(ids)) {
+				ret.addAll(sessionFactory.getCurrentSession().createQuery(idQuery).setParameterList("ids", batch).list());
+			}
+		}
+		if (uuids != null) {
+			for (List<String> batch : partition(uuids)) {
+				ret.addAll(
+				    sessionFactory.getCurrentSession().createQuery(uuidQuery).setParameterList("uuids", batch).list());
+			}
+		}
+		return new ArrayList<T>(ret);
+	}
+	
+	private <T> List<List<T>> partition(Collection<T> values) {
+		List<List<T>> batches = new ArrayList<List<T>>();
+		List<T> batch = new ArrayList<T>(MAX_PARAMETERS_PER_QUERY);
+		for (T value : values) {
+			if (batch.size() == MAX_PARAMETERS_PER_QUERY) {
+				batches.add(batch);
+				batch = new ArrayList<T>(MAX_PARAMETERS_PER_QUERY);
+			}
+			batch.add(value);
+		}
+		if (!batch.isEmpty()) {
+			batches.add(batch);
+		}
+		return batches;
+	}
+	
+	private Criteria createLatestEncounterCriteria(Patient patient, EncounterType type, Date onOrBefore,
+	        Collection<Integer> excludedTypeIds) {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Encounter.class);
+		criteria.add(Restrictions.eq("patient.patientId", patient.getPatientId()));
+		criteria.add(Restrictions.eq("voided", false));
+		if (type != null) {
+			criteria.add(Restrictions.eq("encounterType", type));
+		}
+		if (onOrBefore != null) {
+			criteria.add(Restrictions.le("encounterDatetime", onOrBefore));
+		}
+		if (excludedTypeIds != null && !excludedTypeIds.isEmpty()) {
+			criteria.add(Restrictions.not(Restrictions.in("encounterType.encounterTypeId", excludedTypeIds)));
+		}
+		criteria.addOrder(Order.desc("encounterDatetime"));
+		criteria.addOrder(Order.desc("encounterId"));
+		criteria.setMaxResults(1);
+		return criteria;
+	}
+	
+	private Criteria createObsCriteria(Person person, Concept question) {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Obs.class);
+		criteria.add(Restrictions.eq("person.personId", person.getPersonId()));
+		criteria.add(Restrictions.eq("concept.conceptId", question.getConceptId()));
+		criteria.add(Restrictions.eq("voided", false));
+		return criteria;
+	}
 }
@@ -58,11 +58,13 @@ public class AppointmentsElement implements HtmlGeneratorElement, FormSubmission
 				        && appointment.getStatus() != AppointmentStatus.Scheduled);
 			}
 		}
+		
+		// created here rather than when the html is generated, as handling a submission needs it either way
+		appointmentsWidget = new AppointmentsWidget(appointments, context, clazz);
 	}
 	
 	@Override
 	public String generateHtml(FormEntryContext context) {
-		appointmentsWidget = new AppointmentsWidget(appointments, context, clazz);
 		return appointmentsWidget.generateHtml(context);
 	}
 	
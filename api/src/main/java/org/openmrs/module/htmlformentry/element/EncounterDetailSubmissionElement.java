@@ -1,6 +1,5 @@
 package org.openmrs.module.htmlformentry.element;
 
-import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -22,9 +21,9 @@ import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
 import org.openmrs.module.htmlformentry.FormEntrySession;
 import org.openmrs.module.htmlformentry.FormSubmissionError;
 import org.openmrs.module.htmlformentry.HtmlFormEntryConstants;
-import org.openmrs.module.htmlformentry.HtmlFormEntryService;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
 import org.openmrs.module.htmlformentry.MetadataMappingResolver;
+import org.openmrs.module.htmlformentry.OptionListCache.OptionListType;
 import org.openmrs.module.htmlformentry.action.FormSubmissionControllerAction;
 import org.openmrs.module.htmlformentry.comparator.OptionComparator;
 import org.openmrs.module.htmlformentry.compatibility.EncounterCompatibility;
@@ -43,7 +42,6 @@ import org.openmrs.util.OpenmrsUtil;
 import org.springframework.util.StringUtils;
 
 import javax.servlet.http.HttpServletRequest;
-import java.lang.reflect.Method;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -168,9 +166,6 @@ public class EncounterDetailSubmissionElement implements HtmlGeneratorElement, F
 			// Only if specific person ids are not passed in do we get by user Role
 			if (providerOptions.isEmpty()) {
 				
-				List<PersonStub> users = new ArrayList<PersonStub>();
-				List<Option> providerUsers = new ArrayList<Option>();
-				
 				// If the "role" attribute is passed in, limit to users with this role
 				String roleParam = (String) parameters.get("role");
 				if (roleParam != null) {
@@ -185,21 +180,16 @@ public class EncounterDetailSubmissionElement implements HtmlGeneratorElement, F
 						if (role == null) {
 							throw new RuntimeException("Cannot find role: " + roleParam);
 						} else {
-							users = Context.getService(HtmlFormEntryService.class).getUsersAsPersonStubs(role.getRole());
+							providerOptions.addAll(
+							    HtmlFormEntryUtil.getOptions(OptionListType.USER_PERSON, role.getRole(), false));
 						}
 					}
 				}
 				
 				// Otherwise, use default options appropriate to the underlying OpenMRS version
 				else {
-					users = getAllProvidersThatArePersonsAsPersonStubs();
-				}
-				for (PersonStub personStub : users) {
-					String optionLabel = StringEscapeUtils.escapeHtml(personStub.toString());
-					Option option = new Option(optionLabel, personStub.getId().toString(), false);
-					providerUsers.add(option);
+					providerOptions.addAll(HtmlFormEntryUtil.getOptions(OptionListType.PROVIDER_PERSON, null, true));
 				}
-				providerOptions.addAll(providerUsers);
 			}
 			
 			Collections.sort(providerOptions, new OptionComparator());
@@ -360,25 +350,32 @@ public class EncounterDetailSubmissionElement implements HtmlGeneratorElement, F
 				
 			}
 			
+			boolean restrictToCurrentVisitLocation = (parameters.get("restrictToCurrentVisitLocation") != null
+			        && "true".equalsIgnoreCase(parameters.get("restrictToCurrentVisitLocation").toString())
+			        || "true".equalsIgnoreCase(Context.getAdministrationService().getGlobalProperty(
+			            HtmlFormEntryConstants.GP_RESTRICT_ENCOUNTER_LOCATION_TO_CURRENT_VISIT_LOCATION)))
+			        && context.getVisit() != null;
+			boolean restrictToSessionVisitLocation = parameters.get("restrictToSessionVisitLocation") != null
+			        && "true".equalsIgnoreCase(parameters.get("restrictToSessionVisitLocation").toString());
+			
+			// if no locations have been specified, and none are to be removed, use the shared options for all non-retired locations
+			if (locations.isEmpty() && !restrictToCurrentVisitLocation && !restrictToSessionVisitLocation) {
+				locationOptions.addAll(HtmlFormEntryUtil.getOptions(OptionListType.LOCATION, null, false));
+			}
+			
 			// if no locations have been specified by the order attribute, use all non-retired locations
-			if (locations.isEmpty()) {
+			else if (locations.isEmpty()) {
 				locations = Context.getLocationService().getAllLocations(false);
 			}
 			
 			// restrict to visit locations if necessary
-			if ((parameters.get("restrictToCurrentVisitLocation") != null
-			        && "true".equalsIgnoreCase(parameters.get("restrictToCurrentVisitLocation").toString())
-			        || "true".equalsIgnoreCase(Context.getAdministrationService().getGlobalProperty(
-			            HtmlFormEntryConstants.GP_RESTRICT_ENCOUNTER_LOCATION_TO_CURRENT_VISIT_LOCATION)))
-			        && context.getVisit() != null) {
+			if (restrictToCurrentVisitLocation) {
 				locations = HtmlFormEntryUtil.removeLocationsNotEqualToOrDescendentOf(locations,
 				    ((Visit) context.getVisit()).getLocation());
 			}
 
             // restrict to visit locations associated with the user login location
-            if (parameters.get("restrictToSessionVisitLocation") != null
-                    && "true".equalsIgnoreCase(parameters.get("restrictToSessionVisitLocation").toString())
-                    ) {
+            if (restrictToSessionVisitLocation) {
                 Location loginLocation = Context.getUserContext().getLocation();
                 if (loginLocation != null) {
                     //find the nearest Visit location
@@ -500,72 +497,14 @@ public class EncounterDetailSubmissionElement implements HtmlGeneratorElement, F
 	}
 	
 	/**
-	 * This method exists to allow us to quickly support providers as introduce in OpenMRS 1.9.x,
-	 * without having to branch the module. We should remove this method when do a proper
-	 * implementation.
-	 *
-	 * @return all providers that are attached to persons
-	 */
-	private List<Object> getAllProvidersThatArePersons() {
-		try {
-			Object providerService = Context.getService(Context.loadClass("org.openmrs.api.ProviderService"));
-			Method getProvidersMethod = providerService.getClass().getMethod("getAllProviders");
-			@SuppressWarnings("rawtypes")
-			List allProviders = (List) getProvidersMethod.invoke(providerService);
-			List<Object> ret = new ArrayList<Object>();
-			for (Object provider : allProviders) {
-				Person person = (Person) PropertyUtils.getProperty(provider, "person");
-				if (person != null)
-					ret.add(provider);
-			}
-			return ret;
-		}
-		catch (Exception ex) {
-			throw new RuntimeException("Programming error in HTML Form Entry module. This method should be safe!", ex);
-		}
-	}
-	
-	/**
-	 * This method exists to allow us to quickly support providers as introduce in OpenMRS 1.9.x,
-	 * without having to branch the module. We should remove this method when do a proper
-	 * implementation.
-	 *
-	 * @return person stubs for all providers that are attached to persons
-	 */
-	private List<PersonStub> getAllProvidersThatArePersonsAsPersonStubs() {
-		try {
-			List<PersonStub> ret = new ArrayList<PersonStub>();
-			for (Object provider : getAllProvidersThatArePersons()) {
-				Person person = (Person) PropertyUtils.getProperty(provider, "person");
-				ret.add(new PersonStub(person));
-			}
-			return ret;
-		}
-		catch (Exception ex) {
-			throw new RuntimeException("Programming error in HTML Form Entry module. This method should be safe!", ex);
-		}
-	}
-	
-	/**
-	 * This method exists to allow us to quickly support providers as introduce in OpenMRS 1.9.x,
-	 * without having to branch the module. We should remove this method when do a proper
-	 * implementation.
-	 *
 	 * @return personIds of all providers that are attached to persons
 	 */
 	private Set<Integer> getAllProviderPersonIds() {
-		try {
-			Set<Integer> ret = new HashSet<Integer>();
-			for (Object candidate : getAllProvidersThatArePersons()) {
-				Person person = (Person) PropertyUtils.getProperty(candidate, "person");
-				if (person != null)
-					ret.add(person.getPersonId());
-			}
-			return ret;
-		}
-		catch (Exception ex) {
-			throw new RuntimeException("Programming error in HTML Form Entry module. This method should be safe!", ex);
+		Set<Integer> ret = new HashSet<Integer>();
+		for (Option option : HtmlFormEntryUtil.getOptions(OptionListType.PROVIDER_PERSON, null, true)) {
+			ret.add(Integer.valueOf(option.getValue()));
 		}
+		return ret;
 	}
 	
 	/**
@@ -0,0 +1,90 @@
+package org.openmrs.module.htmlformentry.element;
+
+import java.util.Date;
+
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * A "Stub" version of an encounter, with just enough to display when and where it took place,
+ * for forms that show details of a previous encounter without needing its obs, orders, or providers
+ */
+public class EncounterStub extends ValueStub {
+	
+	private Date encounterDatetime;
+	
+	private Integer encounterTypeId;
+	
+	private String encounterTypeName;
+	
+	private Integer locationId;
+	
+	private String locationName;
+	
+	public EncounterStub() {
+	}
+	
+	public Date getEncounterDatetime() {
+		return encounterDatetime;
+	}
+	
+	public void setEncounterDatetime(Date encounterDatetime) {
+		this.encounterDatetime = encounterDatetime;
+	}
+	
+	public Integer getEncounterTypeId() {
+		return encounterTypeId;
+	}
+	
+	public void setEncounterTypeId(Integer encounterTypeId) {
+		this.encounterTypeId = encounterTypeId;
+	}
+	
+	public String getEncounterTypeName() {
+		return encounterTypeName;
+	}
+	
+	public void setEncounterTypeName(String encounterTypeName) {
+		this.encounterTypeName = encounterTypeName;
+	}
+	
+	public Integer getLocationId() {
+		return locationId;
+	}
+	
+	public void setLocationId(Integer locationId) {
+		this.locationId = locationId;
+	}
+	
+	public String getLocationName() {
+		return locationName;
+	}
+	
+	public void setLocationName(String locationName) {
+		this.locationName = locationName;
+	}
+	
+	@Override
+	public String getDisplayValue() {
+		return encounterTypeName;
+	}
+	
+	@Override
+	public String toString() {
+		return getDisplayValue();
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (o != null && o instanceof EncounterStub) {
+			EncounterStub oOther = (EncounterStub) o;
+			if (OpenmrsUtil.nullSafeEquals(oOther.getId(), this.getId()))
+				return true;
+		}
+		return false;
+	}
+	
+	@Override
+	public int hashCode() {
+		return getId() == null ? 0 : getId().hashCode();
+	}
+}
@@ -0,0 +1,88 @@
+package org.openmrs.module.htmlformentry.element;
+
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * A "Stub" version of an html form, with the id, name and status of its form but not its xml, for
+ * listing forms without loading the xml of each one
+ */
+public class HtmlFormStub extends ValueStub {
+	
+	private String uuid;
+	
+	private Integer formId;
+	
+	private String formName;
+	
+	private boolean published;
+	
+	private boolean retired;
+	
+	public HtmlFormStub() {
+	}
+	
+	public String getUuid() {
+		return uuid;
+	}
+	
+	public void setUuid(String uuid) {
+		this.uuid = uuid;
+	}
+	
+	public Integer getFormId() {
+		return formId;
+	}
+	
+	public void setFormId(Integer formId) {
+		this.formId = formId;
+	}
+	
+	public String getFormName() {
+		return formName;
+	}
+	
+	public void setFormName(String formName) {
+		this.formName = formName;
+	}
+	
+	public boolean isPublished() {
+		return published;
+	}
+	
+	public void setPublished(boolean published) {
+		this.published = published;
+	}
+	
+	public boolean isRetired() {
+		return retired;
+	}
+	
+	public void setRetired(boolean retired) {
+		this.retired = retired;
+	}
+	
+	@Override
+	public String getDisplayValue() {
+		return formName;
+	}
+	
+	@Override
+	public String toString() {
+		return getDisplayValue();
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (o != null && o instanceof HtmlFormStub) {
+			HtmlFormStub oOther = (HtmlFormStub) o;
+			if (OpenmrsUtil.nullSafeEquals(oOther.getId(), this.getId()))
+				return true;
+		}
+		return false;
+	}
+	
+	@Override
+	public int hashCode() {
+		return getId() == null ? 0 : getId().hashCode();
+	}
+}
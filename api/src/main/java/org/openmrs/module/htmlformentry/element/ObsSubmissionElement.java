@@ -22,6 +22,7 @@ import org.openmrs.module.htmlformentry.FormSubmissionError;
 import org.openmrs.module.htmlformentry.HtmlFormEntryConstants;
 import org.openmrs.module.htmlformentry.HtmlFormEntryService;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.openmrs.module.htmlformentry.OptionListCache.OptionListType;
 import org.openmrs.module.htmlformentry.action.FormSubmissionControllerAction;
 import org.openmrs.module.htmlformentry.comparator.OptionComparator;
 import org.openmrs.module.htmlformentry.schema.ObsField;
@@ -522,41 +523,58 @@ public class ObsSubmissionElement<T extends FormEntryContext> implements HtmlGen
 						    new Option(Context.getMessageSourceService().getMessage("htmlformentry.chooseALocation"), "",
 						            !initialValueIsSet));
 					}
-					// if "answerLocationTags" attribute is present try to get locations by tags
-					List<Location> locationList = HtmlFormEntryUtil
-					        .getLocationsByTags(HtmlFormEntryConstants.ANSWER_LOCATION_TAGS, parameters);
-					if ((locationList == null) || (locationList != null && locationList.size() < 1)) {
-						// if no locations by tags are found then get all locations
-						locationList = Context.getLocationService().getAllLocations();
-					}
-					
-					// if "restrictToVisitLocation" parameter remove all locations that aren't children of the visit location
-					if ("true".equalsIgnoreCase(parameters.get("restrictToCurrentVisitLocation"))
-					        && context.getVisit() != null) {
-						HtmlFormEntryUtil.removeLocationsNotEqualToOrDescendentOf(locationList,
-						    ((Visit) context.getVisit()).getLocation());
-					}
-                    // if "restrictToSessionVisitLocation" parameter remove all locations that aren't children of the login Visit location
-                    if ("true".equalsIgnoreCase(parameters.get("restrictToSessionVisitLocation"))) {
-                        Location loginLocation = Context.getUserContext().getLocation();
-                        if (loginLocation != null) {
-                            //find the nearest Visit location
-                            Location visitLocation = HtmlFormEntryUtil.getFirstAncestorWithTag(loginLocation, HtmlFormEntryUtil.getLocationTag("Visit Location"));
-                            if (visitLocation != null) {
-                                HtmlFormEntryUtil.removeLocationsNotEqualToOrDescendentOf(locationList, visitLocation);
-                            }
-                        }
-                    }
-					
-					List<Option> locationOptions = new ArrayList<>();
-					for (Location location : locationList) {
-						String label = HtmlFormEntryUtil.format(location);
-						Option option = new Option(label, location.getId().toString(),
-						        location.getId().toString().equals(initialValue));
-						locationOptions.add(option);
+					boolean restrictToCurrentVisitLocation = "true"
+					        .equalsIgnoreCase(parameters.get("restrictToCurrentVisitLocation")) && context.getVisit() != null;
+					boolean restrictToSessionVisitLocation = "true"
+					        .equalsIgnoreCase(parameters.get("restrictToSessionVisitLocation"));
+					List<Option> locationOptions;
+					if (!restrictToCurrentVisitLocation && !restrictToSessionVisitLocation) {
+						// the options for the locations with the "answerLocationTags", or all locations if there are none, are shared by all forms
+						locationOptions = HtmlFormEntryUtil.getOptions(OptionListType.LOCATION,
+						    parameters.get(HtmlFormEntryConstants.ANSWER_LOCATION_TAGS), true);
+						if (locationOptions.isEmpty()) {
+							locationOptions = HtmlFormEntryUtil.getOptions(OptionListType.LOCATION, null, true);
+						}
+						for (Option option : locationOptions) {
+							option.setSelected(option.getValue().equals(initialValue));
+						}
+					} else {
+						// if "answerLocationTags" attribute is present try to get locations by tags
+						List<Location> locationList = HtmlFormEntryUtil
+						        .getLocationsByTags(HtmlFormEntryConstants.ANSWER_LOCATION_TAGS, parameters);
+						if ((locationList == null) || (locationList != null && locationList.size() < 1)) {
+							// if no locations by tags are found then get all locations
+							locationList = Context.getLocationService().getAllLocations();
+						}
+						
+						// if "restrictToVisitLocation" parameter remove all locations that aren't children of the visit location
+						if ("true".equalsIgnoreCase(parameters.get("restrictToCurrentVisitLocation"))
+						        && context.getVisit() != null) {
+							HtmlFormEntryUtil.removeLocationsNotEqualToOrDescendentOf(locationList,
+							    ((Visit) context.getVisit()).getLocation());
+						}
+						// if "restrictToSessionVisitLocation" parameter remove all locations that aren't children of the login Visit location
+						if ("true".equalsIgnoreCase(parameters.get("restrictToSessionVisitLocation"))) {
+							Location loginLocation = Context.getUserContext().getLocation();
+							if (loginLocation != null) {
+								//find the nearest Visit location
+								Location visitLocation = HtmlFormEntryUtil.getFirstAncestorWithTag(loginLocation, HtmlFormEntryUtil.getLocationTag("Visit Location"));
+								if (visitLocation != null) {
+									HtmlFormEntryUtil.removeLocationsNotEqualToOrDescendentOf(locationList, visitLocation);
+								}
+							}
+						}
+						
+						locationOptions = new ArrayList<>();
+						for (Location location : locationList) {
+							String label = HtmlFormEntryUtil.format(location);
+							Option option = new Option(label, location.getId().toString(),
+							        location.getId().toString().equals(initialValue));
+							locationOptions.add(option);
+						}
+						Collections.sort(locationOptions, new OptionComparator());
 					}
-					Collections.sort(locationOptions, new OptionComparator());
-					
+						
 					if (!locationOptions.isEmpty()) {
 						for (Option option : locationOptions)
 							((SingleOptionWidget) valueWidget).addOption(option);
@@ -578,23 +596,11 @@ public class ObsSubmissionElement<T extends FormEntryContext> implements HtmlGen
 						    new Option(Context.getMessageSourceService().getMessage("htmlformentry.chooseAProvider"), "",
 						            !initialValueIsSet));
 					}
-					List<String> roleIds = new ArrayList<>();
-					String roleParam = parameters.get("providerRoles");
-					if (StringUtils.isNotBlank(roleParam)) {
-						for (String roleId : roleParam.split(",")) {
-							roleIds.add(roleId.trim());
-						}
-					}
-					List<Provider> providers = HtmlFormEntryUtil.getProviders(roleIds, true);
-					
-					List<Option> providerOptions = new ArrayList<>();
-					for (Provider provider : providers) {
-						String providerId = provider.getId().toString();
-						String label = HtmlFormEntryUtil.format(provider);
-						Option option = new Option(label, providerId, providerId.equals(initialValue));
-						providerOptions.add(option);
+					List<Option> providerOptions = HtmlFormEntryUtil.getOptions(OptionListType.PROVIDER,
+					    parameters.get("providerRoles"), false);
+					for (Option option : providerOptions) {
+						option.setSelected(option.getValue().equals(initialValue));
 					}
-					Collections.sort(providerOptions, new OptionComparator());
 					
 					if (!providerOptions.isEmpty()) {
 						for (Option option : providerOptions) {
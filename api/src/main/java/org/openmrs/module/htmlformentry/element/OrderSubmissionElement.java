@@ -6,7 +6,6 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.CareSetting;
 import org.openmrs.Concept;
-import org.openmrs.Drug;
 import org.openmrs.DrugOrder;
 import org.openmrs.Duration;
 import org.openmrs.Encounter;
@@ -31,6 +30,7 @@ import javax.servlet.http.HttpServletRequest;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -88,7 +88,17 @@ public class OrderSubmissionElement implements HtmlGeneratorElement, FormSubmiss
 	 */
 	protected void populateExistingOrders(FormEntryContext context) {
 		existingOrders = new ArrayList<>();
-		for (Concept c : orderWidget.getWidgetConfig().getConceptsAndDrugsConfigured().keySet()) {
+		Map<Integer, Concept> conceptsWithExistingOrders = new HashMap<>();
+		if (context.getExistingOrders() != null) {
+			for (Concept c : context.getExistingOrders().keySet()) {
+				conceptsWithExistingOrders.put(c.getConceptId(), c);
+			}
+		}
+		for (Integer conceptId : orderWidget.getWidgetConfig().getDrugIdsConfigured().keySet()) {
+			Concept c = conceptsWithExistingOrders.get(conceptId);
+			if (c == null) {
+				continue;
+			}
 			Order o = context.removeExistingOrder(c);
 			while (o != null) {
 				existingOrders.add(o);
@@ -104,7 +114,7 @@ public class OrderSubmissionElement implements HtmlGeneratorElement, FormSubmiss
 	public Collection<FormSubmissionError> validateSubmission(FormEntryContext ctx, HttpServletRequest submission) {
 		List<FormSubmissionError> ret = new ArrayList<>();
 		List<OrderWidgetValue> orderValues = orderWidget.getValue(ctx, submission);
-		Map<Concept, List<Drug>> conceptsAndDrugs = orderWidget.getWidgetConfig().getConceptsAndDrugsConfigured();
+		Map<Integer, List<Integer>> drugIdsConfigured = orderWidget.getWidgetConfig().getDrugIdsConfigured();
 		List<Order> newOrders = new ArrayList<>();
 		for (OrderWidgetValue v : orderValues) {
 			Order newOrder = v.getNewOrder();
@@ -135,7 +145,9 @@ public class OrderSubmissionElement implements HtmlGeneratorElement, FormSubmiss
 						if (newDrugOrder.getDrug() == null && StringUtils.isBlank(newDrugOrder.getDrugNonCoded())) {
 							boolean isDrugRequired = getGlobalProperty("drugOrder.requireDrug", false);
 							if (isDrugRequired) {
-								List<Drug> drugsConfigured = conceptsAndDrugs.get(newDrugOrder.getConcept());
+								Concept concept = newDrugOrder.getConcept();
+								List<Integer> drugsConfigured = concept == null ? null
+								        : drugIdsConfigured.get(concept.getConceptId());
 								if (drugsConfigured != null && !drugsConfigured.isEmpty()) {
 									handleRequiredField(ret, ctx, fs, "drug", newDrugOrder.getDrug());
 								} else {
@@ -266,9 +278,9 @@ public class OrderSubmissionElement implements HtmlGeneratorElement, FormSubmiss
 	 */
 	public List<Order> getOrders(Patient patient, OrderWidgetConfig config) {
 		List<Order> ret = new ArrayList<>();
-		Set<Concept> configuredConcepts = config.getConceptsAndDrugsConfigured().keySet();
-		if (patient != null && !configuredConcepts.isEmpty()) {
-			ret = HtmlFormEntryUtil.getOrdersForPatient(patient, configuredConcepts);
+		Set<Integer> configuredConceptIds = config.getDrugIdsConfigured().keySet();
+		if (patient != null && !configuredConceptIds.isEmpty()) {
+			ret = HtmlFormEntryUtil.getOrdersForPatientByConceptIds(patient, configuredConceptIds);
 		}
 		return ret;
 	}
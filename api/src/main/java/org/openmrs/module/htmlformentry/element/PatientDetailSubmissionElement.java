@@ -28,9 +28,9 @@ import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
 import org.openmrs.module.htmlformentry.FormEntrySession;
 import org.openmrs.module.htmlformentry.FormSubmissionError;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.openmrs.module.htmlformentry.OptionListCache.OptionListType;
 import org.openmrs.module.htmlformentry.ValidationException;
 import org.openmrs.module.htmlformentry.action.FormSubmissionControllerAction;
-import org.openmrs.module.htmlformentry.comparator.OptionComparator;
 import org.openmrs.module.htmlformentry.widget.AddressWidget;
 import org.openmrs.module.htmlformentry.widget.DateWidget;
 import org.openmrs.module.htmlformentry.widget.DropdownWidget;
@@ -50,7 +50,6 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -198,13 +197,10 @@ public class PatientDetailSubmissionElement implements HtmlGeneratorElement, For
 			defaultLocation = defaultLocation == null ? context.getDefaultLocation() : defaultLocation;
 			identifierLocationWidget.setInitialValue(defaultLocation);
 			
-			List<Option> locationOptions = new ArrayList<Option>();
-			for (Location location : Context.getLocationService().getAllLocations()) {
-				Option option = new Option(location.getName(), location.getId().toString(),
-				        location.equals(defaultLocation));
-				locationOptions.add(option);
+			List<Option> locationOptions = HtmlFormEntryUtil.getOptions(OptionListType.LOCATION_NAME, null, true);
+			for (Option option : locationOptions) {
+				option.setSelected(defaultLocation != null && option.getValue().equals(defaultLocation.getId().toString()));
 			}
-			Collections.sort(locationOptions, new OptionComparator());
 			
 			// if initialValueIsSet=false, no initial/default location, hence this shows the 'select input' field as first option
 			boolean initialValueIsSet = !(defaultLocation == null);
@@ -158,7 +158,7 @@ public class HtmlFormEntryExportUtil {
 		
 		//this should move existing obs from session to tag handlers.
 		FormEntrySession session = new FormEntrySession(e.getPatient(), e, FormEntryContext.Mode.VIEW, htmlform, null); // session gets a null HttpSession
-		session.getHtmlToDisplay();
+		session.createFormWithoutHtml();
 		
 		if (log.isDebugEnabled()) {
 			Map<Concept, List<Obs>> map = session.getContext().getExistingObs();
@@ -237,7 +237,7 @@ public class HtmlFormEntryExportUtil {
 	public static String generateColumnHeadersFromHtmlForm(HtmlForm form, List<String> extraCols, StringBuffer sb,
 	        List<PatientIdentifierType> pitList) throws Exception {
 		FormEntrySession session = new FormEntrySession(HtmlFormEntryUtil.getFakePerson(), form, null); // session gets a null HttpSession
-		session.getHtmlToDisplay();
+		session.createFormWithoutHtml();
 		HtmlFormSchema hfs = session.getContext().getSchema();
 		
 		sb.append(DEFAULT_QUOTE).append("ENCOUNTER_ID").append(DEFAULT_QUOTE).append(DEFAULT_COLUMN_SEPARATOR)
@@ -377,7 +377,7 @@ public class HtmlFormEntryExportUtil {
 			}
 			
 			FormEntrySession session = new FormEntrySession(e.getPatient(), e, Mode.VIEW, form, null); // session doesn't get HttpSession
-			session.getHtmlToDisplay();
+			session.createFormWithoutHtml();
 			FormSubmissionController fsa = session.getSubmissionController();
 			List<FormSubmissionControllerAction> actions = fsa.getActions();
 			for (FormSubmissionControllerAction fsca : actions) {
@@ -22,6 +22,6 @@ public class AppointmentsTagHandler extends SubstitutionTagHandler {
 	        Map<String, String> parameters) {
 		AppointmentsElement element = new AppointmentsElement(session.getContext(), parameters);
 		session.getSubmissionController().addAction(element);
-		return element.generateHtml(session.getContext());
+		return session.generateHtml(element);
 	}
 }
@@ -28,7 +28,7 @@ public class CompleteProgramHandler extends SubstitutionTagHandler implements Ta
 		CompleteProgramElement element = new CompleteProgramElement(session.getContext(), parameters);
 		session.getSubmissionController().addAction(element);
 		
-		return element.generateHtml(session.getContext());
+		return session.generateHtml(element);
 	}
 	
 }
@@ -40,6 +40,6 @@ public class ConditionTagHandler extends SubstitutionTagHandler {
 		}
 		
 		session.getSubmissionController().addAction(conditionElement);
-		return conditionElement.generateHtml(session.getContext());
+		return session.generateHtml(conditionElement);
 	}
 }
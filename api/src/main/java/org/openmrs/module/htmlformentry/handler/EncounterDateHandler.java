@@ -28,7 +28,7 @@ public class EncounterDateHandler extends SubstitutionTagHandler {
 		EncounterDetailSubmissionElement element = new EncounterDetailSubmissionElement(session.getContext(), temp);
 		session.getSubmissionController().addAction(element);
 		
-		return element.generateHtml(session.getContext());
+		return session.generateHtml(element);
 	}
 	
 }
@@ -49,7 +49,7 @@ public class EncounterProviderAndRoleTagHandler extends SubstitutionTagHandler {
 	        Map<String, String> parameters) throws BadFormDesignException {
 		ProviderAndRoleElement element = new ProviderAndRoleElement(session.getContext(), parameters);
 		session.getSubmissionController().addAction(element);
-		return element.generateHtml(session.getContext());
+		return session.generateHtml(element);
 	}
 	
 }
@@ -36,7 +36,7 @@ public class EncounterProviderHandler extends SubstitutionTagHandler {
 		EncounterDetailSubmissionElement element = new EncounterDetailSubmissionElement(session.getContext(), temp);
 		session.getSubmissionController().addAction(element);
 		
-		return element.generateHtml(session.getContext());
+		return session.generateHtml(element);
 	}
 	
 }
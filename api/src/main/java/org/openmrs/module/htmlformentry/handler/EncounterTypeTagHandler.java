@@ -53,7 +53,7 @@ public class EncounterTypeTagHandler extends SubstitutionTagHandler implements T
 		EncounterDetailSubmissionElement element = new EncounterDetailSubmissionElement(session.getContext(), temp);
 		session.getSubmissionController().addAction(element);
 		
-		return element.generateHtml(session.getContext());
+		return session.generateHtml(element);
 	}
 	
 }
@@ -23,6 +23,6 @@ public class ExitFromCareTagHandler extends SubstitutionTagHandler {
 		ExitFromCareSubmissionElement element = new ExitFromCareSubmissionElement(session.getContext(), parameters);
 		session.getSubmissionController().addAction(element);
 		
-		return element.generateHtml(session.getContext());
+		return session.generateHtml(element);
 	}
 }
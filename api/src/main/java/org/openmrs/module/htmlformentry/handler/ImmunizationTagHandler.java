@@ -17,6 +17,6 @@ public class ImmunizationTagHandler extends SubstitutionTagHandler {
 	        Map<String, String> parameters) throws BadFormDesignException {
 		ImmunizationSubmissionElement element = new ImmunizationSubmissionElement(session.getContext(), parameters);
 		submissionController.addAction(element);
-		return element.generateHtml(session.getContext());
+		return session.generateHtml(element);
 	}
 }
@@ -73,7 +73,7 @@ public class MarkPatientDeadTagHandler extends SubstitutionTagHandler {
 			action.setCheckboxWidget(checkboxWidget);
 			controllerActions.addAction(action);
 			
-			return checkboxWidget.generateHtml(session.getContext());
+			return session.generateHtml(checkboxWidget::generateHtml);
 		}
 		
 		controllerActions.addAction(action);
@@ -7,11 +7,12 @@ import org.openmrs.Concept;
 import org.openmrs.Obs;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.htmlformentry.BadFormDesignException;
+import org.openmrs.module.htmlformentry.DeferringPrintWriter;
 import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
 import org.openmrs.module.htmlformentry.FormEntrySession;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
-import org.openmrs.module.htmlformentry.ObsGroupComponent;
 import org.openmrs.module.htmlformentry.action.ObsGroupAction;
+import org.openmrs.module.htmlformentry.matching.ObsGroupDescriptor;
 import org.openmrs.module.htmlformentry.matching.ObsGroupEntity;
 import org.openmrs.module.htmlformentry.schema.ObsGroup;
 import org.w3c.dom.Node;
@@ -96,7 +97,11 @@ public class ObsGroupTagHandler extends AbstractTagHandler {
 		
 		String name = attributes.get("label");
 		// find relevant obs group to display for this element
-		Obs thisGroup = findObsGroup(session, node, attributes.get("groupingConceptId"), hiddenQuestion, hiddenAnswer);
+		ObsGroupDescriptor descriptor = session.getContext().getObsGroupDescriptor(node);
+		if (hiddenQuestion != null && hiddenQuestion.getDatatype().isCoded()) {
+			descriptor = descriptor.withHiddenObs(hiddenQuestion, (Concept) hiddenAnswer);
+		}
+		Obs thisGroup = findObsGroup(session, descriptor);
 		
 		boolean digDeeper = true;
 		
@@ -104,16 +109,17 @@ public class ObsGroupTagHandler extends AbstractTagHandler {
 		        && (session.getContext().getMode() == Mode.EDIT || session.getContext().getMode() == Mode.VIEW)) {
 			if (!session.getContext().isUnmatchedMode()) {
 				ObsGroupEntity obsGroupEntity = new ObsGroupEntity();
-				obsGroupEntity.setPath(ObsGroupComponent.getObsGroupPath(node));
-				obsGroupEntity.setQuestionsAndAnswers(hiddenQuestion != null && hiddenQuestion.getDatatype().isCoded()
-				        ? ObsGroupComponent.findQuestionsAndAnswersForGroup(attributes.get("groupingConceptId"),
-				            hiddenQuestion, (Concept) hiddenAnswer, node)
-				        : ObsGroupComponent.findQuestionsAndAnswersForGroup(attributes.get("groupingConceptId"), node));
+				obsGroupEntity.setPath(descriptor.getPath());
+				obsGroupEntity.setDescriptor(descriptor);
 				obsGroupEntity.setXmlObsGroupConcept(attributes.get("groupingConceptId"));
 				obsGroupEntity.setGroupingConcept(groupingConcept);
 				obsGroupEntity.setNode(node);
 				int unmatchedObsGroupId = session.getContext().addUnmatchedObsGroupEntities(obsGroupEntity);
-				out.print(String.format("<unmatched id=\"%s\" />", unmatchedObsGroupId));
+				if (out instanceof DeferringPrintWriter) {
+					((DeferringPrintWriter) out).defer(unmatchedObsGroupId);
+				} else {
+					out.print(DeferringPrintWriter.getPlaceholder(unmatchedObsGroupId));
+				}
 				digDeeper = false;
 			}
 		}
@@ -133,19 +139,11 @@ public class ObsGroupTagHandler extends AbstractTagHandler {
 		return digDeeper;
 	}
 	
-	private Obs findObsGroup(FormEntrySession session, Node node, String parentGroupingConceptId, Concept hiddenQuestion,
-	        Object hiddenAnswer) {
-		String path = ObsGroupComponent.getObsGroupPath(node);
-		
-		List<ObsGroupComponent> questionsAndAnswers = hiddenQuestion != null && hiddenQuestion.getDatatype().isCoded()
-		        ? ObsGroupComponent.findQuestionsAndAnswersForGroup(parentGroupingConceptId, hiddenQuestion,
-		            (Concept) hiddenAnswer, node)
-		        : ObsGroupComponent.findQuestionsAndAnswersForGroup(parentGroupingConceptId, node);
-		
+	private Obs findObsGroup(FormEntrySession session, ObsGroupDescriptor descriptor) {
 		if (session.getContext().isUnmatchedMode()) {
-			return session.getContext().getNextUnmatchedObsGroup(questionsAndAnswers, path);
+			return session.getContext().getNextUnmatchedObsGroup(descriptor);
 		} else {
-			return session.getContext().findBestMatchingObsGroup(questionsAndAnswers, path);
+			return session.getContext().findBestMatchingObsGroup(descriptor);
 		}
 		
 	}
@@ -16,7 +16,7 @@ public class ObsReferenceTagHandler extends ObsTagHandler {
 		FormEntryContext context = session.getContext();
 		ObsReferenceSubmissionElement element = new ObsReferenceSubmissionElement(context, getAttributes(node));
 		session.getSubmissionController().addAction(element);
-		out.print(element.generateHtml(context));
+		out.print(session.generateHtml(element));
 		context.pushToStack(element);
 		return true;
 	}
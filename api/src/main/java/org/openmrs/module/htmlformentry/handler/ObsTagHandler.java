@@ -47,7 +47,7 @@ public class ObsTagHandler extends AbstractTagHandler {
 		FormEntryContext context = session.getContext();
 		ObsSubmissionElement<FormEntryContext> element = new ObsSubmissionElement<>(context, getAttributes(node));
 		session.getSubmissionController().addAction(element);
-		out.print(element.generateHtml(context));
+		out.print(session.generateHtml(element));
 		
 		context.pushToStack(element);
 		return true;
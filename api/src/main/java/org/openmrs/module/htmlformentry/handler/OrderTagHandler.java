@@ -22,6 +22,7 @@ import org.openmrs.api.OrderService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.htmlformentry.BadFormDesignException;
 import org.openmrs.module.htmlformentry.CapturingPrintWriter;
+import org.openmrs.module.htmlformentry.DrugFormulary;
 import org.openmrs.module.htmlformentry.FormEntryContext;
 import org.openmrs.module.htmlformentry.FormEntrySession;
 import org.openmrs.module.htmlformentry.HtmlFormEntryGenerator;
@@ -178,7 +179,7 @@ public class OrderTagHandler extends AbstractTagHandler {
 		session.getSubmissionController().addAction(element);
 		
 		log.trace("OrderTagHandler - generating html");
-		out.print(element.generateHtml(context));
+		out.print(session.generateHtml(element));
 		
 		log.trace("OrderTagHandler - completed");
 		
@@ -488,7 +489,7 @@ public class OrderTagHandler extends AbstractTagHandler {
 						optionsInSet.add(option);
 						valuesAlreadyAdded.add(value);
 						if ("concept".equalsIgnoreCase(prop)) {
-							config.getConceptsAndDrugsConfigured().computeIfAbsent(c, k -> new ArrayList<>());
+							config.addConceptConfigured(c.getConceptId());
 						}
 					}
 				}
@@ -512,7 +513,7 @@ public class OrderTagHandler extends AbstractTagHandler {
 			for (Concept c : fullList) {
 				options.add(new Option(c.getDisplayString(), c.getId().toString(), false));
 				if ("concept".equalsIgnoreCase(prop)) {
-					config.getConceptsAndDrugsConfigured().computeIfAbsent(c, k -> new ArrayList<>());
+					config.addConceptConfigured(c.getConceptId());
 				}
 			}
 		} else {
@@ -530,7 +531,7 @@ public class OrderTagHandler extends AbstractTagHandler {
 				ConceptOption conceptOption = new ConceptOption(option.getLabel(), c);
 				if ("concept".equalsIgnoreCase(prop)) {
 					config.getOrderField().addConceptOption(conceptOption);
-					config.getConceptsAndDrugsConfigured().computeIfAbsent(c, k -> new ArrayList<>());
+					config.addConceptConfigured(c.getConceptId());
 				} else if ("doseUnits".equalsIgnoreCase(prop)) {
 					config.getOrderField().addDoseUnitAnswer(conceptOption);
 				} else if ("route".equalsIgnoreCase(prop)) {
@@ -568,64 +569,58 @@ public class OrderTagHandler extends AbstractTagHandler {
 			existingDrugs.add(o.getValue());
 		}
 		
-		Map<String, Drug> allDrugsInFormulary = new HashMap<>();
-		Map<String, Concept> allConceptsInFormulary = new HashMap<>();
-		Map<Concept, List<Drug>> conceptsToDrugs = new HashMap<>();
-		for (Drug d : Context.getConceptService().getAllDrugs(false)) {
-			allDrugsInFormulary.put(d.getDrugId().toString(), d);
-			Concept c = d.getConcept();
-			allConceptsInFormulary.put(c.getConceptId().toString(), c);
-			List<Drug> l = conceptsToDrugs.computeIfAbsent(c, k -> new ArrayList<>());
-			l.add(d);
-		}
+		DrugFormulary.Snapshot formulary = getDrugFormulary().getSnapshot();
 		
 		// If there are no drugs or concepts configured, populate based on entire formulary
 		if (!conceptsExplicitlyDefined && !drugsExplicitlyDefined) {
-			config.setConceptsAndDrugsConfigured(conceptsToDrugs);
-			for (Concept c : conceptsToDrugs.keySet()) {
-				concepts.add(new Option(c.getDisplayString(), c.getId().toString()));
-				for (Drug d : conceptsToDrugs.get(c)) {
-					drugs.add(new Option(d.getDisplayName(), d.getId().toString()));
+			for (Option conceptOption : formulary.getConceptOptions()) {
+				Integer conceptId = Integer.valueOf(conceptOption.getValue());
+				for (Integer drugId : formulary.getDrugIdsForConcept(conceptId)) {
+					config.addDrugConfigured(conceptId, drugId);
 				}
+				concepts.add(conceptOption);
 			}
+			drugs.addAll(formulary.getDrugOptions());
 		}
 		// Otherwise, ensure drugs and concepts are additive
 		else {
+			// the drugs configured were loaded when their options were processed
+			Map<String, Drug> drugsConfigured = new HashMap<>();
+			for (DrugOrderAnswer answer : config.getOrderField().getDrugOrderAnswers()) {
+				drugsConfigured.put(answer.getDrug().getDrugId().toString(), answer.getDrug());
+			}
 			// If drugs are configured, all associated concepts should be configured
 			List<Option> conceptsToAddFromDrugs = new ArrayList<>();
 			for (Option drugOption : drugs) {
-				Drug d = allDrugsInFormulary.get(drugOption.getValue());
-				if (d == null) {
-					d = Context.getConceptService().getDrug(Integer.parseInt(drugOption.getValue()));
-				}
+				Drug d = drugsConfigured.get(drugOption.getValue());
 				String conceptIdStr = d.getConcept().getId().toString();
 				if (!existingConcepts.contains(conceptIdStr)) {
 					conceptsToAddFromDrugs.add(new Option(d.getConcept().getDisplayString(), conceptIdStr));
 					existingConcepts.add(conceptIdStr);
 				}
-				config.getConceptsAndDrugsConfigured().computeIfAbsent(d.getConcept(), k -> new ArrayList<>()).add(d);
+				config.addDrugConfigured(d.getConcept().getConceptId(), d.getDrugId());
 			}
 			// If concepts are configured, all associated drugs should be configured
 			for (Option conceptOption : concepts) {
-				Concept c = allConceptsInFormulary.get(conceptOption.getValue());
-				if (conceptsToDrugs.get(c) != null) {
-					for (Drug d : conceptsToDrugs.get(c)) {
-						String drugId = d.getDrugId().toString();
-						if (!existingDrugs.contains(drugId)) {
-							drugs.add(new Option(d.getDisplayName(), drugId));
-							existingDrugs.add(drugId);
-							config.getConceptsAndDrugsConfigured().computeIfAbsent(c, k -> new ArrayList<>()).add(d);
-						}
+				Integer conceptId = Integer.valueOf(conceptOption.getValue());
+				for (Integer drugId : formulary.getDrugIdsForConcept(conceptId)) {
+					String drugIdStr = drugId.toString();
+					if (!existingDrugs.contains(drugIdStr)) {
+						String label = formulary.getDrugLabel(drugId);
+						drugs.add(new Option(label == null ? "" : label, drugIdStr));
+						existingDrugs.add(drugIdStr);
+						config.addDrugConfigured(conceptId, drugId);
 					}
 				}
 			}
 			concepts.addAll(conceptsToAddFromDrugs);
 		}
 		
-		if (!conceptsExplicitlyDefined) {
+		// the options of the whole formulary are already sorted
+		if (!conceptsExplicitlyDefined && drugsExplicitlyDefined) {
 			concepts.sort(Comparator.comparing(option -> option.getLabel().toLowerCase()));
 		}
-		if (!drugsExplicitlyDefined) {
+		if (!drugsExplicitlyDefined && conceptsExplicitlyDefined) {
 			drugs.sort(Comparator.comparing(option -> option.getLabel().toLowerCase()));
 		}
 	}
@@ -666,6 +661,10 @@ public class OrderTagHandler extends AbstractTagHandler {
 		return Context.getOrderService();
 	}
 	
+	private DrugFormulary getDrugFormulary() {
+		return Context.getRegisteredComponent("drugFormulary", DrugFormulary.class);
+	}
+	
 	@Override
 	public void doEndTag(FormEntrySession session, PrintWriter out, Node parent, Node node) throws BadFormDesignException {
 	}
@@ -29,7 +29,7 @@ public class RelationshipTagHandler extends SubstitutionTagHandler {
 		RelationshipSubmissionElement element = new RelationshipSubmissionElement(session.getContext(), parameters);
 		session.getSubmissionController().addAction(element);
 		
-		return element.generateHtml(session.getContext());
+		return session.generateHtml(element);
 	}
 	
 }
@@ -9,10 +9,13 @@ import org.apache.velocity.app.VelocityEngine;
 import org.apache.velocity.runtime.RuntimeConstants;
 import org.apache.velocity.runtime.log.CommonsLogLogChute;
 import org.openmrs.Concept;
+import org.openmrs.Drug;
+import org.openmrs.Encounter;
 import org.openmrs.EncounterType;
 import org.openmrs.Form;
 import org.openmrs.FormResource;
 import org.openmrs.Location;
+import org.openmrs.Order;
 import org.openmrs.Obs;
 import org.openmrs.OpenmrsMetadata;
 import org.openmrs.OpenmrsObject;
@@ -23,6 +26,7 @@ import org.openmrs.Person;
 import org.openmrs.Program;
 import org.openmrs.ProgramWorkflow;
 import org.openmrs.ProgramWorkflowState;
+import org.openmrs.Visit;
 import org.openmrs.annotation.Authorized;
 import org.openmrs.api.APIException;
 import org.openmrs.api.ProgramWorkflowService;
@@ -30,14 +34,20 @@ import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
 import org.openmrs.customdatatype.datatype.FreeTextDatatype;
 import org.openmrs.module.htmlformentry.BadFormDesignException;
+import org.openmrs.module.htmlformentry.ConceptMappingCache;
+import org.openmrs.module.htmlformentry.EncounterTypePrivilegeCache;
 import org.openmrs.module.htmlformentry.FormEntrySession;
+import org.openmrs.module.htmlformentry.HtmlFormCache;
 import org.openmrs.module.htmlformentry.HtmlForm;
 import org.openmrs.module.htmlformentry.HtmlFormEntryService;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
 import org.openmrs.module.htmlformentry.SerializableFormObject;
 import org.openmrs.module.htmlformentry.db.HtmlFormEntryDAO;
+import org.openmrs.module.htmlformentry.element.EncounterStub;
+import org.openmrs.module.htmlformentry.element.HtmlFormStub;
 import org.openmrs.module.htmlformentry.element.PersonStub;
 import org.openmrs.module.htmlformentry.handler.TagHandler;
+import org.openmrs.module.htmlformentry.util.CacheStatistics;
 import org.openmrs.util.OpenmrsUtil;
 import org.openmrs.util.PrivilegeConstants;
 import org.springframework.transaction.annotation.Transactional;
@@ -87,8 +97,6 @@ public class HtmlFormEntryServiceImpl extends BaseOpenmrsService implements Html
 	
 	private String basicFormXmlTemplate;
 	
-	private Map<String, Integer> conceptMappingCache = new HashMap<String, Integer>();
-	
 	/*
 	 * Optimization to minimize database hits for the needs-name-and-description-migration check.
 	 * Once all forms have been migrated, we no longer need to hit the database on further checks
@@ -379,6 +387,7 @@ public class HtmlFormEntryServiceImpl extends BaseOpenmrsService implements Html
 			htmlForm.setDateChanged(new Date());
 		}
 		Context.getFormService().saveForm(htmlForm.getForm());
+		clearHtmlFormCaches();
 		return dao.saveHtmlForm(htmlForm);
 	}
 	
@@ -402,6 +411,7 @@ public class HtmlFormEntryServiceImpl extends BaseOpenmrsService implements Html
 	@Override
 	@Transactional
 	public void purgeHtmlForm(HtmlForm htmlForm) {
+		clearHtmlFormCaches();
 		dao.deleteHtmlForm(htmlForm);
 	}
 	
@@ -414,7 +424,90 @@ public class HtmlFormEntryServiceImpl extends BaseOpenmrsService implements Html
 	@Override
 	@Transactional(readOnly = true)
 	public HtmlForm getHtmlFormByForm(Form form) {
-		return dao.getHtmlFormByForm(form);
+		if (form == null || form.getFormId() == null) {
+			return dao.getHtmlFormByForm(form);
+		}
+		Integer htmlFormId = getHtmlFormIdByFormId(form.getFormId());
+		return htmlFormId == null ? null : dao.getHtmlForm(htmlFormId);
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public List<HtmlFormStub> getAllHtmlFormStubs() {
+		return getHtmlFormCache().getHtmlFormStubs(dao::getAllHtmlFormStubs);
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public List<Form> getFormsWithHtmlForms(boolean includeUnpublished) {
+		List<Integer> formIds = new ArrayList<Integer>();
+		for (HtmlFormStub stub : getAllHtmlFormStubs()) {
+			if (includeUnpublished || stub.isPublished()) {
+				formIds.add(stub.getFormId());
+			}
+		}
+		Map<Integer, Form> formsById = new HashMap<Integer, Form>();
+		for (Form form : dao.getForms(formIds)) {
+			formsById.put(form.getFormId(), form);
+		}
+		List<Form> ret = new ArrayList<Form>();
+		for (Integer formId : formIds) {
+			Form form = formsById.get(formId);
+			if (form != null && !ret.contains(form)) {
+				ret.add(form);
+			}
+		}
+		return ret;
+	}
+	
+	@Override
+	public void clearHtmlFormCaches() {
+		getHtmlFormCache().clear();
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public boolean hasEncounterWithHtmlForm(Integer patientId, Integer htmlFormId, Date encounterDatetime) {
+		HtmlFormStub stub = getHtmlFormStub(htmlFormId);
+		// encounters are only for an html form if it is the one used to enter their form
+		if (stub == null || !htmlFormId.equals(getHtmlFormIdByFormId(stub.getFormId()))) {
+			return false;
+		}
+		return dao.hasEncounter(patientId, stub.getFormId(), encounterDatetime, getEncounterTypeIdsNotViewable());
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public HtmlFormStub getHtmlFormMetadata(Form form) {
+		Integer htmlFormId = form == null ? null : getHtmlFormIdByFormId(form.getFormId());
+		return htmlFormId == null ? null : getHtmlFormStub(htmlFormId);
+	}
+	
+	/**
+	 * @return the stub of the html form with the given id, from the stubs of all the html forms
+	 */
+	private HtmlFormStub getHtmlFormStub(Integer htmlFormId) {
+		for (HtmlFormStub stub : getAllHtmlFormStubs()) {
+			if (stub.getId().equals(htmlFormId)) {
+				return stub;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @return the id of the most recently created html form of the form with the given id, or null if
+	 *         it does not have one
+	 */
+	private Integer getHtmlFormIdByFormId(Integer formId) {
+		if (formId == null) {
+			return null;
+		}
+		return getHtmlFormCache().getHtmlFormId(formId, dao::getHtmlFormIdByFormId);
+	}
+	
+	private HtmlFormCache getHtmlFormCache() {
+		return Context.getRegisteredComponent("htmlFormCache", HtmlFormCache.class);
 	}
 	
 	@Override
@@ -497,78 +590,35 @@ public class HtmlFormEntryServiceImpl extends BaseOpenmrsService implements Html
 	@Transactional(readOnly = true)
 	public List<PersonStub> getPeopleAsPersonStubs(List<String> attributes, List<String> attributeValues,
 	        List<String> programIds, List<Person> personsToExclude) {
-		List<PersonStub> stubs = new ArrayList<PersonStub>();
-		
-		Set<Integer> attributeMatches = null;
-		Set<Integer> programMatches = null;
-		
-		if (attributes != null) {
-			for (int i = 0; i < attributes.size(); i++) {
-				String attr = attributes.get(i);
-				String val = null;
-				if (attributeValues != null && attributeValues.size() > i) {
-					val = attributeValues.get(i);
-				}
-				
-				Set<Integer> setOfIds = new HashSet<Integer>(getPersonIdsHavingAttributes(attr, val));
-				if (attributeMatches != null) {
-					attributeMatches.retainAll(setOfIds);
-				} else {
-					attributeMatches = setOfIds;
-				}
-			}
-		}
-		
+		List<Program> programs = new ArrayList<Program>();
 		if (programIds != null) {
 			for (String prog : programIds) {
 				if (prog != null && prog.trim().length() > 0) {
 					Program personProgram = HtmlFormEntryUtil.getProgram(prog);
-					
 					if (personProgram != null) {
-						Set<Integer> matchingEnrollments = dao.getPatientIdHavingEnrollments(personProgram);
-						if (programMatches != null) {
-							programMatches.retainAll(matchingEnrollments);
-						} else {
-							programMatches = matchingEnrollments;
-						}
+						programs.add(personProgram);
 					}
 				}
 			}
 		}
 		
-		Set<Integer> results;
-		
-		// if no attributes specified, just use to the program matches
-		if (attributes == null || attributes.isEmpty()) {
-			results = programMatches;
-		}
-		// if no programs specified, just use the attribute matches
-		else if (programIds == null || programIds.isEmpty()) {
-			results = attributeMatches;
-		}
-		// otherwise, intersect the results
-		else {
-			results = programMatches;
-			if (results != null) {
-				results.retainAll(attributeMatches);
-			}
+		// no one matches unless there is something to match on, and programs that are given must exist
+		boolean noAttributes = attributes == null || attributes.isEmpty();
+		boolean noPrograms = programIds == null || programIds.isEmpty();
+		if ((noAttributes && noPrograms) || (!noPrograms && programs.isEmpty())) {
+			return new ArrayList<PersonStub>();
 		}
 		
-		if (results != null) {
-			//now iterate through the results, returning person stubs
-			for (Integer id : results) {
-				Person person = Context.getPersonService().getPerson(id);
-				if (person != null && !personsToExclude.contains(person)) {
-					PersonStub pStub = new PersonStub();
-					pStub.setGivenName(person.getGivenName());
-					pStub.setFamilyName(person.getFamilyName());
-					pStub.setMiddleName(person.getMiddleName());
-					pStub.setId(id);
-					stubs.add(pStub);
+		Set<Integer> personIdsToExclude = new HashSet<Integer>();
+		if (personsToExclude != null) {
+			for (Person person : personsToExclude) {
+				if (person != null && person.getPersonId() != null) {
+					personIdsToExclude.add(person.getPersonId());
 				}
 			}
 		}
-		return stubs;
+		return dao.getPeopleAsPersonStubs(noAttributes ? null : attributes, attributeValues, programs,
+		    personIdsToExclude);
 	}
 	
 	@Override
@@ -604,13 +654,17 @@ public class HtmlFormEntryServiceImpl extends BaseOpenmrsService implements Html
 	public Concept getConceptByMapping(String sourceNameOrHl7CodeAndTerm) {
 		Concept ret = null;
 		if (sourceNameOrHl7CodeAndTerm != null) {
-			Integer cId = conceptMappingCache.get(sourceNameOrHl7CodeAndTerm);
-			if (cId != null) {
-				ret = Context.getConceptService().getConcept(cId);
+			ConceptMappingCache conceptMappingCache = getConceptMappingCache();
+			ConceptMappingCache.Entry cached = conceptMappingCache.get(sourceNameOrHl7CodeAndTerm);
+			if (cached != null) {
+				if (cached.getConceptId() != null) {
+					ret = Context.getConceptService().getConcept(cached.getConceptId());
+				}
 			} else {
 				String[] sourceCodeSplit = sourceNameOrHl7CodeAndTerm.split(":", 2);
 				if (sourceCodeSplit.length != 2) {
 					log.debug("Invalid concept mapping specified: " + sourceNameOrHl7CodeAndTerm);
+					conceptMappingCache.put(sourceNameOrHl7CodeAndTerm, null);
 				} else {
 					String source = sourceCodeSplit[0].trim();
 					String term = sourceCodeSplit[1].trim();
@@ -626,6 +680,8 @@ public class HtmlFormEntryServiceImpl extends BaseOpenmrsService implements Html
 						}
 						conceptMappingCache.put(sourceNameOrHl7CodeAndTerm, firstMatch.getConceptId());
 						ret = firstMatch;
+					} else {
+						conceptMappingCache.put(sourceNameOrHl7CodeAndTerm, null);
 					}
 				}
 			}
@@ -635,7 +691,16 @@ public class HtmlFormEntryServiceImpl extends BaseOpenmrsService implements Html
 	
 	@Override
 	public void clearConceptMappingCache() {
-		conceptMappingCache = new HashMap<String, Integer>();
+		getConceptMappingCache().clear();
+	}
+	
+	@Override
+	public CacheStatistics getConceptMappingCacheStatistics() {
+		return getConceptMappingCache().getStatistics();
+	}
+	
+	private ConceptMappingCache getConceptMappingCache() {
+		return Context.getRegisteredComponent("conceptMappingCache", ConceptMappingCache.class);
 	}
 	
 	/**
@@ -647,6 +712,88 @@ public class HtmlFormEntryServiceImpl extends BaseOpenmrsService implements Html
 		return dao.getPatientIdHavingEnrollments(program);
 	}
 	
+	@Override
+	@Transactional(readOnly = true)
+	public Obs getLatestObs(Person person, Concept question, Date onOrBefore) {
+		return dao.getLatestObs(person, question, onOrBefore, false, null, null, null);
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public Obs getLatestObsOutsideEncounter(Person person, Concept question, Date onOrBefore, Encounter encounter,
+	        Visit visit, Concept answer) {
+		return dao.getLatestObs(person, question, onOrBefore, true, encounter, visit, answer);
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public Obs getEarliestObs(Person person, Concept question) {
+		return dao.getEarliestObs(person, question);
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public Encounter getLatestEncounter(Patient patient, EncounterType type, Date onOrBefore) {
+		return dao.getLatestEncounter(patient, type, onOrBefore, getEncounterTypeIdsNotViewable());
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public EncounterStub getLatestEncounterStub(Patient patient, EncounterType type, Date onOrBefore) {
+		return dao.getLatestEncounterStub(patient, type, onOrBefore, getEncounterTypeIdsNotViewable());
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public List<Concept> prefetchConcepts(Collection<Integer> ids, Collection<String> uuids) {
+		return dao.getConceptsWithNamesAndAnswers(ids, uuids);
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public List<Drug> prefetchDrugs(Collection<Integer> ids, Collection<String> uuids) {
+		return dao.getDrugsWithConcepts(ids, uuids);
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public List<Concept> prefetchConceptNames(Collection<Integer> ids) {
+		return dao.getConceptsWithNames(ids);
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public List<Drug> prefetchDrugNames(Collection<Integer> ids) {
+		return dao.getDrugs(ids);
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public List<Drug> getAllDrugsWithIngredients() {
+		return dao.getAllDrugsWithIngredients();
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public List<Location> prefetchLocations(Collection<Integer> ids, Collection<String> uuids) {
+		return dao.getLocations(ids, uuids);
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public List<Order> getOrders(Collection<Integer> ids) {
+		return dao.getOrders(ids);
+	}
+	
+	/**
+	 * @return the ids of the encounter types whose encounters the authenticated user is not allowed to
+	 *         view, which EncounterService#getEncounters would filter out
+	 */
+	private List<Integer> getEncounterTypeIdsNotViewable() {
+		return Context.getRegisteredComponent("encounterTypePrivilegeCache", EncounterTypePrivilegeCache.class)
+		        .getEncounterTypeIdsNotViewable();
+	}
+	
 	/**
 	 * Removed from OpenMRS core in 2.x, added back in here to support this legacy functionality and
 	 * exitFromCare tag This is the way to establish that a patient has left the care center. This API
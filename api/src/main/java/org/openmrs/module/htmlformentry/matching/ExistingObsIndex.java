@@ -0,0 +1,295 @@
+package org.openmrs.module.htmlformentry.matching;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openmrs.Concept;
+import org.openmrs.Drug;
+import org.openmrs.Obs;
+
+/**
+ * The top-level obs of an existing encounter that have not been claimed by an obs tag yet, in EDIT
+ * and VIEW mode.
+ * <p/>
+ * The obs are indexed by the id of their question concept (as Concept.equals(Concept) is not
+ * reliable), and those that are not yet associated with a form field are also indexed by the id of
+ * their coded answer, the id of their drug, and their numeric value. An obs tag can therefore claim
+ * the obs it displays without scanning all the obs of its question, which matters for large grids of
+ * checkboxes that all ask the same question.
+ * <p/>
+ * Within a question, obs are always claimed in the order they were added.
+ */
+public class ExistingObsIndex {
+	
+	private final Map<Integer, Question> questions = new LinkedHashMap<Integer, Question>();
+	
+	private final Map<Concept, List<Obs>> mapView = new MapView();
+	
+	/**
+	 * @param obs the obs to index, in the order they should be claimed
+	 */
+	public ExistingObsIndex(Collection<Obs> obs) {
+		for (Obs o : obs) {
+			add(o);
+		}
+	}
+	
+	private void add(Obs obs) {
+		Integer conceptId = obs.getConcept().getConceptId();
+		Question question = questions.get(conceptId);
+		if (question == null) {
+			question = new Question(obs.getConcept());
+			questions.put(conceptId, question);
+		}
+		question.add(obs);
+	}
+	
+	/**
+	 * Claims the first obs of the given question, not associated with a form field, that has the
+	 * given coded answer
+	 *
+	 * @param question the question of the obs
+	 * @param answer the coded answer of the obs, or null for any answer
+	 * @return the obs, or null if there is none
+	 */
+	public Obs claim(Concept question, Concept answer) {
+		Question q = getQuestion(question);
+		if (q == null) {
+			return null;
+		}
+		return q.claimFirst(answer == null ? q.withoutFormField : q.byAnswer.get(answer.getConceptId()));
+	}
+	
+	/**
+	 * Claims the first obs of the given question, not associated with a form field, that has the
+	 * given drug as its answer
+	 *
+	 * @param question the question of the obs
+	 * @param answer the drug of the obs, or null for any answer
+	 * @return the obs, or null if there is none
+	 */
+	public Obs claim(Concept question, Drug answer) {
+		Question q = getQuestion(question);
+		if (q == null) {
+			return null;
+		}
+		return q.claimFirst(answer == null ? q.withoutFormField : q.byDrug.get(answer.getDrugId()));
+	}
+	
+	/**
+	 * Claims the first obs of the given question, not associated with a form field, that has the
+	 * given numeric value
+	 *
+	 * @param question the question of the obs
+	 * @param value the numeric value of the obs
+	 * @return the obs, or null if there is none
+	 */
+	public Obs claim(Concept question, Double value) {
+		Question q = getQuestion(question);
+		if (q == null) {
+			return null;
+		}
+		return q.claimFirst(q.byNumeric.get(value));
+	}
+	
+	/**
+	 * Claims the given obs, if it has not been claimed yet
+	 *
+	 * @return whether the obs was claimed
+	 */
+	public boolean claim(Obs obs) {
+		Question q = getQuestion(obs.getConcept());
+		if (q == null || !q.obs.contains(obs)) {
+			return false;
+		}
+		q.remove(obs);
+		return true;
+	}
+	
+	/**
+	 * Claims all the remaining obs of the given question, whether or not they are associated with a
+	 * form field
+	 *
+	 * @return the obs, or null if there are none
+	 */
+	public List<Obs> claimAll(Concept question) {
+		Question q = getQuestion(question);
+		if (q == null) {
+			return null;
+		}
+		questions.remove(q.concept.getConceptId());
+		return new ArrayList<Obs>(q.obs);
+	}
+	
+	/**
+	 * @return the obs of the given question that have not been claimed yet, in the order they were
+	 *         added, or null if there are none
+	 */
+	public List<Obs> getObs(Concept question) {
+		Question q = getQuestion(question);
+		return q == null ? null : q.getObs();
+	}
+	
+	/**
+	 * @return a read-only view of the obs that have not been claimed yet, by question
+	 */
+	public Map<Concept, List<Obs>> asMap() {
+		return mapView;
+	}
+	
+	private Question getQuestion(Concept concept) {
+		if (concept == null) {
+			return null;
+		}
+		return questions.get(concept.getConceptId());
+	}
+	
+	/**
+	 * The obs of a question that have not been claimed yet
+	 */
+	private class Question {
+		
+		private final Concept concept;
+		
+		private final Set<Obs> obs = new LinkedHashSet<Obs>();
+		
+		// the obs that are not associated with a form field, which are the only ones claimed by their answer
+		private final Set<Obs> withoutFormField = new LinkedHashSet<Obs>();
+		
+		private final Map<Integer, Set<Obs>> byAnswer = new HashMap<Integer, Set<Obs>>();
+		
+		private final Map<Integer, Set<Obs>> byDrug = new HashMap<Integer, Set<Obs>>();
+		
+		private final Map<Double, Set<Obs>> byNumeric = new HashMap<Double, Set<Obs>>();
+		
+		private Question(Concept concept) {
+			this.concept = concept;
+		}
+		
+		private void add(Obs o) {
+			obs.add(o);
+			if (o.getFormFieldPath() == null) {
+				withoutFormField.add(o);
+				if (o.getValueCoded() != null) {
+					addTo(byAnswer, o.getValueCoded().getConceptId(), o);
+				}
+				if (o.getValueDrug() != null) {
+					addTo(byDrug, o.getValueDrug().getDrugId(), o);
+				}
+				if (o.getValueNumeric() != null) {
+					addTo(byNumeric, o.getValueNumeric(), o);
+				}
+			}
+		}
+		
+		private Obs claimFirst(Set<Obs> candidates) {
+			if (candidates == null || candidates.isEmpty()) {
+				return null;
+			}
+			Obs ret = candidates.iterator().next();
+			remove(ret);
+			return ret;
+		}
+		
+		private void remove(Obs o) {
+			obs.remove(o);
+			if (withoutFormField.remove(o)) {
+				if (o.getValueCoded() != null) {
+					removeFrom(byAnswer, o.getValueCoded().getConceptId(), o);
+				}
+				if (o.getValueDrug() != null) {
+					removeFrom(byDrug, o.getValueDrug().getDrugId(), o);
+				}
+				if (o.getValueNumeric() != null) {
+					removeFrom(byNumeric, o.getValueNumeric(), o);
+				}
+			}
+			if (obs.isEmpty()) {
+				questions.remove(concept.getConceptId());
+			}
+		}
+		
+		private List<Obs> getObs() {
+			return Collections.unmodifiableList(new ArrayList<Obs>(obs));
+		}
+	}
+	
+	private static <K> void addTo(Map<K, Set<Obs>> index, K key, Obs obs) {
+		Set<Obs> set = index.get(key);
+		if (set == null) {
+			set = new LinkedHashSet<Obs>();
+			index.put(key, set);
+		}
+		set.add(obs);
+	}
+	
+	private static <K> void removeFrom(Map<K, Set<Obs>> index, K key, Obs obs) {
+		Set<Obs> set = index.get(key);
+		if (set != null) {
+			set.remove(obs);
+			if (set.isEmpty()) {
+				index.remove(key);
+			}
+		}
+	}
+	
+	/**
+	 * The obs that have not been claimed yet, as a map from their question to a copy of their list
+	 */
+	private class MapView extends AbstractMap<Concept, List<Obs>> {
+		
+		@Override
+		public List<Obs> get(Object key) {
+			return key instanceof Concept ? getObs((Concept) key) : null;
+		}
+		
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof Concept && getQuestion((Concept) key) != null;
+		}
+		
+		@Override
+		public int size() {
+			return questions.size();
+		}
+		
+		@Override
+		public Set<Map.Entry<Concept, List<Obs>>> entrySet() {
+			return new AbstractSet<Map.Entry<Concept, List<Obs>>>() {
+				
+				@Override
+				public Iterator<Map.Entry<Concept, List<Obs>>> iterator() {
+					final Iterator<Question> i = questions.values().iterator();
+					return new Iterator<Map.Entry<Concept, List<Obs>>>() {
+						
+						@Override
+						public boolean hasNext() {
+							return i.hasNext();
+						}
+						
+						@Override
+						public Map.Entry<Concept, List<Obs>> next() {
+							Question q = i.next();
+							return new AbstractMap.SimpleImmutableEntry<Concept, List<Obs>>(q.concept, q.getObs());
+						}
+					};
+				}
+				
+				@Override
+				public int size() {
+					return questions.size();
+				}
+			};
+		}
+	}
+}
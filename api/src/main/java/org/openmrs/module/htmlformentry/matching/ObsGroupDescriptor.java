@@ -0,0 +1,312 @@
+package org.openmrs.module.htmlformentry.matching;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.openmrs.Concept;
+import org.openmrs.Drug;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.openmrs.module.htmlformentry.ObsGroupComponent;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * The structure of an obsgroup tag that existing obs groups are matched against: its obsgroup
+ * hierarchy path, and the question, answer, control id and set membership of each obs and obsgroup
+ * tag within it (see {@link ObsGroupComponent#findQuestionsAndAnswersForGroup(String, Node)}).
+ * <p/>
+ * This only depends on the form, so it is worked out once for each obsgroup tag of a compiled form
+ * (see {@link org.openmrs.module.htmlformentry.HtmlFormCompiler}) rather than each time the form is
+ * displayed. Concepts and drugs are only referred to by id, so a descriptor can be shared between
+ * sessions.
+ */
+public class ObsGroupDescriptor {
+	
+	private final String path;
+	
+	private final List<Component> components;
+	
+	private volatile ObsGroupMatcher.Query query;
+	
+	public ObsGroupDescriptor(String path, List<Component> components) {
+		this.path = path;
+		this.components = Collections.unmodifiableList(new ArrayList<Component>(components));
+	}
+	
+	/**
+	 * @param node an obsgroup tag
+	 * @return the descriptor of the tag
+	 */
+	public static ObsGroupDescriptor compile(Node node) {
+		String groupingConceptId = HtmlFormEntryUtil.getNodeAttribute(node, "groupingConceptId", null);
+		return new ObsGroupDescriptor(ObsGroupComponent.getObsGroupPath(node), findComponents(groupingConceptId, node));
+	}
+	
+	/**
+	 * @param document a form
+	 * @return the descriptors of all the obsgroup tags of the form, in document order, with null for
+	 *         any tag that is not valid
+	 */
+	public static List<ObsGroupDescriptor> compileAll(Node document) {
+		List<ObsGroupDescriptor> ret = new ArrayList<ObsGroupDescriptor>();
+		for (Node node : getObsGroupNodes(document)) {
+			try {
+				ret.add(compile(node));
+			}
+			catch (RuntimeException ex) {
+				// the tag handler reports invalid tags when the form is displayed
+				ret.add(null);
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * @return the obsgroup tags of the given form, in document order
+	 */
+	public static List<Node> getObsGroupNodes(Node document) {
+		List<Node> ret = new ArrayList<Node>();
+		collectObsGroupNodes(document, ret);
+		return ret;
+	}
+	
+	private static void collectObsGroupNodes(Node node, List<Node> obsGroupNodes) {
+		if ("obsgroup".equals(node.getNodeName())) {
+			obsGroupNodes.add(node);
+		}
+		NodeList children = node.getChildNodes();
+		for (int i = 0; i < children.getLength(); ++i) {
+			collectObsGroupNodes(children.item(i), obsGroupNodes);
+		}
+	}
+	
+	/**
+	 * Finds the components of the given obsgroup tag in a single pass over its subtree. An obs tag is
+	 * a component of the group if the closest tag that encloses it and has a groupingConceptId has the
+	 * given one.
+	 *
+	 * @param parentGroupingConceptId the groupingConceptId of the obsgroup tag
+	 * @param node the obsgroup tag
+	 * @return the components, in document order
+	 */
+	public static List<Component> findComponents(String parentGroupingConceptId, Node node) {
+		List<Component> ret = new ArrayList<Component>();
+		findComponents(parentGroupingConceptId, node, null, ret);
+		return ret;
+	}
+	
+	private static void findComponents(String parentGroupingConceptId, Node node, String enclosingGroupingConceptId,
+	        List<Component> components) {
+		if ("obs".equals(node.getNodeName())) {
+			if (parentGroupingConceptId != null && parentGroupingConceptId.equals(enclosingGroupingConceptId)) {
+				addObsComponents(node, components);
+			}
+		} else if ("obsgroup".equals(node.getNodeName())) {
+			Node groupingConceptId = node.getAttributes().getNamedItem("groupingConceptId");
+			if (groupingConceptId == null) {
+				throw new RuntimeException("Unable to get groupingConcept out of obsgroup tag.");
+			}
+			components.add(new Component(getConceptId(groupingConceptId.getNodeValue()), null, null, null, false, false));
+		}
+		if (node.getAttributes() != null && node.getAttributes().getNamedItem("groupingConceptId") != null) {
+			enclosingGroupingConceptId = node.getAttributes().getNamedItem("groupingConceptId").getNodeValue();
+		}
+		NodeList children = node.getChildNodes();
+		for (int i = 0; i < children.getLength(); ++i) {
+			findComponents(parentGroupingConceptId, children.item(i), enclosingGroupingConceptId, components);
+		}
+	}
+	
+	private static void addObsComponents(Node node, List<Component> components) {
+		Integer questionId = getConceptId(HtmlFormEntryUtil.getNodeAttribute(node, "conceptId", null));
+		List<Integer> questionIds = getConceptIds(HtmlFormEntryUtil.getNodeAttribute(node, "conceptIds", null));
+		Integer answerId = getConceptId(HtmlFormEntryUtil.getNodeAttribute(node, "answerConceptId", null));
+		Integer answerDrugId = null;
+		String answerDrug = HtmlFormEntryUtil.getNodeAttribute(node, "answerDrugId", null);
+		if (answerDrug != null) {
+			try {
+				Drug drug = HtmlFormEntryUtil.getDrug(answerDrug);
+				answerDrugId = drug == null ? null : drug.getDrugId();
+			}
+			catch (Exception ex) {
+				// this is fine
+			}
+		}
+		List<Integer> answerIds = answerId == null
+		        ? getConceptIds(HtmlFormEntryUtil.getNodeAttribute(node, "answerConceptIds", null))
+		        : Collections.<Integer> emptyList();
+		String controlId = HtmlFormEntryUtil.getNodeAttribute(node, "controlId", null);
+		
+		if (!answerIds.isEmpty()) {
+			// each answer is a separate component, all flagged as part of a set, and the last one flagged as the last in the set
+			for (int i = 0; i < answerIds.size(); i++) {
+				components.add(new Component(questionId, answerIds.get(i), null, controlId, true, i == answerIds.size() - 1));
+			}
+		} else if (!questionIds.isEmpty()) {
+			// likewise for each question
+			for (int i = 0; i < questionIds.size(); i++) {
+				components.add(new Component(questionIds.get(i), answerId, null, controlId, true, i == questionIds.size() - 1));
+			}
+		} else {
+			// see: https://issues.openmrs.org/browse/HTML-806
+			// earlier components with the same question are part of a set, but *not* the last one in it
+			boolean isSet = false;
+			for (int i = 0; i < components.size(); i++) {
+				Component component = components.get(i);
+				if (questionId != null && questionId.equals(component.questionId)) {
+					components.set(i, component.inSet(false));
+					isSet = true;
+				}
+			}
+			components.add(new Component(questionId, answerId, answerDrugId, controlId, isSet, isSet));
+		}
+	}
+	
+	private static Integer getConceptId(String identifier) {
+		if (identifier == null) {
+			return null;
+		}
+		try {
+			Concept concept = HtmlFormEntryUtil.getConcept(identifier);
+			return concept == null ? null : concept.getConceptId();
+		}
+		catch (Exception ex) {
+			return null;
+		}
+	}
+	
+	// concepts that cannot be found are left out, so that one cannot become the last in a set
+	private static List<Integer> getConceptIds(String identifiers) {
+		List<Integer> ret = new ArrayList<Integer>();
+		if (identifiers != null) {
+			for (StringTokenizer st = new StringTokenizer(identifiers, ","); st.hasMoreTokens();) {
+				Integer conceptId = getConceptId(st.nextToken().trim());
+				if (conceptId != null) {
+					ret.add(conceptId);
+				}
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * @return the obsgroup hierarchy path of the tag, see {@link ObsGroupComponent#getObsGroupPath(Node)}
+	 */
+	public String getPath() {
+		return path;
+	}
+	
+	public List<Component> getComponents() {
+		return components;
+	}
+	
+	/**
+	 * @return the components, indexed for ranking existing obs groups against
+	 */
+	public ObsGroupMatcher.Query getQuery() {
+		if (query == null) {
+			query = ObsGroupMatcher.compile(this);
+		}
+		return query;
+	}
+	
+	/**
+	 * @return a descriptor that also matches on the hidden obs of the tag, which comes before all the
+	 *         other components
+	 */
+	public ObsGroupDescriptor withHiddenObs(Concept hiddenQuestion, Concept hiddenAnswer) {
+		List<Component> withHidden = new ArrayList<Component>(components.size() + 1);
+		withHidden.add(new Component(hiddenQuestion.getConceptId(),
+		        hiddenAnswer == null ? null : hiddenAnswer.getConceptId(), null, null, false, false));
+		withHidden.addAll(components);
+		return new ObsGroupDescriptor(path, withHidden);
+	}
+	
+	/**
+	 * @return the components as they were described before descriptors existed, with their concepts
+	 *         and drugs loaded
+	 */
+	public List<ObsGroupComponent> toObsGroupComponents() {
+		List<ObsGroupComponent> ret = new ArrayList<ObsGroupComponent>(components.size());
+		for (Component component : components) {
+			ret.add(new ObsGroupComponent(getConcept(component.questionId), getConcept(component.answerId),
+			        component.answerDrugId == null ? null : Context.getConceptService().getDrug(component.answerDrugId),
+			        component.controlId, component.partOfSet, component.lastInSet));
+		}
+		return ret;
+	}
+	
+	private Concept getConcept(Integer conceptId) {
+		return conceptId == null ? null : Context.getConceptService().getConcept(conceptId);
+	}
+	
+	/**
+	 * An obs or obsgroup tag within an obsgroup tag, as the ids of its question and answer
+	 */
+	public static class Component {
+		
+		private final Integer questionId;
+		
+		private final Integer answerId;
+		
+		private final Integer answerDrugId;
+		
+		private final String controlId;
+		
+		private final boolean partOfSet;
+		
+		private final boolean lastInSet;
+		
+		public Component(Integer questionId, Integer answerId, Integer answerDrugId, String controlId, boolean partOfSet,
+		    boolean lastInSet) {
+			this.questionId = questionId;
+			this.answerId = answerId;
+			this.answerDrugId = answerDrugId;
+			this.controlId = controlId;
+			this.partOfSet = partOfSet;
+			this.lastInSet = lastInSet;
+		}
+		
+		/**
+		 * @return the component describing the given one
+		 */
+		public static Component of(ObsGroupComponent component) {
+			return new Component(component.getQuestion() == null ? null : component.getQuestion().getConceptId(),
+			        component.getAnswer() == null ? null : component.getAnswer().getConceptId(),
+			        component.getAnswerDrug() == null ? null : component.getAnswerDrug().getDrugId(),
+			        component.getControlId(), Boolean.TRUE.equals(component.isPartOfSet()),
+			        Boolean.TRUE.equals(component.isLastInSet()));
+		}
+		
+		private Component inSet(boolean last) {
+			return new Component(questionId, answerId, answerDrugId, controlId, true, last);
+		}
+		
+		public Integer getQuestionId() {
+			return questionId;
+		}
+		
+		public Integer getAnswerId() {
+			return answerId;
+		}
+		
+		public Integer getAnswerDrugId() {
+			return answerDrugId;
+		}
+		
+		public String getControlId() {
+			return controlId;
+		}
+		
+		public boolean isPartOfSet() {
+			return partOfSet;
+		}
+		
+		public boolean isLastInSet() {
+			return lastInSet;
+		}
+	}
+}
@@ -20,7 +20,12 @@ public class ObsGroupEntity {
 	
 	private Node node;
 	
+	private ObsGroupDescriptor descriptor;
+	
 	public List<ObsGroupComponent> getQuestionsAndAnswers() {
+		if (questionsAndAnswers == null && descriptor != null) {
+			questionsAndAnswers = descriptor.toObsGroupComponents();
+		}
 		return questionsAndAnswers;
 	}
 	
@@ -68,4 +73,12 @@ public class ObsGroupEntity {
 		this.id = id;
 	}
 	
+	public ObsGroupDescriptor getDescriptor() {
+		return descriptor;
+	}
+	
+	public void setDescriptor(ObsGroupDescriptor descriptor) {
+		this.descriptor = descriptor;
+	}
+	
 }
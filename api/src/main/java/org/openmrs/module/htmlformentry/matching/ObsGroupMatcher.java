@@ -0,0 +1,316 @@
+package org.openmrs.module.htmlformentry.matching;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openmrs.Obs;
+import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.openmrs.module.htmlformentry.ObsGroupComponent;
+
+/**
+ * Matches the obs groups of an existing encounter to the obsgroup tags of a form, in EDIT and VIEW
+ * mode.
+ * <p/>
+ * The groups are indexed once per session by their obsgroup hierarchy path (see
+ * {@link ObsGroupComponent#getObsGroupPath(Obs)}), and the question, coded answer, drug, and control
+ * id of each of their members are extracted up front. Each obsgroup tag then only ranks the groups
+ * at its own path, and only compares each member with the components of the tag that ask the same
+ * question or have a control id, rather than with all of them.
+ * <p/>
+ * The index reads the given map of unmatched groups, so a group that is removed from that map (once
+ * it is matched) is no longer a candidate.
+ */
+public class ObsGroupMatcher {
+	
+	private final Map<Obs, Set<Obs>> unmatchedGroups;
+	
+	private final Map<String, Map<Obs, Candidate>> candidatesByPath = new HashMap<String, Map<Obs, Candidate>>();
+	
+	/**
+	 * @param unmatchedGroups the members of each obs group that has not been matched yet
+	 */
+	public ObsGroupMatcher(Map<Obs, Set<Obs>> unmatchedGroups) {
+		this.unmatchedGroups = unmatchedGroups;
+		for (Map.Entry<Obs, Set<Obs>> e : unmatchedGroups.entrySet()) {
+			Candidate candidate = new Candidate(e.getKey(), e.getValue());
+			Map<Obs, Candidate> candidates = candidatesByPath.get(candidate.getPath());
+			if (candidates == null) {
+				candidates = new LinkedHashMap<Obs, Candidate>();
+				candidatesByPath.put(candidate.getPath(), candidates);
+			}
+			candidates.put(e.getKey(), candidate);
+		}
+	}
+	
+	/**
+	 * @return the unmatched groups at the given obsgroup hierarchy path, in the order they were given
+	 */
+	public List<Candidate> getCandidates(String path) {
+		Map<Obs, Candidate> candidates = candidatesByPath.get(path);
+		if (candidates == null) {
+			return Collections.emptyList();
+		}
+		List<Candidate> ret = new ArrayList<Candidate>(candidates.size());
+		for (Iterator<Candidate> i = candidates.values().iterator(); i.hasNext();) {
+			Candidate candidate = i.next();
+			if (unmatchedGroups.containsKey(candidate.getObsGroup())) {
+				ret.add(candidate);
+			} else {
+				i.remove();
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * @return the components of an obsgroup tag, indexed for ranking the groups against
+	 */
+	public static Query compile(List<ObsGroupComponent> components) {
+		List<ObsGroupDescriptor.Component> described = new ArrayList<ObsGroupDescriptor.Component>(components.size());
+		for (ObsGroupComponent component : components) {
+			described.add(ObsGroupDescriptor.Component.of(component));
+		}
+		return new Query(described);
+	}
+	
+	/**
+	 * @return the components of the described obsgroup tag, indexed for ranking the groups against
+	 * @see ObsGroupDescriptor#getQuery()
+	 */
+	public static Query compile(ObsGroupDescriptor descriptor) {
+		return new Query(descriptor.getComponents());
+	}
+	
+	/**
+	 * An existing obs group, with the values of its members that it is ranked by
+	 */
+	public static class Candidate {
+		
+		private final Obs obsGroup;
+		
+		private final String path;
+		
+		private final Member[] members;
+		
+		private Candidate(Obs obsGroup, Set<Obs> members) {
+			this.obsGroup = obsGroup;
+			this.path = ObsGroupComponent.getObsGroupPath(obsGroup);
+			this.members = toMembers(members);
+		}
+		
+		public Obs getObsGroup() {
+			return obsGroup;
+		}
+		
+		public String getPath() {
+			return path;
+		}
+	}
+	
+	/**
+	 * The components of an obsgroup tag, indexed by question. Only ids are kept, so a query can be
+	 * shared between sessions.
+	 */
+	public static class Query {
+		
+		private static final int[] NONE = new int[0];
+		
+		private final Integer[] questionIds;
+		
+		private final Integer[] answerIds;
+		
+		private final Integer[] answerDrugIds;
+		
+		private final boolean[] hasAnswer;
+		
+		private final boolean[] hasAnswerDrug;
+		
+		private final String[] controlIds;
+		
+		private final boolean[] partOfSet;
+		
+		private final boolean[] lastInSet;
+		
+		// the positions of the components for each question, and of those with a control id, in ascending order
+		private final Map<Integer, int[]> componentsByQuestionId = new HashMap<Integer, int[]>();
+		
+		private final int[] componentsWithControlId;
+		
+		private Query(List<ObsGroupDescriptor.Component> components) {
+			int n = components.size();
+			questionIds = new Integer[n];
+			answerIds = new Integer[n];
+			answerDrugIds = new Integer[n];
+			hasAnswer = new boolean[n];
+			hasAnswerDrug = new boolean[n];
+			controlIds = new String[n];
+			partOfSet = new boolean[n];
+			lastInSet = new boolean[n];
+			Map<Integer, List<Integer>> byQuestion = new HashMap<Integer, List<Integer>>();
+			List<Integer> withControlId = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++) {
+				ObsGroupDescriptor.Component component = components.get(i);
+				if (component.getQuestionId() != null) {
+					questionIds[i] = component.getQuestionId();
+					List<Integer> positions = byQuestion.get(questionIds[i]);
+					if (positions == null) {
+						positions = new ArrayList<Integer>();
+						byQuestion.put(questionIds[i], positions);
+					}
+					positions.add(i);
+				}
+				answerIds[i] = component.getAnswerId();
+				hasAnswer[i] = answerIds[i] != null;
+				answerDrugIds[i] = component.getAnswerDrugId();
+				hasAnswerDrug[i] = answerDrugIds[i] != null;
+				controlIds[i] = component.getControlId();
+				if (controlIds[i] != null) {
+					withControlId.add(i);
+				}
+				partOfSet[i] = component.isPartOfSet();
+				lastInSet[i] = component.isLastInSet();
+			}
+			for (Map.Entry<Integer, List<Integer>> e : byQuestion.entrySet()) {
+				componentsByQuestionId.put(e.getKey(), toArray(e.getValue()));
+			}
+			componentsWithControlId = toArray(withControlId);
+		}
+		
+		/**
+		 * @return how well the given group matches the components, as described by
+		 *         {@link ObsGroupComponent#supportingRank(List, Set)}
+		 */
+		public int rank(Candidate candidate) {
+			return rank(candidate.members);
+		}
+		
+		/**
+		 * @return how well the given members of a group match the components, as described by
+		 *         {@link ObsGroupComponent#supportingRank(List, Set)}
+		 */
+		public int rank(Set<Obs> obsSet) {
+			return rank(toMembers(obsSet));
+		}
+		
+		private int rank(Member[] members) {
+			int rank = 0;
+			for (Member member : members) {
+				int[] sameQuestion = componentsByQuestionId.get(member.conceptId);
+				if (sameQuestion == null) {
+					sameQuestion = NONE;
+				}
+				// whether an earlier component for this question matched the member
+				boolean matched = false;
+				
+				// the components that can affect the rank of this member, in the order of the form
+				int q = 0;
+				int c = 0;
+				while (q < sameQuestion.length || c < componentsWithControlId.length) {
+					int i;
+					if (c >= componentsWithControlId.length
+					        || (q < sameQuestion.length && sameQuestion[q] <= componentsWithControlId[c])) {
+						i = sameQuestion[q++];
+						if (c < componentsWithControlId.length && componentsWithControlId[c] == i) {
+							c++;
+						}
+					} else {
+						i = componentsWithControlId[c++];
+					}
+					
+					// a component whose control id matches that of the member forces a match
+					if (controlIds[i] != null && controlIds[i].equals(member.getControlId())) {
+						return 1000;
+					}
+					if (questionIds[i] == null || !questionIds[i].equals(member.conceptId)) {
+						continue;
+					}
+					
+					boolean answerMatches;
+					if (!hasAnswerDrug[i]) {
+						answerMatches = !hasAnswer[i]
+						        || (member.valueCodedId != null && answerIds[i].equals(member.valueCodedId));
+					} else {
+						answerMatches = member.valueDrugId != null && answerDrugIds[i].equals(member.valueDrugId);
+					}
+					
+					if (!answerMatches) {
+						if (!matched) {
+							if ((hasAnswer[i] && member.valueCodedId == null)
+							        || (hasAnswerDrug[i] && member.valueDrugId == null)) {
+								return 0;
+							} else if (!partOfSet[i] || lastInSet[i]) {
+								// not a match for the question, and no other component of the set was either
+								return -1000;
+							}
+						}
+					} else {
+						if (hasAnswer[i] || hasAnswerDrug[i]) {
+							// add extra weight to this matching...
+							rank++;
+						}
+						matched = true;
+						rank++;
+					}
+				}
+			}
+			return rank;
+		}
+		
+		private static int[] toArray(List<Integer> list) {
+			int[] ret = new int[list.size()];
+			for (int i = 0; i < ret.length; i++) {
+				ret[i] = list.get(i);
+			}
+			return ret;
+		}
+	}
+	
+	/**
+	 * The values of a member of a group that it is ranked by
+	 */
+	private static class Member {
+		
+		private final Obs obs;
+		
+		private final Integer conceptId;
+		
+		private final Integer valueCodedId;
+		
+		private final Integer valueDrugId;
+		
+		private String controlId;
+		
+		private boolean controlIdFound = false;
+		
+		private Member(Obs obs) {
+			this.obs = obs;
+			this.conceptId = obs.getConcept().getConceptId();
+			this.valueCodedId = obs.getValueCoded() == null ? null : obs.getValueCoded().getConceptId();
+			this.valueDrugId = obs.getValueDrug() == null ? null : obs.getValueDrug().getDrugId();
+		}
+		
+		// only found when a component has a control id, as it is parsed from the form field path
+		private String getControlId() {
+			if (!controlIdFound) {
+				controlId = HtmlFormEntryUtil.getControlId(obs);
+				controlIdFound = true;
+			}
+			return controlId;
+		}
+	}
+	
+	private static Member[] toMembers(Set<Obs> obsSet) {
+		Member[] ret = new Member[obsSet.size()];
+		int i = 0;
+		for (Obs obs : obsSet) {
+			ret[i++] = new Member(obs);
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,129 @@
+package org.openmrs.module.htmlformentry.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * A simple thread-safe, size-bounded cache that evicts the least-recently-used entry once the
+ * maximum size is reached, and keeps track of hits, misses and evictions so that callers can expose
+ * how effective the cache is.
+ */
+public class BoundedCache<K, V> {
+	
+	private final int maxSize;
+	
+	private final Map<K, V> entries;
+	
+	private long hits = 0;
+	
+	private long misses = 0;
+	
+	private long evictions = 0;
+	
+	public BoundedCache(int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize must be greater than zero");
+		}
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				if (size() > BoundedCache.this.maxSize) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+	
+	/**
+	 * @return the cached value for the given key, or null if there is none
+	 */
+	public synchronized V get(K key) {
+		V value = entries.get(key);
+		if (value == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return value;
+	}
+	
+	/**
+	 * @return the cached value for the given key if it is still valid, or null if there is none. A
+	 *         value that is no longer valid is removed, and the lookup counts as a miss.
+	 */
+	public synchronized V get(K key, Predicate<V> isValid) {
+		V value = entries.get(key);
+		if (value != null && !isValid.test(value)) {
+			entries.remove(key);
+			value = null;
+		}
+		if (value == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return value;
+	}
+	
+	/**
+	 * @return the cached value for the given key, or null if there is none, without counting as a hit
+	 *         or a miss
+	 */
+	public synchronized V peek(K key) {
+		return entries.get(key);
+	}
+	
+	public synchronized void put(K key, V value) {
+		if (value == null) {
+			entries.remove(key);
+		} else {
+			entries.put(key, value);
+		}
+	}
+	
+	public synchronized V remove(K key) {
+		return entries.remove(key);
+	}
+	
+	/**
+	 * Removes the entries whose values match the given predicate
+	 *
+	 * @return whether any entry was removed
+	 */
+	public synchronized boolean removeIf(Predicate<V> predicate) {
+		return entries.values().removeIf(predicate);
+	}
+	
+	public synchronized void clear() {
+		entries.clear();
+	}
+	
+	public synchronized int size() {
+		return entries.size();
+	}
+	
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
+	/**
+	 * @return a snapshot of the hit, miss and eviction counts of this cache
+	 */
+	public synchronized CacheStatistics getStatistics() {
+		return new CacheStatistics(hits, misses, evictions, entries.size(), maxSize);
+	}
+	
+	/**
+	 * Resets the hit, miss and eviction counts, leaving the cached entries in place
+	 */
+	public synchronized void resetStatistics() {
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+	}
+}
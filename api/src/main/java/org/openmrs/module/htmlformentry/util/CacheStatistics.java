@@ -0,0 +1,63 @@
+package org.openmrs.module.htmlformentry.util;
+
+/**
+ * Immutable snapshot of the usage counts of a {@link BoundedCache}
+ */
+public class CacheStatistics {
+	
+	private final long hits;
+	
+	private final long misses;
+	
+	private final long evictions;
+	
+	private final int size;
+	
+	private final int maxSize;
+	
+	public CacheStatistics(long hits, long misses, long evictions, int size, int maxSize) {
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+		this.size = size;
+		this.maxSize = maxSize;
+	}
+	
+	public long getHits() {
+		return hits;
+	}
+	
+	public long getMisses() {
+		return misses;
+	}
+	
+	public long getEvictions() {
+		return evictions;
+	}
+	
+	public int getSize() {
+		return size;
+	}
+	
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
+	public long getRequests() {
+		return hits + misses;
+	}
+	
+	/**
+	 * @return the fraction of lookups that were served from the cache, or 0 if there were none
+	 */
+	public double getHitRate() {
+		long requests = getRequests();
+		return requests == 0 ? 0 : (double) hits / requests;
+	}
+	
+	@Override
+	public String toString() {
+		return "hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", size=" + size + "/" + maxSize
+		        + ", hitRate=" + String.format("%.2f", getHitRate());
+	}
+}
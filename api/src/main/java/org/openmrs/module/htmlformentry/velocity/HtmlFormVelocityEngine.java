@@ -0,0 +1,134 @@
+package org.openmrs.module.htmlformentry.velocity;
+
+import java.io.StringReader;
+import java.io.Writer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.velocity.Template;
+import org.apache.velocity.context.Context;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.exception.TemplateInitException;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.log.CommonsLogLogChute;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
+import org.openmrs.module.htmlformentry.util.BoundedCache;
+import org.openmrs.module.htmlformentry.util.CacheStatistics;
+import org.springframework.stereotype.Component;
+
+/**
+ * The Velocity engine used to evaluate the expressions in html forms (e.g. in the lookup,
+ * includeIf, and excludeIf tags). A single engine is shared by all form entry sessions, and each
+ * distinct expression is only parsed the first time it is evaluated. The parsed templates are kept
+ * in a bounded cache keyed by the text of the expression. Each expression is parsed under a name made
+ * from its text, and inline macros are kept local to the expression that defines them, so that forms
+ * defining macros with the same name do not see each other's definitions. Parsing an expression again
+ * (e.g. after it was evicted from the cache) replaces the macros of its earlier parse rather than
+ * leaving them behind.
+ * <p/>
+ * Evaluating an expression throws the same exceptions as
+ * {@link org.apache.velocity.app.VelocityEngine#evaluate(Context, Writer, String, String)}.
+ */
+@Component
+public class HtmlFormVelocityEngine {
+	
+	private static final Log log = LogFactory.getLog(HtmlFormVelocityEngine.class);
+	
+	public static final int MAX_CACHED_TEMPLATES = 1000;
+	
+	/**
+	 * The name under which expressions are parsed and rendered, which appears in Velocity's log
+	 * messages
+	 */
+	public static final String TEMPLATE_NAME = "org.openmrs.module.htmlformentry.FormEntrySession";
+	
+	private final RuntimeInstance runtime = new RuntimeInstance();
+	
+	private final BoundedCache<String, Template> templates = new BoundedCache<String, Template>(MAX_CACHED_TEMPLATES);
+	
+	private final Object parseLock = new Object();
+	
+	public HtmlFormVelocityEngine() {
+		// #1953 - Velocity errors in HTML form entry
+		runtime.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS,
+		    "org.apache.velocity.runtime.log.CommonsLogLogChute");
+		runtime.setProperty(CommonsLogLogChute.LOGCHUTE_COMMONS_LOG_NAME, "htmlformentry_velocity");
+		runtime.setProperty(RuntimeConstants.UBERSPECT_CLASSNAME,
+		    "org.apache.velocity.util.introspection.SecureUberspector");
+		// macros are registered in the namespace of the template that defines them rather than globally
+		runtime.setProperty(RuntimeConstants.VM_PERM_INLINE_LOCAL, "true");
+		
+		try {
+			runtime.init();
+		}
+		catch (Exception e) {
+			log.error("Error initializing Velocity engine", e);
+		}
+	}
+	
+	/**
+	 * Evaluates a velocity expression against the given context, writing the result to the writer
+	 *
+	 * @param context the context to evaluate the expression against
+	 * @param writer the writer to write the result to
+	 * @param expression the velocity expression
+	 * @throws ParseErrorException if the expression cannot be parsed
+	 * @throws org.apache.velocity.exception.MethodInvocationException if a method invoked by the
+	 *             expression throws an exception
+	 */
+	public void evaluate(Context context, Writer writer, String expression) {
+		Template template = templates.get(expression);
+		if (template == null) {
+			// parsing replaces the macros registered under the expression's name, so one thread parses at a time
+			synchronized (parseLock) {
+				template = templates.peek(expression);
+				if (template == null) {
+					template = parse(expression);
+					templates.put(expression, template);
+				}
+			}
+		}
+		template.merge(context, writer);
+	}
+	
+	/**
+	 * @return the hit, miss, and eviction counts of the parsed template cache
+	 */
+	public CacheStatistics getStatistics() {
+		return templates.getStatistics();
+	}
+	
+	/**
+	 * Removes all parsed templates
+	 */
+	public void clearCache() {
+		templates.clear();
+	}
+	
+	/**
+	 * Parses the expression and initializes the resulting syntax tree once, as Velocity does for
+	 * templates it loads, so that the template can then be rendered by several threads at once. The
+	 * template is named after the expression, so its inline macros go in the same namespace each time
+	 * it is parsed.
+	 */
+	private Template parse(String expression) {
+		String name = TEMPLATE_NAME + "#" + expression;
+		Template template = new Template();
+		template.setName(name);
+		template.setRuntimeServices(runtime);
+		try {
+			SimpleNode nodeTree = runtime.parse(new StringReader(expression), name);
+			template.setData(nodeTree);
+			template.initDocument();
+		}
+		catch (ParseException e) {
+			throw new ParseErrorException(e, null);
+		}
+		catch (TemplateInitException e) {
+			throw new ParseErrorException(e, null);
+		}
+		return template;
+	}
+}
@@ -0,0 +1,87 @@
+package org.openmrs.module.htmlformentry.velocity;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.apache.velocity.VelocityContext;
+
+/**
+ * A {@link VelocityContext} whose values can be computed on first use. Forms usually only refer to
+ * a few of the variables that are made available to velocity expressions, so variables that need
+ * queries to build (e.g. the relationships of the patient) are added as suppliers with
+ * {@link #putLazy(String, Supplier)}, and are only computed if an expression actually uses them.
+ * <p/>
+ * The keys of the lazy values that have been computed are available from
+ * {@link #getMaterializedKeys()}.
+ */
+public class LazyVelocityContext extends VelocityContext {
+	
+	private final Map<String, Supplier<?>> suppliers = new HashMap<String, Supplier<?>>();
+	
+	private final Set<String> materializedKeys = new LinkedHashSet<String>();
+	
+	/**
+	 * Adds a value that will be computed by the given supplier the first time the key is looked up,
+	 * replacing any existing value for the key
+	 *
+	 * @param key the name of the variable
+	 * @param supplier computes the value of the variable, at most once
+	 */
+	public void putLazy(String key, Supplier<?> supplier) {
+		if (key == null || supplier == null) {
+			return;
+		}
+		super.internalRemove(key);
+		suppliers.put(key, supplier);
+	}
+	
+	/**
+	 * @return the keys of the lazy values that have been computed, in the order they were first used
+	 */
+	public Set<String> getMaterializedKeys() {
+		return Collections.unmodifiableSet(materializedKeys);
+	}
+	
+	@Override
+	public Object internalGet(String key) {
+		Supplier<?> supplier = suppliers.remove(key);
+		if (supplier != null) {
+			materializedKeys.add(key);
+			Object value = supplier.get();
+			if (value != null) {
+				super.internalPut(key, value);
+			}
+			return value;
+		}
+		return super.internalGet(key);
+	}
+	
+	@Override
+	public Object internalPut(String key, Object value) {
+		suppliers.remove(key);
+		return super.internalPut(key, value);
+	}
+	
+	@Override
+	public boolean internalContainsKey(Object key) {
+		return suppliers.containsKey(key) || super.internalContainsKey(key);
+	}
+	
+	@Override
+	public Object[] internalGetKeys() {
+		Set<Object> keys = new LinkedHashSet<Object>();
+		Collections.addAll(keys, super.internalGetKeys());
+		keys.addAll(suppliers.keySet());
+		return keys.toArray();
+	}
+	
+	@Override
+	public Object internalRemove(Object key) {
+		suppliers.remove(key);
+		return super.internalRemove(key);
+	}
+}
@@ -23,7 +23,10 @@ import org.openmrs.module.htmlformentry.FormEntrySession;
 public interface VelocityContextContentProvider {
 	
 	/**
-	 * Called by {@link FormEntrySession} after instantiating and populating a velocity context
+	 * Called by {@link FormEntrySession} after instantiating and populating a velocity context. Values
+	 * that are expensive to compute can be added with
+	 * {@link FormEntrySession#addLazyToVelocityContext(String, java.util.function.Supplier)}, so they are
+	 * only computed for forms that use them.
 	 * 
 	 * @param session
 	 * @param velocityContext
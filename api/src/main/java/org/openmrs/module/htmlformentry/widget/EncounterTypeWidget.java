@@ -14,6 +14,7 @@
 package org.openmrs.module.htmlformentry.widget;
 
 import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.openmrs.EncounterType;
@@ -21,6 +22,7 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.htmlformentry.FormEntryContext;
 import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.openmrs.module.htmlformentry.OptionListCache.OptionListType;
 import org.springframework.util.StringUtils;
 
 /**
@@ -48,11 +50,13 @@ public class EncounterTypeWidget implements Widget {
 				return "";
 		}
 		
-		List<EncounterType> encounterTypes;
+		List<Option> encounterTypes = new ArrayList<Option>();
 		if (options != null) {
-			encounterTypes = options;
+			for (EncounterType type : options) {
+				encounterTypes.add(new Option(type.getName(), type.getEncounterTypeId().toString()));
+			}
 		} else {
-			encounterTypes = Context.getEncounterService().getAllEncounterTypes();
+			encounterTypes = HtmlFormEntryUtil.getOptions(OptionListType.ENCOUNTER_TYPE, null, true);
 		}
 		
 		StringBuilder sb = new StringBuilder();
@@ -60,11 +64,11 @@ public class EncounterTypeWidget implements Widget {
 		sb.append("\n<option value=\"\">");
 		sb.append(Context.getMessageSourceService().getMessage("htmlformentry.chooseEncounterType"));
 		sb.append("</option>");
-		for (EncounterType type : encounterTypes) {
+		for (Option type : encounterTypes) {
 			sb.append("\n<option");
-			if (encounterType != null && encounterType.equals(type))
+			if (encounterType != null && type.getValue().equals(String.valueOf(encounterType.getEncounterTypeId())))
 				sb.append(" selected=\"true\"");
-			sb.append(" value=\"" + type.getEncounterTypeId() + "\">").append(type.getName()).append("</option>");
+			sb.append(" value=\"" + type.getValue() + "\">").append(type.getLabel()).append("</option>");
 		}
 		sb.append("</select>");
 		
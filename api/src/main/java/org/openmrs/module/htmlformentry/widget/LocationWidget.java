@@ -2,8 +2,6 @@ package org.openmrs.module.htmlformentry.widget;
 
 import javax.servlet.http.HttpServletRequest;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 import org.openmrs.Location;
@@ -11,6 +9,7 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.htmlformentry.FormEntryContext;
 import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.openmrs.module.htmlformentry.OptionListCache.OptionListType;
 import org.springframework.util.StringUtils;
 import org.springframework.web.util.HtmlUtils;
 import org.springframework.web.util.JavaScriptUtils;
@@ -39,22 +38,20 @@ public class LocationWidget implements Widget {
 				return "";
 		}
 		
-		List<Location> useLocations;
+		boolean autocomplete = "autocomplete".equalsIgnoreCase(type);
+		List<Option> useLocations = new ArrayList<Option>();
 		if (options != null) {
-			useLocations = options;
+			for (Location l : options) {
+				useLocations.add(new Option(autocomplete ? l.getName() : HtmlFormEntryUtil.format(l),
+				        l.getLocationId().toString()));
+			}
 		} else {
-			useLocations = Context.getLocationService().getAllLocations();
-			Collections.sort(useLocations, new Comparator<Location>() {
-				
-				@Override
-				public int compare(Location left, Location right) {
-					return left.getName().compareTo(right.getName());
-				}
-			});
+			useLocations = HtmlFormEntryUtil.getOptions(autocomplete ? OptionListType.LOCATION_NAME : OptionListType.LOCATION,
+			    null, true);
 		}
 		
 		StringBuilder sb = new StringBuilder();
-		if ("autocomplete".equalsIgnoreCase(type)) {
+		if (autocomplete) {
 			sb.append("<input type=\"text\" id=\"display_" + context.getFieldName(this) + "\" value=\""
 			        + ((location != null) ? HtmlUtils.htmlEscape(location.getName()) : "")
 			        + "\" onblur=\"updateLocationFields(this)\" placeholder=\""
@@ -65,10 +62,10 @@ public class LocationWidget implements Widget {
 			sb.append("\n<script>");
 			sb.append("\nvar locationNameIdMap = new Object();");
 			ArrayList<String> escapedLocationNames = new ArrayList<String>(useLocations.size());
-			for (Location location : useLocations) {
-				String escapeLocationName = JavaScriptUtils.javaScriptEscape(location.getName());
+			for (Option option : useLocations) {
+				String escapeLocationName = JavaScriptUtils.javaScriptEscape(option.getLabel());
 				escapedLocationNames.add(escapeLocationName);
-				sb.append("\nlocationNameIdMap[\"" + escapeLocationName + "\"] = " + location.getLocationId() + ";");
+				sb.append("\nlocationNameIdMap[\"" + escapeLocationName + "\"] = " + option.getValue() + ";");
 			}
 			sb.append("\n");
 			//clear the form field when user clears the field or if no valid selection is made
@@ -93,11 +90,11 @@ public class LocationWidget implements Widget {
 			sb.append("\n<option value=\"\">");
 			sb.append(Context.getMessageSourceService().getMessage("htmlformentry.chooseALocation"));
 			sb.append("</option>");
-			for (Location l : useLocations) {
+			for (Option option : useLocations) {
 				sb.append("\n<option");
-				if (location != null && location.equals(l))
+				if (location != null && option.getValue().equals(String.valueOf(location.getLocationId())))
 					sb.append(" selected=\"true\"");
-				sb.append(" value=\"" + l.getLocationId() + "\">").append(HtmlFormEntryUtil.format(l)).append("</option>");
+				sb.append(" value=\"" + option.getValue() + "\">").append(option.getLabel()).append("</option>");
 			}
 			sb.append("</select>");
 		}
@@ -6,7 +6,6 @@ import org.apache.commons.logging.LogFactory;
 import org.openmrs.CareSetting;
 import org.openmrs.Concept;
 import org.openmrs.Drug;
-import org.openmrs.DrugIngredient;
 import org.openmrs.DrugOrder;
 import org.openmrs.Duration;
 import org.openmrs.OpenmrsMetadata;
@@ -17,6 +16,7 @@ import org.openmrs.OrderType;
 import org.openmrs.ServiceOrder;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.htmlformentry.CapturingPrintWriter;
+import org.openmrs.module.htmlformentry.DrugFormulary;
 import org.openmrs.module.htmlformentry.FormEntryContext;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
 import org.openmrs.module.htmlformentry.handler.OrderTagHandler;
@@ -30,6 +30,7 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -44,7 +45,7 @@ public class OrderWidget implements Widget {
 	
 	private final Map<String, Widget> widgets = new LinkedHashMap<>();
 	
-	private Map<Concept, List<Order>> initialValue;
+	private Map<Integer, List<Order>> initialValue;
 	
 	public OrderWidget(FormEntryContext context, OrderWidgetConfig widgetConfig) {
 		this.widgetConfig = widgetConfig;
@@ -91,20 +92,24 @@ public class OrderWidget implements Widget {
 		List<Order> l = (List<Order>) v;
 		initialValue = new HashMap<>();
 		for (Order order : l) {
-			Concept concept = order.getConcept();
-			List<Order> orderList = initialValue.get(concept);
+			Integer conceptId = order.getConcept().getConceptId();
+			List<Order> orderList = initialValue.get(conceptId);
 			if (orderList == null) {
 				orderList = new ArrayList<>();
-				initialValue.put(concept, orderList);
+				initialValue.put(conceptId, orderList);
 			}
 			orderList.add(order);
 		}
 	}
 	
 	public List<Order> getInitialValueForConcept(Concept concept) {
+		return getInitialValueForConcept(concept.getConceptId());
+	}
+	
+	public List<Order> getInitialValueForConcept(Integer conceptId) {
 		List<Order> ret = null;
 		if (initialValue != null) {
-			ret = initialValue.get(concept);
+			ret = initialValue.get(conceptId);
 		}
 		return (ret == null ? new ArrayList<>() : ret);
 	}
@@ -199,38 +204,40 @@ public class OrderWidget implements Widget {
 		
 		// Add a section for each concept configured in the tag
 		log.trace("OrderWidget - add concepts and drugs");
-		for (Concept c : widgetConfig.getConceptsAndDrugsConfigured().keySet()) {
+		Map<Integer, DrugFormulary.DrugDetails> drugsById = getDrugDetails(widgetConfig.getDrugIdsConfigured());
+		for (Map.Entry<Integer, List<Integer>> e : widgetConfig.getDrugIdsConfigured().entrySet()) {
 			
-			Option conceptOption = widgetConfig.getOption("concept", c.getId().toString());
+			String conceptId = e.getKey().toString();
+			Option conceptOption = widgetConfig.getOption("concept", conceptId);
 			
 			// For each rendered widget, add configuration of that widget into json for javascript
 			JsonObject jsonConcept = new JsonObject();
 			conceptArray.add(jsonConcept);
-			jsonConcept.addString("conceptId", c.getId().toString());
+			jsonConcept.addString("conceptId", conceptId);
 			jsonConcept.addString("conceptLabel", conceptOption.getLabel());
 			
 			List<JsonObject> jsonConceptDrugs = jsonConcept.getObjectArray("drugs");
-			for (Drug d : widgetConfig.getConceptsAndDrugsConfigured().get(c)) {
-				Option drugOption = widgetConfig.getOption("drug", d.getId().toString());
+			for (Integer drugId : e.getValue()) {
+				DrugFormulary.DrugDetails d = drugsById.get(drugId);
+				Option drugOption = widgetConfig.getOption("drug", drugId.toString());
 				JsonObject jsonDrug = new JsonObject();
-				jsonDrug.addString("drugId", d.getDrugId().toString());
+				jsonDrug.addString("drugId", drugId.toString());
 				jsonDrug.addString("drugLabel", drugOption.getLabel());
 				jsonDrug.addString("strength", d.getStrength());
-				String dosageForm = d.getDosageForm() == null ? "" : d.getDosageForm().getConceptId().toString();
-				jsonDrug.addString("dosageForm", dosageForm);
+				jsonDrug.addString("dosageForm", d.getDosageFormId() == null ? "" : d.getDosageFormId().toString());
 				List<JsonObject> jsonIngredientsArray = jsonDrug.getObjectArray("ingredients");
-				for (DrugIngredient di : d.getIngredients()) {
+				for (DrugFormulary.Ingredient di : d.getIngredients()) {
 					JsonObject jsonIngredient = new JsonObject();
-					jsonIngredient.addString("ingredient", di.getIngredient().getId().toString());
+					jsonIngredient.addString("ingredient", di.getIngredientId().toString());
 					jsonIngredient.addString("strength", di.getStrength() == null ? "" : di.getStrength().toString());
-					jsonIngredient.addString("units", di.getUnits() == null ? "" : di.getUnits().getId().toString());
+					jsonIngredient.addString("units", di.getUnitsId() == null ? "" : di.getUnitsId().toString());
 					jsonIngredientsArray.add(jsonIngredient);
 				}
 				jsonConceptDrugs.add(jsonDrug);
 			}
 			
 			if (initialValue != null) {
-				for (Order o : getInitialValueForConcept(c)) {
+				for (Order o : getInitialValueForConcept(e.getKey())) {
 					Order pd = o.getPreviousOrder();
 					JsonObject jho = new JsonObject();
 					jho.addString("orderId", o.getOrderId().toString());
@@ -242,7 +249,7 @@ public class OrderWidget implements Widget {
 					    Boolean.toString(HtmlFormEntryUtil.isAServiceOrderType(o.getOrderType())));
 					addToJsonObject(jho, "action", o.getAction());
 					JsonObject conceptObj = jho.addObject("concept");
-					conceptObj.addString("value", c.getId().toString());
+					conceptObj.addString("value", conceptId);
 					conceptObj.addString("display", conceptOption.getLabel());
 					addToJsonObject(jho, "careSetting", o.getCareSetting());
 					addToJsonObject(jho, "orderType", o.getOrderType());
@@ -299,6 +306,33 @@ public class OrderWidget implements Widget {
 		return jsonConfig;
 	}
 	
+	/**
+	 * @return the details of the given drugs, taken from the drug formulary, so that only the drugs
+	 *         that are not in it (e.g. retired drugs that are configured explicitly) need to be loaded
+	 */
+	protected Map<Integer, DrugFormulary.DrugDetails> getDrugDetails(Map<Integer, List<Integer>> drugIdsByConceptId) {
+		DrugFormulary.Snapshot formulary = Context.getRegisteredComponent("drugFormulary", DrugFormulary.class)
+		        .getSnapshot();
+		Map<Integer, DrugFormulary.DrugDetails> ret = new HashMap<>();
+		Set<Integer> missingDrugIds = new HashSet<>();
+		for (List<Integer> drugIds : drugIdsByConceptId.values()) {
+			for (Integer drugId : drugIds) {
+				DrugFormulary.DrugDetails details = formulary.getDrug(drugId);
+				if (details == null) {
+					missingDrugIds.add(drugId);
+				} else {
+					ret.put(drugId, details);
+				}
+			}
+		}
+		if (!missingDrugIds.isEmpty()) {
+			for (Drug drug : HtmlFormEntryUtil.getService().prefetchDrugs(missingDrugIds, null)) {
+				ret.put(drug.getDrugId(), DrugFormulary.DrugDetails.of(drug));
+			}
+		}
+		return ret;
+	}
+	
 	protected void addDurationToJsonObject(List<JsonObject> durations, String key, String snomedCtCode) {
 		Concept c = HtmlFormEntryUtil.getConcept(Duration.SNOMED_CT_CONCEPT_SOURCE_HL7_CODE + ":" + snomedCtCode);
 		if (c != null && c.getConceptId() != null) {
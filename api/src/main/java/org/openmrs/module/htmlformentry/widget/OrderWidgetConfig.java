@@ -2,13 +2,16 @@ package org.openmrs.module.htmlformentry.widget;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.openmrs.Concept;
 import org.openmrs.Drug;
 import org.openmrs.OrderFrequency;
+import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
 import org.openmrs.module.htmlformentry.schema.OrderField;
 
 /**
@@ -31,9 +34,14 @@ public class OrderWidgetConfig {
 	
 	private Map<String, List<Option>> orderPropertyOptions;
 	
-	// Serves to provide access to the orderables configured
+	// Serves to provide access to the orderables configured, by the ids of the concepts and of the drugs
+	// for each of them, so that displaying a form does not need to load them
 	
-	private Map<Concept, List<Drug>> conceptsAndDrugsConfigured = new LinkedHashMap<>();
+	private Map<Integer, List<Integer>> drugIdsConfigured = new LinkedHashMap<>();
+	
+	// the concepts and drugs themselves, loaded the first time they are asked for
+	
+	private Map<Concept, List<Drug>> conceptsAndDrugsConfigured;
 	
 	private List<OrderFrequency> orderFrequencies = new ArrayList<>();
 	
@@ -128,9 +136,50 @@ public class OrderWidgetConfig {
 		getOrderPropertyOptions(property).add(option);
 	}
 	
+	/**
+	 * @return the ids of the concepts configured, each with the ids of the drugs configured for it
+	 */
+	public Map<Integer, List<Integer>> getDrugIdsConfigured() {
+		if (conceptsAndDrugsConfigured != null) {
+			// the concepts and drugs may have been changed through the map they were returned in
+			drugIdsConfigured = toIds(conceptsAndDrugsConfigured);
+		} else if (drugIdsConfigured == null) {
+			drugIdsConfigured = new LinkedHashMap<>();
+		}
+		return drugIdsConfigured;
+	}
+	
+	public void setDrugIdsConfigured(Map<Integer, List<Integer>> drugIdsConfigured) {
+		this.drugIdsConfigured = drugIdsConfigured;
+		this.conceptsAndDrugsConfigured = null;
+	}
+	
+	/**
+	 * Adds the concept with the given id to the concepts configured, if it is not there already
+	 */
+	public void addConceptConfigured(Integer conceptId) {
+		getDrugIdsConfigured().computeIfAbsent(conceptId, k -> new ArrayList<>());
+		conceptsAndDrugsConfigured = null;
+	}
+	
+	/**
+	 * Adds the drug with the given id to the drugs configured for the concept with the given id
+	 */
+	public void addDrugConfigured(Integer conceptId, Integer drugId) {
+		getDrugIdsConfigured().computeIfAbsent(conceptId, k -> new ArrayList<>()).add(drugId);
+		conceptsAndDrugsConfigured = null;
+	}
+	
+	/**
+	 * The concepts and drugs are loaded in a few queries the first time they are asked for, and the
+	 * same map is returned after that. Callers that only need their ids should use
+	 * {@link #getDrugIdsConfigured()} instead, which does not load them.
+	 *
+	 * @return the concepts configured, each with the drugs configured for it
+	 */
 	public Map<Concept, List<Drug>> getConceptsAndDrugsConfigured() {
 		if (conceptsAndDrugsConfigured == null) {
-			conceptsAndDrugsConfigured = new LinkedHashMap<>();
+			conceptsAndDrugsConfigured = load(getDrugIdsConfigured());
 		}
 		return conceptsAndDrugsConfigured;
 	}
@@ -139,6 +188,42 @@ public class OrderWidgetConfig {
 		this.conceptsAndDrugsConfigured = conceptsAndDrugsConfigured;
 	}
 	
+	private static Map<Integer, List<Integer>> toIds(Map<Concept, List<Drug>> conceptsAndDrugs) {
+		Map<Integer, List<Integer>> ret = new LinkedHashMap<>();
+		for (Map.Entry<Concept, List<Drug>> e : conceptsAndDrugs.entrySet()) {
+			List<Integer> drugIds = new ArrayList<>();
+			for (Drug drug : e.getValue()) {
+				drugIds.add(drug.getDrugId());
+			}
+			ret.put(e.getKey().getConceptId(), drugIds);
+		}
+		return ret;
+	}
+	
+	private static Map<Concept, List<Drug>> load(Map<Integer, List<Integer>> drugIdsConfigured) {
+		Set<Integer> drugIds = new HashSet<>();
+		for (List<Integer> drugIdsForConcept : drugIdsConfigured.values()) {
+			drugIds.addAll(drugIdsForConcept);
+		}
+		Map<Integer, Concept> conceptsById = new HashMap<>();
+		for (Concept concept : HtmlFormEntryUtil.getService().prefetchConcepts(drugIdsConfigured.keySet(), null)) {
+			conceptsById.put(concept.getConceptId(), concept);
+		}
+		Map<Integer, Drug> drugsById = new HashMap<>();
+		for (Drug drug : HtmlFormEntryUtil.getService().prefetchDrugs(drugIds, null)) {
+			drugsById.put(drug.getDrugId(), drug);
+		}
+		Map<Concept, List<Drug>> ret = new LinkedHashMap<>();
+		for (Map.Entry<Integer, List<Integer>> e : drugIdsConfigured.entrySet()) {
+			List<Drug> drugs = new ArrayList<>();
+			for (Integer drugId : e.getValue()) {
+				drugs.add(drugsById.get(drugId));
+			}
+			ret.put(conceptsById.get(e.getKey()), drugs);
+		}
+		return ret;
+	}
+	
 	public List<OrderFrequency> getOrderFrequencies() {
 		if (orderFrequencies == null) {
 			orderFrequencies = new ArrayList<>();
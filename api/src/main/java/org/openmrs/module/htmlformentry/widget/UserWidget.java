@@ -1,6 +1,7 @@
 package org.openmrs.module.htmlformentry.widget;
 
 import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.openmrs.User;
@@ -8,6 +9,7 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.htmlformentry.FormEntryContext;
 import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.openmrs.module.htmlformentry.OptionListCache.OptionListType;
 import org.springframework.util.StringUtils;
 
 /**
@@ -37,17 +39,19 @@ public class UserWidget implements Widget {
 		sb.append("\n<option value=\"\">");
 		sb.append(Context.getMessageSourceService().getMessage("general.choose") + "...");
 		sb.append("</option>");
-		List<User> userList;
+		List<Option> userList = new ArrayList<Option>();
 		if (options != null) {
-			userList = options;
+			for (User u : options) {
+				userList.add(new Option(String.valueOf(u.getPersonName()), u.getUserId().toString()));
+			}
 		} else {
-			userList = Context.getUserService().getAllUsers();
+			userList = HtmlFormEntryUtil.getOptions(OptionListType.USER, null, true);
 		}
-		for (User u : userList) {
+		for (Option u : userList) {
 			sb.append("\n<option");
-			if (user != null && user.equals(u))
+			if (user != null && u.getValue().equals(String.valueOf(user.getUserId())))
 				sb.append(" selected=\"true\"");
-			sb.append(" value=\"" + u.getUserId() + "\">").append(u.getPersonName()).append("</option>");
+			sb.append(" value=\"" + u.getValue() + "\">").append(u.getLabel()).append("</option>");
 		}
 		sb.append("</select>");
 		return sb.toString();
@@ -11,6 +11,8 @@ import org.dbunit.dataset.IDataSet;
 import org.dbunit.dataset.ReplacementDataSet;
 import org.dbunit.dataset.xml.FlatXmlDataSet;
 import org.dbunit.dataset.xml.FlatXmlProducer;
+import org.junit.Before;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.ModuleUtil;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.openmrs.util.OpenmrsClassLoader;
@@ -24,6 +26,20 @@ public abstract class BaseHtmlFormEntryTest extends BaseModuleContextSensitiveTe
 	
 	static Map<String, IDataSet> cachedDataSets = new HashMap<>();
 	
+	/**
+	 * Data sets are inserted without going through hibernate, so metadata identifiers resolved by
+	 * earlier tests must be forgotten
+	 */
+	@Before
+	public void clearMetadataCache() {
+		Context.getRegisteredComponent("htmlFormMetadataCache", HtmlFormMetadataCache.class).clear();
+		Context.getService(HtmlFormEntryService.class).clearConceptMappingCache();
+		Context.getService(HtmlFormEntryService.class).clearHtmlFormCaches();
+		Context.getRegisteredComponent("drugFormulary", DrugFormulary.class).clear();
+		Context.getRegisteredComponent("encounterTypePrivilegeCache", EncounterTypePrivilegeCache.class).clear();
+		Context.getRegisteredComponent("optionListCache", OptionListCache.class).clear();
+	}
+	
 	public void executeVersionedDataSet(String datasetName) throws Exception {
 		IDataSet dataSet = cachedDataSets.get(datasetName);
 		if (dataSet == null) {
@@ -0,0 +1,65 @@
+package org.openmrs.module.htmlformentry;
+
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DeferringPrintWriterTest {
+	
+	@Test
+	public void print_shouldWriteStraightThroughUntilASegmentIsDeferred() {
+		StringWriter target = new StringWriter();
+		DeferringPrintWriter out = new DeferringPrintWriter(target);
+		out.print("<div>before");
+		out.defer(0);
+		out.print("after</div>");
+		
+		Assert.assertEquals("<div>before", target.toString());
+		Assert.assertTrue(out.hasDeferredSegments());
+	}
+	
+	@Test
+	public void writeDeferred_shouldRenderDeferredSegmentsInPlace() {
+		StringWriter target = new StringWriter();
+		DeferringPrintWriter out = new DeferringPrintWriter(target);
+		out.print("a");
+		out.defer(0);
+		out.print("b");
+		out.defer(1);
+		out.print("c");
+		
+		out.writeDeferred((id, writer) -> writer.print("[" + id + "]"));
+		out.print("d");
+		
+		Assert.assertEquals("a[0]b[1]cd", target.toString());
+		Assert.assertFalse(out.hasDeferredSegments());
+	}
+	
+	@Test
+	public void writeDeferred_shouldWritePlaceholdersIfThereIsNoRenderer() {
+		StringWriter target = new StringWriter();
+		DeferringPrintWriter out = new DeferringPrintWriter(target);
+		out.print("a");
+		out.defer(3);
+		out.print("b");
+		
+		out.writeDeferred(null);
+		
+		Assert.assertEquals("a<unmatched id=\"3\" />b", target.toString());
+	}
+	
+	@Test
+	public void replacePlaceholders_shouldReplaceThePlaceholdersOfTheGivenSegmentsOnly() {
+		Map<Integer, String> segments = new HashMap<Integer, String>();
+		segments.put(0, "[0]");
+		segments.put(12, "[12]");
+		String html = "a" + DeferringPrintWriter.getPlaceholder(0) + "b" + DeferringPrintWriter.getPlaceholder(5) + "c"
+		        + DeferringPrintWriter.getPlaceholder(12) + "<unmatched id=\"x\" />";
+		
+		Assert.assertEquals("a[0]b<unmatched id=\"5\" />c[12]<unmatched id=\"x\" />",
+		    DeferringPrintWriter.replacePlaceholders(html, segments));
+	}
+}
@@ -5,7 +5,10 @@ import static org.junit.Assert.assertNull;
 import static org.openmrs.module.htmlformentry.HtmlFormEntryConstants.FORM_NAMESPACE;
 import static org.openmrs.module.htmlformentry.HtmlFormEntryUtil.getControlId;
 
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.junit.Assert;
@@ -231,6 +234,93 @@ public class FormEntryContextTest {
 		context.getObsFromExistingObs(controlId);
 	}
 	
+	@Test
+	public void findBestMatchingObsGroup_shouldMatchTheGroupWithTheSameAnswerOnlyOnce() {
+		Concept answer1 = createConceptMock(3);
+		Concept answer2 = createConceptMock(4);
+		Obs group1 = createObsGroupMock(concept1, concept2, answer1);
+		Obs group2 = createObsGroupMock(concept1, concept2, answer2);
+		context.setupExistingData(createEncounterMock(group1, group2));
+		List<ObsGroupComponent> components = Arrays.asList(new ObsGroupComponent(concept2, answer2, null));
+		
+		Assert.assertEquals(group2, context.findBestMatchingObsGroup(components, "/1"));
+		// the other group answers the question differently, and the matched group has been claimed
+		Assert.assertNull(context.findBestMatchingObsGroup(components, "/1"));
+		Assert.assertEquals(1, context.getExistingObsInGroupsCount());
+	}
+	
+	@Test
+	public void getNextUnmatchedObsGroup_shouldReturnTheFirstGroupAtThePathThatIsNotRuledOut() {
+		Obs group1 = createObsGroupMock(concept1, concept2, createConceptMock(3));
+		Obs group2 = createObsGroupMock(concept2, concept1, null);
+		Obs group3 = createObsGroupMock(concept1, concept2, createConceptMock(4));
+		context.setupExistingData(createEncounterMock(group1, group2, group3));
+		List<ObsGroupComponent> components = Arrays.asList(new ObsGroupComponent(concept2, null, null));
+		
+		Obs first = context.getNextUnmatchedObsGroup(components, "/1");
+		Obs second = context.getNextUnmatchedObsGroup(components, "/1");
+		
+		Assert.assertNotNull(first);
+		Assert.assertNotNull(second);
+		Assert.assertNotEquals(first, second);
+		Assert.assertNotEquals(group2, first);
+		Assert.assertNotEquals(group2, second);
+		Assert.assertNull(context.getNextUnmatchedObsGroup(components, "/1"));
+		Assert.assertEquals(group2,
+		    context.getNextUnmatchedObsGroup(Arrays.asList(new ObsGroupComponent(concept1, null, null)), "/2"));
+	}
+	
+	@Test
+	public void supportingRank_shouldForceAMatchOnTheControlIdOfAMember() {
+		Obs group = createObsGroupMock(concept1, concept2, createConceptMock(3));
+		Obs member = group.getGroupMembers().iterator().next();
+		member.setFormField(FORM_NAMESPACE, "MyForm.1.0/my-control-0");
+		
+		List<ObsGroupComponent> components = Arrays.asList(new ObsGroupComponent(concept2, null, null, "my-control"),
+		    new ObsGroupComponent(concept2, createConceptMock(4), null));
+		
+		Assert.assertEquals(1000, ObsGroupComponent.supportingRank(components, group.getGroupMembers()));
+		// without the control id, the member answers the question differently
+		Assert.assertEquals(-1000, ObsGroupComponent.supportingRank(components.subList(1, 2), group.getGroupMembers()));
+	}
+	
+	@Test
+	public void removeExistingObs_shouldClaimTheObsOfEachCheckboxAnswerInOrder() {
+		Concept yes = createConceptMock(3);
+		Concept no = createConceptMock(4);
+		Obs first = createObsMock(concept1, null);
+		first.setValueCoded(yes);
+		Obs other = createObsMock(concept1, null);
+		other.setValueCoded(no);
+		Obs second = createObsMock(concept1, null);
+		second.setValueCoded(yes);
+		context.setupExistingData(createEncounterMock(first, other, second));
+		
+		// the question and answers are looked up by id rather than by equality
+		Assert.assertSame(first, context.removeExistingObs(createConceptMock(1), createConceptMock(3)));
+		Assert.assertSame(second, context.removeExistingObs(concept1, yes));
+		Assert.assertNull(context.removeExistingObs(concept1, yes));
+		Assert.assertEquals(Arrays.asList(other), context.getExistingObs().get(concept1));
+		Assert.assertSame(other, context.removeExistingObs(concept1, (Concept) null));
+		Assert.assertTrue(context.getExistingObs().isEmpty());
+	}
+	
+	@Test
+	public void removeExistingObs_shouldOnlyClaimObsWithoutAFormFieldByNumericValue() {
+		Obs withControlId = createObsMock(concept1, "numeric-obs");
+		withControlId.setValueNumeric(2.0);
+		Obs withoutControlId = createObsMock(concept1, null);
+		withoutControlId.setValueNumeric(2.0);
+		context.setupExistingData(createEncounterMock(withControlId, withoutControlId));
+		
+		Assert.assertNull(context.removeExistingObs(concept1, "3"));
+		Assert.assertSame(withoutControlId, context.removeExistingObs(concept1, "2"));
+		Assert.assertNull(context.removeExistingObs(concept1, "2"));
+		Assert.assertSame(withControlId, context.getObsFromExistingObs(concept1, "numeric-obs"));
+		Assert.assertEquals(Arrays.asList(withControlId), context.removeExistingObs(concept1));
+		Assert.assertNull(context.getExistingObs().get(concept1));
+	}
+	
 	private Concept createConceptMock(Integer id) {
 		Concept concept = new Concept();
 		concept.setId(id);
@@ -246,6 +336,20 @@ public class FormEntryContextTest {
 		return obs;
 	}
 	
+	private Obs createObsGroupMock(Concept groupingConcept, Concept question, Concept answer) {
+		Obs group = createObsMock(groupingConcept, null);
+		Obs member = createObsMock(question, null);
+		member.setValueCoded(answer);
+		group.addGroupMember(member);
+		return group;
+	}
+	
+	private Encounter createEncounterMock(Obs... obs) {
+		Encounter encounter = new Encounter();
+		encounter.setObs(new LinkedHashSet<>(Arrays.asList(obs)));
+		return encounter;
+	}
+	
 	private Encounter createEncounterMock(Concept concept1, Concept concept2) {
 		Encounter encounter = new Encounter();
 		Set<Obs> obsSet = new HashSet<>();
@@ -0,0 +1,24 @@
+package org.openmrs.module.htmlformentry;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+
+public class HtmlFormMetadataCacheInterceptorTest {
+	
+	@Test
+	public void isInstanceOf_shouldMatchTheClassOrASuperclassByName() {
+		Assert.assertTrue(HtmlFormMetadataCacheInterceptor.isInstanceOf(new Patient(), "org.openmrs.Patient"));
+		Assert.assertTrue(HtmlFormMetadataCacheInterceptor.isInstanceOf(new Patient(), "org.openmrs.Person"));
+		Assert.assertFalse(HtmlFormMetadataCacheInterceptor.isInstanceOf(new Location(), "org.openmrs.Patient"));
+	}
+	
+	@Test
+	public void isInstanceOf_shouldNotNeedTheNamedClassToBeLoadable() {
+		Assert.assertFalse(HtmlFormMetadataCacheInterceptor.isInstanceOf(new Concept(), "org.example.NotInstalled"));
+		Assert.assertFalse(HtmlFormMetadataCacheInterceptor.isInstanceOf(new Concept(),
+		    HtmlFormMetadataCacheInterceptor.METADATA_TERM_MAPPING_CLASS));
+	}
+}
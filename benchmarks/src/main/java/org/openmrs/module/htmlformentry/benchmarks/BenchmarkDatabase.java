@@ -0,0 +1,59 @@
+package org.openmrs.module.htmlformentry.benchmarks;
+
+import java.util.concurrent.Callable;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.BaseHtmlFormEntryTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestContextManager;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+/**
+ * Starts the in-memory database and application context that the api tests run against, outside of
+ * JUnit, so that benchmarks can exercise the module through the real services. The database is
+ * loaded with the standard test data and the data set used by the regression tests.
+ * <p/>
+ * OpenMRS keeps the user and the hibernate session of each thread separately, so the database must
+ * be started and used by the same thread, i.e. from a {@code Scope.Thread} state.
+ */
+public class BenchmarkDatabase extends BaseHtmlFormEntryTest {
+	
+	public static final String DATASET = "org/openmrs/module/htmlformentry/data/RegressionTest-data-openmrs-2.8.xml";
+	
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+	
+	/**
+	 * Creates the application context and the database, and authenticates as the admin user
+	 */
+	public void start() throws Exception {
+		new TestContextManager(getClass()).prepareTestInstance(this);
+		baseSetupWithStandardDataAndAuthentication();
+		executeVersionedDataSet(DATASET);
+	}
+	
+	public void stop() {
+		Context.closeSession();
+	}
+	
+	/**
+	 * Runs the given work in a transaction that is flushed, so that the cost of writing to the database
+	 * is included, but then rolled back, so that benchmarks that save data do not change the database
+	 * for later invocations. The hibernate session is cleared afterwards, so any entities loaded by the
+	 * work must not be used again.
+	 */
+	public <T> T inRolledBackTransaction(Callable<T> work) throws Exception {
+		TransactionStatus status = transactionManager.getTransaction(new DefaultTransactionDefinition());
+		try {
+			T result = work.call();
+			Context.flushSession();
+			return result;
+		}
+		finally {
+			transactionManager.rollback(status);
+			Context.clearSession();
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package org.openmrs.module.htmlformentry.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command line options, except that unless another result
+ * format is requested the results are written as JSON to {@value #DEFAULT_RESULT_FILE}, so that runs
+ * of different releases can be compared
+ */
+public class BenchmarkMain {
+	
+	public static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+	
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions options = new CommandLineOptions(args);
+		if (options.shouldHelp() || options.shouldList() || options.shouldListWithParams()
+		        || options.shouldListProfilers() || options.shouldListResultFormats()) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+		ChainedOptionsBuilder builder = new OptionsBuilder().parent(options);
+		if (!options.getResultFormat().hasValue()) {
+			builder.resultFormat(ResultFormatType.JSON);
+			if (!options.getResult().hasValue()) {
+				builder.result(DEFAULT_RESULT_FILE);
+			}
+		}
+		new Runner(builder.build()).run();
+	}
+}
@@ -0,0 +1,238 @@
+package org.openmrs.module.htmlformentry.benchmarks;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.Encounter;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.FormEntryContext;
+import org.openmrs.module.htmlformentry.FormEntrySession;
+import org.openmrs.module.htmlformentry.FormSubmissionError;
+import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.openmrs.module.htmlformentry.export.HtmlFormEntryExportUtil;
+import org.openmrs.module.htmlformentry.widget.DateWidget;
+import org.openmrs.module.htmlformentry.widget.NumberFieldWidget;
+import org.openmrs.module.htmlformentry.widget.Option;
+import org.openmrs.module.htmlformentry.widget.SingleOptionWidget;
+import org.openmrs.module.htmlformentry.widget.TextFieldWidget;
+import org.openmrs.module.htmlformentry.widget.Widget;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ * Measures the main request paths of the module against the in-memory test database, for each of
+ * the sample forms bundled with the benchmarks: opening a form to enter, edit, or view an encounter,
+ * validating and saving a submission, and exporting encounters.
+ * <p/>
+ * The form is saved as an HtmlForm, and submitted a few times during setup, so that there are
+ * encounters to edit, view, and export.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormEntryBenchmark {
+	
+	private static final String FORMS_PATH = "org/openmrs/module/htmlformentry/benchmarks/forms/";
+	
+	private static final int PATIENT_ID = 2;
+	
+	private static final int HTML_FORM_ID = 1;
+	
+	private static final int ENCOUNTERS_TO_EXPORT = 10;
+	
+	/**
+	 * The name of the bundled form to use, from the forms folder of the benchmark resources: a small
+	 * form, a large form with a bit of everything, a form made of many obs groups of the same concept,
+	 * and a form of drug orders, including one that offers the whole formulary. The sample submission
+	 * leaves the orders empty, so only displaying the order form exercises the order tags.
+	 */
+	@Param({ "smallForm", "largeForm", "obsGroupForm", "orderForm" })
+	public String form;
+	
+	private BenchmarkDatabase database;
+	
+	private MockHttpServletRequest submission;
+	
+	private List<Integer> encounterIds = new ArrayList<Integer>();
+	
+	private FormEntrySession validationSession;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		database = new BenchmarkDatabase();
+		database.start();
+		
+		HtmlForm htmlForm = HtmlFormEntryUtil.getService().getHtmlForm(HTML_FORM_ID);
+		InputStream in = getClass().getClassLoader().getResourceAsStream(FORMS_PATH + form + ".xml");
+		try {
+			htmlForm.setXmlData(IOUtils.toString(in, StandardCharsets.UTF_8));
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+		}
+		HtmlFormEntryUtil.getService().saveHtmlForm(htmlForm);
+		
+		for (int i = 0; i < ENCOUNTERS_TO_EXPORT; i++) {
+			FormEntrySession session = newSession(FormEntryContext.Mode.ENTER);
+			session.createFormWithoutHtml();
+			if (submission == null) {
+				submission = buildSubmission(session);
+			}
+			session.prepareForSubmit();
+			List<FormSubmissionError> errors = session.getSubmissionController()
+			        .validateSubmission(session.getContext(), submission);
+			if (!errors.isEmpty()) {
+				throw new IllegalStateException("The sample submission of " + form + " is not valid: " + errors);
+			}
+			session.getSubmissionController().handleFormSubmission(session, submission);
+			HtmlFormEntryUtil.getService().applyActions(session);
+			encounterIds.add(session.getEncounter().getEncounterId());
+		}
+		Context.clearSession();
+	}
+	
+	@Setup(Level.Iteration)
+	public void setUpValidationSession() throws Exception {
+		validationSession = newSession(FormEntryContext.Mode.ENTER);
+		validationSession.createFormWithoutHtml();
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		database.stop();
+	}
+	
+	@Benchmark
+	public FormEntrySession constructSession() throws Exception {
+		return newSession(FormEntryContext.Mode.ENTER);
+	}
+	
+	@Benchmark
+	public String createFormEnter() throws Exception {
+		return newSession(FormEntryContext.Mode.ENTER).getHtmlToDisplay();
+	}
+	
+	@Benchmark
+	public String createFormEdit() throws Exception {
+		return newSession(FormEntryContext.Mode.EDIT).getHtmlToDisplay();
+	}
+	
+	@Benchmark
+	public String createFormView() throws Exception {
+		return newSession(FormEntryContext.Mode.VIEW).getHtmlToDisplay();
+	}
+	
+	@Benchmark
+	public List<FormSubmissionError> validateSubmission() {
+		return validationSession.getSubmissionController().validateSubmission(validationSession.getContext(),
+		    submission);
+	}
+	
+	/**
+	 * Handles the submission and saves the encounter, in a transaction that is rolled back afterwards
+	 */
+	@Benchmark
+	public Encounter handleFormSubmission(SubmissionState state) throws Exception {
+		final FormEntrySession session = state.session;
+		return database.inRolledBackTransaction(() -> {
+			session.getSubmissionController().handleFormSubmission(session, submission);
+			HtmlFormEntryUtil.getService().applyActions(session);
+			return session.getEncounter();
+		});
+	}
+	
+	@Benchmark
+	public StringBuffer buildHtmlFormExport() {
+		List<Encounter> encounters = new ArrayList<Encounter>();
+		for (Integer encounterId : encounterIds) {
+			encounters.add(Context.getEncounterService().getEncounter(encounterId));
+		}
+		return HtmlFormEntryExportUtil.buildHtmlFormExport(encounters, getHtmlForm(), new ArrayList<String>(),
+		    new StringBuffer(), Context.getLocale(), new ArrayList<PatientIdentifierType>());
+	}
+	
+	/**
+	 * A session that is ready to handle the submission, as it would be after validation in the
+	 * controller. A new one is needed for every invocation, as handling a submission changes the
+	 * session.
+	 */
+	@State(Scope.Thread)
+	public static class SubmissionState {
+		
+		private FormEntrySession session;
+		
+		@Setup(Level.Invocation)
+		public void setUp(FormEntryBenchmark benchmark) throws Exception {
+			session = benchmark.newSession(FormEntryContext.Mode.ENTER);
+			session.createFormWithoutHtml();
+			session.prepareForSubmit();
+			session.getSubmissionController().validateSubmission(session.getContext(), benchmark.submission);
+		}
+	}
+	
+	/**
+	 * Entities are loaded again for every session, since handling submissions clears the hibernate
+	 * session
+	 */
+	private FormEntrySession newSession(FormEntryContext.Mode mode) throws Exception {
+		if (mode == FormEntryContext.Mode.ENTER) {
+			return new FormEntrySession(Context.getPatientService().getPatient(PATIENT_ID), getHtmlForm(), null);
+		}
+		Encounter encounter = Context.getEncounterService().getEncounter(encounterIds.get(0));
+		return new FormEntrySession(encounter.getPatient(), encounter, mode, getHtmlForm(), null);
+	}
+	
+	private HtmlForm getHtmlForm() {
+		return HtmlFormEntryUtil.getService().getHtmlForm(HTML_FORM_ID);
+	}
+	
+	/**
+	 * Builds a submission that gives every widget of the form a valid value
+	 */
+	private MockHttpServletRequest buildSubmission(FormEntrySession session) {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		String today = new SimpleDateFormat("yyyy-MM-dd").format(new Date());
+		for (Map.Entry<Widget, String> e : session.getContext().getFieldNames().entrySet()) {
+			Widget widget = e.getKey();
+			if (widget instanceof DateWidget) {
+				request.addParameter(e.getValue(), today);
+			} else if (widget instanceof NumberFieldWidget) {
+				request.addParameter(e.getValue(), "50");
+			} else if (widget instanceof TextFieldWidget) {
+				request.addParameter(e.getValue(), "Penicillin");
+			} else if (widget instanceof SingleOptionWidget) {
+				for (Option option : ((SingleOptionWidget) widget).getOptions()) {
+					if (option.getValue() != null && !option.getValue().isEmpty()) {
+						request.addParameter(e.getValue(), option.getValue());
+						break;
+					}
+				}
+			}
+		}
+		return request;
+	}
+}
@@ -0,0 +1,111 @@
+package org.openmrs.module.htmlformentry.benchmarks;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Measures the per-call cost of converting between xml strings and documents with
+ * {@link HtmlFormEntryUtil}, compared with creating a new parser or transformer factory for every
+ * call as was previously done.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XmlParsingBenchmark {
+	
+	/**
+	 * The number of sections in the generated form, to compare small forms with large ones
+	 */
+	@Param({ "1", "100" })
+	public int sections;
+	
+	private String xml;
+	
+	private Document document;
+	
+	@Setup
+	public void setUp() throws Exception {
+		StringBuilder sb = new StringBuilder("<htmlform>");
+		for (int i = 0; i < sections; i++) {
+			sb.append("<section headerLabel=\"Section ").append(i).append("\"><table><tr><td>Weight</td><td>");
+			sb.append("<obs conceptId=\"5089\" labelText=\"Weight (kg)\"/></td></tr><tr><td>Height</td><td>");
+			sb.append("<obs conceptId=\"5090\" labelText=\"Height (cm)\"/></td></tr></table></section>");
+		}
+		sb.append("</htmlform>");
+		xml = sb.toString();
+		document = HtmlFormEntryUtil.stringToDocument(xml);
+	}
+	
+	@Benchmark
+	public Document parseWithNewFactory() throws Exception {
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setExpandEntityReferences(false);
+		dbf.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+		dbf.setFeature("http://xml.org/sax/features/external-general-entities", false);
+		dbf.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+		DocumentBuilder db = dbf.newDocumentBuilder();
+		return db.parse(new InputSource(new StringReader(xml)));
+	}
+	
+	@Benchmark
+	public Document stringToDocument() throws Exception {
+		return HtmlFormEntryUtil.stringToDocument(xml);
+	}
+	
+	@Benchmark
+	public Document readerToDocument() throws Exception {
+		return HtmlFormEntryUtil.readerToDocument(new StringReader(xml));
+	}
+	
+	@Benchmark
+	public String serializeWithNewFactory() throws Exception {
+		Transformer trans = TransformerFactory.newInstance().newTransformer();
+		trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+		trans.setOutputProperty(OutputKeys.INDENT, "yes");
+		trans.setOutputProperty(OutputKeys.METHOD, "xml");
+		trans.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+		StringWriter sw = new StringWriter();
+		trans.transform(new DOMSource(document), new StreamResult(sw));
+		return sw.toString();
+	}
+	
+	@Benchmark
+	public String documentToString() throws Exception {
+		return HtmlFormEntryUtil.documentToString(document);
+	}
+	
+	@Benchmark
+	public StringWriter documentToWriter() throws Exception {
+		StringWriter sw = new StringWriter();
+		HtmlFormEntryUtil.documentToWriter(document, sw);
+		return sw;
+	}
+}
@@ -10,10 +10,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Vector;
 
-import org.openmrs.Encounter;
-import org.openmrs.Form;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.htmlformentry.HtmlForm;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
@@ -51,8 +48,6 @@ public class HtmlFormAjaxValidationController {
 		List<Locale> l = new Vector<Locale>();
 		l.add(Context.getLocale());
 		
-		List<Encounter> encounters = Context.getEncounterService().getEncountersByPatientId(patientId);
-		
 		// if the AJAX call has passed a date format, use that, otherwise use the standard date format to parse the date
 		SimpleDateFormat dateFormatter;
 		if (dateFormat != null) {
@@ -62,18 +57,7 @@ public class HtmlFormAjaxValidationController {
 		}
 		Date dateToCheck = dateFormatter.parse(date);
 		
-		boolean duplicate = false;
-		
-		for (Encounter enc : encounters) {
-			if (enc.getForm() != null) {
-				Form encForm = enc.getForm();
-				HtmlForm htmlForm = HtmlFormEntryUtil.getService().getHtmlFormByForm(encForm);
-				if (htmlForm != null && htmlForm.getId().equals(formId)
-				        && dateToCheck.compareTo(enc.getEncounterDatetime()) == 0) {
-					duplicate = true;
-				}
-			}
-		}
+		boolean duplicate = HtmlFormEntryUtil.getService().hasEncounterWithHtmlForm(patientId, formId, dateToCheck);
 		
 		if (duplicate) {
 			out.print("true");
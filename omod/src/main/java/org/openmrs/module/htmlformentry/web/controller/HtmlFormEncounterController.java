@@ -197,7 +197,7 @@ public class HtmlFormEncounterController {
 		fakeForm.setXmlData(xml);
 		FormEntrySession fes = new FormEntrySession(encounter.getPatient(), encounter, FormEntryContext.Mode.VIEW, fakeForm,
 		        httpSession);
-		fes.getHtmlToDisplay();
+		fes.createFormWithoutHtml();
 		return fes.getContext().getSchema();
 	}
 	
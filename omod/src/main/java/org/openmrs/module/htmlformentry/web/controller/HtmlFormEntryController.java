@@ -83,6 +83,51 @@ public class HtmlFormEntryController {
 		
 		long ts = System.currentTimeMillis();
 		
+		FormEntrySession session = createFormEntrySession(request, patientId, formId, htmlFormId);
+		
+		if (StringUtils.hasText(returnUrl)) {
+			session.setReturnUrl(returnUrl);
+		}
+		
+		// Since we're not using a sessionForm, we need to check for the case where the underlying form was modified while a user was filling a form out
+		if (formModifiedTimestamp != null) {
+			if (!OpenmrsUtil.nullSafeEquals(formModifiedTimestamp, session.getFormModifiedTimestamp())) {
+				throw new RuntimeException(
+				        Context.getMessageSourceService().getMessage("htmlformentry.error.formModifiedBeforeSubmission"));
+			}
+		}
+		
+		// Since we're not using a sessionForm, we need to make sure this encounter hasn't been modified since the user opened it
+		if (session.getEncounter() != null) {
+			if (encounterModifiedTimestamp != null
+			        && !OpenmrsUtil.nullSafeEquals(encounterModifiedTimestamp, session.getEncounterModifiedTimestamp())) {
+				throw new RuntimeException(Context.getMessageSourceService()
+				        .getMessage("htmlformentry.error.encounterModifiedBeforeSubmission"));
+			}
+		}
+		
+		if (hasChangedInd != null)
+			session.setHasChangedInd(hasChangedInd);
+		
+		// a submission needs the form's widgets and submission actions set up before we do anything, but not their html,
+		// which is only generated if the form has to be shown again. Otherwise the view writes the html straight to the
+		// response as the form is generated (see formHtml.tag)
+		if ("POST".equalsIgnoreCase(request.getMethod())) {
+			session.createFormWithoutHtml();
+		}
+		
+		setVolatileUserData(FORM_IN_PROGRESS_KEY, session);
+		
+		log.info("Took " + (System.currentTimeMillis() - ts) + " ms");
+		
+		return session;
+	}
+	
+	/**
+	 * Creates the session for the patient, encounter, and form specified by the request
+	 */
+	private FormEntrySession createFormEntrySession(HttpServletRequest request, Integer patientId, Integer formId,
+	        Integer htmlFormId) throws Exception {
 		Mode mode = Mode.VIEW;
 		
 		Integer personId = null;
@@ -184,41 +229,29 @@ public class HtmlFormEntryController {
 		} else {
 			session = new FormEntrySession(patient, htmlForm, request.getSession());
 		}
-		
-		if (StringUtils.hasText(returnUrl)) {
-			session.setReturnUrl(returnUrl);
-		}
-		
-		// Since we're not using a sessionForm, we need to check for the case where the underlying form was modified while a user was filling a form out
-		if (formModifiedTimestamp != null) {
-			if (!OpenmrsUtil.nullSafeEquals(formModifiedTimestamp, session.getFormModifiedTimestamp())) {
-				throw new RuntimeException(
-				        Context.getMessageSourceService().getMessage("htmlformentry.error.formModifiedBeforeSubmission"));
-			}
-		}
-		
-		// Since we're not using a sessionForm, we need to make sure this encounter hasn't been modified since the user opened it
-		if (encounter != null) {
-			if (encounterModifiedTimestamp != null
-			        && !OpenmrsUtil.nullSafeEquals(encounterModifiedTimestamp, session.getEncounterModifiedTimestamp())) {
-				throw new RuntimeException(Context.getMessageSourceService()
-				        .getMessage("htmlformentry.error.encounterModifiedBeforeSubmission"));
-			}
-		}
-		
-		if (hasChangedInd != null)
-			session.setHasChangedInd(hasChangedInd);
-		
-		// ensure we've generated the form's HTML (and thus set up the submission actions, etc) before we do anything
-		session.getHtmlToDisplay();
-		
-		setVolatileUserData(FORM_IN_PROGRESS_KEY, session);
-		
-		log.info("Took " + (System.currentTimeMillis() - ts) + " ms");
-		
 		return session;
 	}
 	
+	/**
+	 * When handling or applying a submission fails, the encounter and patient of its session may
+	 * already have been changed, so the form is shown again by a new session for the same form, patient
+	 * and encounter, loaded again from the database, with the submitted values
+	 */
+	private FormEntrySession getSessionToRedisplay(FormEntrySession session, HttpServletRequest request)
+	        throws Exception {
+		FormEntrySession redisplay = createFormEntrySession(request, getIntegerParameter(request, "patientId"),
+		    getIntegerParameter(request, "formId"), getIntegerParameter(request, "htmlformId"));
+		redisplay.setReturnUrl(session.getReturnUrl());
+		redisplay.setHasChangedInd(session.getHasChangedInd());
+		redisplay.getSubmissionController().setLastSubmission(request);
+		return redisplay;
+	}
+	
+	private Integer getIntegerParameter(HttpServletRequest request, String name) {
+		String value = request.getParameter(name);
+		return StringUtils.hasText(value) ? Integer.valueOf(value) : null;
+	}
+	
 	/**
 	 * Get a piece of information for the currently authenticated user. This information is stored only
 	 * temporarily. When a new module is loaded or the server is restarted, this information will
@@ -299,6 +332,12 @@ public class HtmlFormEntryController {
 		                || session.getSubmissionActions().getEncountersToCreate().size() == 0))
 			throw new IllegalArgumentException("This form is not going to create an encounter");
 		
+		// the patient the form was loaded with, if it was not created by the form
+		Patient existingPatient = session.getPatient() != null && session.getPatient().getPatientId() != null
+		        ? session.getPatient()
+		        : null;
+		Encounter existingEncounter = session.getContext().getExistingEncounter();
+		
 		try {
 			session.getSubmissionController().handleFormSubmission(session, request);
 			HtmlFormEntryUtil.getService().applyActions(session);
@@ -334,7 +373,15 @@ public class HtmlFormEntryController {
 		}
 		
 		// if we get here it's because we caught an error trying to submit/apply
-		return new ModelAndView("/module/htmlformentry/htmlFormEntry", "command", session);
+		// the submission may have changed the encounter and patient the form was loaded with before it failed, so they
+		// are evicted from the hibernate session, and the form is shown again with them loaded again from the database
+		if (existingEncounter != null) {
+			Context.evictFromSession(existingEncounter);
+		}
+		if (existingPatient != null) {
+			Context.evictFromSession(existingPatient);
+		}
+		return new ModelAndView("/module/htmlformentry/htmlFormEntry", "command", getSessionToRedisplay(session, request));
 	}
 	
 	protected String getQueryPrameters(HttpServletRequest request, FormEntrySession formEntrySession) {
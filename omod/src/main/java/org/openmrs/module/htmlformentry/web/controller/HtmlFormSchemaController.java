@@ -67,7 +67,7 @@ public class HtmlFormSchemaController {
 		HtmlForm fakeForm = new HtmlForm();
 		fakeForm.setXmlData(xml);
 		FormEntrySession fes = new FormEntrySession(p, null, FormEntryContext.Mode.ENTER, fakeForm, httpSession);
-		fes.getHtmlToDisplay();
+		fes.createFormWithoutHtml();
 		return fes.getContext().getSchema();
 	}
 }
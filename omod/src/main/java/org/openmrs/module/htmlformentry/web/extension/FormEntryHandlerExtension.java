@@ -3,13 +3,11 @@ package org.openmrs.module.htmlformentry.web.extension;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
 import org.openmrs.Form;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.htmlformentry.HtmlForm;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
 import org.openmrs.module.web.FormEntryContext;
 import org.openmrs.module.web.extension.FormEntryHandler;
@@ -72,12 +70,7 @@ public class FormEntryHandlerExtension extends FormEntryHandler {
 	
 	private <C extends Collection<Form>> C addAllHtmlForms(C collection) {
 		boolean showUnpublished = Context.getAuthenticatedUser().hasPrivilege(PrivilegeConstants.VIEW_UNPUBLISHED_FORMS);
-		Set<Form> ret = new LinkedHashSet<Form>();
-		for (HtmlForm form : HtmlFormEntryUtil.getService().getAllHtmlForms()) {
-			if (showUnpublished || form.getForm().getPublished())
-				ret.add(form.getForm());
-		}
-		collection.addAll(ret);
+		collection.addAll(HtmlFormEntryUtil.getService().getFormsWithHtmlForms(showUnpublished));
 		return collection;
 	}
 	
@@ -1,4 +1,5 @@
 <%@ include file="/WEB-INF/template/include.jsp" %>
+<%@ taglib prefix="htmlformentryTag" tagdir="/WEB-INF/tags/module/htmlformentry" %>
 
 <c:set var="OPENMRS_DO_NOT_SHOW_PATIENT_SET" scope="request" value="true"/>
 <c:set var="pageFragment" value="${param.pageFragment != null && param.pageFragment}"/>
@@ -361,14 +362,19 @@
 		<input type="hidden" name="hasChangedInd" class="has-changed-ind" value="${ command.hasChangedInd }" />
 </c:if>
 
+<%-- whether obs groups had to be guessed is only known once the form has been written, so this is shown afterwards --%>
+<div id="htmlFormGuessingWarning" class="error" style="display: none">
+	<spring:message code="htmlformentry.form.reconstruct.warning" />
+</div>
+	
+	<htmlformentryTag:formHtml formEntrySession="${command}"/>
+	
 <c:if test="${command.context.guessingInd == 'true'}">
-	<div class="error">
-		<spring:message code="htmlformentry.form.reconstruct.warning" />
-	</div>
+	<script type="text/javascript">
+		document.getElementById('htmlFormGuessingWarning').style.display = '';
+	</script>
 </c:if>
 	
-	${command.htmlToDisplay}
-	
 <c:if test="${command.context.mode != 'VIEW'}">
 	<div id="passwordPopup" style="position: absolute; z-axis: 1; bottom: 25px; background-color: #ffff00; border: 2px black solid; display: none; padding: 10px">
 		<center>